@@ -20,6 +20,7 @@ import java.awt.Font;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.zip.Deflater;
 
 import org.jdesktop.application.LocalStorage;
 
@@ -444,6 +445,55 @@ public final class Configuration {
         save();
     }
 
+    /**
+     * @return the compression level of saved projects, from 0 (none) to 9
+     *         (smallest), or Deflater.DEFAULT_COMPRESSION
+     */
+    public int getCompressionLevel() {
+        Integer level = properties.getCompressionLevel();
+
+        if ((level == null) || (level < Deflater.NO_COMPRESSION)
+                || (level > Deflater.BEST_COMPRESSION)) {
+            return Deflater.DEFAULT_COMPRESSION;
+        }
+
+        return level;
+    }
+
+    /**
+     * @param level
+     *            the compression level of saved projects, from 0 (none) to 9
+     *            (smallest)
+     */
+    public void setCompressionLevel(final int level) {
+        properties.setCompressionLevel(level);
+        save();
+    }
+
+    /**
+     * @return the frame rate of frame by frame exports when no video is open,
+     *         null if it has not been set
+     */
+    public Float getExportFrameRate() {
+        Float rate = properties.getExportFrameRate();
+
+        if ((rate == null) || !(rate > 0)) {
+            return null;
+        }
+
+        return rate;
+    }
+
+    /**
+     * @param rate
+     *            the frame rate of frame by frame exports when no video is
+     *            open
+     */
+    public void setExportFrameRate(final float rate) {
+        properties.setExportFrameRate(rate);
+        save();
+    }
+
     /**
      * @return the mixerInterfaceNormalCarriageColour
      */
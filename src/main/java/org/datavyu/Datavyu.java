@@ -40,7 +40,9 @@ import javax.script.ScriptEngine;
 import javax.script.ScriptEngineManager;
 import javax.swing.*;
 import org.jdesktop.application.*;
+import org.datavyu.controllers.SaveC;
 import org.datavyu.controllers.project.ProjectController;
+import org.datavyu.models.db.DatastoreFactory;
 import org.datavyu.models.db.MongoDatastore;
 import org.datavyu.models.db.TitleNotifier;
 import org.datavyu.models.db.UserWarningException;
@@ -837,6 +839,7 @@ implements KeyEventDispatcher, TitleNotifier {
                     screenSize.getHeight() - dataController.getHeight()), 0);
         dataController.setLocation(x, y);
         show(dataController);
+        SaveC.setCompressionLevel(Configuration.getInstance().getCompressionLevel());
         VIEW.checkForAutosavedFile();
 
         // The DB we create by default doesn't really have any unsaved changes.
@@ -982,8 +985,10 @@ implements KeyEventDispatcher, TitleNotifier {
      */
     public static void main(final String[] args) {
 
-        // Spin up the mongo process
-        MongoDatastore.startMongo();
+        // Spin up the mongo process - not needed by the columnar datastore.
+        if (!DatastoreFactory.isColumnar()) {
+            MongoDatastore.startMongo();
+        }
 
         // If we are running on a MAC set some additional properties:
         if (Datavyu.getPlatform() == Platform.MAC) {
@@ -22,13 +22,22 @@ import javax.swing.Timer;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import org.apache.commons.io.FilenameUtils;
 import org.datavyu.Datavyu;
 import org.datavyu.controllers.project.ProjectController;
+import org.datavyu.models.db.ProgressListener;
 import org.datavyu.models.db.UserWarningException;
 import org.datavyu.util.FileFilters.OPFFilter;
 import org.datavyu.util.FileFilters.SHAPAFilter;
 
+/**
+ * Periodically saves the current project to a temporary file. A snapshot of
+ * the project is taken on the event dispatch thread, and written to disk in
+ * the background so that coding isn't interrupted.
+ */
 public class AutosaveC implements ActionListener {
    
     /** The logger for this class. */
@@ -36,6 +45,29 @@ public class AutosaveC implements ActionListener {
     
     private static Timer timer;
     private static File f;
+
+    /**
+     * The file of the previous project autosaved, to delete once the current
+     * project has been autosaved. Null if there is none.
+     */
+    private static volatile File stale = null;
+
+    /** True while an autosave is being written to disk. */
+    private static volatile boolean writing = false;
+
+    /** The listener to notify of the progress of autosaves, null if none. */
+    private static volatile ProgressListener progressListener = null;
+
+    /** Writes autosaves to disk, off the event dispatch thread. */
+    private static final ExecutorService WRITER =
+        Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(r, "autosave");
+                t.setDaemon(true);
+                return t;
+            }
+        });
     
     public static void setInterval(int interval) {
         if(interval == 0)  {
@@ -61,49 +93,111 @@ public class AutosaveC implements ActionListener {
         }        
     }
 
+    /**
+     * @param listener The listener to notify of the progress of autosaves,
+     * from the thread writing them. Null to stop notifying.
+     */
+    public static void setProgressListener(final ProgressListener listener) {
+        progressListener = listener;
+    }
+
     @Override
     public void actionPerformed(ActionEvent evt)  {
+        // Skip this autosave, the last one is still being written.
+        if (writing) {
+            return;
+        }
+
         String baseName;
         String ext;
+        boolean asProject = true;
         // save the project
         try {    
-            if (f != null) {
-                f.delete();
-            }
             ProjectController projController = Datavyu.getProjectController();
             SaveC saveController = new SaveC();
             if (projController.isNewProject() || (projController.getProjectName() == null)) {
                 baseName = "~noname_"; 
                 ext = ".opf";
-                f = File.createTempFile(baseName, ext);         
-                saveController.saveProject(f, projController.getProject(),
-                                           projController.getDB(), false);
             } else {
                 if ((projController.getLastSaveOption() instanceof SHAPAFilter)
                         || (projController.getLastSaveOption()
                             instanceof OPFFilter)) {            
                     baseName = "~" + projController.getProjectName() + "_";
                     ext = ".opf"; 
-                    f = File.createTempFile(baseName, ext);          
-                    saveController.saveProject(f, projController.getProject(),
-                                               projController.getDB(), false);
                 // Save content just as a database.                          
                 } else {               
                     String filename = "~" + projController.getDatabaseFileName();
                     baseName = FilenameUtils.getBaseName(filename) + "_";
                     ext = "." + FilenameUtils.getExtension(filename);
-                    f = File.createTempFile(baseName, ext);
-                    saveController.saveDatabase(f, projController.getDB(), false);
+                    asProject = false;
                 }                        
             }
+
+            // Keep autosaving to the same file while it is for the same
+            // project, so that only the changes need to be saved each time.
+            // The file of another project is kept until this one is written.
+            if (f == null || !f.getName().startsWith(baseName)
+                    || !f.getName().endsWith(ext)) {
+                if (f != null) {
+                    if (stale == null) {
+                        stale = f;
+                    } else {
+                        // Nothing has been written to f since it replaced stale.
+                        delete(f);
+                    }
+                }
+                f = File.createTempFile(baseName, ext);
+                ChangeJournal.getJournalFile(f).deleteOnExit();
+                SaveC.getPartFile(f).deleteOnExit();
+            }
+
+            final SaveC.Snapshot snapshot;
+            if (asProject) {
+                snapshot = saveController.snapshotChanges(f, projController.getProject(),
+                                                          projController.getDB());
+            } else {
+                snapshot = saveController.snapshotDatabase(f, projController.getDB());
+            }
+
+            writing = true;
+            WRITER.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        snapshot.write(progressListener);
+
+                        File previous = stale;
+                        if (previous != null) {
+                            delete(previous);
+                            stale = null;
+                        }
+                    } catch (UserWarningException lee) {
+                        LOGGER.error("UserWarningException: Unable to autosave.", lee);
+                    } finally {
+                        writing = false;
+                    }
+                }
+            });
         } catch (UserWarningException lee) {
             LOGGER.error("UserWarningException: Unable to autosave.", lee);
         } catch (IOException ioe) {
             LOGGER.error("IOException: Unable to autosave.", ioe);
         } finally {
-            f.deleteOnExit();
+            if (f != null) {
+                f.deleteOnExit();
+            }
         }                            
     } 
 
+    /**
+     * Deletes an autosaved file along with its journal.
+     *
+     * @param file The autosaved file to delete.
+     */
+    private static void delete(final File file) {
+        file.delete();
+        ChangeJournal.getJournalFile(file).delete();
+    }
+
     private AutosaveC() {}    
 }
@@ -0,0 +1,644 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.controllers;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.datavyu.models.db.Datastore;
+import org.datavyu.models.db.Variable;
+import org.datavyu.models.db.Versioned;
+import org.datavyu.models.project.Project;
+import org.datavyu.models.project.ViewerSetting;
+import org.datavyu.util.BinaryCodec;
+
+/**
+ * An append only journal of the changes made to a project since its archive
+ * was last written in full. Each save appends a record holding the project,
+ * its viewer settings and those variables that changed since the previous
+ * record, in a file next to the archive. Opening the archive replays the
+ * journal over it, and writing the archive in full again discards the
+ * journal. The records carry a checksum of the archive they were written
+ * for, taken from the CRCs that the archive holds of its entries, so that a
+ * journal is only ever replayed over that archive.
+ */
+public final class ChangeJournal {
+
+    /** The extension added to the name of the archive for its journal. */
+    private static final String EXTENSION = ".journal";
+
+    /** The bytes that each record starts with. */
+    private static final byte[] MAGIC = {'D', 'V', 'J', 'R'};
+
+    /** The number of bytes before the contents of each record. */
+    private static final int RECORD_HEADER = MAGIC.length + 4 + 4 + 8;
+
+    /** The length below which the journal is never compacted. */
+    private static final long MIN_COMPACT_LENGTH = 1024 * 1024;
+
+    /** The journal file. */
+    private final File journalFile;
+
+    /** The archive that the journal records changes to. */
+    private final File archiveFile;
+
+    /** The checksum of the archive when it was last written in full. */
+    private long archiveChecksum;
+
+    /** The length of the archive when it was last written in full. */
+    private long archiveLength;
+
+    /** The datastore that was last written, null if none has been. */
+    private Datastore datastore = null;
+
+    /** The version of each variable when it was last written, by its key. */
+    private final Map<Object, Long> versions = new HashMap<Object, Long>();
+
+    /** The number of bytes of complete records in the journal file. */
+    private long length = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param archiveFile The archive to record changes to.
+     */
+    public ChangeJournal(final File archiveFile) {
+        this.archiveFile = archiveFile;
+        this.journalFile = getJournalFile(archiveFile);
+    }
+
+    /**
+     * Takes a checksum of an archive from the name, size and CRC of each of
+     * its entries, as held in its central directory. The entries themselves
+     * are not read.
+     *
+     * @param archive The archive to take the checksum of.
+     *
+     * @return The checksum of the archive.
+     *
+     * @throws IOException If unable to encode the name of an entry.
+     */
+    private static long checksum(final ZipFile archive) throws IOException {
+        CRC32 crc = new CRC32();
+        long checksum = 0;
+
+        Enumeration<? extends ZipEntry> entries = archive.entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            crc.reset();
+            crc.update(entry.getName().getBytes("UTF-8"));
+            checksum = checksum * 31 + crc.getValue();
+            checksum = checksum * 31 + entry.getSize();
+            checksum = checksum * 31 + entry.getCrc();
+        }
+
+        return checksum;
+    }
+
+    /**
+     * @param archiveFile The archive to take the checksum of.
+     *
+     * @return The checksum of the archive.
+     *
+     * @throws IOException If unable to read the archive.
+     */
+    private static long checksum(final File archiveFile) throws IOException {
+        ZipFile archive = new ZipFile(archiveFile);
+        try {
+            return checksum(archive);
+        } finally {
+            archive.close();
+        }
+    }
+
+    /**
+     * @param archiveFile A project archive.
+     *
+     * @return The file that holds the journal of the supplied archive.
+     */
+    public static File getJournalFile(final File archiveFile) {
+        return new File(archiveFile.getPath() + EXTENSION);
+    }
+
+    /**
+     * Records the version of each variable of a datastore that is about to be
+     * written to the archive in full.
+     *
+     * @param ds The datastore being written to the archive.
+     */
+    public void track(final Datastore ds) {
+        datastore = ds;
+        versions.clear();
+        for (Variable v : ds.getAllVariables()) {
+            if (v instanceof Versioned) {
+                versions.put(((Versioned) v).getVersionKey(), ((Versioned) v).getVersion());
+            }
+        }
+    }
+
+    /**
+     * Records that the archive has just been written in full from the
+     * datastore last tracked, discarding any existing journal.
+     *
+     * @throws IOException If unable to read the archive.
+     */
+    public void checkpoint() throws IOException {
+        journalFile.delete();
+        length = 0;
+        archiveLength = archiveFile.length();
+        archiveChecksum = checksum(archiveFile);
+    }
+
+    /**
+     * @param ds The datastore about to be saved.
+     *
+     * @return True if the changes to the datastore can be appended to this
+     * journal, false if the archive needs to be written in full. Once the
+     * journal has grown larger than the archive, the archive is written in
+     * full to compact the journal away.
+     */
+    public boolean canAppend(final Datastore ds) {
+        if (ds != datastore
+                || length > Math.max(archiveLength, MIN_COMPACT_LENGTH)) {
+            return false;
+        }
+
+        // The archive may have been replaced by another copy of the project.
+        try {
+            if (checksum(archiveFile) != archiveChecksum) {
+                return false;
+            }
+        } catch (IOException e) {
+            return false;
+        }
+
+        for (Variable v : ds.getAllVariables()) {
+            if (!(v instanceof Versioned)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Takes a record of the variables that have changed since the last record,
+     * along with the current project and viewer settings. The cells of the
+     * changed variables are copied, the record is serialized when it is
+     * appended, from any thread, while the datastore keeps changing. A record
+     * must be appended before the next one is prepared.
+     *
+     * @param project The project to record.
+     * @param ds The datastore to record the changes of.
+     *
+     * @return The record to append.
+     *
+     * @throws IOException If unable to write the record.
+     */
+    public Record prepare(final Project project, final Datastore ds) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new SaveProjectFileC().save(bytes, project);
+        Record record = new Record(bytes.toByteArray());
+
+        for (ViewerSetting vs : project.getViewerSettings()) {
+            if (vs.getSettingsId() != null) {
+                bytes = new ByteArrayOutputStream();
+                vs.writeSettings(bytes);
+                record.settings.put(vs.getSettingsId(), bytes.toByteArray());
+            }
+        }
+
+        SaveDatabaseFileC saveDBC = new SaveDatabaseFileC();
+        for (Variable v : ds.getAllVariables()) {
+            Object key = ((Versioned) v).getVersionKey();
+            long version = ((Versioned) v).getVersion();
+            Long previous = versions.get(key);
+
+            if (previous == null || previous.longValue() != version) {
+                record.variables.put(v.getName(), saveDBC.copy(v, false));
+            } else {
+                record.variables.put(v.getName(), null);
+            }
+            record.versions.put(key, version);
+        }
+
+        return record;
+    }
+
+    /**
+     * Serializes a record.
+     *
+     * @param record The record to serialize.
+     *
+     * @return The record, header included.
+     *
+     * @throws IOException If unable to serialize the record.
+     */
+    private byte[] serialize(final Record record) throws IOException {
+        ByteArrayOutputStream contents = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(contents);
+
+        BinaryCodec.writeVarInt(out, record.project.length);
+        out.write(record.project);
+
+        BinaryCodec.writeVarInt(out, record.settings.size());
+        for (Map.Entry<String, byte[]> entry : record.settings.entrySet()) {
+            BinaryCodec.writeString(out, entry.getKey());
+            BinaryCodec.writeVarInt(out, entry.getValue().length);
+            out.write(entry.getValue());
+        }
+
+        SaveDatabaseFileC saveDBC = new SaveDatabaseFileC();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryCodec.writeVarInt(out, record.variables.size());
+        for (Map.Entry<String, SaveDatabaseFileC.VariableCopy> entry
+                : record.variables.entrySet()) {
+            BinaryCodec.writeString(out, entry.getKey());
+            out.writeBoolean(entry.getValue() != null);
+            if (entry.getValue() != null) {
+                bytes.reset();
+                saveDBC.writeVariable(new DataOutputStream(bytes), entry.getValue());
+                writeBytes(out, bytes);
+            }
+        }
+        out.flush();
+
+        CRC32 crc = new CRC32();
+        crc.update(contents.toByteArray(), 0, contents.size());
+
+        ByteArrayOutputStream result = new ByteArrayOutputStream(RECORD_HEADER + contents.size());
+        DataOutputStream resultOut = new DataOutputStream(result);
+        resultOut.write(MAGIC);
+        resultOut.writeInt(contents.size());
+        resultOut.writeInt((int) crc.getValue());
+        resultOut.writeLong(archiveChecksum);
+        contents.writeTo(resultOut);
+        resultOut.flush();
+
+        return result.toByteArray();
+    }
+
+    /**
+     * Appends a record to the journal. A record left incomplete by an earlier
+     * failed append is overwritten.
+     *
+     * @param record The record to append, from {@link #prepare}.
+     *
+     * @throws IOException If unable to write to the journal.
+     */
+    public void append(final Record record) throws IOException {
+        byte[] bytes = serialize(record);
+        RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+        try {
+            raf.setLength(length);
+            raf.seek(length);
+            raf.write(bytes);
+            raf.getFD().sync();
+        } finally {
+            raf.close();
+        }
+
+        length += bytes.length;
+        versions.clear();
+        versions.putAll(record.versions);
+    }
+
+    /**
+     * Reads the journal of an archive. A journal written for another archive
+     * is moved aside to the file named by {@link #getUnmatchedFile}, rather
+     * than being replayed or discarded by the next save.
+     *
+     * @param archive The archive to read the journal of.
+     *
+     * @return The changes recorded in the journal, null if there is no
+     * journal.
+     *
+     * @throws UnmatchedJournalException If the journal was written for
+     * another archive.
+     * @throws IOException If unable to read the journal.
+     */
+    public static Changes read(final ZipFile archive) throws IOException {
+        File archiveFile = new File(archive.getName());
+        File journalFile = getJournalFile(archiveFile);
+        if (!journalFile.exists()) {
+            return null;
+        }
+
+        long archiveChecksum = checksum(archive);
+        DataInputStream in = new DataInputStream(new FileInputStream(journalFile));
+        Changes changes = null;
+        boolean unmatched = false;
+
+        try {
+            byte[] header = new byte[RECORD_HEADER];
+            byte[] magic = new byte[MAGIC.length];
+
+            // Stop at the first incomplete or damaged record, it was being
+            // written when the previous save failed.
+            while (readFully(in, header)) {
+                DataInputStream headerIn = new DataInputStream(new ByteArrayInputStream(header));
+                headerIn.readFully(magic);
+                int size = headerIn.readInt();
+                int checksum = headerIn.readInt();
+                long recordedChecksum = headerIn.readLong();
+
+                if (!Arrays.equals(magic, MAGIC) || size < 0) {
+                    break;
+                }
+
+                byte[] contents = new byte[size];
+                if (!readFully(in, contents)) {
+                    break;
+                }
+
+                CRC32 crc = new CRC32();
+                crc.update(contents, 0, size);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+
+                // The archive has been written since, without this journal.
+                if (recordedChecksum != archiveChecksum) {
+                    unmatched = true;
+                    break;
+                }
+
+                changes = new Changes(new DataInputStream(new ByteArrayInputStream(contents)),
+                                      changes);
+            }
+        } finally {
+            in.close();
+        }
+
+        if (unmatched) {
+            File unmatchedFile = getUnmatchedFile(archiveFile);
+            unmatchedFile.delete();
+            if (!journalFile.renameTo(unmatchedFile)) {
+                throw new IOException("Unable to rename " + journalFile + " to "
+                        + unmatchedFile);
+            }
+
+            throw new UnmatchedJournalException(journalFile, unmatchedFile);
+        }
+
+        return changes;
+    }
+
+    /**
+     * @param archiveFile A project archive.
+     *
+     * @return The file that a journal which doesn't match the archive is
+     * moved to.
+     */
+    public static File getUnmatchedFile(final File archiveFile) {
+        return new File(getJournalFile(archiveFile).getPath() + ".unmatched");
+    }
+
+    /**
+     * Reads bytes until the buffer is full or the stream ends.
+     *
+     * @param in The stream to read from.
+     * @param buffer The buffer to fill.
+     *
+     * @return True if the buffer was filled, false if the stream ended first.
+     *
+     * @throws IOException If unable to read from the stream.
+     */
+    private static boolean readFully(final InputStream in, final byte[] buffer)
+    throws IOException {
+        int read = 0;
+
+        while (read < buffer.length) {
+            int count = in.read(buffer, read, buffer.length - read);
+            if (count < 0) {
+                return false;
+            }
+            read += count;
+        }
+
+        return true;
+    }
+
+    /**
+     * Writes a length followed by bytes.
+     *
+     * @param out The output to write to.
+     * @param bytes The bytes to write.
+     *
+     * @throws IOException If unable to write to out.
+     */
+    private static void writeBytes(final DataOutputStream out,
+                                   final ByteArrayOutputStream bytes)
+    throws IOException {
+        BinaryCodec.writeVarInt(out, bytes.size());
+        bytes.writeTo(out);
+    }
+
+    /**
+     * Reads bytes written by writeBytes.
+     *
+     * @param in The input to read from.
+     *
+     * @return The bytes read.
+     *
+     * @throws IOException If unable to read from in.
+     */
+    private static byte[] readBytes(final DataInputStream in) throws IOException {
+        byte[] bytes = new byte[BinaryCodec.readVarInt(in)];
+        in.readFully(bytes);
+
+        return bytes;
+    }
+
+    /**
+     * Thrown when the journal next to an archive was written for another
+     * archive, such as one replaced by a copy of the project from elsewhere.
+     */
+    public static final class UnmatchedJournalException extends IOException {
+
+        /** The file the journal was moved to. */
+        private final File unmatchedFile;
+
+        /**
+         * Constructor.
+         *
+         * @param journalFile The journal that doesn't match its archive.
+         * @param unmatchedFile The file the journal was moved to.
+         */
+        private UnmatchedJournalException(final File journalFile,
+                                          final File unmatchedFile) {
+            super(journalFile + " was not written for its project archive.");
+            this.unmatchedFile = unmatchedFile;
+        }
+
+        /**
+         * @return The file the journal was moved to.
+         */
+        public File getUnmatchedFile() {
+            return unmatchedFile;
+        }
+    }
+
+    /**
+     * A record prepared for appending to the journal.
+     */
+    public static final class Record {
+
+        /** The project. */
+        private final byte[] project;
+
+        /** The viewer settings, in order, by settings id. */
+        private final Map<String, byte[]> settings = new LinkedHashMap<String, byte[]>();
+
+        /**
+         * The variables, in order, by name. Each changed variable is held as
+         * a copy, the others as null.
+         */
+        private final Map<String, SaveDatabaseFileC.VariableCopy> variables =
+                new LinkedHashMap<String, SaveDatabaseFileC.VariableCopy>();
+
+        /** The version of each variable held by the record. */
+        private final Map<Object, Long> versions = new HashMap<Object, Long>();
+
+        /**
+         * Constructor.
+         *
+         * @param project The project.
+         */
+        private Record(final byte[] project) {
+            this.project = project;
+        }
+    }
+
+    /**
+     * The state of a project after replaying its journal.
+     */
+    public static final class Changes {
+
+        /** The project as it was last saved. */
+        private final byte[] project;
+
+        /** The viewer settings as they were last saved, by settings id. */
+        private final Map<String, byte[]> settings = new HashMap<String, byte[]>();
+
+        /**
+         * The variables as they were last saved, in order, by name. Each is
+         * held in the binary database format, or null if it is unchanged
+         * from the archive.
+         */
+        private final Map<String, byte[]> variables = new LinkedHashMap<String, byte[]>();
+
+        /**
+         * Constructor.
+         *
+         * @param in The contents of a record.
+         * @param previous The changes up to the previous record, null if this
+         * is the first record.
+         *
+         * @throws IOException If unable to read the record.
+         */
+        private Changes(final DataInputStream in, final Changes previous)
+        throws IOException {
+            project = readBytes(in);
+
+            int numSettings = BinaryCodec.readVarInt(in);
+            for (int i = 0; i < numSettings; i++) {
+                String id = BinaryCodec.readString(in);
+                settings.put(id, readBytes(in));
+            }
+
+            int numVariables = BinaryCodec.readVarInt(in);
+            for (int i = 0; i < numVariables; i++) {
+                String name = BinaryCodec.readString(in);
+
+                if (in.readBoolean()) {
+                    variables.put(name, readBytes(in));
+                } else if (previous != null) {
+                    variables.put(name, previous.variables.get(name));
+                } else {
+                    variables.put(name, null);
+                }
+            }
+        }
+
+        /**
+         * @return The project as it was last saved.
+         */
+        public Project getProject() {
+            return new OpenProjectFileC().open(new ByteArrayInputStream(project));
+        }
+
+        /**
+         * @param settingsId The id of a viewer's settings.
+         *
+         * @return The settings as they were last saved, null if they weren't.
+         */
+        public InputStream getSettings(final String settingsId) {
+            byte[] bytes = settings.get(settingsId);
+            if (bytes == null) {
+                return null;
+            }
+
+            return new ByteArrayInputStream(bytes);
+        }
+
+        /**
+         * Applies the changes to the datastore read from the archive.
+         *
+         * @param archived The datastore read from the archive.
+         *
+         * @return The datastore as it was last saved, null if it couldn't be
+         * read.
+         *
+         * @throws IOException If unable to apply the changes.
+         */
+        public Datastore apply(final Datastore archived) throws IOException {
+            SaveDatabaseFileC saveDBC = new SaveDatabaseFileC();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+
+            saveDBC.writeBinaryHeader(out, variables.size());
+            for (Map.Entry<String, byte[]> entry : variables.entrySet()) {
+                if (entry.getValue() != null) {
+                    out.write(entry.getValue());
+                } else {
+                    Variable v = archived.getVariable(entry.getKey());
+                    if (v == null) {
+                        throw new IOException("Journal refers to missing variable "
+                                + entry.getKey() + ".");
+                    }
+                    saveDBC.writeVariable(out, v);
+                }
+            }
+            out.flush();
+
+            return new OpenDatabaseFileC().open(new ByteArrayInputStream(bytes.toByteArray()));
+        }
+    }
+}
@@ -67,8 +67,6 @@ public final class CreateNewCellC {
         LOGGER.event("create cell in selected column");
 
         // perform the operation
-        List<Cell> cells = v.getCellsTemporally();
-
         long newOnset = 0;
         newOnset = Datavyu.getDataController().getCurrentTime();
 
@@ -17,20 +17,35 @@ package org.datavyu.controllers;
 import com.usermetrix.jclient.Logger;
 import com.usermetrix.jclient.UserMetrix;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import org.jdesktop.application.Application;
 import org.jdesktop.application.ResourceMap;
 import org.datavyu.Datavyu;
 import org.datavyu.models.db.Argument;
 import org.datavyu.models.db.Cell;
+import org.datavyu.models.db.CellRows;
 import org.datavyu.models.db.Datastore;
 import org.datavyu.models.db.MatrixValue;
+import org.datavyu.models.db.ProgressListener;
+import org.datavyu.models.db.StreamsCells;
 import org.datavyu.models.db.UserWarningException;
 import org.datavyu.models.db.Value;
 import org.datavyu.models.db.Variable;
-import org.datavyu.util.StringUtils;
 
 
 /**
@@ -41,160 +56,177 @@ public final class ExportDatabaseFileC {
     /** The logger for this class. */
     private static Logger LOGGER = UserMetrix.getLogger(ExportDatabaseFileC.class);
 
+    /** The extension of the files written by a columnar export. */
+    public static final String COLUMNAR_EXTENSION = ".dvc";
+
+    /** The bytes that each columnar file starts with. */
+    private static final byte[] COLUMNAR_MAGIC = {'D', 'V', 'C', 'F'};
+
+    /** The version of the columnar format. */
+    private static final int COLUMNAR_VERSION = 1;
+
+    /** A column of 64 bit integers. */
+    private static final int INT64_COLUMN = 0;
+
+    /** A column of indexes into a dictionary of strings. */
+    private static final int DICTIONARY_COLUMN = 1;
+
+    /** A column of strings. */
+    private static final int STRING_COLUMN = 2;
+
+    /** The size of the buffer used when writing exported files. */
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    /** The frame rate of frame by frame exports, when none is given. */
+    public static final double DEFAULT_FRAME_RATE = 30.0;
+
+    /** The line separator of exported CSV files. */
+    private static final String NEW_LINE = System.getProperty("line.separator");
+
     /**
-     * Saves the database to the specified destination in a CSV format.
+     * The system property holding the number of threads to read and render
+     * the variables of a CSV export on. Defaults to the number of processors,
+     * one renders the variables in turn on the calling thread.
+     */
+    public static final String THREADS_PROPERTY = "datavyu.export.threads";
+
+    /** The number of rows of a variable rendered by each task of an export. */
+    private static final int ROWS_PER_CHUNK = 4096;
+
+    /** The chunk of a variable once it has run out of rows. */
+    private static final String[] NO_ROWS = new String[0];
+
+    /**
+     * Exports the database frame by frame at the default frame rate.
      *
      * @param outFile The path of the file to use when writing to disk.
-     * @param ds The datastore to save as a CSV file.
+     * @param ds The datastore to export.
      *
      * @throws UserWarningException When unable to save the database as a CSV to
      * disk (usually because of permissions errors).
+     *
+     * @see #exportByFrame(String, Datastore, double, ProgressListener)
      */
     public void exportByFrame(final String outFile, final Datastore ds)
     throws UserWarningException {
+        exportByFrame(outFile, ds, DEFAULT_FRAME_RATE, null);
+    }
+
+    /**
+     * Exports the database frame by frame.
+     *
+     * @param outFile The path of the file to use when writing to disk.
+     * @param ds The datastore to export.
+     * @param framerate The number of frames per second, greater than zero.
+     *
+     * @throws UserWarningException When unable to save the database as a CSV to
+     * disk (usually because of permissions errors).
+     *
+     * @see #exportByFrame(String, Datastore, double, ProgressListener)
+     */
+    public void exportByFrame(final String outFile, final Datastore ds, final double framerate)
+    throws UserWarningException {
+        exportByFrame(outFile, ds, framerate, null);
+    }
+
+    /**
+     * Exports the database as a CSV file with a row for each frame, from the
+     * earliest time in the database to the latest. Each row holds the frame
+     * number and time, then the ordinal, onset, offset and arguments of the
+     * cell of each variable that is active on that frame, or blanks if none
+     * is.
+     *
+     * Each variable is swept with a cursor into its temporally ordered
+     * cells, so every cell is visited once rather than on every frame. A cell
+     * is active from its onset to its offset, or just at its onset if its
+     * offset is earlier. Where cells of a variable overlap, the one that
+     * started most recently is used, falling back to the one that started
+     * earlier and ends latest. The fields of each cell are rendered once, the
+     * first time the cell is active. The variables are read and rendered
+     * concurrently, see {@link #writeRows}.
+     *
+     * @param outFile The path of the file to use when writing to disk.
+     * @param ds The datastore to export.
+     * @param framerate The number of frames per second, greater than zero.
+     * @param listener The listener to notify as frames are written, null for
+     * none.
+     *
+     * @throws UserWarningException When unable to save the database as a CSV to
+     * disk (usually because of permissions errors).
+     */
+    public void exportByFrame(final String outFile,
+                              final Datastore ds,
+                              final double framerate,
+                              final ProgressListener listener)
+    throws UserWarningException {
+        LOGGER.event("export database by frame");
+
+        if (!(framerate > 0)) {
+            throw new IllegalArgumentException("Invalid frame rate: " + framerate);
+        }
 
         try {
-            FileOutputStream fos = new FileOutputStream(outFile);
-	    PrintStream ps = new PrintStream(fos);
-	    
+            Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outFile), "UTF-8"),
+                                            BUFFER_SIZE);
             List<Variable> variables = ds.getAllVariables();
-	    Collections.sort(variables, new org.datavyu.util.VariableSort());
-	    
-	    ArrayList<List<Cell>> cellCache = new ArrayList<List<Cell>>();
-	    int[] currentIndex = new int[variables.size()];
-	    
-	    // Get all of the cells from the DB and store them locally
-	    for(Variable v : variables) {
-		cellCache.add(v.getCellsTemporally());
-	    }
-	    
-	    // Now obtain the first and last time point by sweeping over the cells
-	    long first_time = Long.MAX_VALUE;
-	    long last_time = 0;
-	    
-	    for(int i = 0; i < variables.size(); i++) {
-		List<Cell> cells = cellCache.get(i);
-		if(cells.isEmpty()) {
-			continue;
-		}
-		if(cells.get(0).getOnset() < first_time) {
-		    first_time = cells.get(0).getOnset();
-		}
-		if(cells.get(0).getOffset() < first_time) {
-		    first_time = cells.get(0).getOffset();
-		}
-		
-		if(cells.get(cells.size()-1).getOnset() > last_time) {
-		    last_time = cells.get(cells.size()-1).getOnset();
-		}
-		if(cells.get(cells.size()-1).getOffset() > last_time) {
-		    last_time = cells.get(cells.size()-1).getOffset();
-		}
-	    }
-	    
-	    // Now that we have the first and last time, we loop over it using
-	    // an assumed 30fps framerate. TODO: Make this support other FRs
-	    double framerate = 30.0;
-	    long current_time = first_time;
-	    
-	    // Print header
-	    String header = "framenum,time,";
-	    for(Variable v : variables) {
-		
-		header += v.getName() + ".ordinal";
-		header += "," + v.getName() + ".onset";
-		header += "," + v.getName() + ".offset";
-		    
-		// Test if the variable is a matrix. If it is, then 
-		// we have to print out all of its arguments.
-		if(v.getVariableType().type == Argument.Type.MATRIX) {
-		   for(Argument a : v.getVariableType().childArguments) {
-		       header += "," + v.getName() + "." + a.name;
-		   }
-		}
-		else {
-		   header += "," + v.getName() + ".value";
-		}
-	    }
-	    header = header.trim();
-	    
-	    // Write header
-	    ps.println(header);
-	    
-	    int framenum = 1;
-	    while(current_time <= last_time) {
-		// Update the currentIndex list
-		for(int i = 0; i < variables.size(); i++) {
-		    Cell c = cellCache.get(i).get(currentIndex[i]);
-		    if(current_time > c.getOffset()) {
-			for(int j = currentIndex[i]; j < cellCache.get(i).size(); j++) {
-			    if(current_time <= c.getOnset()) {
-			        currentIndex[i] = j;
-			    }
-			}
-		    }
-		}
-		    
-		    
-		// Now print each frame as we loop through it
-		String row = Integer.toString(framenum) + "," +
-				Long.toString(current_time) + ",";
-		for(int i = 0; i < variables.size(); i++) {
-		    Cell cell = cellCache.get(i).get(currentIndex[i]);
-		    
-		    if(cell.getOnset() >= current_time && cell.getOffset() <= current_time) {
-
-			Value value = cell.getValue();
-
-			// Print ordinal, onset, offset
-			row =   Integer.toString(i) + "," + 
-				Long.toString(cell.getOnset()) + "," + 
-				Long.toString(cell.getOffset());
-
-
-			if(value instanceof MatrixValue) {
-				// Then this is a matrix value, get the sub arguments
-				MatrixValue mv = (MatrixValue)value;
-				for(Value v : mv.getArguments()) {
-				// Loop over each value and print it with a comma
-				// seperator
-					row += "," + v.toString();
-				}
-			}
-			else {
-				// Otherwise just print the single argument
-				row += "," + cell.getValue().toString();
-			}
-		    }
-		    else {
-			// Figure out what to print if we don't have a cell here
-			Value value = cell.getValue();
-
-			// Print ordinal, onset, offset
-			row +=  ",,";
-
-
-			if(value instanceof MatrixValue) {
-				// Then this is a matrix value, get the sub arguments
-				MatrixValue mv = (MatrixValue)value;
-				for(Value v : mv.getArguments()) {
-				// Loop over each value and print it with a comma
-				// seperator
-					row += ",";
-				}
-			}
-			else {
-				// Otherwise just print the single argument
-				row += ",";
-			}
-		    }
-		}
-		ps.println(row);
-		current_time += framenum * framerate;
-		++framenum;
-	    }
-	    
-            fos.close();
+            Collections.sort(variables, new org.datavyu.util.VariableSort());
+            ExecutorService executor = newExportExecutor(variables.size());
+
+            try {
+                List<Future<List<Cell>>> reads = new ArrayList<Future<List<Cell>>>();
+                for (Variable v : variables) {
+                    reads.add(readCells(executor, v));
+                }
+
+                FrameCursor[] cursors = new FrameCursor[variables.size()];
+                long firstTime = Long.MAX_VALUE;
+                long lastTime = Long.MIN_VALUE;
+
+                out.write("framenum,time");
+                for (int i = 0; i < cursors.length; i++) {
+                    Variable v = variables.get(i);
+                    cursors[i] = new FrameCursor(v, getResult(reads.get(i)));
+
+                    out.write(",");
+                    out.write(quoteCSV(v.getName() + ".ordinal"));
+                    out.write(",");
+                    out.write(quoteCSV(v.getName() + ".onset"));
+                    out.write(",");
+                    out.write(quoteCSV(v.getName() + ".offset"));
+                    for (String name : cursors[i].argNames) {
+                        out.write(",");
+                        out.write(quoteCSV(v.getName() + "." + name));
+                    }
+
+                    for (Cell cell : cursors[i].cells) {
+                        firstTime = Math.min(firstTime, cell.getOnset());
+                        lastTime = Math.max(lastTime, getEnd(cell));
+                    }
+                }
+                out.write(NEW_LINE);
+
+                // The frame number and time lead each row, followed by the
+                // fields of each variable.
+                List<Callable<String[]>> columns = new ArrayList<Callable<String[]>>();
+                String[] blanks = new String[cursors.length + 1];
+                columns.add(new FrameChunks(null, firstTime, lastTime, framerate));
+                blanks[0] = "";
+                for (int i = 0; i < cursors.length; i++) {
+                    columns.add(new FrameChunks(cursors[i], firstTime, lastTime, framerate));
+                    blanks[i + 1] = cursors[i].blank;
+                }
+
+                int frames = 0;
+                if (firstTime <= lastTime) {
+                    frames = (int) Math.min(Integer.MAX_VALUE, (lastTime - firstTime) * framerate / 1000.0 + 1);
+                }
+                writeRows(executor, out, columns, blanks, "Exporting frames", frames, listener);
+            } finally {
+                if (executor != null) {
+                    executor.shutdownNow();
+                }
+                out.close();
+            }
         } catch (IOException ie) {
 	    ie.printStackTrace();
             ResourceMap rMap = Application.getInstance(Datavyu.class)
@@ -202,190 +234,795 @@ public final class ExportDatabaseFileC {
             throw new UserWarningException(rMap.getString("UnableToSave.message", outFile), ie);
         }
     }
-    
-	public void exportAsCells(final String outFile, final Datastore ds) 
-	throws UserWarningException {
-		try {
-			FileOutputStream outStream = new FileOutputStream(outFile);
-			PrintStream ps = new PrintStream(outStream);
-
-			// Get the variables, sort them, and cache the cells
-			List<Variable> variables = ds.getAllVariables();
-			Collections.sort(variables, new org.datavyu.util.VariableSort());
-
-			ArrayList<List<Cell>> cellCache = new ArrayList<List<Cell>>();
-			int[] currentIndex = new int[variables.size()];
-
-			int max_length = 0;
-			// Get all of the cells from the DB and store them locally
-			for (Variable v : variables) {
-				cellCache.add(v.getCellsTemporally());
-				if (v.getCells().size() > max_length) {
-					max_length = v.getCells().size();
-				}
-			}
-
-			// Print header
-			String header = "";
-
-			List<Integer> arglengths = new ArrayList<Integer>();
-			for (Variable v : variables) {
-
-				header += v.getName() + ".ordinal";
-				header += "," + v.getName() + ".onset";
-				header += "," + v.getName() + ".offset,";
-
-				// Test if the variable is a matrix. If it is, then 
-				// we have to print out all of its arguments.
-				if (v.getVariableType().type == Argument.Type.MATRIX) {
-					for (Argument a : v.getVariableType().childArguments) {
-						header += v.getName() + "." + a.name + ",";
-					}
-					arglengths.add(v.getVariableType().childArguments.size() + 3);
-				} else {
-					header += v.getName() + ".value,";
-					arglengths.add(4);
-				}
-			}
-			header = header.trim();
-
-			// Write header
-			ps.println(header);
-
-			// Now get the column that has the most cells, we are going to use
-			// that number as the number of iterations to loop over everything
-			// printing blanks if that column does not have a cell there
-			StringBuilder row;
-			for (int i = 0; i < max_length; i++) {
-				row = new StringBuilder();
-				for (int j = 0; j < variables.size(); j++) {
-					Variable v = variables.get(j);
-					if (cellCache.get(j).size() > i) {
-						// Print the cell
-						Cell c = cellCache.get(j).get(i);
-						row.append(i);
-						row.append(",");
-						row.append(c.getOnset());
-						row.append(",");
-						row.append(c.getOffset());
-						row.append(",");
-						if (v.getVariableType().type == Argument.Type.MATRIX) {
-							for (int k = 0; k < v.getVariableType().childArguments.size(); k++) {
-								row.append(c.getMatrixValue(k).toString());
-								row.append(",");
-							}
-						}
-					} else {
-						// Print a placeholder: we are out of cells
-						for (int k = 0; k < arglengths.get(j); k++) {
-							row.append(",");
-						}
-					}
-
-				}
-				ps.println(row);
-			}
-			ps.flush();
-			ps.close();
-			outStream.flush();
-			outStream.close();
-		} catch (IOException ie) {
-			ie.printStackTrace();
-			ResourceMap rMap = Application.getInstance(Datavyu.class).getContext().getResourceMap(Datavyu.class);
-			throw new UserWarningException(rMap.getString("UnableToSave.message", outFile), ie);
-		}
-	    
-	    
+
+    /**
+     * @param variables The number of variables being exported.
+     *
+     * @return The executor to read and render the variables of an export on,
+     * null to do so on the calling thread when only one thread would be used.
+     */
+    static ExecutorService newExportExecutor(final int variables) {
+        int threads = Math.min(variables,
+                Integer.getInteger(THREADS_PROPERTY, Runtime.getRuntime().availableProcessors()));
+        if (threads <= 1) {
+            return null;
+        }
+
+        return Executors.newFixedThreadPool(threads);
     }
 
     /**
-     * Serialize the database to the specified stream in a CSV format.
+     * Starts a task of an export.
      *
-     * @param outStream The stream to use when serializing.
-     * @param ds The datastore to save as a CSV file.
+     * @param executor The executor to run the task on, null to run it now on
+     * the calling thread.
+     * @param task The task to run.
+     *
+     * @return The result of the task.
+     */
+    static <T> Future<T> submit(final ExecutorService executor, final Callable<T> task) {
+        if (executor != null) {
+            return executor.submit(task);
+        }
+
+        FutureTask<T> result = new FutureTask<T>(task);
+        result.run();
+
+        return result;
+    }
+
+    /**
+     * Starts reading the cells of a variable in temporal order. Variables
+     * that stream their cells are read on the executor, as their batches can
+     * be fetched concurrently. Any others are read on the calling thread, as
+     * loading them may touch state shared across their datastore.
+     *
+     * @param executor The executor to read streamed variables on, null to
+     * read them on the calling thread.
+     * @param variable The variable to read.
+     *
+     * @return The cells of the variable, in temporal order.
+     */
+    private static Future<List<Cell>> readCells(final ExecutorService executor, final Variable variable) {
+        if (variable instanceof StreamsCells) {
+            final Iterator<Cell> cells = ((StreamsCells) variable).iterateTemporally();
+
+            return submit(executor, new Callable<List<Cell>>() {
+                @Override
+                public List<Cell> call() {
+                    List<Cell> result = new ArrayList<Cell>();
+                    while (cells.hasNext()) {
+                        result.add(cells.next());
+                    }
+
+                    return result;
+                }
+            });
+        }
+
+        return submit(null, new Callable<List<Cell>>() {
+            @Override
+            public List<Cell> call() {
+                return variable.getCellsTemporally();
+            }
+        });
+    }
+
+    /**
+     * Waits for the result of a task run as part of an export.
+     *
+     * @param result The result of the task.
+     *
+     * @return The result, once the task has finished.
+     *
+     * @throws IOException If the task failed, or the wait was interrupted.
+     */
+    static <T> T getResult(final Future<T> result) throws IOException {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while exporting variables.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException("Unable to export variable: " + e.getCause());
+        }
+    }
+
+    /**
+     * Writes the rows of a CSV export. The fields of each variable are
+     * rendered a chunk of rows at a time on the executor, where the next
+     * chunk of every variable is rendered while the current chunks are merged
+     * into rows and written on the calling thread. The chunks of a variable
+     * are rendered one after another, as each carries on from where the last
+     * left off, so a variable is only ever used by one thread at a time.
+     * Rows are written until every variable has run out, with blanks for the
+     * variables that already have.
+     *
+     * @param executor The executor to render the variables on, null to
+     * render them on the calling thread.
+     * @param out The writer to write the rows to.
+     * @param columns Renders the fields of each variable. Each chunk must be
+     * ROWS_PER_CHUNK long, or shorter once the variable has run out.
+     * @param blanks The fields of each variable for rows it has run out of.
+     * @param task The description of the export, for the listener.
+     * @param total The expected number of rows, for the listener.
+     * @param listener The listener to notify as rows are written, null for
+     * none.
+     *
+     * @throws IOException If unable to render or write the rows.
+     */
+    private static void writeRows(final ExecutorService executor,
+                                  final Writer out,
+                                  final List<Callable<String[]>> columns,
+                                  final String[] blanks,
+                                  final String task,
+                                  final int total,
+                                  final ProgressListener listener)
+    throws IOException {
+        List<Future<String[]>> pending = new ArrayList<Future<String[]>>();
+        for (Callable<String[]> column : columns) {
+            pending.add(submit(executor, column));
+        }
+
+        String[][] chunks = new String[columns.size()][];
+        int written = 0;
+
+        while (true) {
+            if (Thread.interrupted()) {
+                throw new InterruptedIOException("Interrupted while exporting variables.");
+            }
+
+            int rows = 0;
+            for (int j = 0; j < chunks.length; j++) {
+                chunks[j] = NO_ROWS;
+                if (pending.get(j) != null) {
+                    chunks[j] = getResult(pending.get(j));
+                    pending.set(j, chunks[j].length == ROWS_PER_CHUNK ? submit(executor, columns.get(j)) : null);
+                }
+                rows = Math.max(rows, chunks[j].length);
+            }
+
+            if (rows == 0) {
+                break;
+            }
+
+            for (int i = 0; i < rows; i++) {
+                for (int j = 0; j < chunks.length; j++) {
+                    out.write(i < chunks[j].length ? chunks[j][i] : blanks[j]);
+                }
+                out.write(NEW_LINE);
+            }
+
+            written += rows;
+            if (listener != null) {
+                listener.progressChanged(task, written, Math.max(written, total));
+            }
+        }
+    }
+
+
+    /**
+     * @param cell A cell.
+     *
+     * @return The last time the cell is active, its offset or its onset if
+     * the offset is earlier.
+     */
+    private static long getEnd(final Cell cell) {
+        return Math.max(cell.getOnset(), cell.getOffset());
+    }
+
+    /**
+     * @param cell A cell.
+     * @param count The number of arguments of the cell.
+     *
+     * @return The value of each argument of the cell, null where empty.
+     */
+    static String[] getArguments(final Cell cell, final int count) {
+        String[] result = new String[count];
+        Value value = cell.getValue();
+
+        if (value instanceof MatrixValue) {
+            List<Value> values = ((MatrixValue) value).getArguments();
+            for (int i = 0; i < count && i < values.size(); i++) {
+                if (!values.get(i).isEmpty()) {
+                    result[i] = values.get(i).toString();
+                }
+            }
+        } else if (!value.isEmpty()) {
+            result[0] = value.toString();
+        }
+
+        return result;
+    }
+
+    /**
+     * @param value A field of a CSV file, null if empty.
+     *
+     * @return The field, quoted if it holds a comma, quote or new line.
+     */
+    static String quoteCSV(final String value) {
+        if (value == null) {
+            return "";
+        }
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == ',' || c == '"' || c == '\n' || c == '\r') {
+                return "\"" + value.replace("\"", "\"\"") + "\"";
+            }
+        }
+
+        return value;
+    }
+
+    /**
+     * The position of the frame by frame export within the cells of a
+     * variable. Frames must be visited in increasing time.
+     */
+    private static final class FrameCursor {
+
+        /** The cells of the variable, in temporal order. */
+        private final List<Cell> cells;
+
+        /** The names of the arguments of the variable. */
+        private final List<String> argNames = new ArrayList<String>();
+
+        /** The fields of each cell, rendered when first needed. */
+        private final String[] fields;
+
+        /** The fields written when no cell of the variable is active. */
+        private final String blank;
+
+        /** The number of cells that start at or before the current frame. */
+        private int started = 0;
+
+        /** The started cell that ends the latest, -1 if none has started. */
+        private int latestEnd = -1;
+
+        /**
+         * Constructor.
+         *
+         * @param variable The variable to export.
+         * @param cells The cells of the variable, in temporal order.
+         */
+        FrameCursor(final Variable variable, final List<Cell> cells) {
+            this.cells = cells;
+            fields = new String[cells.size()];
+
+            Argument type = variable.getVariableType();
+            if (type.type == Argument.Type.MATRIX) {
+                for (Argument arg : type.childArguments) {
+                    argNames.add(arg.name);
+                }
+            } else {
+                argNames.add("value");
+            }
+
+            StringBuilder empty = new StringBuilder(",,,");
+            for (int i = 0; i < argNames.size(); i++) {
+                empty.append(',');
+            }
+            blank = empty.toString();
+        }
+
+        /**
+         * @param time The time of the frame, no earlier than the previous one.
+         *
+         * @return The fields of the cell active at the time, each preceded by
+         * a comma.
+         */
+        String getFields(final long time) {
+            while (started < cells.size() && cells.get(started).getOnset() <= time) {
+                if (latestEnd < 0 || getEnd(cells.get(started)) >= getEnd(cells.get(latestEnd))) {
+                    latestEnd = started;
+                }
+                started++;
+            }
+
+            int active = started - 1;
+            if (active < 0 || getEnd(cells.get(active)) < time) {
+                active = latestEnd;
+            }
+            if (active < 0 || getEnd(cells.get(active)) < time) {
+                return blank;
+            }
+
+            if (fields[active] == null) {
+                Cell cell = cells.get(active);
+                StringBuilder row = new StringBuilder();
+                row.append(',').append(active + 1);
+                row.append(',').append(cell.getOnset());
+                row.append(',').append(cell.getOffset());
+                for (String arg : getArguments(cell, argNames.size())) {
+                    row.append(',').append(quoteCSV(arg));
+                }
+                fields[active] = row.toString();
+            }
+
+            return fields[active];
+        }
+    }
+
+    /**
+     * Renders a frame by frame export a chunk of frames at a time: either the
+     * number and time of each frame, or the fields of a variable on each.
+     */
+    private static final class FrameChunks implements Callable<String[]> {
+
+        /** The variable to render, null to render frame numbers and times. */
+        private final FrameCursor cursor;
+
+        /** The time of the first frame. */
+        private final long firstTime;
+
+        /** The latest time that a frame may be at. */
+        private final long lastTime;
+
+        /** The number of frames per second. */
+        private final double framerate;
+
+        /** The next frame to render, counting from zero. */
+        private long frame = 0;
+
+        /**
+         * Constructor.
+         *
+         * @param cursor The variable to render, null for frame numbers.
+         * @param firstTime The time of the first frame.
+         * @param lastTime The latest time that a frame may be at.
+         * @param framerate The number of frames per second.
+         */
+        FrameChunks(final FrameCursor cursor, final long firstTime, final long lastTime, final double framerate) {
+            this.cursor = cursor;
+            this.firstTime = firstTime;
+            this.lastTime = lastTime;
+            this.framerate = framerate;
+        }
+
+        @Override
+        public String[] call() {
+            List<String> chunk = new ArrayList<String>(ROWS_PER_CHUNK);
+
+            // Times are worked out from the frame number, so that rounding
+            // doesn't build up over a long session.
+            for (; chunk.size() < ROWS_PER_CHUNK; frame++) {
+                long time = firstTime + (long) (frame * 1000.0 / framerate);
+                if (time > lastTime) {
+                    break;
+                }
+
+                if (cursor == null) {
+                    chunk.add((frame + 1) + "," + time);
+                } else {
+                    chunk.add(cursor.getFields(time));
+                }
+            }
+
+            return chunk.toArray(new String[chunk.size()]);
+        }
+    }
+
+    /**
+     * Exports the database as cells.
+     *
+     * @param outFile The path of the file to use when writing to disk.
+     * @param ds The datastore to export.
      *
      * @throws UserWarningException When unable to save the database as a CSV to
      * disk (usually because of permissions errors).
+     *
+     * @see #exportAsCells(String, Datastore, ProgressListener)
      */
-    public void exportAsCSV(final OutputStream outStream, final Datastore ds)
+    public void exportAsCells(final String outFile, final Datastore ds)
     throws UserWarningException {
-        LOGGER.event("save database as CSV to stream");
+        exportAsCells(outFile, ds, null);
+    }
 
-        // Dump out an identifier for the version of file.
-        PrintStream ps = new PrintStream(outStream);
-        ps.println("#4");
+    /**
+     * Exports the database as a CSV file with the cells of each variable side
+     * by side: row n holds the ordinal, onset, offset and arguments of the nth
+     * cell, in temporal order, of each variable, or blanks for variables with
+     * fewer cells. Every field is followed by a comma.
+     *
+     * Each variable is read once, in temporal order and a batch at a time for
+     * variables that can stream their cells. The variables are read and
+     * rendered concurrently and a chunk of rows at a time, see
+     * {@link #writeRows}, so only a couple of chunks per variable are held in
+     * memory.
+     *
+     * @param outFile The path of the file to use when writing to disk.
+     * @param ds The datastore to export.
+     * @param listener The listener to notify as rows are written, null for
+     * none.
+     *
+     * @throws UserWarningException When unable to save the database as a CSV to
+     * disk (usually because of permissions errors).
+     */
+    public void exportAsCells(final String outFile, final Datastore ds, final ProgressListener listener)
+    throws UserWarningException {
+        LOGGER.event("export database as cells");
 
-        /**
-        PREDICATES CURRENTLY UNSUPPORTED - TODO REIMPLEMENT.
-
-        // Dump out all the predicates held within the database.
-        Vector<PredicateVocabElement> predicates = db.getPredVEs();
-        if (predicates.size() > 0) {
-            int counter = 0;
-
-            //Read them in reverse because they're loaded in reverse.
-            //This can be resolved by finding why they're loaded in reverse (database)
-            //for (PredicateVocabElement pve : predicates) {\
-            for (int i = predicates.size() - 1; i >= 0; i--) {
-                PredicateVocabElement pve = predicates.elementAt(i);
-                ps.printf("%d:%s-", counter,
-                    StringUtils.escapeCSV(pve.getName()));
-
-                for (int j = 0; j < pve.getNumFormalArgs(); j++) {
-                    FormalArgument fa = pve.getFormalArgCopy(j);
-                    String name = fa.getFargName().substring(1,
-                            fa.getFargName().length() - 1);
-                    if (fa.getFargType() == FArgType.UNTYPED || fa.getFargType() == FArgType.UNDEFINED) {
-                        ps.printf("%s|%s", StringUtils.escapeCSV(name),
-                            FArgType.NOMINAL.toString());
+        try {
+            Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outFile), "UTF-8"),
+                                            BUFFER_SIZE);
+            List<Variable> variables = ds.getAllVariables();
+            Collections.sort(variables, new org.datavyu.util.VariableSort());
+            ExecutorService executor = newExportExecutor(variables.size());
+
+            try {
+                List<Callable<String[]>> columns = new ArrayList<Callable<String[]>>();
+                String[] blanks = new String[variables.size()];
+                StringBuilder row = new StringBuilder();
+                int total = 0;
+
+                for (int j = 0; j < variables.size(); j++) {
+                    Variable v = variables.get(j);
+                    Iterator<Cell> cells;
+                    if (v instanceof StreamsCells) {
+                        cells = ((StreamsCells) v).iterateTemporally();
+                        total = Math.max(total, ((StreamsCells) v).getCellCount());
                     } else {
-                        ps.printf("%s|%s", StringUtils.escapeCSV(name),
-                            fa.getFargType().toString());
+                        List<Cell> all = v.getCellsTemporally();
+                        cells = all.iterator();
+                        total = Math.max(total, all.size());
                     }
 
-                    if (j < (pve.getNumFormalArgs() - 1)) {
-                        ps.print(',');
+                    row.append(quoteCSV(v.getName() + ".ordinal")).append(',');
+                    row.append(quoteCSV(v.getName() + ".onset")).append(',');
+                    row.append(quoteCSV(v.getName() + ".offset")).append(',');
+
+                    // Test if the variable is a matrix. If it is, then
+                    // we have to print out all of its arguments.
+                    int argCount = 1;
+                    Argument type = v.getVariableType();
+                    if (type.type == Argument.Type.MATRIX) {
+                        for (Argument a : type.childArguments) {
+                            row.append(quoteCSV(v.getName() + "." + a.name)).append(',');
+                        }
+                        argCount = type.childArguments.size();
+                    } else {
+                        row.append(quoteCSV(v.getName() + ".value")).append(',');
                     }
+
+                    columns.add(new CellChunks(cells, argCount));
+                    StringBuilder blank = new StringBuilder();
+                    for (int k = 0; k < argCount + 3; k++) {
+                        blank.append(',');
+                    }
+                    blanks[j] = blank.toString();
                 }
+                out.append(row).write(NEW_LINE);
 
-                ps.println();
-                counter++;
+                writeRows(executor, out, columns, blanks, "Exporting cells", total, listener);
+            } finally {
+                if (executor != null) {
+                    executor.shutdownNow();
+                }
+                out.close();
             }
+        } catch (IOException ie) {
+            ie.printStackTrace();
+            ResourceMap rMap = Application.getInstance(Datavyu.class).getContext().getResourceMap(Datavyu.class);
+            throw new UserWarningException(rMap.getString("UnableToSave.message", outFile), ie);
         }
-        */
-
-        for (Variable variable : ds.getAllVariables()) {
-            ps.printf("%s (%s,%s,%s)",
-                        StringUtils.escapeCSV(variable.getName()),
-                        variable.getVariableType().type,
-                        !variable.isHidden(),
-                        "");
-
-            if (variable.getVariableType().type == Argument.Type.MATRIX) {
-                ps.print('-');
-
-                int numArgs = 0;
-                for (Argument arg : variable.getVariableType().childArguments) {
-                    ps.printf("%s|%s",
-                              StringUtils.escapeCSV(arg.name),
-                              arg.type);
-
-                    if (numArgs < (variable.getVariableType().childArguments.size() - 1)) {
-                        ps.print(',');
-                    }
-                    numArgs++;
+    }
+
+    /**
+     * Renders the cells of a variable for a cell export, a chunk of cells at
+     * a time.
+     */
+    private static final class CellChunks implements Callable<String[]> {
+
+        /** The cells of the variable still to render, in temporal order. */
+        private final Iterator<Cell> cells;
+
+        /** The number of arguments of the variable. */
+        private final int argCount;
+
+        /** The ordinal of the last cell rendered. */
+        private int ordinal = 0;
+
+        /**
+         * Constructor.
+         *
+         * @param cells The cells of the variable, in temporal order.
+         * @param argCount The number of arguments of the variable.
+         */
+        CellChunks(final Iterator<Cell> cells, final int argCount) {
+            this.cells = cells;
+            this.argCount = argCount;
+        }
+
+        @Override
+        public String[] call() {
+            List<String> chunk = new ArrayList<String>(ROWS_PER_CHUNK);
+            StringBuilder fields = new StringBuilder();
+
+            while (chunk.size() < ROWS_PER_CHUNK && cells.hasNext()) {
+                Cell c = cells.next();
+                ordinal++;
+
+                fields.setLength(0);
+                fields.append(ordinal).append(',');
+                fields.append(c.getOnset()).append(',');
+                fields.append(c.getOffset()).append(',');
+                for (String arg : getArguments(c, argCount)) {
+                    fields.append(quoteCSV(arg)).append(',');
+                }
+                chunk.add(fields.toString());
+            }
+
+            return chunk.toArray(new String[chunk.size()]);
+        }
+    }
+
+    /**
+     * Exports each variable to its own columnar file, for analysis tools that
+     * read whole columns at a time. The file of a variable is named after the
+     * supplied file and the variable, and holds, all little endian:
+     *
+     * <pre>
+     * "DVCF", int32 version, int32 rows, int32 columns
+     * for each column: string name, int32 kind
+     * for each column, its values:
+     *   kind 0, int64:      rows x int64
+     *   kind 1, dictionary: int32 entries, entries x string, rows x int32
+     *                       index into the entries, -1 where empty
+     *   kind 2, string:     (rows + 1) x int32 offsets into the bytes that
+     *                       follow, then the UTF-8 bytes of every row
+     * </pre>
+     *
+     * A string is an int32 byte length followed by UTF-8 bytes. The columns
+     * are the onset and offset of each cell in milliseconds, then each
+     * argument of the variable. Text arguments are strings, all others are
+     * dictionary encoded. Cells are in temporal order.
+     *
+     * @param outFile The path of the file to name the exported files after.
+     * @param ds The datastore to export.
+     *
+     * @throws UserWarningException When unable to write the files.
+     */
+    public void exportAsColumns(final String outFile, final Datastore ds)
+    throws UserWarningException {
+        LOGGER.event("export database as columns");
+
+        String base = outFile;
+        if (base.endsWith(COLUMNAR_EXTENSION)) {
+            base = base.substring(0, base.length() - COLUMNAR_EXTENSION.length());
+        }
+
+        Set<String> used = new HashSet<String>();
+        String file = outFile;
+
+        try {
+            for (Variable variable : ds.getAllVariables()) {
+                file = base + "." + getFileName(variable.getName(), used) + COLUMNAR_EXTENSION;
+                OutputStream out = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+
+                try {
+                    writeColumns(out, variable);
+                } finally {
+                    out.close();
                 }
             }
+        } catch (IOException ie) {
+            ie.printStackTrace();
+            ResourceMap rMap = Application.getInstance(Datavyu.class).getContext().getResourceMap(Datavyu.class);
+            throw new UserWarningException(rMap.getString("UnableToSave.message", file), ie);
+        }
+    }
+
+    /**
+     * @param name The name of a variable.
+     * @param used The file names already used, in lower case, which this
+     * name is added to.
+     *
+     * @return A name for the file of the variable that is safe on every
+     * platform and differs from the names already used.
+     */
+    private String getFileName(final String name, final Set<String> used) {
+        String safe = name.replaceAll("[^A-Za-z0-9._-]", "_");
+        String fileName = safe;
+
+        for (int i = 2; !used.add(fileName.toLowerCase()); i++) {
+            fileName = safe + "_" + i;
+        }
+
+        return fileName;
+    }
+
+    /**
+     * Writes a variable in the columnar format. The cells are read in a single
+     * pass, streamed when the variable supports it, with the value of each
+     * read once into the rows that the columns are then written from.
+     *
+     * @param out The output to write the variable to.
+     * @param variable The variable to write.
+     *
+     * @throws IOException If unable to write to out.
+     */
+    private void writeColumns(final OutputStream out, final Variable variable)
+    throws IOException {
+        Argument type = variable.getVariableType();
+        boolean matrix = type.type == Argument.Type.MATRIX;
+        List<Argument> args = matrix ? type.childArguments : Collections.singletonList(type);
+
+        Iterator<Cell> cells;
+        if (variable instanceof StreamsCells) {
+            cells = ((StreamsCells) variable).iterateTemporally();
+        } else {
+            cells = variable.getCellsTemporally().iterator();
+        }
+
+        CellRows rows = new CellRows();
+        while (cells.hasNext()) {
+            Cell cell = cells.next();
+            rows.add(cell.getOnset(), cell.getOffset(), getArguments(cell, args.size()));
+        }
+
+        out.write(COLUMNAR_MAGIC);
+        writeInt(out, COLUMNAR_VERSION);
+        writeInt(out, rows.size());
+        writeInt(out, args.size() + 2);
+
+        writeString(out, "onset");
+        writeInt(out, INT64_COLUMN);
+        writeString(out, "offset");
+        writeInt(out, INT64_COLUMN);
+        for (Argument arg : args) {
+            writeString(out, matrix ? arg.name : "value");
+            writeInt(out, arg.type == Argument.Type.TEXT ? STRING_COLUMN : DICTIONARY_COLUMN);
+        }
+
+        ByteBuffer times = newBuffer(rows.size() * 8);
+        for (int i = 0; i < rows.size(); i++) {
+            times.putLong(rows.getOnset(i));
+        }
+        out.write(times.array());
+
+        times.clear();
+        for (int i = 0; i < rows.size(); i++) {
+            times.putLong(rows.getOffset(i));
+        }
+        out.write(times.array());
+
+        for (int j = 0; j < args.size(); j++) {
+            if (args.get(j).type == Argument.Type.TEXT) {
+                writeStringColumn(out, rows, j);
+            } else {
+                writeDictionaryColumn(out, rows, j);
+            }
+        }
+    }
+
+    /**
+     * Writes a column of strings as the offset of each value followed by the
+     * values themselves.
+     *
+     * @param out The output to write the column to.
+     * @param rows The rows to write the column of.
+     * @param index The index of the argument that holds the column.
+     *
+     * @throws IOException If unable to write to out.
+     */
+    private void writeStringColumn(final OutputStream out,
+                                   final CellRows rows,
+                                   final int index)
+    throws IOException {
+        ByteBuffer offsets = newBuffer((rows.size() + 1) * 4);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        offsets.putInt(0);
+        for (int i = 0; i < rows.size(); i++) {
+            String value = rows.getValue(i, index);
+            if (value != null) {
+                bytes.write(value.getBytes("UTF-8"));
+            }
+            offsets.putInt(bytes.size());
+        }
 
-            ps.println();
+        out.write(offsets.array());
+        bytes.writeTo(out);
+    }
 
-            for (Cell cell : variable.getCells()) {
-                ps.printf("%s,%s,%s",
-                          cell.getOnsetString(),
-                          cell.getOffsetString(),
-                          cell.getValueAsString());
-                ps.println();
+    /**
+     * Writes a column of values as a dictionary of the distinct values, in the
+     * order they first appear, followed by the index of each value in the
+     * dictionary.
+     *
+     * @param out The output to write the column to.
+     * @param rows The rows to write the column of.
+     * @param index The index of the argument that holds the column.
+     *
+     * @throws IOException If unable to write to out.
+     */
+    private void writeDictionaryColumn(final OutputStream out,
+                                       final CellRows rows,
+                                       final int index)
+    throws IOException {
+        Map<String, Integer> codes = new HashMap<String, Integer>();
+        List<String> dictionary = new ArrayList<String>();
+        ByteBuffer indexes = newBuffer(rows.size() * 4);
+
+        for (int i = 0; i < rows.size(); i++) {
+            String value = rows.getValue(i, index);
+            if (value == null) {
+                indexes.putInt(-1);
+                continue;
+            }
+
+            Integer code = codes.get(value);
+            if (code == null) {
+                code = dictionary.size();
+                codes.put(value, code);
+                dictionary.add(value);
             }
+            indexes.putInt(code);
+        }
+
+        writeInt(out, dictionary.size());
+        for (String value : dictionary) {
+            writeString(out, value);
         }
+        out.write(indexes.array());
+    }
+
+    /**
+     * @param size The size of the buffer in bytes.
+     *
+     * @return A little endian buffer.
+     */
+    private ByteBuffer newBuffer(final int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Writes a little endian 32 bit integer.
+     *
+     * @param out The output to write to.
+     * @param value The integer to write.
+     *
+     * @throws IOException If unable to write to out.
+     */
+    private void writeInt(final OutputStream out, final int value)
+    throws IOException {
+        out.write(newBuffer(4).putInt(value).array());
+    }
+
+    /**
+     * Writes a string as its length in bytes followed by its UTF-8 bytes.
+     *
+     * @param out The output to write to.
+     * @param value The string to write.
+     *
+     * @throws IOException If unable to write to out.
+     */
+    private void writeString(final OutputStream out, final String value)
+    throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        writeInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Serialize the database to the specified stream in a CSV format. This
+     * writes the same file as saving the database, see
+     * {@link SaveDatabaseFileC#saveAsCSV(OutputStream, Datastore)}.
+     *
+     * @param outStream The stream to use when serializing.
+     * @param ds The datastore to save as a CSV file.
+     *
+     * @throws UserWarningException When unable to save the database as a CSV to
+     * disk (usually because of permissions errors).
+     */
+    public void exportAsCSV(final OutputStream outStream, final Datastore ds)
+    throws UserWarningException {
+        LOGGER.event("export database as CSV to stream");
+
+        new SaveDatabaseFileC().saveAsCSV(outStream, ds);
     }
 }
@@ -18,6 +18,7 @@ import com.usermetrix.jclient.Logger;
 import com.usermetrix.jclient.UserMetrix;
 
 import java.io.File;
+import java.io.InputStream;
 
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
@@ -38,6 +39,9 @@ public final class OpenC {
     /** A reference to the projec that this controller opened. */
     private Project project = null;
 
+    /** The journal moved aside because it didn't match its archive. */
+    private File unmatchedJournal = null;
+
     /** The logger for this class. */
     private static Logger LOGGER = UserMetrix.getLogger(OpenC.class);
 
@@ -119,14 +123,35 @@ public final class OpenC {
             }
 
             OpenDatabaseFileC odc = new OpenDatabaseFileC();
-            database = odc.openAsCSV(zf.getInputStream(zDb));
+            database = odc.open(zf.getInputStream(zDb));
+
+            // Replay any changes saved since the archive was last written.
+            ChangeJournal.Changes changes = null;
+            try {
+                changes = ChangeJournal.read(zf);
+            } catch (ChangeJournal.UnmatchedJournalException e) {
+                LOGGER.error("Project journal does not match the archive", e);
+                unmatchedJournal = e.getUnmatchedFile();
+            }
+            if (changes != null && database != null) {
+                LOGGER.event("replay project journal");
+                project = changes.getProject();
+                database = changes.apply(database);
+            }
 
             // BugzID:1806
             for (ViewerSetting vs : project.getViewerSettings()) {
 
                 if (vs.getSettingsId() != null) {
-                    ZipEntry entry = zf.getEntry(vs.getSettingsId());
-                    vs.copySettings(zf.getInputStream(entry));
+                    InputStream settings = null;
+                    if (changes != null) {
+                        settings = changes.getSettings(vs.getSettingsId());
+                    }
+                    if (settings == null) {
+                        ZipEntry entry = zf.getEntry(vs.getSettingsId());
+                        settings = zf.getInputStream(entry);
+                    }
+                    vs.copySettings(settings);
                 }
             }
 
@@ -154,6 +179,15 @@ public final class OpenC {
         return database;
     }
 
+    /**
+     * @return The journal of changes that was moved aside when opening the
+     * project, because it was written for another copy of the project
+     * archive. Null if there was none.
+     */
+    public File getUnmatchedJournal() {
+        return unmatchedJournal;
+    }
+
     /**
      * @return The instance of the project
      */
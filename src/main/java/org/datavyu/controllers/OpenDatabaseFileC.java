@@ -18,16 +18,36 @@ import org.datavyu.models.db.DatastoreFactory;
 import com.usermetrix.jclient.Logger;
 import com.usermetrix.jclient.UserMetrix;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import javax.swing.JOptionPane;
 import org.datavyu.Datavyu;
 import org.datavyu.models.db.Argument;
+import org.datavyu.models.db.BulkLoadable;
 import org.datavyu.models.db.Cell;
+import org.datavyu.models.db.CellRows;
+import org.datavyu.models.db.CellSource;
 import org.datavyu.models.db.Datastore;
+import org.datavyu.models.db.LazyLoadable;
 import org.datavyu.models.db.MatrixValue;
 import org.datavyu.models.db.UserWarningException;
 import org.datavyu.models.db.Value;
 import org.datavyu.models.db.Variable;
+import org.datavyu.util.BinaryCodec;
+import org.datavyu.util.ByteBufferInputStream;
+import org.datavyu.util.CSVTokenizer;
+import org.datavyu.util.TimestampCodec;
 
 /**
  * Controller for opening a database from disk.
@@ -35,17 +55,29 @@ import org.datavyu.models.db.Variable;
 public final class OpenDatabaseFileC {
 
     /**
-     * The index of the ONSET timestamp in the CSV line.
+     * The system property holding the number of threads to parse the
+     * variables of a #4 file with. Defaults to the number of processors, one
+     * parses the variables in turn on the calling thread.
      */
-    private static final int DATA_ONSET = 0;
+    public static final String THREADS_PROPERTY = "datavyu.csv.threads";
+
+    /**
+     * The system property that controls whether the cells of binary databases
+     * are read when their variable is first queried. Defaults to true, and
+     * only applies to datastores whose variables are LazyLoadable.
+     */
+    public static final String LAZY_PROPERTY = "datavyu.db.lazy";
+
     /**
-     * The index of the OFFSET timestamp in the CSV line.
+     * Cache files of earlier opens that could not be deleted yet, because
+     * the platform won't delete a file while it is mapped.
      */
-    private static final int DATA_OFFSET = 1;
+    private static final List<File> STALE_CACHES = new ArrayList<File>();
+
     /**
-     * The start of the data arguments.
+     * The onset and offset given to cells recovered from corrupt lines.
      */
-    private static final int DATA_INDEX = 2;
+    private static final long CORRUPT_TIME = TimestampCodec.parse("99:00:00:000");
     /**
      * Value to put into values we cannot read in the event of an error
      */
@@ -127,6 +159,325 @@ public final class OpenDatabaseFileC {
         return null;
     }
 
+    /**
+     * Opens a database serialized to a stream, detecting whether it was
+     * written in the binary or the CSV format. Where the datastore can load
+     * lazily, binary databases are copied to a memory mapped cache file and
+     * the cells of each variable are only read when they are first needed,
+     * unless LAZY_PROPERTY is set to false. Otherwise they are read straight
+     * from the stream. The caller is responsible for managing the stream.
+     *
+     * @param inStream The stream to deserialize when populating the database.
+     *
+     * @return populated database on success, null otherwise.
+     */
+    public Datastore open(final InputStream inStream) {
+        try {
+            BufferedInputStream in = new BufferedInputStream(inStream);
+            byte[] magic = new byte[SaveDatabaseFileC.BINARY_MAGIC.length];
+
+            in.mark(magic.length);
+            int read = 0;
+            while (read < magic.length) {
+                int count = in.read(magic, read, magic.length - read);
+                if (count < 0) {
+                    break;
+                }
+                read += count;
+            }
+            in.reset();
+
+            if (!Arrays.equals(magic, SaveDatabaseFileC.BINARY_MAGIC)) {
+                return openAsCSV(in);
+            }
+
+            if (DatastoreFactory.isLazyLoadable()
+                    && Boolean.parseBoolean(System.getProperty(LAZY_PROPERTY, "true"))) {
+                return openMapped(in);
+            }
+
+            return openAsBinary(in);
+        } catch (IOException e) {
+            LOGGER.error("Unable to read database from stream", e);
+            e.printStackTrace();
+        }
+
+        // Error encountered - return null.
+        return null;
+    }
+
+    /**
+     * This method reads a database written in the binary format by
+     * SaveDatabaseFileC and populates the database (and spreadsheet) with it.
+     * The caller is responsible for managing the stream.
+     *
+     * @param inStream The stream to deserialize when populating the database.
+     *
+     * @return populated database on success, null otherwise.
+     */
+    public Datastore openAsBinary(final InputStream inStream) {
+        try {
+            LOGGER.event("open binary database from stream");
+
+            return readBinary(new DataInputStream(new BufferedInputStream(inStream)), null);
+        } catch (IOException e) {
+            LOGGER.error("Unable to read binary database", e);
+            e.printStackTrace();
+        } catch (UserWarningException e) {
+            LOGGER.error("Unable to create new variable.", e);
+            e.printStackTrace();
+        }
+
+        // Error encountered - return null.
+        return null;
+    }
+
+    /**
+     * Copies a database written in the binary format to an uncompressed cache
+     * file and maps it into memory. Only the variables are read up front, the
+     * cells of each are read from the mapping when first needed. The cache
+     * file is deleted as soon as it is mapped where the platform allows it,
+     * otherwise once a later open finds it no longer mapped, or on exit.
+     *
+     * @param inStream The stream to deserialize when populating the database.
+     *
+     * @return populated database on success, null otherwise.
+     */
+    private Datastore openMapped(final InputStream inStream) {
+        try {
+            LOGGER.event("open binary database from cache file");
+
+            File cache = File.createTempFile("datavyu-db", ".cache");
+            cache.deleteOnExit();
+            MappedByteBuffer mapped;
+
+            try {
+                FileOutputStream fos = new FileOutputStream(cache);
+                try {
+                    byte[] buffer = new byte[64 * 1024];
+                    int count;
+                    while ((count = inStream.read(buffer)) >= 0) {
+                        fos.write(buffer, 0, count);
+                    }
+                } finally {
+                    fos.close();
+                }
+
+                // The mapping stays valid after the channel is closed, and
+                // after the file is deleted.
+                RandomAccessFile raf = new RandomAccessFile(cache, "r");
+                try {
+                    FileChannel channel = raf.getChannel();
+                    mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                } finally {
+                    raf.close();
+                }
+            } finally {
+                deleteCache(cache);
+            }
+
+            return readBinary(new DataInputStream(new ByteBufferInputStream(mapped)), mapped);
+        } catch (IOException e) {
+            LOGGER.error("Unable to read binary database", e);
+            e.printStackTrace();
+        } catch (UserWarningException e) {
+            LOGGER.error("Unable to create new variable.", e);
+            e.printStackTrace();
+        }
+
+        // Error encountered - return null.
+        return null;
+    }
+
+    /**
+     * Deletes a cache file, along with those of earlier opens that are no
+     * longer mapped. Files that are still mapped are kept for a later try.
+     *
+     * @param cache The cache file to delete.
+     */
+    private static void deleteCache(final File cache) {
+        synchronized (STALE_CACHES) {
+            for (Iterator<File> it = STALE_CACHES.iterator(); it.hasNext();) {
+                if (it.next().delete()) {
+                    it.remove();
+                }
+            }
+
+            if (!cache.delete()) {
+                STALE_CACHES.add(cache);
+            }
+        }
+    }
+
+    /**
+     * Reads a database written in the binary format.
+     *
+     * @param in The binary database to read.
+     * @param mapped The buffer that in reads from, or null if it reads from a
+     * stream. When supplied, the cells of variables that can be loaded lazily
+     * are left in the buffer until they are needed.
+     *
+     * @return The populated database.
+     *
+     * @throws IOException When we are unable to read from in.
+     * @throws UserWarningException When we are unable to create a variable.
+     */
+    private Datastore readBinary(final DataInputStream in, final ByteBuffer mapped)
+    throws IOException, UserWarningException {
+        byte[] magic = new byte[SaveDatabaseFileC.BINARY_MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, SaveDatabaseFileC.BINARY_MAGIC)) {
+            throw new IOException("Not a binary database.");
+        }
+
+        int version = BinaryCodec.readVarInt(in);
+        if (version > SaveDatabaseFileC.BINARY_VERSION) {
+            throw new IOException("Unsupported binary database version "
+                    + version + ".");
+        }
+
+        Datastore db = DatastoreFactory.newDatastore();
+        db.setTitleNotifier(Datavyu.getApplication());
+
+        int numVariables = BinaryCodec.readVarInt(in);
+        for (int i = 0; i < numVariables; i++) {
+            readVariable(in, mapped, version, db);
+        }
+
+        return db;
+    }
+
+    /**
+     * Reads a variable and its cells written in the binary format.
+     *
+     * @param in The binary database we are currently reading.
+     * @param mapped The buffer that in reads from, or null if it reads from a
+     * stream.
+     * @param version The version of the binary format being read.
+     * @param ds The data store we are populating.
+     *
+     * @throws IOException When we are unable to read from in.
+     * @throws UserWarningException When we are unable to create the variable.
+     */
+    private void readVariable(final DataInputStream in,
+                              final ByteBuffer mapped,
+                              final int version,
+                              final Datastore ds)
+    throws IOException, UserWarningException {
+        String name = BinaryCodec.readString(in);
+        Argument.Type type = readType(in);
+        boolean visible = in.readBoolean();
+
+        int numArgs = BinaryCodec.readVarInt(in);
+        Argument[] args = new Argument[numArgs];
+        for (int j = 0; j < numArgs; j++) {
+            String argName = BinaryCodec.readString(in);
+            args[j] = new Argument(argName, readType(in));
+        }
+
+        Variable newVar = ds.createVariable(name, type);
+        newVar.setHidden(!visible);
+
+        if (type == Argument.Type.MATRIX) {
+            Argument newArg = newVar.getVariableType();
+            newArg.clearChildArguments();
+            newArg.childArguments.addAll(Arrays.asList(args));
+            newVar.setVariableType(newArg);
+        }
+
+        // Version 1 has no length before the cells, so they can't be skipped.
+        if (version > 1) {
+            int length = BinaryCodec.readVarInt(in);
+
+            if (mapped != null && newVar instanceof LazyLoadable) {
+                ByteBuffer cells = mapped.duplicate();
+                cells.limit(mapped.position() + length);
+                mapped.position(mapped.position() + length);
+
+                ((LazyLoadable) newVar).setCellSource(new MappedCells(cells.slice(), args));
+                return;
+            }
+        }
+
+        insertCells(newVar, readCells(in, args));
+    }
+
+    /**
+     * Reads the cells of a variable written in the binary format.
+     *
+     * @param in The binary database we are currently reading.
+     * @param args The arguments of the variable.
+     *
+     * @return The cells that were read.
+     *
+     * @throws IOException When we are unable to read from in.
+     */
+    private CellRows readCells(final DataInputStream in, final Argument[] args)
+    throws IOException {
+        int numArgs = args.length;
+        int numCells = BinaryCodec.readVarInt(in);
+        long[] onsets = new long[numCells];
+        long previous = 0;
+        for (int i = 0; i < numCells; i++) {
+            previous += BinaryCodec.readSignedVarLong(in);
+            onsets[i] = previous;
+        }
+
+        long[] offsets = new long[numCells];
+        for (int i = 0; i < numCells; i++) {
+            offsets[i] = onsets[i] + BinaryCodec.readSignedVarLong(in);
+        }
+
+        String[][] values = new String[numCells][numArgs];
+        for (int j = 0; j < numArgs; j++) {
+            if (args[j].type == Argument.Type.TEXT) {
+                for (int i = 0; i < numCells; i++) {
+                    values[i][j] = BinaryCodec.readString(in);
+                }
+            } else {
+                String[] table = new String[BinaryCodec.readVarInt(in) + 1];
+                for (int k = 1; k < table.length; k++) {
+                    table[k] = BinaryCodec.readString(in);
+                }
+
+                for (int i = 0; i < numCells; i++) {
+                    int code = BinaryCodec.readVarInt(in);
+                    if (code >= table.length) {
+                        throw new IOException("Malformed binary database.");
+                    }
+                    values[i][j] = table[code];
+                }
+            }
+        }
+
+        CellRows rows = new CellRows();
+        for (int i = 0; i < numCells; i++) {
+            rows.add(onsets[i], offsets[i], values[i]);
+        }
+
+        return rows;
+    }
+
+    /**
+     * @param in The binary database we are currently reading.
+     *
+     * @return The argument type read from in.
+     *
+     * @throws IOException When we are unable to read from in, or the type is
+     * not one we know.
+     */
+    private Argument.Type readType(final DataInputStream in) throws IOException {
+        String type = BinaryCodec.readString(in);
+
+        for (Argument.Type t : Argument.Type.values()) {
+            if (t.name().equals(type)) {
+                return t;
+            }
+        }
+
+        throw new IOException("Unknown argument type " + type + ".");
+    }
+
     /**
      * This method parses a CSV input stream and populates the database (and
      * spreadsheet) with data. The caller is responsible for managing the
@@ -143,7 +494,7 @@ public final class OpenDatabaseFileC {
             Datastore db = DatastoreFactory.newDatastore();
             db.setTitleNotifier(Datavyu.getApplication());
             InputStreamReader isr = new InputStreamReader(inStream);
-            BufferedReader csvFile = new BufferedReader(isr);
+            CSVTokenizer csvFile = new CSVTokenizer(isr);
 
             // Read each line of the CSV file.
             String line = csvFile.readLine();
@@ -155,8 +506,14 @@ public final class OpenDatabaseFileC {
                 //Version 4 includes a comment for columns.
                 line = parseDefinitions(csvFile, db);
 
-                while (line != null) {
-                    line = parseVariable(csvFile, line, db, "#4");
+                int threads = Integer.getInteger(THREADS_PROPERTY,
+                        Runtime.getRuntime().availableProcessors());
+                if (threads > 1) {
+                    parseVariables(csvFile, line, db, threads);
+                } else {
+                    while (line != null) {
+                        line = parseVariable(csvFile, line, db, "#4");
+                    }
                 }
             } else if ("#3".equalsIgnoreCase(line)) {
 
@@ -185,7 +542,6 @@ public final class OpenDatabaseFileC {
                 }
             }
 
-            csvFile.close();
             isr.close();
 
             return db;
@@ -209,46 +565,26 @@ public final class OpenDatabaseFileC {
      * @return The line free of escape characters, i.e. '\'.
      */
     private String stripEscChars(final String line) {
-        String result = null;
-
-        if (line != null) {
-            result = "";
-
-            for (int i = 0; i < line.length(); i++) {
-
-                if (i < (line.length() - 1)) {
-
-                    if ((line.charAt(i) == '\\')
-                            && (line.charAt(i + 1) == '\\')) {
-                        char[] buff = {'\\'};
-                        result = result.concat(new String(buff));
-
-                        // Move over the escape character.
-                        i++;
-                    } else if ((line.charAt(i) == '\\')
-                            && (line.charAt(i + 1) == ',')) {
-                        char[] buff = {','};
-                        result = result.concat(new String(buff));
-
-                        // Move over the escape character.
-                        i++;
-                    } else if ((line.charAt(i) == '\\')
-                            && (line.charAt(i + 1) == '-')) {
-                        char[] buff = {'-'};
-                        result = result.concat(new String(buff));
-
-                        // Move over the escape character.
-                        i++;
-                    } else {
-                        result += line.charAt(i);
-                    }
-                } else {
-                    result += line.charAt(i);
+        if (line == null) {
+            return null;
+        }
+
+        StringBuilder result = new StringBuilder(line.length());
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+
+            // Move over the escape character.
+            if (c == '\\' && i < (line.length() - 1)) {
+                char next = line.charAt(i + 1);
+                if (next == '\\' || next == ',' || next == '-') {
+                    c = next;
+                    i++;
                 }
             }
+            result.append(c);
         }
 
-        return result;
+        return result.toString();
     }
 
     /**
@@ -325,193 +661,226 @@ public final class OpenDatabaseFileC {
     /**
      * Method to create data values for the formal arguments of a vocab element.
      *
-     * @param tokens The array of string tokens.
-     * @param startI The starting index to
-     * @param destValue The destination value that we are populating.
+     * @param row The row holding the bracketed, comma separated arguments.
+     * @param destPattern The matrix template that the values are for.
+     *
+     * @return The values for each of the arguments in the matrix template.
      */
-    private void parseFormalArgs(final String[] tokens,
-            final int startI,
-            final Argument destPattern,
-            final MatrixValue destValue) {
+    private String[] parseFormalArgs(final CSVTokenizer.Row row,
+            final Argument destPattern) {
 
 
         // Check to see if the list of tokens we have here is correct.
         // If it is not, then mark an error state and do our best to parse.
         // Fill in missing info with a missing value.
 
-        List<Value> args = destValue.getArguments();
-        if (args.size() != tokens.length - startI) {
+        int numArgs = destPattern.childArguments.size();
+        int numTokens = row.getArgumentCount();
+        if (numArgs != numTokens) {
             // We have a problem. Arguments are of different length.
             // Get as much from the string as we can.
 
             parse_error = true;
         }
 
-        for (int i = 0; i < destValue.getArguments().size(); i++) {
-            Argument fa = destPattern.childArguments.get(i);
-            boolean emptyArg = false;
+        String[] values = new String[numArgs];
+        for (int i = 0; i < numArgs && i < numTokens; i++) {
+            String value = row.getArgument(i);
 
-            // If the field doesn't contain anything or matches the FargName
-            // we consider the argument to be 'empty'.
-            if ((tokens[startI + i].length() == 0) || tokens[startI + i].equals(fa.name)) {
-                emptyArg = true;
+            // Strip the brackets from the first and last argument.
+            if (i == 0 && value.startsWith("(")) {
+                value = value.substring(1);
+            }
+            if (i == numTokens - 1 && value.endsWith(")")) {
+                value = value.substring(0, value.length() - 1);
             }
 
-            tokens[startI + i] = tokens[startI + i].trim();
-            destValue.getArguments().get(i).set(tokens[startI + i]);
+            values[i] = value.trim();
         }
+
+        return values;
     }
 
     /**
-     * Method to invoke when we encounter a block of text in the CSV file that
-     * is the contents of a predicate variable.
-     *
-     * @param csvFile The csvFile we are currently parsing.
-     * @param var The variable that we will be adding cells too.
-     * @param arg The matrix template we are using when parsing individual
-     * matrix elements to put in the spreadsheet.
-     * @return The next line in the file that is not part of the block of text
-     * in the CSV file.
+     * Inserts a column of parsed rows into a variable, in a single batch if
+     * the variable supports it.
      *
-     * @throws IOException If unable to read the file correctly.
+     * @param var The variable to insert the cells into.
+     * @param rows The parsed rows to insert.
      */
-    private String parseMatrixVariable(final BufferedReader csvFile,
-            final Variable var,
-            final Argument arg) throws IOException {
-        String line = csvFile.readLine();
-
-        while ((line != null) && Character.isDigit(line.charAt(0))) {
+    private void insertCells(final Variable var, final CellRows rows) {
+        if (var instanceof BulkLoadable) {
+            ((BulkLoadable) var).insertCells(rows);
+            return;
+        }
 
-            // Remove backslashes if there are more than would be used for 
-            // newline escapes
-            
-            if(line.contains("\\")) {
-                if(line.endsWith("\\\\n") || line.endsWith("\\\\r\\n")) {
-                    line = line.replace("\\", "") + "\\\\n";
-                }
-                else {
-                    line = line.replace("\\", "");
+        for (int i = 0; i < rows.size(); i++) {
+            Cell newCell = var.createCell();
+            newCell.setOnset(rows.getOnset(i));
+            newCell.setOffset(rows.getOffset(i));
+
+            Value value = newCell.getValue();
+            if (value instanceof MatrixValue) {
+                List<Value> args = ((MatrixValue) value).getArguments();
+                for (int j = 0; j < args.size(); j++) {
+                    if (rows.getValue(i, j) != null) {
+                        args.get(j).set(rows.getValue(i, j));
+                    }
                 }
+            } else if (rows.getValue(i, 0) != null) {
+                value.set(rows.getValue(i, 0));
             }
-            
-            // Split the line into tokens using a comma delimiter.
-            String[] tokens = line.split(",");
+        }
+    }
 
-            Cell newCell = var.createCell();
-            // Set the onset and offset from tokens in the line.
-            newCell.setOnset(tokens[DATA_ONSET]);
-            newCell.setOffset(tokens[DATA_OFFSET]);
+    /**
+     * Parses the variables of a #4 file, reading the file on the calling
+     * thread and parsing the cells of each variable on a pool of threads. The
+     * variables are created, and their cells inserted, in the order they
+     * appear in the file.
+     *
+     * @param csvFile The CSV file we are currently reading.
+     * @param firstLine The header line of the first variable.
+     * @param ds The data store we are populating with data from the CSV file.
+     * @param threads The number of threads to parse the variables with.
+     *
+     * @throws IOException When we are unable to read from the csvFile.
+     * @throws UserWarningException When we are unable to create variables.
+     */
+    private void parseVariables(final CSVTokenizer csvFile,
+            final String firstLine,
+            final Datastore ds,
+            final int threads)
+            throws IOException, UserWarningException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        LinkedList<VariableParser> parsers = new LinkedList<VariableParser>();
+        LinkedList<Future<CellRows>> results = new LinkedList<Future<CellRows>>();
 
-            // Strip the brackets from the first and last argument.
-            tokens[DATA_INDEX] = tokens[DATA_INDEX].substring(1, tokens[DATA_INDEX].length());
+        try {
+            String line = firstLine;
+            while (line != null) {
+                VariableParser parser = createVariable(line, ds, "#4");
 
-            int end = tokens.length - 1;
-            tokens[end] = tokens[end].substring(0, tokens[end].length() - 1);
-            parseFormalArgs(tokens, DATA_INDEX, var.getVariableType(), (MatrixValue) newCell.getValue());
-            // Get the next line in the file for reading.
-            line = csvFile.readLine();
+                if (parser == null) {
+                    skipRows(csvFile);
+                } else {
+                    parser.setBlock(copyBlock(csvFile, parser.isMatrix()));
+                    parsers.add(parser);
+                    results.add(executor.submit(parser));
+                }
+
+                // Insert the cells of the variables that are ready while the
+                // rest of the file is read.
+                insertParsed(parsers, results, false);
+                line = nextLine(csvFile);
+            }
+
+            insertParsed(parsers, results, true);
+        } finally {
+            executor.shutdownNow();
         }
+    }
 
-        return line;
+    /**
+     * Inserts the cells of parsed variables, in the order the variables were
+     * submitted for parsing.
+     *
+     * @param parsers The variables waiting for their cells to be inserted.
+     * @param results The parsed cells of each of the waiting variables.
+     * @param wait Wait for every variable to be parsed? Otherwise stop at the
+     * first one still being parsed.
+     *
+     * @throws IOException When a variable could not be parsed.
+     */
+    private void insertParsed(final LinkedList<VariableParser> parsers,
+            final LinkedList<Future<CellRows>> results,
+            final boolean wait)
+            throws IOException {
+        while (!results.isEmpty() && (wait || results.getFirst().isDone())) {
+            try {
+                CellRows rows = results.removeFirst().get();
+                parsers.removeFirst().insert(rows);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while parsing variables.");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                } else if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new IOException("Unable to parse variable: " + e.getCause());
+            }
+        }
     }
 
     /**
-     * Method to invoke when we encounter a block of text in the CSV file that
-     * is the contents of a variable.
+     * Copies the cell rows of a variable so that they can be parsed on
+     * another thread. For text and nominal variables this includes the
+     * corrupt lines that follow a cell row.
      *
      * @param csvFile The csvFile we are currently parsing.
-     * @param var The variable that we will be adding cells too.
-     * @param The populator to use when converting the contents of the cell into
-     * a datavalue that can be inserted into the spreadsheet.
+     * @param matrix Are the rows for a matrix variable?
      *
-     * @return The next line in the file that is not part of the block of text
-     * in the CSV file.
+     * @return The rows of the variable as they appear in the file.
      *
      * @throws IOException If unable to read the file correctly.
      */
-    private String parseEntries(final BufferedReader csvFile,
-            final Variable var,
-            final EntryPopulator populator)
+    private String copyBlock(final CSVTokenizer csvFile, final boolean matrix)
             throws IOException {
+        StringBuilder block = new StringBuilder();
 
-        // Keep parsing lines and putting them in the newly formed nominal
-        // variable until we get to a line indicating the end of file or a new
-        // variable section.
-        String line = csvFile.readLine();
+        while (csvFile.atRow()) {
+            csvFile.copyRow(block);
 
-        boolean error_line = false;
-        int error_count = 0;
-
-        while ((line != null) && Character.isDigit(line.charAt(0))) {
-            
-            // Remove backslashes if there are more than would be used for 
-            // newline escapes
-            
-            if(line.contains("\\")) {
-                if(line.endsWith("\\") || line.endsWith("\\\\")) {
-                    line = line.replace("\\", "") + "\\";
-                }
-                else {
-                    line = line.replace("\\", "");
+            if (!matrix) {
+                String line = csvFile.peekLine();
+                while ((line != null) && !csvFile.atRow() && testForCorruptLine(line)) {
+                    csvFile.copyRow(block);
+                    line = csvFile.peekLine();
                 }
             }
+        }
 
-            try {
-                // Split the line into tokens using a comma delimiter.
-                String[] tokens = line.split(",");
-
-                // BugzID: 1075 - If the line ends with an escaped new line - add
-                // the next line to the current text field.
-                while ((line != null) && line.endsWith("\\")
-                        && !line.endsWith("\\\\")) {
-                    line = csvFile.readLine();
-
-                    String content = tokens[tokens.length - 1];
-                    content = content.substring(0, content.length() - 1);
-                    tokens[tokens.length - 1] = content + '\n' + line;
-                }
+        return block.toString();
+    }
 
-                Cell newCell = var.createCell();
+    /**
+     * Moves past the cell rows of a variable that is not being loaded.
+     *
+     * @param csvFile The csvFile we are currently parsing.
+     *
+     * @throws IOException If unable to read the file correctly.
+     */
+    private void skipRows(final CSVTokenizer csvFile) throws IOException {
+        CSVTokenizer.Row lineEater = new CSVTokenizer.Row();
 
-                // Set the onset and offset from tokens in the line.
-                newCell.setOnset(tokens[DATA_ONSET]);
-                newCell.setOffset(tokens[DATA_OFFSET]);
-                populator.populate(tokens, newCell.getValue());
-
-                // Get the next line in the file for reading.
-                line = csvFile.readLine();
-
-                // Test to see if the new line is an error line
-                if ((line != null) && !Character.isDigit(line.charAt(0))) {
-                    if (testForCorruptLine(line)) {
-                        error_line = true;
-                        error_count += 1;
-                        line = fixCorruptLine(line);
-                        System.out.println("ERROR: " + line);
-                    }
-                }
-            } catch (Exception e) {
-                // TODO: Add in fix here for matrix cells that
-                // are corrupted in the data values
-                e.printStackTrace();
-                error_line = true;
-                error_count += 1;
-                System.out.println("ERROR: " + line);
-            }
+        while (csvFile.atRow()) {
+            csvFile.readValue(lineEater, 0, 0);
         }
+    }
 
-        if(error_line) {
-            JOptionPane.showMessageDialog(null, 
-                "Error reading file. " + String.valueOf(error_count) + 
-                    " cells could not be read.\nRecovered files have time 99:00:00:000.\nPlease send this file to Datavyu Support for further analysis!",
-                "Error reading file: Corrupted cells",
-                JOptionPane.ERROR_MESSAGE);
+    /**
+     * @param csvFile The csvFile we are currently parsing.
+     *
+     * @return The next line in the file that is not blank, null at the end of
+     * the file.
+     *
+     * @throws IOException If unable to read the file correctly.
+     */
+    private String nextLine(final CSVTokenizer csvFile) throws IOException {
+        String line = csvFile.readLine();
+        while ((line != null) && (line.trim().length() == 0)) {
+            line = csvFile.readLine();
         }
 
         return line;
     }
 
     private boolean testForCorruptLine(String line) {
+        if (line.trim().length() == 0) {
+            return false;
+        }
+
         String[] tokens = line.split("\\(");
         if (tokens.length == 2) {
             return false;
@@ -520,12 +889,6 @@ public final class OpenDatabaseFileC {
         }
     }
 
-    private String fixCorruptLine(String line) {
-        line = "99:00:00:000,99:00:00:000," + line;
-
-        return line;
-    }
-
     /**
      * Parses the predicate definitions from the CSV file.
      *
@@ -537,16 +900,15 @@ public final class OpenDatabaseFileC {
      *
      * @throws IOException If unable to read from the csvFile.
      */
-    private String parseDefinitions(final BufferedReader csvFile,
+    private String parseDefinitions(final CSVTokenizer csvFile,
             final Datastore db)
             throws IOException {
 
         // Keep parsing lines and putting them in the newly formed nominal
         // variable until we get to a line indicating the end of file or a new
         // variable section.
-        String line = csvFile.readLine();
-
-        while ((line != null) && Character.isDigit(line.charAt(0))) {
+        while (csvFile.atRow()) {
+            String line = csvFile.readLine();
 
             /*
              * TODO Parsing predicates.
@@ -562,12 +924,9 @@ public final class OpenDatabaseFileC {
 
              db.addPredVE(pve);
              */
-
-            // Get the next line in the file for reading.
-            line = csvFile.readLine();
         }
 
-        return line;
+        return nextLine(csvFile);
     }
 
     /**
@@ -617,7 +976,7 @@ public final class OpenDatabaseFileC {
      * @throws IOException When we are unable to read from the csvFile.
      * @throws UserWarningException When we are unable to create a new variable.
      */
-    private String parseVariable(final BufferedReader csvFile,
+    private String parseVariable(final CSVTokenizer csvFile,
             final String line,
             final Datastore db)
             throws IOException, UserWarningException {
@@ -638,11 +997,38 @@ public final class OpenDatabaseFileC {
      *
      * @throws UserWarningException When we are unable to create variables.
      */
-    private String parseVariable(final BufferedReader csvFile,
+    private String parseVariable(final CSVTokenizer csvFile,
             final String line,
             final Datastore ds,
             final String version)
             throws IOException, UserWarningException {
+        VariableParser parser = createVariable(line, ds, version);
+
+        if (parser == null) {
+            skipRows(csvFile);
+        } else {
+            parser.insert(parser.parse(csvFile));
+        }
+
+        return nextLine(csvFile);
+    }
+
+    /**
+     * Creates the variable described by a variable header line.
+     *
+     * @param line The header line of the variable.
+     * @param ds The data store we are populating with data from the CSV file.
+     * @param version The version identifier of the CSV file.
+     *
+     * @return The parser for the cells of the new variable, or null if the
+     * variable is not to be loaded.
+     *
+     * @throws UserWarningException When we are unable to create variables.
+     */
+    private VariableParser createVariable(final String line,
+            final Datastore ds,
+            final String version)
+            throws UserWarningException {
         // Determine the variable name and type.
         String[] tokens = line.split("\\(");
         String varName = this.stripEscChars(tokens[0].trim());
@@ -650,8 +1036,10 @@ public final class OpenDatabaseFileC {
         String varComment = "";
         boolean varVisible = true;
 
-        System.out.println(line);
-        System.out.println(tokens.length);
+        if (tokens.length < 2) {
+            LOGGER.error("Variable header has no type: " + line);
+        }
+
         if (version.equals("#4")) {
             String[] varArgs = tokens[1].split(",");
             varType = varArgs[0];
@@ -670,14 +1058,7 @@ public final class OpenDatabaseFileC {
         // between the untyped nature of macshapa and the typed nature of
         // Datavyu.
         if (varName.equals("###QueryVar###")) {
-            String lineEater = csvFile.readLine();
-
-            while ((lineEater != null)
-                    && Character.isDigit(lineEater.charAt(0))) {
-                lineEater = csvFile.readLine();
-            }
-
-            return lineEater;
+            return null;
         }
 
         // Create variable to put cells within.
@@ -687,15 +1068,11 @@ public final class OpenDatabaseFileC {
 
         // Read text variable.
         if (variableType == Argument.Type.TEXT) {
-            return parseEntries(csvFile,
-                    newVar,
-                    new PopulateText());
+            return new VariableParser(newVar, new PopulateText());
 
         } else if (variableType == Argument.Type.NOMINAL) {
             // Read nominal variable.
-            return parseEntries(csvFile,
-                    newVar,
-                    new PopulateNominal());
+            return new VariableParser(newVar, new PopulateNominal());
 
         }/* else if (getVarType(varType)
          == MatrixVocabElement.MatrixType.INTEGER) {
@@ -726,7 +1103,7 @@ public final class OpenDatabaseFileC {
             }
             newVar.setVariableType(newArg);
 
-            return parseMatrixVariable(csvFile, newVar, newArg);
+            return new VariableParser(newVar, newArg);
 
             // Read predicate variable.
         } /*else if (getVarType(varType)
@@ -770,6 +1147,209 @@ public final class OpenDatabaseFileC {
         return null;
     }
 
+    /**
+     * Parses the cell rows of one variable. The rows are either read straight
+     * from the CSV file, or from a copy of them when parsed on another thread.
+     */
+    private final class VariableParser implements Callable<CellRows> {
+
+        /** The variable the cells are for. */
+        private final Variable var;
+
+        /** The matrix template of a matrix variable, null otherwise. */
+        private final Argument arg;
+
+        /** The populator for the values of a text or nominal variable. */
+        private final EntryPopulator populator;
+
+        /** The copied rows of the variable, when parsed on another thread. */
+        private String block;
+
+        /** The number of cells that could not be read. */
+        private int errorCount = 0;
+
+        /**
+         * @param var The text or nominal variable that the cells are for.
+         * @param populator The populator for the values of the cells.
+         */
+        VariableParser(final Variable var, final EntryPopulator populator) {
+            this.var = var;
+            this.arg = null;
+            this.populator = populator;
+        }
+
+        /**
+         * @param var The matrix variable that the cells are for.
+         * @param arg The matrix template of the variable.
+         */
+        VariableParser(final Variable var, final Argument arg) {
+            this.var = var;
+            this.arg = arg;
+            this.populator = null;
+        }
+
+        /**
+         * @return True if the cells are for a matrix variable.
+         */
+        boolean isMatrix() {
+            return arg != null;
+        }
+
+        /**
+         * @param newBlock The copied rows of the variable to parse on call().
+         */
+        void setBlock(final String newBlock) {
+            block = newBlock;
+        }
+
+        @Override
+        public CellRows call() throws IOException {
+            return parse(new CSVTokenizer(new StringReader(block)));
+        }
+
+        /**
+         * Parses the cell rows of the variable.
+         *
+         * @param csvFile The csvFile we are currently parsing.
+         *
+         * @return The parsed rows.
+         *
+         * @throws IOException If unable to read the file correctly.
+         */
+        CellRows parse(final CSVTokenizer csvFile) throws IOException {
+            if (isMatrix()) {
+                return parseMatrixVariable(csvFile);
+            }
+
+            return parseEntries(csvFile);
+        }
+
+        /**
+         * Creates the cells of the variable and lets the user know about
+         * any cells that could not be read.
+         *
+         * @param rows The parsed rows of the variable.
+         */
+        void insert(final CellRows rows) {
+            // Create all the cells for the variable in one batch.
+            insertCells(var, rows);
+
+            if (errorCount > 0) {
+                JOptionPane.showMessageDialog(null,
+                    "Error reading file. " + String.valueOf(errorCount) +
+                        " cells could not be read.\nRecovered files have time 99:00:00:000.\nPlease send this file to Datavyu Support for further analysis!",
+                    "Error reading file: Corrupted cells",
+                    JOptionPane.ERROR_MESSAGE);
+            }
+        }
+
+        /**
+         * Method to invoke when we encounter a block of text in the CSV file
+         * that is the contents of a matrix variable.
+         *
+         * @param csvFile The csvFile we are currently parsing.
+         *
+         * @return The parsed rows.
+         *
+         * @throws IOException If unable to read the file correctly.
+         */
+        private CellRows parseMatrixVariable(final CSVTokenizer csvFile)
+                throws IOException {
+            CSVTokenizer.Row row = new CSVTokenizer.Row();
+            CellRows rows = new CellRows();
+
+            while (csvFile.atRow()) {
+                csvFile.readRow(row);
+
+                // Set the onset and offset from tokens in the line.
+                rows.add(row.getOnset(),
+                         row.getOffset(),
+                         parseFormalArgs(row, arg));
+            }
+
+            return rows;
+        }
+
+        /**
+         * Method to invoke when we encounter a block of text in the CSV file
+         * that is the contents of a text or nominal variable.
+         *
+         * @param csvFile The csvFile we are currently parsing.
+         *
+         * @return The parsed rows.
+         *
+         * @throws IOException If unable to read the file correctly.
+         */
+        private CellRows parseEntries(final CSVTokenizer csvFile)
+                throws IOException {
+
+            // Keep parsing lines and putting them in the newly formed nominal
+            // variable until we get to a line indicating the end of file or a
+            // new variable section.
+            CSVTokenizer.Row row = new CSVTokenizer.Row();
+            CellRows rows = new CellRows();
+
+            while (csvFile.atRow()) {
+                try {
+                    // Set the onset and offset from tokens in the line.
+                    csvFile.readRow(row);
+                    rows.add(row.getOnset(),
+                             row.getOffset(),
+                             new String[] {populator.populate(row)});
+                } catch (NumberFormatException e) {
+                    // TODO: Add in fix here for matrix cells that
+                    // are corrupted in the data values
+                    errorCount += 1;
+                    LOGGER.error("Unable to read cell from CSV file", e);
+                }
+
+                // Test to see if the new lines are error lines
+                String line = csvFile.peekLine();
+                while ((line != null) && !csvFile.atRow() && testForCorruptLine(line)) {
+                    errorCount += 1;
+                    LOGGER.error("Corrupt line in CSV file: " + line);
+
+                    csvFile.readValue(row, CORRUPT_TIME, CORRUPT_TIME);
+                    rows.add(row.getOnset(),
+                             row.getOffset(),
+                             new String[] {populator.populate(row)});
+                    line = csvFile.peekLine();
+                }
+            }
+
+            return rows;
+        }
+    }
+
+    /**
+     * The cells of a variable, left in the memory mapped cache of a binary
+     * database until they are first needed.
+     */
+    private final class MappedCells implements CellSource {
+
+        /** The bytes holding the cells of the variable. */
+        private final ByteBuffer buffer;
+
+        /** The arguments of the variable. */
+        private final Argument[] args;
+
+        /**
+         * Constructor.
+         *
+         * @param buffer The bytes holding the cells of the variable.
+         * @param args The arguments of the variable.
+         */
+        MappedCells(final ByteBuffer buffer, final Argument[] args) {
+            this.buffer = buffer;
+            this.args = args;
+        }
+
+        @Override
+        public CellRows read() throws IOException {
+            return readCells(new DataInputStream(new ByteBufferInputStream(buffer)), args);
+        }
+    }
+
     /**
      * A populator for creating data values that can be used to populate
      * database spreadsheet cells.
@@ -777,12 +1357,13 @@ public final class OpenDatabaseFileC {
     private abstract class EntryPopulator {
 
         /**
-         * Populates a DataValue from the supplied array of tokens.
+         * Populates a DataValue from the supplied row.
          *
-         * @param tokens The tokens to use when building a DataValue.
-         * @param destValue That this populator is filling with content.
+         * @param row The row to use when building a DataValue.
+         *
+         * @return The content for the value, null if the value is empty.
          */
-        abstract void populate(final String[] tokens, final Value destValue);
+        abstract String populate(final CSVTokenizer.Row row);
     }
 
     /**
@@ -791,13 +1372,14 @@ public final class OpenDatabaseFileC {
     private class PopulateInteger extends EntryPopulator {
 
         /**
-         * Populates a DataValue from the supplied array of tokens.
+         * Populates a DataValue from the supplied row.
+         *
+         * @param row The row to use when building a DataValue.
          *
-         * @param tokens The tokens to use when building a DataValue.
-         * @param destValue That this populator is filling with content.
+         * @return The content for the value, null if the value is empty.
          */
         @Override
-        void populate(final String[] tokens, final Value destValue) {
+        String populate(final CSVTokenizer.Row row) {
             /*
              IntDataValue idv = new IntDataValue(getDatabase());
 
@@ -809,6 +1391,7 @@ public final class OpenDatabaseFileC {
              return idv;
              */
             // TODO: Support integer values.
+            return null;
         }
     }
 
@@ -818,13 +1401,14 @@ public final class OpenDatabaseFileC {
     private class PopulateFloat extends EntryPopulator {
 
         /**
-         * Populates a DataValue from the supplied array of tokens.
+         * Populates a DataValue from the supplied row.
          *
-         * @param tokens The tokens to use when building a DataValue.
-         * @param destValue That this populator is filling with content.
+         * @param row The row to use when building a DataValue.
+         *
+         * @return The content for the value, null if the value is empty.
          */
         @Override
-        void populate(final String[] tokens, final Value destValue) {
+        String populate(final CSVTokenizer.Row row) {
             /*
              FloatDataValue fdv = new FloatDataValue(getDatabase());
 
@@ -836,6 +1420,7 @@ public final class OpenDatabaseFileC {
              return fdv;
              */
             // TODO - Implement.
+            return null;
         }
     }
 
@@ -845,17 +1430,20 @@ public final class OpenDatabaseFileC {
     private class PopulateNominal extends EntryPopulator {
 
         /**
-         * Populates a DataValue from the supplied array of tokens.
+         * Populates a DataValue from the supplied row.
          *
-         * @param tokens The tokens to use when building a DataValue.
-         * @param destValue That this populator is filling with content.
+         * @param row The row to use when building a DataValue.
+         *
+         * @return The content for the value, null if the value is empty.
          */
         @Override
-        void populate(final String[] tokens, final Value destValue) {
+        String populate(final CSVTokenizer.Row row) {
             // BugzID:722 - Only populate the value if we have one from the file
-            if (tokens.length > DATA_INDEX) {
-                destValue.set(stripEscChars(tokens[DATA_INDEX]));
+            if (row.hasValue()) {
+                return row.getArgument(0);
             }
+
+            return null;
         }
     }
 
@@ -865,27 +1453,20 @@ public final class OpenDatabaseFileC {
     private class PopulateText extends EntryPopulator {
 
         /**
-         * Populates a DataValue from the supplied array of tokens.
+         * Populates a DataValue from the supplied row.
          *
-         * @param tokens The tokens to use when building a DataValue.
-         * @param destValue That this populator is filling with content.
+         * @param row The row to use when building a DataValue.
+         *
+         * @return The content for the value, null if the value is empty.
          */
         @Override
-        void populate(final String[] tokens, final Value destValue) {
+        String populate(final CSVTokenizer.Row row) {
             // BugzID:722 - Only populate the value if we have one from the file
-            if (tokens.length > DATA_INDEX) {
-                String text = "";
-
-                for (int i = DATA_INDEX; i < tokens.length; i++) {
-                    text = text.concat(tokens[i]);
-
-                    if (i < (tokens.length - 1)) {
-                        text = text.concat(",");
-                    }
-                }
-
-                destValue.set(stripEscChars(text));
+            if (row.hasValue()) {
+                return row.getValue();
             }
+
+            return null;
         }
     }
 }
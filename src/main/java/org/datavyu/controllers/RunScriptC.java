@@ -44,18 +44,24 @@ import org.datavyu.views.DatavyuView;
 
 import com.usermetrix.jclient.UserMetrix;
 import java.io.BufferedWriter;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.OutputStream;
-import java.util.HashMap;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import javax.swing.SwingWorker;
 import org.datavyu.models.db.Argument;
 import org.datavyu.models.db.Cell;
 import org.datavyu.models.db.Datastore;
-import org.datavyu.models.db.MatrixValue;
-import org.datavyu.models.db.Value;
+import org.datavyu.models.db.StreamsCells;
 import org.datavyu.models.db.Variable;
 import rcaller.RCaller;
 import rcaller.RCode;
@@ -248,49 +254,26 @@ public final class RunScriptC extends SwingWorker<Object, String> {
             }
             caller.redirectROutputToStream(sIn);
             
-            // Initialize our code buffer and database string representation
+            // Write the database out to temporary files.
             RCode code = new RCode();
-            HashMap db = convertDbToColStrings();
-            HashMap<String, File> temp_files = new HashMap<String, File>();
-            
-            // Write the database out to tempory files
-            Iterator it = db.entrySet().iterator();
-            while (it.hasNext()) {
-                Map.Entry pairs = (Map.Entry)it.next();
-                
-                // Now write this out to a temporary file
-                File outfile = new File(System.getProperty("java.io.tmpdir"), (String)pairs.getKey());
-                try {
-                    BufferedWriter output = new BufferedWriter(new FileWriter(outfile));
-                    output.write((String)pairs.getValue());
-                    output.close();
-                    
-                    temp_files.put((String)pairs.getKey(), outfile);
-                }
-                catch(Exception e) {
-                    e.printStackTrace();
-                }
-                                
-                it.remove(); // avoids a ConcurrentModificationException
+            Map<String, File> tempFiles;
+            try {
+                tempFiles = writeVariablesForR();
+            } catch (IOException e) {
+                consoleWriter.println("Unable to write the spreadsheet for R: " + e.getMessage());
+                consoleWriter.flush();
+                LOGGER.error("Unable to write variables for R: ", e);
+                return;
             }
-            
+
             // Create the R code to read in the temporary db files into a structure
             // called db
             code.addRCode("db <- list()");
-            try {
-                // Load each of the temporary files created above into R
-                it = temp_files.entrySet().iterator();
-                while (it.hasNext()) {
-                    Map.Entry pairs = (Map.Entry)it.next();
-                    
-                    String load = "db[[\"" + ((String)pairs.getKey()).toLowerCase() + "\"]] <- read.csv(\"" + ((File)pairs.getValue()).getPath() + "\",header=TRUE, sep=',')";
-                    code.addRCode(load);
-
-                    it.remove(); // avoids a ConcurrentModificationException
-                }
-            }
-            catch(Exception e) {
-                e.printStackTrace();
+            for (Map.Entry<String, File> file : tempFiles.entrySet()) {
+                String load = "db[[\"" + file.getKey().toLowerCase() + "\"]] <- read.csv(\""
+                        + file.getValue().getPath().replace('\\', '/')
+                        + "\",header=TRUE, sep=',', fileEncoding=\"UTF-8\")";
+                code.addRCode(load);
             }
             
             // Set up plotting. If something gets plotted, display it.
@@ -308,6 +291,9 @@ public final class RunScriptC extends SwingWorker<Object, String> {
             catch(Exception e) {
                 e.printStackTrace();
             }
+            finally {
+                deleteFiles(tempFiles.values());
+            }
     }
     
     // TODO
@@ -315,47 +301,127 @@ public final class RunScriptC extends SwingWorker<Object, String> {
         
     }
     
-    /** Convert the Datavyu database to a csv file per column.
-        This allows for easy reading into R. */
-    private HashMap<String, String> convertDbToColStrings() {
+    /**
+     * Writes each variable of the database to its own temporary CSV file, for
+     * reading into R. Each variable is read once, in temporal order, and
+     * streamed straight to its file. The files are written concurrently, see
+     * {@link ExportDatabaseFileC#THREADS_PROPERTY}.
+     *
+     * @return The temporary file of each variable, keyed by the name of the
+     * variable.
+     *
+     * @throws IOException If unable to write the files, none are left behind.
+     */
+    private Map<String, File> writeVariablesForR() throws IOException {
         Datastore db = Datavyu.getProjectController().getDB();
-        HashMap<String, String> str_db = new HashMap<String, String>();
-
-        String str_var;
-        for(Variable v : db.getAllVariables()) {
-            str_var = "ordinal,onset,offset";
-            if(v.getVariableType().type == Argument.Type.MATRIX) {
-                for(Argument a : v.getVariableType().childArguments) {
-                    str_var += "," + a.name;
-                }
-            }
-            else {
-                str_var += ",arg";
-            }
-            str_var += "\n";
-            for(int i = 0; i < v.getCellsTemporally().size(); i++) {
-                Cell c = v.getCellsTemporally().get(i);
-                
-                String row = String.format("%d,%d,%d", i+1, c.getOnset(), c.getOffset());
-                if(v.getVariableType().type == Argument.Type.MATRIX) {
-                    for(Value val : ((MatrixValue)c.getValue()).getArguments()) {
-                        row += ",";
-                        if(!val.isEmpty())
-                            row += val.toString();
+        List<Variable> variables = db.getAllVariables();
+        Map<String, File> files = new LinkedHashMap<String, File>();
+        List<Future<Void>> writes = new ArrayList<Future<Void>>();
+        ExecutorService executor = ExportDatabaseFileC.newExportExecutor(variables.size());
+        boolean written = false;
+
+        try {
+            for (Variable v : variables) {
+                final File file = File.createTempFile("datavyu-", ".csv");
+                file.deleteOnExit();
+                files.put(v.getName(), file);
+
+                final List<String> argNames = new ArrayList<String>();
+                Argument type = v.getVariableType();
+                if (type.type == Argument.Type.MATRIX) {
+                    for (Argument a : type.childArguments) {
+                        argNames.add(a.name);
                     }
+                } else {
+                    argNames.add("arg");
+                }
+
+                // Variables that stream their cells are read as they are
+                // written, any others are loaded here.
+                final Iterator<Cell> cells;
+                if (v instanceof StreamsCells) {
+                    cells = ((StreamsCells) v).iterateTemporally();
+                } else {
+                    cells = v.getCellsTemporally().iterator();
                 }
-                else {
-                    row += ",";
-                    if(!c.getValue().isEmpty()) {
-                        row += c.getValue().toString();
+
+                writes.add(ExportDatabaseFileC.submit(executor, new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        writeVariableForR(cells, argNames, file);
+                        return null;
                     }
+                }));
+            }
+
+            for (Future<Void> write : writes) {
+                ExportDatabaseFileC.getResult(write);
+            }
+            written = true;
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            if (!written) {
+                deleteFiles(files.values());
+            }
+        }
+
+        return files;
+    }
+
+    /**
+     * Writes the cells of a variable to a CSV file, a row per cell holding
+     * its ordinal, onset, offset and the value of each argument.
+     *
+     * @param cells The cells of the variable, in temporal order.
+     * @param argNames The names of the arguments of the variable.
+     * @param file The file to write to.
+     *
+     * @throws IOException If unable to write the file.
+     */
+    static void writeVariableForR(final Iterator<Cell> cells,
+                                  final List<String> argNames,
+                                  final File file) throws IOException {
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+
+        try {
+            out.write("ordinal,onset,offset");
+            for (String name : argNames) {
+                out.write(',');
+                out.write(ExportDatabaseFileC.quoteCSV(name));
+            }
+            out.write('\n');
+
+            for (int i = 1; cells.hasNext(); i++) {
+                Cell c = cells.next();
+                out.write(Integer.toString(i));
+                out.write(',');
+                out.write(Long.toString(c.getOnset()));
+                out.write(',');
+                out.write(Long.toString(c.getOffset()));
+                for (String arg : ExportDatabaseFileC.getArguments(c, argNames.size())) {
+                    out.write(',');
+                    out.write(ExportDatabaseFileC.quoteCSV(arg));
                 }
-                str_var += row + "\n";
+                out.write('\n');
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Deletes temporary files.
+     *
+     * @param files The files to delete.
+     */
+    private static void deleteFiles(final Collection<File> files) {
+        for (File file : files) {
+            if (!file.delete() && file.exists()) {
+                LOGGER.error("Unable to delete " + file);
             }
-            str_db.put(v.getName(), str_var);
         }
-        
-        return str_db;
     }
     
     @Override protected void done() {
@@ -16,20 +16,28 @@ package org.datavyu.controllers;
 
 import com.usermetrix.jclient.Logger;
 import com.usermetrix.jclient.UserMetrix;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
 import org.jdesktop.application.Application;
 import org.jdesktop.application.ResourceMap;
 import org.datavyu.Datavyu;
 import org.datavyu.RecentFiles;
+import org.datavyu.models.db.BufferedWrites;
 import org.datavyu.models.db.Datastore;
+import org.datavyu.models.db.ProgressListener;
 import org.datavyu.models.db.UserWarningException;
 import org.datavyu.models.project.Project;
 import org.datavyu.models.project.ViewerSetting;
+import org.datavyu.util.ParallelZipWriter;
 
 /**
  * Master controller for handling project and database file saving logic.
@@ -39,6 +47,33 @@ public final class SaveC {
     /** The logger for this class. */
     private static Logger LOGGER = UserMetrix.getLogger(SaveC.class);
 
+    /** The extension added to the name of a file while it is being written. */
+    private static final String PART_EXTENSION = ".part";
+
+    /** The extension added to the name of a file while it is replaced. */
+    private static final String BACKUP_EXTENSION = ".bak";
+
+    /** The compression level of project archives. */
+    private static volatile int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+    /** The journal of each archive saved in full, by archive file. */
+    private static final Map<File, ChangeJournal> JOURNALS =
+        Collections.synchronizedMap(new HashMap<File, ChangeJournal>());
+
+    /**
+     * Sets the compression level of the project archives saved from now on.
+     *
+     * @param level The compression level, from 0 (none) to 9 (smallest), or
+     * Deflater.DEFAULT_COMPRESSION.
+     */
+    public static void setCompressionLevel(final int level) {
+        if ((level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+                && level != Deflater.DEFAULT_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        }
+        compressionLevel = level;
+    }
+
     /**
      * Saves only a database to disk.
      *
@@ -80,6 +115,7 @@ public final class SaveC {
                              boolean remember)
     throws UserWarningException {
         LOGGER.event("saving database");
+        flush(datastore);
 
         SaveDatabaseFileC saveDBC = new SaveDatabaseFileC();
         saveDBC.saveDatabase(databaseFile, datastore);
@@ -107,7 +143,8 @@ public final class SaveC {
     }
 
     /**
-     * Saves an entire project, including database to disk.
+     * Saves an entire project, including database to disk. This compacts
+     * away any journal of changes held for the archive.
      *
      * @param projectFile The destination to save the project too.
      * @param project The project to save to disk.
@@ -121,51 +158,426 @@ public final class SaveC {
                             final Project project,
                             final Datastore datastore,
                             boolean remember) throws UserWarningException {
+        snapshotProject(projectFile, project, datastore).write(null);
+
+        if (remember) {
+            RecentFiles.rememberProject(projectFile);
+        }
+    }
+
+    /**
+     * Takes a snapshot of the changes made to a project since it was last
+     * saved. If the project was last saved in full to the same archive during
+     * this session, only the changed variables are appended to the journal of
+     * the archive. Otherwise the whole project is saved. Autosaves are
+     * written this way, explicit saves write the whole project.
+     *
+     * @param projectFile The destination to save the project too.
+     * @param project The project to save to disk.
+     * @param datastore The datastore to save to disk.
+     *
+     * @return The snapshot to write to disk.
+     *
+     * @throws UserWarningException If unable to take the snapshot.
+     */
+    public Snapshot snapshotChanges(final File projectFile,
+                                    final Project project,
+                                    final Datastore datastore)
+    throws UserWarningException {
+        ChangeJournal journal = JOURNALS.get(projectFile.getAbsoluteFile());
+
+        if (journal == null || !journal.canAppend(datastore)) {
+            return snapshotProject(projectFile, project, datastore);
+        }
 
         try {
-            LOGGER.event("save project");
+            LOGGER.event("save project changes");
+            flush(datastore);
+
+            return new JournalSnapshot(projectFile, journal, journal.prepare(project, datastore));
+        } catch (IOException e) {
+            throw unableToSave(projectFile, e);
+        }
+    }
+
+    /**
+     * Takes a snapshot of an entire project, as saved by {@link #saveProject}.
+     * The cells of the database are copied when the snapshot is taken, and
+     * serialized when it is written.
+     *
+     * @param projectFile The destination to save the project too.
+     * @param project The project to save to disk.
+     * @param datastore The datastore to save to disk.
+     *
+     * @return The snapshot to write to disk.
+     *
+     * @throws UserWarningException If unable to take the snapshot.
+     */
+    public Snapshot snapshotProject(final File projectFile,
+                                    final Project project,
+                                    final Datastore datastore)
+    throws UserWarningException {
 
-            FileOutputStream fos = new FileOutputStream(projectFile);
-            ZipOutputStream zos = new ZipOutputStream(fos);
+        try {
+            LOGGER.event("save project");
+            flush(datastore);
 
-            ZipEntry projectEntry = new ZipEntry("project");
-            zos.putNextEntry(projectEntry);
-            new SaveProjectFileC().save(zos, project);
-            zos.closeEntry();
+            Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            new SaveProjectFileC().save(bytes, project);
+            entries.put("project", bytes.toByteArray());
 
-            ZipEntry dbEntry = new ZipEntry("db");
-            zos.putNextEntry(dbEntry);
-            new SaveDatabaseFileC().saveAsCSV(zos, datastore);
-            zos.closeEntry();
+            // Keeps the place of the entry, filled in when written.
+            entries.put("db", null);
+            SaveDatabaseFileC.DatabaseCopy database = new SaveDatabaseFileC().copy(datastore, false);
 
             // BugzID:1806
             for (ViewerSetting vs : project.getViewerSettings()) {
-                ZipEntry vsEntry = new ZipEntry(vs.getSettingsId());
-                zos.putNextEntry(vsEntry);
-                vs.writeSettings(zos);
+                bytes = new ByteArrayOutputStream();
+                vs.writeSettings(bytes);
+                entries.put(vs.getSettingsId(), bytes.toByteArray());
             }
 
-            zos.finish();
-            zos.close();
+            ChangeJournal journal = new ChangeJournal(projectFile);
+            journal.track(datastore);
 
-            fos.flush();
-            fos.close();
+            return new ArchiveSnapshot(projectFile, entries, journal, database);
+        } catch (IOException e) {
+            throw unableToSave(projectFile, e);
+        }
+    }
 
-            if (remember) {
-                RecentFiles.rememberProject(projectFile);
+    /**
+     * Takes a snapshot of a database, to be saved as a CSV file. The cells of
+     * the database are copied when the snapshot is taken, and serialized when
+     * it is written.
+     *
+     * @param databaseFile The location to save the database too.
+     * @param datastore The datastore to save to disk.
+     *
+     * @return The snapshot to write to disk.
+     *
+     * @throws UserWarningException If unable to take the snapshot.
+     */
+    public Snapshot snapshotDatabase(final File databaseFile,
+                                     final Datastore datastore)
+    throws UserWarningException {
+        LOGGER.event("saving database");
+        flush(datastore);
+
+        return new FileSnapshot(databaseFile, new SaveDatabaseFileC().copy(datastore, true));
+    }
+
+    /**
+     * Serializes a copy of a database while writing a snapshot.
+     *
+     * @param database The copy of the database to serialize.
+     *
+     * @return The serialized database.
+     *
+     * @throws IOException If unable to serialize the database.
+     */
+    private static byte[] serialize(final SaveDatabaseFileC.DatabaseCopy database)
+    throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new SaveDatabaseFileC().save(bytes, database);
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param file A file about to be saved.
+     *
+     * @return The file that the new contents are written to, before replacing
+     * the file itself.
+     */
+    static File getPartFile(final File file) {
+        return new File(file.getPath() + PART_EXTENSION);
+    }
+
+    /**
+     * @param file A file about to be replaced.
+     *
+     * @return The file that the previous contents are moved to, until the new
+     * contents are in place.
+     */
+    static File getBackupFile(final File file) {
+        return new File(file.getPath() + BACKUP_EXTENSION);
+    }
+
+    /**
+     * Replaces a file with the one written in its place. The rename is atomic
+     * where the platform allows it. Elsewhere the previous file is moved aside
+     * until the new one is in place, so that there is always one of them to
+     * recover with {@link #recoverBackup}.
+     *
+     * @param partFile The newly written file.
+     * @param file The file to replace.
+     *
+     * @throws IOException If unable to replace the file.
+     */
+    private static void replace(final File partFile, final File file) throws IOException {
+        if (partFile.renameTo(file)) {
+            return;
+        }
+
+        // Windows won't rename over an existing file.
+        File backupFile = getBackupFile(file);
+        backupFile.delete();
+        if (file.exists() && !file.renameTo(backupFile)) {
+            throw new IOException("Unable to rename " + file + " to " + backupFile);
+        }
+
+        if (!partFile.renameTo(file)) {
+            backupFile.renameTo(file);
+            throw new IOException("Unable to rename " + partFile + " to " + file);
+        }
+        backupFile.delete();
+    }
+
+    /**
+     * Puts back a file that was moved aside while being replaced, if the
+     * replacement never took its place.
+     *
+     * @param backupFile A file with the extension of the files that are moved
+     * aside.
+     *
+     * @return The file that was moved aside, or null if backupFile is not one
+     * or is no longer needed.
+     */
+    public static File recoverBackup(final File backupFile) {
+        String path = backupFile.getPath();
+        if (!path.endsWith(BACKUP_EXTENSION)) {
+            return null;
+        }
+
+        File file = new File(path.substring(0, path.length() - BACKUP_EXTENSION.length()));
+        if (file.exists() || !backupFile.renameTo(file)) {
+            backupFile.delete();
+            return null;
+        }
+
+        return file;
+    }
+
+    /**
+     * Notifies a listener of progress, if there is one.
+     *
+     * @param listener The listener to notify, null if none.
+     * @param file The file being saved.
+     * @param done The number of steps that are complete.
+     * @param total The total number of steps.
+     */
+    private static void progress(final ProgressListener listener,
+                                 final File file,
+                                 final int done,
+                                 final int total) {
+        if (listener != null) {
+            listener.progressChanged("Saving " + file.getName(), done, total);
+        }
+    }
+
+    /**
+     * @param file The file that could not be saved.
+     * @param e The reason it could not be saved.
+     *
+     * @return The warning to show the user.
+     */
+    private static UserWarningException unableToSave(final File file, final IOException e) {
+        ResourceMap rMap = Application.getInstance(Datavyu.class)
+                                      .getContext().getResourceMap(Datavyu.class);
+        e.printStackTrace();
+
+        return new UserWarningException(rMap.getString("UnableToSave.message", file), e);
+    }
+
+    /**
+     * Makes sure that all buffered changes have reached the datastore before
+     * it is read back for saving.
+     *
+     * @param datastore The datastore about to be saved.
+     */
+    private void flush(final Datastore datastore) {
+        if (datastore instanceof BufferedWrites) {
+            ((BufferedWrites) datastore).flush();
+        }
+    }
+
+    /**
+     * A copy of a project or database taken for saving. Snapshots must be
+     * taken on the thread that changes the datastore, but can be written to
+     * disk from any thread while the datastore keeps changing. Each snapshot
+     * must be written before the next one of the same file is taken.
+     */
+    public abstract static class Snapshot {
+
+        /** The file the snapshot is saved to. */
+        protected final File file;
+
+        /**
+         * Constructor.
+         *
+         * @param file The file the snapshot is saved to.
+         */
+        Snapshot(final File file) {
+            this.file = file;
+        }
+
+        /**
+         * Writes the snapshot to disk.
+         *
+         * @param listener The listener to notify of progress, null if none.
+         *
+         * @throws UserWarningException If unable to write the snapshot.
+         */
+        public final void write(final ProgressListener listener)
+        throws UserWarningException {
+            try {
+                writeTo(listener);
+            } catch (IOException e) {
+                throw unableToSave(file, e);
             }
-            
-        } catch (FileNotFoundException e) {
-            ResourceMap rMap = Application.getInstance(Datavyu.class)
-                                          .getContext().getResourceMap(Datavyu.class);
-            e.printStackTrace();
-            throw new UserWarningException(rMap.getString("UnableToSave.message", projectFile), e);
-        } catch (IOException e) {
-            ResourceMap rMap = Application.getInstance(Datavyu.class)
-                                          .getContext().getResourceMap(Datavyu.class);
-            e.printStackTrace();
-            throw new UserWarningException(rMap.getString("UnableToSave.message", projectFile), e);
+        }
+
+        /**
+         * Writes the snapshot to disk.
+         *
+         * @param listener The listener to notify of progress, null if none.
+         *
+         * @throws IOException If unable to write the snapshot.
+         */
+        abstract void writeTo(final ProgressListener listener) throws IOException;
+    }
+
+    /**
+     * A snapshot of an entire project, written as a new archive.
+     */
+    private static final class ArchiveSnapshot extends Snapshot {
+
+        /** The contents of each entry of the archive, in order, by name. */
+        private final Map<String, byte[]> entries;
+
+        /** The journal to keep for the archive once it is written. */
+        private final ChangeJournal journal;
+
+        /** The copy of the database, serialized as the db entry. */
+        private final SaveDatabaseFileC.DatabaseCopy database;
+
+        /**
+         * Constructor.
+         *
+         * @param file The archive to save.
+         * @param entries The contents of each entry of the archive, with a
+         * place held for the db entry.
+         * @param journal The journal to keep for the archive once it is written.
+         * @param database The copy of the database to serialize as the db
+         * entry.
+         */
+        ArchiveSnapshot(final File file,
+                        final Map<String, byte[]> entries,
+                        final ChangeJournal journal,
+                        final SaveDatabaseFileC.DatabaseCopy database) {
+            super(file);
+            this.entries = entries;
+            this.journal = journal;
+            this.database = database;
+        }
+
+        @Override
+        void writeTo(final ProgressListener listener) throws IOException {
+            progress(listener, file, 0, 1);
+            entries.put("db", serialize(database));
+
+            File partFile = getPartFile(file);
+            FileOutputStream fos = new FileOutputStream(partFile);
+
+            try {
+                OutputStream out = new BufferedOutputStream(fos);
+                ParallelZipWriter.write(out, entries, compressionLevel);
+                out.flush();
+                fos.getFD().sync();
+            } finally {
+                fos.close();
+            }
+
+            replace(partFile, file);
+            journal.checkpoint();
+            JOURNALS.put(file.getAbsoluteFile(), journal);
+            progress(listener, file, 1, 1);
+        }
+    }
+
+    /**
+     * A snapshot of the changes to a project, appended to its journal.
+     */
+    private static final class JournalSnapshot extends Snapshot {
+
+        /** The journal of the archive. */
+        private final ChangeJournal journal;
+
+        /** The record of the changes. */
+        private final ChangeJournal.Record record;
+
+        /**
+         * Constructor.
+         *
+         * @param file The archive to save the changes of.
+         * @param journal The journal of the archive.
+         * @param record The record of the changes.
+         */
+        JournalSnapshot(final File file,
+                        final ChangeJournal journal,
+                        final ChangeJournal.Record record) {
+            super(file);
+            this.journal = journal;
+            this.record = record;
+        }
+
+        @Override
+        void writeTo(final ProgressListener listener) throws IOException {
+            progress(listener, file, 0, 1);
+            journal.append(record);
+            progress(listener, file, 1, 1);
+        }
+    }
+
+    /**
+     * A snapshot of the contents of a single file.
+     */
+    private static final class FileSnapshot extends Snapshot {
+
+        /** The copy of the database, serialized as the file. */
+        private final SaveDatabaseFileC.DatabaseCopy database;
+
+        /**
+         * Constructor.
+         *
+         * @param file The file to save.
+         * @param database The copy of the database to serialize as the file.
+         */
+        FileSnapshot(final File file, final SaveDatabaseFileC.DatabaseCopy database) {
+            super(file);
+            this.database = database;
+        }
+
+        @Override
+        void writeTo(final ProgressListener listener) throws IOException {
+            progress(listener, file, 0, 1);
+            byte[] bytes = serialize(database);
+
+            File partFile = getPartFile(file);
+            FileOutputStream fos = new FileOutputStream(partFile);
+
+            try {
+                fos.write(bytes);
+                fos.flush();
+                fos.getFD().sync();
+            } finally {
+                fos.close();
+            }
+
+            replace(partFile, file);
+            progress(listener, file, 1, 1);
         }
     }
-    
 }
@@ -17,15 +17,25 @@ package org.datavyu.controllers;
 import com.usermetrix.jclient.Logger;
 import com.usermetrix.jclient.UserMetrix;
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import org.jdesktop.application.Application;
 import org.jdesktop.application.ResourceMap;
 import org.datavyu.Datavyu;
 import org.datavyu.models.db.Argument;
 import org.datavyu.models.db.Cell;
+import org.datavyu.models.db.CellRows;
 import org.datavyu.models.db.Datastore;
+import org.datavyu.models.db.MatrixValue;
 import org.datavyu.models.db.UserWarningException;
+import org.datavyu.models.db.Value;
 import org.datavyu.models.db.Variable;
+import org.datavyu.util.BinaryCodec;
 import org.datavyu.util.StringUtils;
+import org.datavyu.util.TimestampCodec;
 
 
 /**
@@ -36,6 +46,24 @@ public final class SaveDatabaseFileC {
     /** The logger for this class. */
     private static Logger LOGGER = UserMetrix.getLogger(SaveDatabaseFileC.class);
 
+    /** The number of characters to buffer before writing them out. */
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    /** The line separator written after each line, as println would. */
+    private static final String NEW_LINE = System.getProperty("line.separator");
+
+    /**
+     * The system property that picks the format of databases saved within
+     * projects, set it to "csv" to always save them as CSV.
+     */
+    public static final String FORMAT_PROPERTY = "datavyu.db.format";
+
+    /** The bytes that a database saved in the binary format starts with. */
+    public static final byte[] BINARY_MAGIC = {'D', 'V', 'D', 'B'};
+
+    /** The version of the binary format that is written. */
+    public static final int BINARY_VERSION = 2;
+
     /**
      * Saves the database to the specified destination, if the file ends with
      * .csv, the database is saved in a CSV format.
@@ -95,9 +123,381 @@ public final class SaveDatabaseFileC {
     throws UserWarningException {
         LOGGER.event("save database as CSV to stream");
 
+        try {
+            Writer out = new BufferedWriter(new OutputStreamWriter(outStream), BUFFER_SIZE);
+            StringBuilder line = new StringBuilder();
+            char[] chars = writeCSVHeader(out);
+            for (Variable variable : ds.getAllVariables()) {
+                chars = writeCSV(out, copy(variable, true), line, chars);
+            }
+
+            // The caller is responsible for closing the stream.
+            out.flush();
+        } catch (IOException ie) {
+            throw new UserWarningException("Unable to save the database.", ie);
+        }
+    }
+
+    /**
+     * Serialize the database to the specified stream, in the binary format
+     * unless it holds something that format can't represent or the CSV format
+     * has been asked for through FORMAT_PROPERTY.
+     *
+     * @param outStream The stream to use when serializing.
+     * @param ds The datastore to save.
+     *
+     * @throws UserWarningException When unable to save the database.
+     */
+    public void save(final OutputStream outStream, final Datastore ds)
+    throws UserWarningException {
+        if ("csv".equalsIgnoreCase(System.getProperty(FORMAT_PROPERTY))
+                || !canSaveAsBinary(ds)) {
+            saveAsCSV(outStream, ds);
+        } else {
+            saveAsBinary(outStream, ds);
+        }
+    }
+
+    /**
+     * Copies a database, to be saved later by {@link #save(OutputStream,
+     * DatabaseCopy)}. The copy is taken on the thread that changes the
+     * datastore, and can then be saved from any thread while the datastore
+     * keeps changing.
+     *
+     * @param ds The datastore to copy.
+     * @param asCSV True to save the copy as CSV, false to save it in the
+     * format picked by {@link #save(OutputStream, Datastore)}.
+     *
+     * @return The copy of the database.
+     */
+    DatabaseCopy copy(final Datastore ds, final boolean asCSV) {
+        boolean csv = asCSV
+                || "csv".equalsIgnoreCase(System.getProperty(FORMAT_PROPERTY))
+                || !canSaveAsBinary(ds);
+
+        List<VariableCopy> variables = new ArrayList<VariableCopy>();
+        for (Variable variable : ds.getAllVariables()) {
+            variables.add(copy(variable, csv));
+        }
+
+        return new DatabaseCopy(variables, csv);
+    }
+
+    /**
+     * Serialize a copy of a database to the specified stream.
+     *
+     * @param outStream The stream to use when serializing.
+     * @param copy The copy of the database to save.
+     *
+     * @throws IOException If unable to write to the stream.
+     */
+    void save(final OutputStream outStream, final DatabaseCopy copy)
+    throws IOException {
+        if (copy.asCSV) {
+            Writer out = new BufferedWriter(new OutputStreamWriter(outStream), BUFFER_SIZE);
+            StringBuilder line = new StringBuilder();
+            char[] chars = writeCSVHeader(out);
+            for (VariableCopy variable : copy.variables) {
+                chars = writeCSV(out, variable, line, chars);
+            }
+            out.flush();
+        } else {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(outStream, BUFFER_SIZE));
+            writeBinaryHeader(out, copy.variables.size());
+            for (VariableCopy variable : copy.variables) {
+                writeVariable(out, variable);
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * @param ds The datastore to save.
+     *
+     * @return True if every variable in the datastore can be written in the
+     * binary format, false otherwise.
+     */
+    public boolean canSaveAsBinary(final Datastore ds) {
+        for (Variable variable : ds.getAllVariables()) {
+            Argument type = variable.getVariableType();
+
+            if (type.type == Argument.Type.MATRIX) {
+                for (Argument arg : type.childArguments) {
+                    if (arg.type != Argument.Type.TEXT
+                            && arg.type != Argument.Type.NOMINAL) {
+                        return false;
+                    }
+                }
+            } else if (type.type != Argument.Type.TEXT
+                    && type.type != Argument.Type.NOMINAL) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Serialize the database to the specified stream in the binary format.
+     *
+     * @param outStream The stream to use when serializing.
+     * @param ds The datastore to save.
+     *
+     * @throws UserWarningException When unable to save the database.
+     */
+    public void saveAsBinary(final OutputStream outStream, final Datastore ds)
+    throws UserWarningException {
+        LOGGER.event("save database as binary to stream");
+
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(outStream, BUFFER_SIZE));
+            writeBinary(out, ds);
+
+            // The caller is responsible for closing the stream.
+            out.flush();
+        } catch (IOException ie) {
+            throw new UserWarningException("Unable to save the database.", ie);
+        }
+    }
+
+    /**
+     * Writes the database in the binary format: a header identifying the
+     * format and version, then each variable in turn.
+     *
+     * @param out The output to write the database to.
+     * @param ds The datastore to save.
+     *
+     * @throws IOException If unable to write to out.
+     */
+    private void writeBinary(final DataOutputStream out, final Datastore ds)
+    throws IOException {
+        List<Variable> variables = ds.getAllVariables();
+        writeBinaryHeader(out, variables.size());
+
+        for (Variable variable : variables) {
+            writeVariable(out, copy(variable, false));
+        }
+    }
+
+    /**
+     * Writes the header of a database in the binary format.
+     *
+     * @param out The output to write the header to.
+     * @param numVariables The number of variables that will follow.
+     *
+     * @throws IOException If unable to write to out.
+     */
+    void writeBinaryHeader(final DataOutputStream out, final int numVariables)
+    throws IOException {
+        out.write(BINARY_MAGIC);
+        BinaryCodec.writeVarInt(out, BINARY_VERSION);
+        BinaryCodec.writeVarInt(out, numVariables);
+    }
+
+    /**
+     * Copies a variable, so that it can be written from another thread while
+     * the datastore keeps changing.
+     *
+     * @param variable The variable to copy.
+     * @param asCSV True to copy the value of each cell as it is written to
+     * CSV files, false to copy the value of each argument for the binary
+     * format.
+     *
+     * @return The copy of the variable.
+     */
+    VariableCopy copy(final Variable variable, final boolean asCSV) {
+        Argument type = variable.getVariableType();
+        List<Argument> args = type.childArguments;
+        if (type.type != Argument.Type.MATRIX) {
+            args = Collections.singletonList(type);
+        }
+
+        String[] argNames = new String[args.size()];
+        Argument.Type[] argTypes = new Argument.Type[args.size()];
+        for (int j = 0; j < args.size(); j++) {
+            argNames[j] = args.get(j).name;
+            argTypes[j] = args.get(j).type;
+        }
+
+        CellRows rows = new CellRows();
+        for (Cell cell : variable.getCells()) {
+            String[] values;
+
+            if (asCSV) {
+                values = new String[] {cell.getValueAsString()};
+            } else {
+                values = new String[args.size()];
+                Value value = cell.getValue();
+
+                if (value instanceof MatrixValue) {
+                    List<Value> argValues = ((MatrixValue) value).getArguments();
+                    for (int j = 0; j < argValues.size() && j < args.size(); j++) {
+                        values[j] = getString(argValues.get(j));
+                    }
+                } else {
+                    values[0] = getString(value);
+                }
+            }
+
+            rows.add(cell.getOnset(), cell.getOffset(), values);
+        }
+
+        return new VariableCopy(variable.getName(), type.type, variable.isHidden(),
+                                argNames, argTypes, rows);
+    }
+
+    /**
+     * Writes a variable in the binary format: its name, type, visibility and
+     * arguments, then the length in bytes of its cells so that readers can
+     * skip over them, then the cells themselves.
+     *
+     * @param out The output to write the variable to.
+     * @param variable The variable to write.
+     *
+     * @throws IOException If unable to write to out.
+     */
+    void writeVariable(final DataOutputStream out, final Variable variable)
+    throws IOException {
+        writeVariable(out, copy(variable, false));
+    }
+
+    /**
+     * Writes a copy of a variable in the binary format.
+     *
+     * @param out The output to write the variable to.
+     * @param variable The copy of the variable to write, taken for the
+     * binary format.
+     *
+     * @throws IOException If unable to write to out.
+     */
+    void writeVariable(final DataOutputStream out, final VariableCopy variable)
+    throws IOException {
+        BinaryCodec.writeString(out, variable.name);
+        BinaryCodec.writeString(out, variable.type.name());
+        out.writeBoolean(!variable.hidden);
+
+        BinaryCodec.writeVarInt(out, variable.argNames.length);
+        for (int j = 0; j < variable.argNames.length; j++) {
+            BinaryCodec.writeString(out, variable.argNames[j]);
+            BinaryCodec.writeString(out, variable.argTypes[j].name());
+        }
+
+        ByteArrayOutputStream cellBytes = new ByteArrayOutputStream();
+        writeCells(new DataOutputStream(cellBytes), variable);
+        BinaryCodec.writeVarInt(out, cellBytes.size());
+        cellBytes.writeTo(out);
+    }
+
+    /**
+     * Writes the cells of a variable one column at a time. Onsets are
+     * written as the difference from the previous onset and offsets as the
+     * difference from their onset. Text arguments are written as they are,
+     * other arguments as indexes into a table of the distinct values that
+     * precedes them.
+     *
+     * @param out The output to write the cells to.
+     * @param variable The copy of the variable to write the cells of.
+     *
+     * @throws IOException If unable to write to out.
+     */
+    private void writeCells(final DataOutputStream out, final VariableCopy variable)
+    throws IOException {
+        CellRows rows = variable.rows;
+        BinaryCodec.writeVarInt(out, rows.size());
+
+        long previous = 0;
+        for (int i = 0; i < rows.size(); i++) {
+            BinaryCodec.writeSignedVarLong(out, rows.getOnset(i) - previous);
+            previous = rows.getOnset(i);
+        }
+
+        for (int i = 0; i < rows.size(); i++) {
+            BinaryCodec.writeSignedVarLong(out, rows.getOffset(i) - rows.getOnset(i));
+        }
+
+        String[] values = new String[rows.size()];
+        for (int j = 0; j < variable.argNames.length; j++) {
+            for (int i = 0; i < rows.size(); i++) {
+                values[i] = rows.getValue(i, j);
+            }
+
+            if (variable.argTypes[j] == Argument.Type.TEXT) {
+                for (String value : values) {
+                    BinaryCodec.writeString(out, value);
+                }
+            } else {
+                writeDictionary(out, values);
+            }
+        }
+    }
+
+    /**
+     * Writes a column of values as a table of the distinct values, in the
+     * order they first appear, followed by the index of each value in that
+     * table. The index 0 stands for an empty value.
+     *
+     * @param out The output to write the column to.
+     * @param values The values of the column, null where empty.
+     *
+     * @throws IOException If unable to write to out.
+     */
+    private void writeDictionary(final DataOutputStream out, final String[] values)
+    throws IOException {
+        Map<String, Integer> indexes = new HashMap<String, Integer>();
+        int[] codes = new int[values.length];
+        String[] table = new String[values.length];
+
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                Integer index = indexes.get(values[i]);
+
+                if (index == null) {
+                    index = indexes.size() + 1;
+                    indexes.put(values[i], index);
+                    table[indexes.size() - 1] = values[i];
+                }
+                codes[i] = index;
+            }
+        }
+
+        BinaryCodec.writeVarInt(out, indexes.size());
+        for (int i = 0; i < indexes.size(); i++) {
+            BinaryCodec.writeString(out, table[i]);
+        }
+
+        for (int code : codes) {
+            BinaryCodec.writeVarInt(out, code);
+        }
+    }
+
+    /**
+     * @param value The value of a cell or argument.
+     *
+     * @return The value as a string, null if it is empty.
+     */
+    private String getString(final Value value) {
+        if (value.isEmpty()) {
+            return null;
+        }
+
+        return value.toString();
+    }
+
+    /**
+     * Writes the start of a database in a CSV format, before its variables.
+     *
+     * @param out The writer to write the CSV file to.
+     *
+     * @return The buffer to copy lines through, for {@link #writeCSV}.
+     *
+     * @throws IOException If unable to write to out.
+     */
+    private char[] writeCSVHeader(final Writer out) throws IOException {
         // Dump out an identifier for the version of file.
-        PrintStream ps = new PrintStream(outStream);
-        ps.println("#4");
+        out.write("#4");
+        out.write(NEW_LINE);
 
         /**
         PREDICATES CURRENTLY UNSUPPORTED - TODO REIMPLEMENT.
@@ -138,38 +538,161 @@ public final class SaveDatabaseFileC {
         }
         */
 
-        for (Variable variable : ds.getAllVariables()) {
-            ps.printf("%s (%s,%s,%s)",
-                        StringUtils.escapeCSV(variable.getName()),
-                        variable.getVariableType().type,
-                        !variable.isHidden(),
-                        "");
-
-            if (variable.getVariableType().type == Argument.Type.MATRIX) {
-                ps.print('-');
-
-                int numArgs = 0;
-                for (Argument arg : variable.getVariableType().childArguments) {
-                    ps.printf("%s|%s",
-                              StringUtils.escapeCSV(arg.name),
-                              arg.type);
-
-                    if (numArgs < (variable.getVariableType().childArguments.size() - 1)) {
-                        ps.print(',');
-                    }
-                    numArgs++;
+        return new char[BUFFER_SIZE];
+    }
+
+    /**
+     * Writes a copy of a variable in a CSV format. Each line is built in a
+     * reused buffer, with values escaped as they are copied into it.
+     *
+     * @param out The writer to write the CSV file to.
+     * @param variable The copy of the variable to write, taken for CSV.
+     * @param line The buffer to build each line in.
+     * @param chars The buffer to copy lines through.
+     *
+     * @return The buffer to copy the lines of the next variable through.
+     *
+     * @throws IOException If unable to write to out.
+     */
+    private char[] writeCSV(final Writer out,
+                            final VariableCopy variable,
+                            final StringBuilder line,
+                            final char[] chars)
+    throws IOException {
+        char[] result = chars;
+
+        line.setLength(0);
+        StringUtils.escapeCSV(variable.name, line);
+        line.append(" (")
+            .append(variable.type)
+            .append(',')
+            .append(!variable.hidden)
+            .append(",)");
+
+        if (variable.type == Argument.Type.MATRIX) {
+            line.append('-');
+
+            for (int j = 0; j < variable.argNames.length; j++) {
+                StringUtils.escapeCSV(variable.argNames[j], line);
+                line.append('|').append(variable.argTypes[j]);
+
+                if (j < (variable.argNames.length - 1)) {
+                    line.append(',');
                 }
             }
+        }
 
-            ps.println();
+        line.append(NEW_LINE);
+        result = write(out, line, result);
 
-            for (Cell cell : variable.getCells()) {
-                ps.printf("%s,%s,%s",
-                          cell.getOnsetString(),
-                          cell.getOffsetString(),
-                          StringUtils.escapeCSVArgument(cell.getValueAsString()));
-                ps.println();
-            }
+        CellRows rows = variable.rows;
+        for (int i = 0; i < rows.size(); i++) {
+            line.setLength(0);
+            TimestampCodec.format(rows.getOnset(i), line).append(',');
+            TimestampCodec.format(rows.getOffset(i), line).append(',');
+            StringUtils.escapeCSVArgument(rows.getValue(i, 0), line);
+            line.append(NEW_LINE);
+            result = write(out, line, result);
+        }
+
+        return result;
+    }
+
+    /**
+     * Writes the contents of a builder without making a String of it.
+     *
+     * @param out The writer to write to.
+     * @param line The characters to write.
+     * @param chars A buffer to copy the characters through.
+     *
+     * @return The buffer to use for the next write, grown if the line did not
+     * fit in the supplied one.
+     *
+     * @throws IOException If unable to write to out.
+     */
+    private char[] write(final Writer out, final StringBuilder line, final char[] chars)
+    throws IOException {
+        char[] result = chars;
+        if (line.length() > result.length) {
+            result = new char[line.length()];
+        }
+
+        line.getChars(0, line.length(), result, 0);
+        out.write(result, 0, line.length());
+
+        return result;
+    }
+
+    /**
+     * A copy of a database, taken by {@link SaveDatabaseFileC#copy(Datastore,
+     * boolean)}.
+     */
+    static final class DatabaseCopy {
+
+        /** The copy of each variable, in order. */
+        private final List<VariableCopy> variables;
+
+        /** True if the copy is saved as CSV, false if in the binary format. */
+        private final boolean asCSV;
+
+        /**
+         * Constructor.
+         *
+         * @param variables The copy of each variable, in order.
+         * @param asCSV True if the copy is saved as CSV.
+         */
+        private DatabaseCopy(final List<VariableCopy> variables, final boolean asCSV) {
+            this.variables = variables;
+            this.asCSV = asCSV;
+        }
+    }
+
+    /**
+     * A copy of a variable, taken by {@link SaveDatabaseFileC#copy(Variable,
+     * boolean)}.
+     */
+    static final class VariableCopy {
+
+        /** The name of the variable. */
+        private final String name;
+
+        /** The type of the variable. */
+        private final Argument.Type type;
+
+        /** True if the variable is hidden. */
+        private final boolean hidden;
+
+        /** The name of each argument, or of the variable's type if it has none. */
+        private final String[] argNames;
+
+        /** The type of each argument. */
+        private final Argument.Type[] argTypes;
+
+        /** The cells of the variable. */
+        private final CellRows rows;
+
+        /**
+         * Constructor.
+         *
+         * @param name The name of the variable.
+         * @param type The type of the variable.
+         * @param hidden True if the variable is hidden.
+         * @param argNames The name of each argument.
+         * @param argTypes The type of each argument.
+         * @param rows The cells of the variable.
+         */
+        private VariableCopy(final String name,
+                             final Argument.Type type,
+                             final boolean hidden,
+                             final String[] argNames,
+                             final Argument.Type[] argTypes,
+                             final CellRows rows) {
+            this.name = name;
+            this.type = type;
+            this.hidden = hidden;
+            this.argNames = argNames;
+            this.argTypes = argTypes;
+            this.rows = rows;
         }
     }
 }
@@ -0,0 +1,29 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.models.db;
+
+/**
+ * A datastore that buffers changes and writes them in the background. This
+ * is an optional capability alongside Datastore, callers that need every
+ * change to have reached the underlying store (e.g. before saving) should
+ * check for it with instanceof and call flush.
+ */
+public interface BufferedWrites {
+
+    /**
+     * Writes all buffered changes, returning once they have been written.
+     */
+    void flush();
+}
@@ -0,0 +1,41 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.models.db;
+
+/**
+ * A variable that is able to insert a whole column of cells in one batch.
+ * This is an optional capability alongside Variable, callers should check
+ * for it with instanceof and fall back to createCell otherwise.
+ */
+public interface BulkLoadable {
+
+    /**
+     * Creates one cell for each of the supplied rows, writing them to the
+     * datastore in a single batch. The datastore is marked as changed once for
+     * the whole batch.
+     *
+     * @param rows The parsed rows to insert as cells.
+     */
+    void insertCells(final CellRows rows);
+
+    /**
+     * Removes every cell of the variable and creates one cell for each of the
+     * supplied rows in their place, writing them to the datastore in a single
+     * batch. The datastore is marked as changed once for the whole batch.
+     *
+     * @param rows The rows to replace the cells of the variable with.
+     */
+    void replaceCells(final CellRows rows);
+}
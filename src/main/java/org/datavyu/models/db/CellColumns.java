@@ -0,0 +1,383 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.models.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The cells of a variable laid out as columns, for scripts that work through
+ * a whole variable at once. The onsets and offsets of the cells, in temporal
+ * order, are held in primitive arrays, and the value of each argument as a
+ * column of codes into a dictionary of the distinct values, with -1 for an
+ * empty value. Recoding a value throughout the variable is then a matter of
+ * changing its dictionary entry, or the codes of the cells being recoded.
+ *
+ * The arrays returned by the getters are those held by the columns, not
+ * copies, so changes to them are written by {@link #writeTo(Variable)}.
+ */
+public final class CellColumns {
+
+    /** The code of an empty value. */
+    public static final int EMPTY = -1;
+
+    /** The names of the arguments of the variable. */
+    private final String[] argNames;
+
+    /** The onset of each cell, in temporal order. */
+    private long[] onsets;
+
+    /** The offset of each cell, in temporal order. */
+    private long[] offsets;
+
+    /** The codes of the values of each argument, one column per argument. */
+    private int[][] codes;
+
+    /** The number of cells read so far, while reading a variable. */
+    private int read = 0;
+
+    /** The distinct values, indexed by their codes. */
+    private final List<String> dictionary = new ArrayList<String>();
+
+    /** The code of each distinct value. */
+    private final Map<String, Integer> dictionaryCodes = new HashMap<String, Integer>();
+
+    /**
+     * Constructor.
+     *
+     * @param argNames The names of the arguments of the variable, a single
+     * name for text and nominal variables.
+     * @param onsets The onset of each cell in milliseconds.
+     * @param offsets The offset of each cell in milliseconds.
+     * @param codes The codes of the values of each argument, one column per
+     * argument and one code per cell.
+     * @param dictionary The distinct values, indexed by their codes.
+     *
+     * @throws IllegalArgumentException If the columns are of different
+     * lengths, or hold codes that are not in the dictionary.
+     */
+    public CellColumns(final String[] argNames,
+                       final long[] onsets,
+                       final long[] offsets,
+                       final int[][] codes,
+                       final String[] dictionary) {
+        if (codes.length != argNames.length) {
+            throw new IllegalArgumentException("Expected " + argNames.length + " columns of codes, not "
+                                               + codes.length);
+        }
+        if (offsets.length != onsets.length) {
+            throw new IllegalArgumentException("Expected " + onsets.length + " offsets, not " + offsets.length);
+        }
+        for (int[] column : codes) {
+            if (column.length != onsets.length) {
+                throw new IllegalArgumentException("Expected " + onsets.length + " codes, not " + column.length);
+            }
+        }
+
+        this.argNames = argNames;
+        this.onsets = onsets;
+        this.offsets = offsets;
+        this.codes = codes;
+        for (String value : dictionary) {
+            encode(value);
+        }
+
+        for (int[] column : codes) {
+            for (int code : column) {
+                if (code < EMPTY || code >= this.dictionary.size()) {
+                    throw new IllegalArgumentException("Code " + code + " is not in the dictionary");
+                }
+            }
+        }
+    }
+
+    /**
+     * Constructor for reading a variable.
+     *
+     * @param argNames The names of the arguments of the variable.
+     * @param capacity The number of cells to allocate room for.
+     */
+    private CellColumns(final String[] argNames, final int capacity) {
+        this.argNames = argNames;
+        onsets = new long[capacity];
+        offsets = new long[capacity];
+        codes = new int[argNames.length][capacity];
+    }
+
+    /**
+     * Reads the cells of a variable. Variables that stream their cells are
+     * read a batch at a time.
+     *
+     * @param variable The variable to read.
+     *
+     * @return The cells of the variable, in temporal order.
+     */
+    public static CellColumns of(final Variable variable) {
+        Argument type = variable.getVariableType();
+        String[] names;
+        if (type.type == Argument.Type.MATRIX) {
+            names = new String[type.childArguments.size()];
+            for (int j = 0; j < names.length; j++) {
+                names[j] = type.childArguments.get(j).name;
+            }
+        } else {
+            names = new String[] {"value"};
+        }
+
+        Iterator<Cell> cells;
+        int count;
+        if (variable instanceof StreamsCells) {
+            cells = ((StreamsCells) variable).iterateTemporally();
+            count = ((StreamsCells) variable).getCellCount();
+        } else {
+            List<Cell> all = variable.getCellsTemporally();
+            cells = all.iterator();
+            count = all.size();
+        }
+
+        CellColumns result = new CellColumns(names, count);
+        while (cells.hasNext()) {
+            result.append(cells.next());
+        }
+        result.trim();
+
+        return result;
+    }
+
+    /**
+     * Appends a cell read from a variable.
+     *
+     * @param cell The cell to append.
+     */
+    private void append(final Cell cell) {
+        // The count is only a hint for streamed variables.
+        if (read == onsets.length) {
+            int capacity = Math.max(16, read * 2);
+            onsets = Arrays.copyOf(onsets, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+            for (int j = 0; j < codes.length; j++) {
+                codes[j] = Arrays.copyOf(codes[j], capacity);
+            }
+        }
+
+        onsets[read] = cell.getOnset();
+        offsets[read] = cell.getOffset();
+        Value value = cell.getValue();
+        if (value instanceof MatrixValue) {
+            List<Value> values = ((MatrixValue) value).getArguments();
+            for (int j = 0; j < codes.length; j++) {
+                codes[j][read] = j < values.size() ? encode(values.get(j)) : EMPTY;
+            }
+        } else {
+            codes[0][read] = encode(value);
+        }
+        read++;
+    }
+
+    /**
+     * Trims the columns down to the cells read from a variable.
+     */
+    private void trim() {
+        if (read != onsets.length) {
+            onsets = Arrays.copyOf(onsets, read);
+            offsets = Arrays.copyOf(offsets, read);
+            for (int j = 0; j < codes.length; j++) {
+                codes[j] = Arrays.copyOf(codes[j], read);
+            }
+        }
+    }
+
+    /**
+     * Replaces the cells of a variable with these ones, in a single batch
+     * where the variable supports it.
+     *
+     * @param variable The variable to write to, with the same number of
+     * arguments as these columns.
+     *
+     * @throws IllegalArgumentException If the variable has a different number
+     * of arguments.
+     */
+    public void writeTo(final Variable variable) {
+        Argument type = variable.getVariableType();
+        int argCount = type.type == Argument.Type.MATRIX ? type.childArguments.size() : 1;
+        if (argCount != codes.length) {
+            throw new IllegalArgumentException("Expected " + argCount + " columns of codes for "
+                                               + variable.getName() + ", not " + codes.length);
+        }
+
+        if (variable instanceof BulkLoadable) {
+            CellRows rows = new CellRows();
+            for (int i = 0; i < onsets.length; i++) {
+                String[] values = new String[codes.length];
+                for (int j = 0; j < values.length; j++) {
+                    values[j] = decode(codes[j][i]);
+                }
+                rows.add(onsets[i], offsets[i], values);
+            }
+
+            ((BulkLoadable) variable).replaceCells(rows);
+            return;
+        }
+
+        for (Cell cell : variable.getCells()) {
+            variable.removeCell(cell);
+        }
+        for (int i = 0; i < onsets.length; i++) {
+            Cell cell = variable.createCell();
+            cell.setOnset(onsets[i]);
+            cell.setOffset(offsets[i]);
+
+            Value value = cell.getValue();
+            if (value instanceof MatrixValue) {
+                List<Value> args = ((MatrixValue) value).getArguments();
+                for (int j = 0; j < args.size(); j++) {
+                    if (codes[j][i] != EMPTY) {
+                        args.get(j).set(decode(codes[j][i]));
+                    }
+                }
+            } else if (codes[0][i] != EMPTY) {
+                value.set(decode(codes[0][i]));
+            }
+        }
+    }
+
+    /**
+     * @return The number of cells.
+     */
+    public int size() {
+        return onsets.length;
+    }
+
+    /**
+     * @return The names of the arguments of the variable.
+     */
+    public String[] getArgumentNames() {
+        return argNames;
+    }
+
+    /**
+     * @param name The name of an argument.
+     *
+     * @return The index of the argument, -1 if there is no such argument.
+     */
+    public int getArgumentIndex(final String name) {
+        return Arrays.asList(argNames).indexOf(name);
+    }
+
+    /**
+     * @return The onset of each cell in milliseconds, in temporal order.
+     */
+    public long[] getOnsets() {
+        return onsets;
+    }
+
+    /**
+     * @return The offset of each cell in milliseconds, in temporal order.
+     */
+    public long[] getOffsets() {
+        return offsets;
+    }
+
+    /**
+     * @param argument The index of an argument.
+     *
+     * @return The code of the value of the argument in each cell.
+     */
+    public int[] getCodes(final int argument) {
+        return codes[argument];
+    }
+
+    /**
+     * @return A copy of the dictionary, the distinct values indexed by their
+     * codes.
+     */
+    public String[] getDictionary() {
+        return dictionary.toArray(new String[dictionary.size()]);
+    }
+
+    /**
+     * Changes the value that a code stands for, recoding every cell with that
+     * code at once.
+     *
+     * @param code The code to change.
+     * @param value The new value for the code, not already in the dictionary.
+     *
+     * @throws IllegalArgumentException If the value is empty or already in
+     * the dictionary, recode the cells to EMPTY or its code instead.
+     */
+    public void setDictionaryValue(final int code, final String value) {
+        if (value == null || value.length() == 0) {
+            throw new IllegalArgumentException("Empty values are coded as " + EMPTY);
+        }
+        if (dictionaryCodes.containsKey(value)) {
+            throw new IllegalArgumentException("'" + value + "' is already in the dictionary");
+        }
+
+        dictionaryCodes.remove(dictionary.get(code));
+        dictionary.set(code, value);
+        dictionaryCodes.put(value, code);
+    }
+
+    /**
+     * @param value A value, null or empty for no value.
+     *
+     * @return The code of the value, which is added to the dictionary if it
+     * isn't already there.
+     */
+    public int encode(final String value) {
+        if (value == null || value.length() == 0) {
+            return EMPTY;
+        }
+
+        Integer code = dictionaryCodes.get(value);
+        if (code == null) {
+            code = dictionary.size();
+            dictionary.add(value);
+            dictionaryCodes.put(value, code);
+        }
+
+        return code;
+    }
+
+    /**
+     * @param code A code from the dictionary.
+     *
+     * @return The value that the code stands for, null for an empty value.
+     */
+    public String decode(final int code) {
+        return code == EMPTY ? null : dictionary.get(code);
+    }
+
+    /**
+     * @param row The index of a cell.
+     * @param argument The index of an argument.
+     *
+     * @return The value of the argument in the cell, null if empty.
+     */
+    public String getValue(final int row, final int argument) {
+        return decode(codes[argument][row]);
+    }
+
+    /**
+     * @return The code of a value read from a cell.
+     */
+    private int encode(final Value value) {
+        return value.isEmpty() ? EMPTY : encode(value.toString());
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.models.db;
+
+import java.util.Arrays;
+import org.datavyu.util.TimestampCodec;
+
+/**
+ * A column of parsed cell rows, ready to be inserted into a variable in a
+ * single batch. Each row holds an onset, an offset and one value per argument
+ * of the variable (a single value for text and nominal variables). A null
+ * value leaves the matching argument of the cell empty.
+ */
+public final class CellRows {
+
+    /** The number of rows to allocate room for when first constructed. */
+    private static final int INITIAL_CAPACITY = 64;
+
+    /** The number of rows held. */
+    private int size = 0;
+
+    /** The onset of each row. */
+    private long[] onsets = new long[INITIAL_CAPACITY];
+
+    /** The offset of each row. */
+    private long[] offsets = new long[INITIAL_CAPACITY];
+
+    /** The values of each row. */
+    private String[][] values = new String[INITIAL_CAPACITY][];
+
+    /**
+     * Appends a row.
+     *
+     * @param onset The onset of the cell in milliseconds.
+     * @param offset The offset of the cell in milliseconds.
+     * @param rowValues The values of the cell, one per argument.
+     */
+    public void add(final long onset, final long offset, final String[] rowValues) {
+        if (size == onsets.length) {
+            int newCapacity = size * 2;
+            onsets = Arrays.copyOf(onsets, newCapacity);
+            offsets = Arrays.copyOf(offsets, newCapacity);
+            values = Arrays.copyOf(values, newCapacity);
+        }
+
+        onsets[size] = onset;
+        offsets[size] = offset;
+        values[size] = rowValues;
+        size++;
+    }
+
+    /**
+     * Appends a row.
+     *
+     * @param onset The onset of the cell as a HH:MM:SS:mmm timestamp.
+     * @param offset The offset of the cell as a HH:MM:SS:mmm timestamp.
+     * @param rowValues The values of the cell, one per argument.
+     */
+    public void add(final String onset, final String offset, final String[] rowValues) {
+        add(TimestampCodec.parse(onset), TimestampCodec.parse(offset), rowValues);
+    }
+
+    /**
+     * @return The number of rows held.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param row The index of the row.
+     *
+     * @return The onset of the row in milliseconds.
+     */
+    public long getOnset(final int row) {
+        return onsets[row];
+    }
+
+    /**
+     * @param row The index of the row.
+     *
+     * @return The offset of the row in milliseconds.
+     */
+    public long getOffset(final int row) {
+        return offsets[row];
+    }
+
+    /**
+     * @param row The index of the row.
+     * @param argument The index of the argument.
+     *
+     * @return The value of the argument in the row, null if empty or if the
+     * row holds no value for the argument.
+     */
+    public String getValue(final int row, final int argument) {
+        String[] rowValues = values[row];
+
+        if (rowValues == null || argument >= rowValues.length) {
+            return null;
+        }
+
+        return rowValues[argument];
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.models.db;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The selection and highlighting state of the cells within a datastore.
+ * Selection is transient UI state, so it is held in memory by the datastore
+ * rather than persisted with the cells. Cells are identified by a key (e.g.
+ * their mongo id), and listing or clearing the selection costs O(selected).
+ *
+ * @param <K> The type of key used to identify cells.
+ */
+final class CellSelection<K> {
+
+    /** The selected cells, in the order they were selected. */
+    private final Set<K> selected = new LinkedHashSet<K>();
+
+    /** The highlighted cells, always a subset of the selected cells. */
+    private final Set<K> highlighted = new HashSet<K>();
+
+    /**
+     * Adds a newly created cell, new cells start selected and highlighted.
+     *
+     * @param key The key of the new cell.
+     */
+    synchronized void add(final K key) {
+        selected.add(key);
+        highlighted.add(key);
+    }
+
+    /**
+     * Forgets a cell that has been removed from the datastore.
+     *
+     * @param key The key of the removed cell.
+     */
+    synchronized void remove(final K key) {
+        selected.remove(key);
+        highlighted.remove(key);
+    }
+
+    /**
+     * @param key The key of the cell.
+     *
+     * @return True if the cell is selected.
+     */
+    synchronized boolean isSelected(final K key) {
+        return selected.contains(key);
+    }
+
+    /**
+     * @param key The key of the cell.
+     *
+     * @return True if the cell is highlighted.
+     */
+    synchronized boolean isHighlighted(final K key) {
+        return highlighted.contains(key);
+    }
+
+    /**
+     * Selects or deselects a cell, a deselected cell is also no longer
+     * highlighted.
+     *
+     * @param key The key of the cell.
+     * @param isSelected True to select the cell, false to deselect it.
+     */
+    synchronized void setSelected(final K key, final boolean isSelected) {
+        if (isSelected) {
+            selected.add(key);
+        } else {
+            selected.remove(key);
+            highlighted.remove(key);
+        }
+    }
+
+    /**
+     * Highlights or unhighlights a cell, a highlighted cell is also selected.
+     *
+     * @param key The key of the cell.
+     * @param isHighlighted True to highlight the cell, false otherwise.
+     */
+    synchronized void setHighlighted(final K key, final boolean isHighlighted) {
+        if (isHighlighted) {
+            highlighted.add(key);
+            selected.add(key);
+        } else {
+            highlighted.remove(key);
+        }
+    }
+
+    /**
+     * @return The keys of the selected cells, in the order they were selected.
+     */
+    synchronized List<K> getSelected() {
+        return new ArrayList<K>(selected);
+    }
+
+    /**
+     * Deselects (and unhighlights) every cell.
+     *
+     * @return The keys of the cells that were selected.
+     */
+    synchronized List<K> clear() {
+        List<K> result = new ArrayList<K>(selected);
+        selected.clear();
+        highlighted.clear();
+
+        return result;
+    }
+}
@@ -0,0 +1,33 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.models.db;
+
+import java.io.IOException;
+
+/**
+ * Supplies the cells of a variable when they are first needed, rather than
+ * when the variable is created.
+ */
+public interface CellSource {
+
+    /**
+     * Reads the cells of the variable. Called at most once.
+     *
+     * @return The rows to insert as the cells of the variable.
+     *
+     * @throws IOException If unable to read the cells.
+     */
+    CellRows read() throws IOException;
+}
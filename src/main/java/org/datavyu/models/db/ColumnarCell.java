@@ -0,0 +1,322 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.models.db;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.datavyu.util.TimestampCodec;
+
+/**
+ * A handle to a single row of a columnar variable. The content of the cell is
+ * held by the parent variable, the handle only tracks which row it refers to.
+ */
+public final class ColumnarCell implements Cell {
+
+    // The variable that this cell belongs to.
+    private final ColumnarVariable variable;
+
+    // The unique id of this cell within the datastore.
+    private final long id;
+
+    // The row of this cell within its variable, -1 once removed.
+    private int row;
+
+    // The listeners for this cell.
+    private final List<CellListener> listeners = new ArrayList<CellListener>();
+
+    // The content of the cell at the time it was removed from its variable.
+    private long detachedOnset;
+    private long detachedOffset;
+    private String[] detachedValues;
+
+    /**
+     * Constructor.
+     *
+     * @param variable The variable that the cell belongs to.
+     * @param row The row of the cell within the variable.
+     * @param id The unique id of the cell within the datastore.
+     */
+    ColumnarCell(final ColumnarVariable variable, final int row, final long id) {
+        this.variable = variable;
+        this.row = row;
+        this.id = id;
+    }
+
+    /**
+     * @return The variable that this cell belongs to.
+     */
+    ColumnarVariable getVariable() {
+        return variable;
+    }
+
+    /**
+     * @return The unique id of this cell within the datastore.
+     */
+    long getId() {
+        return id;
+    }
+
+    /**
+     * @return The row of this cell within its variable, -1 if removed.
+     */
+    int getRow() {
+        return row;
+    }
+
+    /**
+     * @param newRow The new row of this cell within its variable.
+     */
+    void setRow(final int newRow) {
+        row = newRow;
+    }
+
+    /**
+     * Takes a copy of the cell content and detaches the cell from its row, so
+     * that removed cells can still be inspected by listeners.
+     */
+    void detach() {
+        detachedOnset = variable.getOnset(row);
+        detachedOffset = variable.getOffset(row);
+        detachedValues = new String[variable.getColumnCount()];
+        for (int i = 0; i < detachedValues.length; i++) {
+            detachedValues[i] = variable.getValue(row, i);
+        }
+        row = -1;
+    }
+
+    /**
+     * @param column The value column (i.e. argument index) to fetch.
+     *
+     * @return The value held in the supplied column, null if empty.
+     */
+    String getValue(final int column) {
+        if (row < 0) {
+            return detachedValues[column];
+        }
+
+        return variable.getValue(row, column);
+    }
+
+    /**
+     * @param column The value column (i.e. argument index) to set.
+     * @param value The new value, null to clear.
+     */
+    void setValue(final int column, final String value) {
+        if (row < 0) {
+            detachedValues[column] = value;
+        } else {
+            variable.setValue(row, column, value);
+        }
+    }
+
+    @Override
+    public String getOffsetString() {
+        return TimestampCodec.format(getOffset());
+    }
+
+    @Override
+    public long getOffset() {
+        if (row < 0) {
+            return detachedOffset;
+        }
+
+        return variable.getOffset(row);
+    }
+
+    @Override
+    public Cell getFreshCell() {
+        // Handles always read straight from the variable, they are never stale.
+        return this;
+    }
+
+    @Override
+    public void setOffset(final long newOffset) {
+        if (row < 0) {
+            detachedOffset = newOffset;
+        } else {
+            variable.setOffset(row, newOffset);
+        }
+
+        for (CellListener cl : listeners) {
+            cl.offsetChanged(newOffset);
+        }
+    }
+
+    @Override
+    public void setOffset(final String newOffset) {
+        setOffset(TimestampCodec.parse(newOffset));
+    }
+
+    @Override
+    public long getOnset() {
+        if (row < 0) {
+            return detachedOnset;
+        }
+
+        return variable.getOnset(row);
+    }
+
+    @Override
+    public String getOnsetString() {
+        return TimestampCodec.format(getOnset());
+    }
+
+    @Override
+    public void setOnset(final String newOnset) {
+        setOnset(TimestampCodec.parse(newOnset));
+    }
+
+    @Override
+    public void setOnset(final long newOnset) {
+        if (row < 0) {
+            detachedOnset = newOnset;
+        } else {
+            variable.setOnset(row, newOnset);
+        }
+
+        for (CellListener cl : listeners) {
+            cl.onsetChanged(newOnset);
+        }
+    }
+
+    @Override
+    public String getValueAsString() {
+        return getValue().toString();
+    }
+
+    @Override
+    public Value getValue() {
+        Argument.Type type = variable.getType().type;
+
+        if (type == Argument.Type.MATRIX) {
+            return new ColumnarMatrixValue(this);
+        } else if (type == Argument.Type.NOMINAL) {
+            return new ColumnarNominalValue(this, 0, -1);
+        } else {
+            return new ColumnarTextValue(this, 0, -1);
+        }
+    }
+
+    @Override
+    public boolean isSelected() {
+        return variable.getDatastore().getSelection().isSelected(this);
+    }
+
+    @Override
+    public void setSelected(final boolean selected) {
+        // If a cell is deselected, it is also no longer highlighted.
+        variable.getDatastore().getSelection().setSelected(this, selected);
+        variable.getDatastore().markDBAsChanged();
+        fireSelectionChange(selected);
+    }
+
+    /**
+     * Notifies the listeners of this cell that its selection has changed.
+     *
+     * @param selected True if the cell is now selected.
+     */
+    void fireSelectionChange(final boolean selected) {
+        for (CellListener cl : listeners) {
+            cl.selectionChange(selected);
+            if (!selected) {
+                cl.highlightingChange(false);
+            }
+        }
+    }
+
+    @Override
+    public boolean isHighlighted() {
+        return variable.getDatastore().getSelection().isHighlighted(this);
+    }
+
+    @Override
+    public void setHighlighted(final boolean highlighted) {
+        // If the cell is highlighted, it is also selected.
+        variable.getDatastore().getSelection().setHighlighted(this, highlighted);
+        variable.getDatastore().markDBAsChanged();
+
+        for (CellListener cl : listeners) {
+            cl.highlightingChange(highlighted);
+        }
+    }
+
+    @Override
+    public void addMatrixValue(final Argument.Type type) {
+        // Arguments are stored as columns of the parent variable, the new
+        // column is added for all cells by ColumnarVariable.addArgument.
+    }
+
+    @Override
+    public void moveMatrixValue(final int old_index, final int new_index) {
+        // Arguments are stored as columns of the parent variable, the column
+        // is moved for all cells by ColumnarVariable.moveArgument.
+    }
+
+    @Override
+    public void removeMatrixValue(final int index) {
+        // Arguments are stored as columns of the parent variable, the column
+        // is removed for all cells by ColumnarVariable.removeArgument.
+    }
+
+    @Override
+    public void setMatrixValue(final int index, final String v) {
+        setValue(index, v);
+    }
+
+    @Override
+    public Value getMatrixValue(final int index) {
+        return ((ColumnarMatrixValue) getValue()).getArguments().get(index);
+    }
+
+    @Override
+    public void clearMatrixValue(final int index) {
+        setValue(index, null);
+    }
+
+    @Override
+    public void addListener(final CellListener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void removeListener(final CellListener listener) {
+        listeners.remove(listener);
+    }
+
+    @Override
+    public String getCellID() {
+        return String.valueOf(id);
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (id ^ (id >>> 32));
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof ColumnarCell)) {
+            return false;
+        }
+
+        ColumnarCell otherC = (ColumnarCell) other;
+
+        return otherC.id == this.id
+               && otherC.variable.getDatastore() == this.variable.getDatastore();
+    }
+}
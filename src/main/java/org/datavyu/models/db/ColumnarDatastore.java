@@ -0,0 +1,248 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.models.db;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An in-process datastore that keeps variables and cells in memory. Cell
+ * onsets and offsets are held in primitive arrays and values are held as ids
+ * into an interned string pool, so that no cell operation needs to leave the
+ * JVM.
+ */
+public final class ColumnarDatastore implements Datastore, OverlapQueryable {
+
+    // Name of the datastore - does not need to persist - is used for file names.
+    private String name = "untitled";
+
+    // The notifier to ping when the application's title changes.
+    private TitleNotifier titleNotifier = null;
+
+    // Has the datastore changed since it has last been marked as unchanged?
+    private boolean changed = false;
+
+    // Source of unique ids for the cells held in this datastore.
+    private long nextCellId = 0;
+
+    // The pool of interned strings shared by all the value columns.
+    private final StringPool pool = new StringPool();
+
+    // The selected and highlighted cells.
+    private final CellSelection<ColumnarCell> selection = new CellSelection<ColumnarCell>();
+
+    // All the variables in the datastore, in the order they were created.
+    private final List<ColumnarVariable> variables = new ArrayList<ColumnarVariable>();
+
+    // The listeners for this datastore.
+    private final List<DatastoreListener> dbListeners = new ArrayList<DatastoreListener>();
+
+    /**
+     * Marks the datastore as changed, updating the title if required.
+     */
+    void markDBAsChanged() {
+        if (!changed) {
+            changed = true;
+
+            if (titleNotifier != null) {
+                titleNotifier.updateTitle();
+            }
+        }
+    }
+
+    /**
+     * @return The next unique id to use for a cell in this datastore.
+     */
+    long nextCellId() {
+        return nextCellId++;
+    }
+
+    /**
+     * @return The pool of interned strings for this datastore.
+     */
+    StringPool getPool() {
+        return pool;
+    }
+
+    /**
+     * @return The selection state of the cells in this datastore.
+     */
+    CellSelection<ColumnarCell> getSelection() {
+        return selection;
+    }
+
+    @Override
+    public List<Cell> getCellsOverlapping(final long from, final long to) {
+        List<Cell> cells = new ArrayList<Cell>();
+        for (ColumnarVariable v : variables) {
+            cells.addAll(v.getCellsOverlapping(from, to));
+        }
+
+        return cells;
+    }
+
+    @Override
+    public List<Variable> getAllVariables() {
+        return new ArrayList<Variable>(variables);
+    }
+
+    @Override
+    public List<Variable> getSelectedVariables() {
+        List<Variable> selectedVariables = new ArrayList<Variable>();
+
+        for (ColumnarVariable v : variables) {
+            if (v.isSelected()) {
+                selectedVariables.add(v);
+            }
+        }
+
+        return selectedVariables;
+    }
+
+    @Override
+    public void clearVariableSelection() {
+        for (ColumnarVariable v : variables) {
+            if (v.isSelected()) {
+                v.setSelected(false);
+            }
+        }
+        markDBAsChanged();
+    }
+
+    @Override
+    public List<Cell> getSelectedCells() {
+        return new ArrayList<Cell>(selection.getSelected());
+    }
+
+    @Override
+    public void clearCellSelection() {
+        for (ColumnarCell c : selection.clear()) {
+            c.fireSelectionChange(false);
+        }
+        markDBAsChanged();
+    }
+
+    @Override
+    public void deselectAll() {
+        this.clearCellSelection();
+        this.clearVariableSelection();
+        markDBAsChanged();
+    }
+
+    @Override
+    public Variable getVariable(final String varName) {
+        for (ColumnarVariable v : variables) {
+            if (v.getName().equals(varName)) {
+                return v;
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public Variable getVariable(final Cell cell) {
+        ColumnarVariable v = ((ColumnarCell) cell).getVariable();
+
+        if (v != null && variables.contains(v)) {
+            return v;
+        } else {
+            return null;
+        }
+    }
+
+    @Override
+    public Variable createVariable(final String name, final Argument.Type type)
+    throws UserWarningException {
+        // Check to make sure the variable name is not already in use:
+        Variable varTest = getVariable(name);
+        if (varTest != null) {
+            throw new UserWarningException("Unable to add variable, one with the same name already exists.");
+        }
+
+        ColumnarVariable v = new ColumnarVariable(this, name, new Argument("arg01", type));
+        variables.add(v);
+
+        for (DatastoreListener dbl : this.dbListeners) {
+            dbl.variableAdded(v);
+        }
+
+        markDBAsChanged();
+        return v;
+    }
+
+    @Override
+    public void removeVariable(final Variable var) {
+        ((ColumnarVariable) var).removeAllCells();
+
+        for (DatastoreListener dbl : this.dbListeners) {
+            dbl.variableRemoved(var);
+        }
+
+        variables.remove((ColumnarVariable) var);
+        markDBAsChanged();
+    }
+
+    @Override
+    public void removeCell(final Cell cell) {
+        getVariable(cell).removeCell(cell);
+        markDBAsChanged();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void canSetUnsaved(final boolean canSet) {
+    }
+
+    @Override
+    public void markAsUnchanged() {
+        if (changed) {
+            changed = false;
+
+            if (titleNotifier != null) {
+                titleNotifier.updateTitle();
+            }
+        }
+    }
+
+    @Override
+    public boolean isChanged() {
+        return changed;
+    }
+
+    @Override
+    public void setName(final String datastoreName) {
+        name = datastoreName;
+    }
+
+    @Override
+    public void setTitleNotifier(final TitleNotifier notifier) {
+        titleNotifier = notifier;
+    }
+
+    @Override
+    public void addListener(final DatastoreListener listener) {
+        dbListeners.add(listener);
+    }
+
+    @Override
+    public void removeListener(final DatastoreListener listener) {
+        dbListeners.remove(listener);
+    }
+}
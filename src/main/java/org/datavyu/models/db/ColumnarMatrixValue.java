@@ -0,0 +1,112 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.models.db;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.datavyu.models.db.Argument;
+import org.datavyu.models.db.MatrixValue;
+import org.datavyu.models.db.Value;
+
+/**
+ * A view of the arguments of a columnar matrix cell. The arguments of a
+ * columnar cell are the value columns of its parent variable, so any change to
+ * the argument list applies to every cell within the variable.
+ */
+public final class ColumnarMatrixValue implements MatrixValue {
+
+    // The cell that holds this value.
+    private final ColumnarCell cell;
+
+    ColumnarMatrixValue(final ColumnarCell cell) {
+        this.cell = cell;
+    }
+
+    @Override
+    public boolean isValid(final String value) {
+        return true;
+    }
+
+    @Override
+    public void set(final String value) {
+        // The matrix itself holds no value - only its arguments do.
+    }
+
+    @Override
+    public void clear() {
+        for (Value v : getArguments()) {
+            v.clear();
+        }
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (Value v : getArguments()) {
+            if (!v.isEmpty()) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public List<Value> getArguments() {
+        List<Argument> args = cell.getVariable().getType().childArguments;
+        List<Value> values = new ArrayList<Value>(args.size());
+
+        for (int i = 0; i < args.size(); i++) {
+            if (args.get(i).type == Argument.Type.TEXT) {
+                values.add(new ColumnarTextValue(cell, i, i));
+            } else {
+                values.add(new ColumnarNominalValue(cell, i, i));
+            }
+        }
+
+        return values;
+    }
+
+    @Override
+    public Value createArgument(final Argument.Type argType) {
+        cell.getVariable().addArgument(argType);
+        List<Value> values = getArguments();
+
+        return values.get(values.size() - 1);
+    }
+
+    @Override
+    public void removeArgument(final int index) {
+        ColumnarVariable var = cell.getVariable();
+        var.removeArgument(var.getType().childArguments.get(index).name);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder();
+        List<Value> values = getArguments();
+
+        result.append('(');
+        for (int i = 0; i < values.size(); i++) {
+            result.append(values.get(i).toString());
+
+            if (i < values.size() - 1) {
+                result.append(',');
+            }
+        }
+        result.append(')');
+
+        return result.toString();
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.models.db;
+
+/**
+ * A view of a single value column of a columnar cell.
+ */
+public abstract class ColumnarValue implements Value {
+
+    // The cell that holds this value.
+    final ColumnarCell cell;
+
+    // The value column of the cell that this value reads and writes.
+    final int column;
+
+    // The index of the argument within the parent matrix, -1 if this value is
+    // not an argument of a matrix.
+    final int index;
+
+    /**
+     * Constructor.
+     *
+     * @param cell The cell that holds the value.
+     * @param column The value column of the cell.
+     * @param index The index of the argument within the parent matrix, -1 if
+     * the value is not held within a matrix.
+     */
+    ColumnarValue(final ColumnarCell cell, final int column, final int index) {
+        this.cell = cell;
+        this.column = column;
+        this.index = index;
+    }
+
+    @Override
+    public boolean isValid(final String value) {
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        cell.setValue(column, null);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return cell.getValue(column) == null;
+    }
+
+    @Override
+    public void set(final String value) {
+        if (isValid(value)) {
+            cell.setValue(column, value);
+        }
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public String getArgName(final int index) {
+        return cell.getVariable().getType().childArguments.get(index).name;
+    }
+
+    @Override
+    public String toString() {
+        String value = cell.getValue(column);
+
+        if (value != null)
+            return value;
+        else if (index != -1)
+            return "<" + getArgName(index) + ">";
+        else
+            return "<var>";
+    }
+}
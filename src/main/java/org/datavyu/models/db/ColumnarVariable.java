@@ -0,0 +1,675 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.models.db;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A variable held within a columnar datastore. The cells of the variable are
+ * stored column-wise: onsets and offsets in primitive arrays and values as
+ * ids into the string pool of the parent datastore, with one column per
+ * matrix argument.
+ */
+public final class ColumnarVariable implements Variable, BulkLoadable, LazyLoadable, OverlapQueryable, Versioned {
+
+    /** The number of cells to allocate room for when a variable is created. */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /** Orders cells by the order they were created. */
+    private static final Comparator<ColumnarCell> CREATION_ORDER = new Comparator<ColumnarCell>() {
+        @Override
+        public int compare(final ColumnarCell c1, final ColumnarCell c2) {
+            long i1 = c1.getId();
+            long i2 = c2.getId();
+
+            if (i1 < i2) {
+                return -1;
+            } else if (i1 > i2) {
+                return 1;
+            } else {
+                return 0;
+            }
+        }
+    };
+
+    /** Orders cells by their onset, then by the order they were created. */
+    private static final Comparator<ColumnarCell> ONSET_ORDER = new Comparator<ColumnarCell>() {
+        @Override
+        public int compare(final ColumnarCell c1, final ColumnarCell c2) {
+            long o1 = c1.getOnset();
+            long o2 = c2.getOnset();
+
+            if (o1 < o2) {
+                return -1;
+            } else if (o1 > o2) {
+                return 1;
+            } else {
+                return CREATION_ORDER.compare(c1, c2);
+            }
+        }
+    };
+
+    // The datastore that this variable belongs to.
+    private final ColumnarDatastore datastore;
+
+    // The listeners for this variable.
+    private final List<VariableListener> listeners = new ArrayList<VariableListener>();
+
+    // The name of this variable.
+    private String name;
+
+    // The type of this variable.
+    private Argument type;
+
+    // Is this variable hidden?
+    private boolean hidden = false;
+
+    // Is this variable selected?
+    private boolean selected = true;
+
+    // The number of cells held within this variable.
+    private int size = 0;
+
+    // The cells of this variable, in the order they were created.
+    private ColumnarCell[] cells = new ColumnarCell[INITIAL_CAPACITY];
+
+    // The onset of each cell.
+    private long[] onsets = new long[INITIAL_CAPACITY];
+
+    // The offset of each cell.
+    private long[] offsets = new long[INITIAL_CAPACITY];
+
+    // The string pool ids of each value, one column per argument. Text and
+    // nominal variables have a single column.
+    private final List<int[]> values = new ArrayList<int[]>();
+
+    // The cells of this variable in temporal order, null when it needs to be
+    // rebuilt.
+    private TemporalIndex<ColumnarCell> temporalIndex = null;
+
+    // Supplies the cells of this variable when they are first needed, null
+    // once they have been loaded.
+    private CellSource source = null;
+
+    // Incremented each time this variable or one of its cells changes.
+    private long version = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param ds The datastore that the variable belongs to.
+     * @param name The name to use for the variable being constructed.
+     * @param type The type to use for the variable being constructed.
+     *
+     * @throws UserWarningException If the supplied name is invalid.
+     */
+    ColumnarVariable(final ColumnarDatastore ds,
+                     final String name,
+                     final Argument type) throws UserWarningException {
+        this.datastore = ds;
+        this.setName(name);
+        this.type = copyArgument(type);
+        this.syncColumns();
+    }
+
+    /**
+     * Deep copies an argument, so that callers are free to modify the copy
+     * without changing the type of this variable.
+     *
+     * @param arg The argument to copy.
+     *
+     * @return The copy of the argument.
+     */
+    static Argument copyArgument(final Argument arg) {
+        Argument copy = new Argument(arg.name, arg.type, arg.id);
+
+        if (arg.type == Argument.Type.MATRIX) {
+            List<Argument> childArguments = new ArrayList<Argument>();
+
+            for (Argument child : arg.childArguments) {
+                childArguments.add(copyArgument(child));
+            }
+            copy.childArguments = childArguments;
+        }
+
+        return copy;
+    }
+
+    /**
+     * @return The datastore that this variable belongs to.
+     */
+    ColumnarDatastore getDatastore() {
+        return datastore;
+    }
+
+    /**
+     * @return The type of this variable, the result must not be modified.
+     */
+    Argument getType() {
+        return type;
+    }
+
+    /**
+     * @param row The row of the cell.
+     *
+     * @return The onset of the cell at the supplied row.
+     */
+    long getOnset(final int row) {
+        return onsets[row];
+    }
+
+    /**
+     * @param row The row of the cell.
+     * @param onset The new onset for the cell at the supplied row.
+     */
+    void setOnset(final int row, final long onset) {
+        onsets[row] = onset;
+        if (temporalIndex != null) {
+            temporalIndex.updateOnset(cells[row], onset);
+        }
+        changed();
+    }
+
+    /**
+     * @param row The row of the cell.
+     *
+     * @return The offset of the cell at the supplied row.
+     */
+    long getOffset(final int row) {
+        return offsets[row];
+    }
+
+    /**
+     * @param row The row of the cell.
+     * @param offset The new offset for the cell at the supplied row.
+     */
+    void setOffset(final int row, final long offset) {
+        offsets[row] = offset;
+        if (temporalIndex != null) {
+            temporalIndex.updateOffset(cells[row], offset);
+        }
+        changed();
+    }
+
+    /**
+     * @param row The row of the cell.
+     * @param column The value column (i.e. argument index) to fetch.
+     *
+     * @return The value held at the supplied row and column, null if empty.
+     */
+    String getValue(final int row, final int column) {
+        return datastore.getPool().get(values.get(column)[row]);
+    }
+
+    /**
+     * @param row The row of the cell.
+     * @param column The value column (i.e. argument index) to set.
+     * @param value The new value, null to clear.
+     */
+    void setValue(final int row, final int column, final String value) {
+        values.get(column)[row] = datastore.getPool().intern(value);
+        changed();
+    }
+
+    /**
+     * @return The number of value columns held by this variable.
+     */
+    int getColumnCount() {
+        return values.size();
+    }
+
+    /**
+     * Makes sure there is room for at least the specified number of cells.
+     *
+     * @param capacity The minimum number of cells to allocate room for.
+     */
+    private void ensureCapacity(final int capacity) {
+        if (capacity > cells.length) {
+            int newCapacity = Math.max(capacity, cells.length * 2);
+
+            cells = Arrays.copyOf(cells, newCapacity);
+            onsets = Arrays.copyOf(onsets, newCapacity);
+            offsets = Arrays.copyOf(offsets, newCapacity);
+
+            for (int i = 0; i < values.size(); i++) {
+                values.set(i, Arrays.copyOf(values.get(i), newCapacity));
+            }
+        }
+    }
+
+    /**
+     * Adds or removes value columns so that there is one for each argument of
+     * the current type.
+     */
+    private void syncColumns() {
+        int columns = 1;
+        if (type.type == Argument.Type.MATRIX) {
+            columns = type.childArguments.size();
+        }
+
+        while (values.size() < columns) {
+            int[] column = new int[cells.length];
+            Arrays.fill(column, 0, size, StringPool.NULL);
+            values.add(column);
+        }
+
+        while (values.size() > columns) {
+            values.remove(values.size() - 1);
+        }
+    }
+
+    /**
+     * Records a change to this variable or one of its cells, and marks the
+     * datastore as changed.
+     */
+    private void changed() {
+        version++;
+        datastore.markDBAsChanged();
+    }
+
+    /**
+     * Reads the cells of this variable from its source, if that hasn't been
+     * done already.
+     */
+    private void load() {
+        if (source != null) {
+            CellSource pending = source;
+            source = null;
+
+            try {
+                appendRows(pending.read());
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to load the cells of " + name + ".", e);
+            }
+        }
+    }
+
+    /**
+     * Appends one cell for each of the supplied rows, without notifying
+     * listeners or marking the datastore as changed.
+     *
+     * @param rows The rows to append.
+     *
+     * @return The row of the first appended cell.
+     */
+    private int appendRows(final CellRows rows) {
+        ensureCapacity(size + rows.size());
+
+        StringPool pool = datastore.getPool();
+        int first = size;
+        for (int i = 0; i < rows.size(); i++) {
+            int row = first + i;
+            cells[row] = new ColumnarCell(this, row, datastore.nextCellId());
+            datastore.getSelection().add(cells[row]);
+            onsets[row] = rows.getOnset(i);
+            offsets[row] = rows.getOffset(i);
+
+            for (int j = 0; j < values.size(); j++) {
+                values.get(j)[row] = pool.intern(rows.getValue(i, j));
+            }
+        }
+        size += rows.size();
+        temporalIndex = null;
+
+        return first;
+    }
+
+    /**
+     * @return The temporal index of the cells in this variable, rebuilt with
+     * a single sort if it has been invalidated.
+     */
+    private TemporalIndex<ColumnarCell> getTemporalIndex() {
+        load();
+
+        if (temporalIndex == null) {
+            List<ColumnarCell> sorted = new ArrayList<ColumnarCell>(size);
+            for (int i = 0; i < size; i++) {
+                sorted.add(cells[i]);
+            }
+            Collections.sort(sorted, ONSET_ORDER);
+
+            TemporalIndex<ColumnarCell> index = new TemporalIndex<ColumnarCell>(CREATION_ORDER);
+            for (ColumnarCell c : sorted) {
+                index.add(c, onsets[c.getRow()], offsets[c.getRow()]);
+            }
+            temporalIndex = index;
+        }
+
+        return temporalIndex;
+    }
+
+    @Override
+    public Cell createCell() {
+        load();
+        ensureCapacity(size + 1);
+
+        int row = size;
+        ColumnarCell c = new ColumnarCell(this, row, datastore.nextCellId());
+        cells[row] = c;
+        datastore.getSelection().add(c);
+        onsets[row] = 0L;
+        offsets[row] = 0L;
+        for (int[] column : values) {
+            column[row] = StringPool.NULL;
+        }
+        size++;
+        if (temporalIndex != null) {
+            temporalIndex.add(c, 0L, 0L);
+        }
+
+        for (VariableListener vl : listeners) {
+            vl.cellInserted(c);
+        }
+
+        changed();
+        return c;
+    }
+
+    @Override
+    public void insertCells(final CellRows rows) {
+        load();
+        int first = appendRows(rows);
+
+        for (VariableListener vl : listeners) {
+            for (int row = first; row < size; row++) {
+                vl.cellInserted(cells[row]);
+            }
+        }
+
+        changed();
+    }
+
+    @Override
+    public void replaceCells(final CellRows rows) {
+        ColumnarCell[] removed = detachAll();
+        appendRows(rows);
+
+        for (VariableListener vl : listeners) {
+            for (ColumnarCell c : removed) {
+                vl.cellRemoved(c);
+            }
+            for (int row = 0; row < size; row++) {
+                vl.cellInserted(cells[row]);
+            }
+        }
+
+        changed();
+    }
+
+    /**
+     * Removes every cell of this variable at once, notifying the listeners of
+     * each removed cell.
+     */
+    void removeAllCells() {
+        ColumnarCell[] removed = detachAll();
+
+        for (VariableListener vl : listeners) {
+            for (ColumnarCell c : removed) {
+                vl.cellRemoved(c);
+            }
+        }
+
+        changed();
+    }
+
+    /**
+     * Detaches every cell of this variable and empties it, without notifying
+     * any listeners.
+     *
+     * @return The cells that were detached, in creation order.
+     */
+    private ColumnarCell[] detachAll() {
+        load();
+        ColumnarCell[] removed = Arrays.copyOf(cells, size);
+        for (ColumnarCell c : removed) {
+            c.detach();
+            datastore.getSelection().remove(c);
+        }
+        Arrays.fill(cells, 0, size, null);
+        size = 0;
+        temporalIndex = null;
+
+        return removed;
+    }
+
+    @Override
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    public Object getVersionKey() {
+        return this;
+    }
+
+    @Override
+    public void setCellSource(final CellSource cellSource) {
+        source = cellSource;
+    }
+
+    @Override
+    public void removeCell(final Cell cell) {
+        load();
+
+        if (!contains(cell)) {
+            System.err.println("ERROR: Cell not found. Nothing deleted.");
+        } else {
+            ColumnarCell c = (ColumnarCell) cell;
+            if (temporalIndex != null) {
+                temporalIndex.remove(c);
+            }
+            int row = c.getRow();
+            c.detach();
+            datastore.getSelection().remove(c);
+
+            // Shift the following cells down to preserve creation order.
+            int moved = size - row - 1;
+            System.arraycopy(cells, row + 1, cells, row, moved);
+            System.arraycopy(onsets, row + 1, onsets, row, moved);
+            System.arraycopy(offsets, row + 1, offsets, row, moved);
+            for (int[] column : values) {
+                System.arraycopy(column, row + 1, column, row, moved);
+            }
+            size--;
+            cells[size] = null;
+
+            for (int i = row; i < size; i++) {
+                cells[i].setRow(i);
+            }
+        }
+
+        changed();
+
+        for (VariableListener vl : listeners) {
+            vl.cellRemoved(cell);
+        }
+    }
+
+    @Override
+    public List<Cell> getCells() {
+        load();
+        List<Cell> result = new ArrayList<Cell>(size);
+        for (int i = 0; i < size; i++) {
+            result.add(cells[i]);
+        }
+
+        return result;
+    }
+
+    @Override
+    public Cell getCellTemporally(final int index) {
+        return getTemporalIndex().get(index);
+    }
+
+    @Override
+    public Argument getVariableType() {
+        return copyArgument(type);
+    }
+
+    @Override
+    public void setVariableType(final Argument newType) {
+        // The source holds a column for each of the current arguments.
+        load();
+        type = copyArgument(newType);
+        syncColumns();
+        changed();
+    }
+
+    @Override
+    public List<Cell> getCellsTemporally() {
+        return new ArrayList<Cell>(getTemporalIndex().keys());
+    }
+
+    @Override
+    public List<Cell> getCellsOverlapping(final long from, final long to) {
+        return new ArrayList<Cell>(getTemporalIndex().overlapping(from, to));
+    }
+
+    @Override
+    public boolean contains(final Cell c) {
+        if (!(c instanceof ColumnarCell)) {
+            return false;
+        }
+
+        ColumnarCell cc = (ColumnarCell) c;
+        return cc.getVariable() == this && cc.getRow() >= 0;
+    }
+
+    @Override
+    public void setSelected(final boolean selected) {
+        this.selected = selected;
+        datastore.markDBAsChanged();
+    }
+
+    @Override
+    public boolean isSelected() {
+        return selected;
+    }
+
+    @Override
+    public void setHidden(final boolean hidden) {
+        this.hidden = hidden;
+        changed();
+
+        for (VariableListener vl : listeners) {
+            vl.visibilityChanged(hidden);
+        }
+    }
+
+    @Override
+    public boolean isHidden() {
+        return hidden;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void setName(final String newName) throws UserWarningException {
+        // Pre-conditions, the newName must have at least one character.
+        if (newName.length() < 1) {
+            throw new UserWarningException("Unable to add variable, a name must be supplied.");
+        }
+
+        // Pre-conditions, check to make sure newName doesn't contain invalid chars.
+        if (newName.contains("(") || newName.contains(")") || newName.contains("<") || newName.contains(">") || newName.contains(",") || newName.contains("\"")) {
+            throw new UserWarningException("Unable to add variable, name must not contain any: ') ( > < , \"'");
+        }
+
+        name = newName.trim();
+        changed();
+
+        for (VariableListener vl : listeners) {
+            vl.nameChanged(newName);
+        }
+    }
+
+    @Override
+    public Argument addArgument(final Argument.Type argType) {
+        Argument arg = getVariableType();
+        arg.addChildArgument(argType);
+
+        // Adds an empty value column for every cell in one step.
+        this.setVariableType(arg);
+
+        return arg.childArguments.get(arg.childArguments.size() - 1);
+    }
+
+    @Override
+    public void moveArgument(final int old_index, final int new_index) {
+        load();
+        Argument arg = getVariableType();
+
+        // Test to see if this is out of bounds
+        if (new_index > arg.childArguments.size() - 1 || new_index < 0) {
+            return;
+        }
+
+        Argument moved_arg = arg.childArguments.get(old_index);
+        arg.childArguments.remove(moved_arg);
+        arg.childArguments.add(new_index, moved_arg);
+
+        // Moving the value column moves the argument in all cells.
+        values.add(new_index, values.remove(old_index));
+        type = arg;
+        changed();
+    }
+
+    @Override
+    public void moveArgument(final String name, final int new_index) {
+        int old_index = getArgumentIndex(name);
+        moveArgument(old_index, new_index);
+    }
+
+    @Override
+    public void removeArgument(final String name) {
+        load();
+        Argument arg = getVariableType();
+        int arg_index = getArgumentIndex(name);
+        arg.childArguments.remove(arg_index);
+
+        // Dropping the value column removes the argument from all cells.
+        values.remove(arg_index);
+        type = arg;
+        changed();
+    }
+
+    @Override
+    public int getArgumentIndex(final String name) {
+        for (int i = 0; i < type.childArguments.size(); i++) {
+            if (type.childArguments.get(i).name.equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void addListener(final VariableListener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void removeListener(final VariableListener listener) {
+        listeners.remove(listener);
+    }
+}
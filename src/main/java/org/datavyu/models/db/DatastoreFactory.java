@@ -17,10 +17,39 @@ package org.datavyu.models.db;
 import org.datavyu.models.db.Datastore;
 
 /**
- * Factory for constructing new empty datastores.
+ * Factory for constructing new empty datastores. The datastore engine is
+ * selected with the 'datavyu.datastore' system property, either 'mongo' (the
+ * default) or 'columnar' for the in-process columnar datastore.
  */
 public class DatastoreFactory {
+
+    /** The system property used to select the datastore engine. */
+    public static final String ENGINE_PROPERTY = "datavyu.datastore";
+
+    /** The property value selecting the in-process columnar datastore. */
+    public static final String COLUMNAR_ENGINE = "columnar";
+
+    /**
+     * @return True if new datastores are backed by the in-process columnar
+     * engine, false if they are backed by mongo.
+     */
+    public static boolean isColumnar() {
+        return COLUMNAR_ENGINE.equalsIgnoreCase(System.getProperty(ENGINE_PROPERTY));
+    }
+
+    /**
+     * @return True if the variables of new datastores can load their cells
+     * lazily, see LazyLoadable. Mongo variables read all their cells up front.
+     */
+    public static boolean isLazyLoadable() {
+        return isColumnar();
+    }
+
     public static Datastore newDatastore() {
+        if (isColumnar()) {
+            return new ColumnarDatastore();
+        }
+
         return new MongoDatastore();
     }
 }
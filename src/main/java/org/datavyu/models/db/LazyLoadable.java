@@ -0,0 +1,34 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.models.db;
+
+/**
+ * A variable that is able to defer loading its cells until they are first
+ * queried. This is an optional capability alongside Variable, callers should
+ * check for it with instanceof and fall back to BulkLoadable or createCell
+ * otherwise.
+ */
+public interface LazyLoadable {
+
+    /**
+     * Sets where the cells of an empty variable come from. The cells are read
+     * from the source and inserted the first time they are needed, without
+     * notifying listeners or marking the datastore as changed, since they are
+     * the cells the variable already has.
+     *
+     * @param source The source of the cells of this variable.
+     */
+    void setCellSource(final CellSource source);
+}
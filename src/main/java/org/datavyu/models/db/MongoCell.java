@@ -14,9 +14,11 @@
  */
 package org.datavyu.models.db;
 
+import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
 import org.bson.types.ObjectId;
 import java.lang.Math;
 import java.util.*;
@@ -24,14 +26,45 @@ import org.datavyu.models.db.Argument;
 import org.datavyu.models.db.Cell;
 import org.datavyu.models.db.CellListener;
 import org.datavyu.models.db.Value;
+import org.datavyu.models.db.Variable;
+import org.datavyu.util.TimestampCodec;
 
 
+/**
+ * A cell stored in mongo. The value of the cell is embedded in the cell
+ * document so that a cell and its value load in a single fetch:
+ *
+ * - Nominal and text cells hold their value under "val".
+ * - Matrix cells hold their arguments as a list under "args".
+ *
+ * Each embedded value holds "value", "name", "index" and "type" (the ordinal
+ * of its Argument.Type). The order of matrix arguments is given by their
+ * "index", which need not match their position in the stored list since
+ * MongoVariable reorders arguments in place across all cells at once.
+ */
 public class MongoCell extends BasicDBObject implements Cell {
-    DBCollection matrix_value_collection = MongoDatastore.getDB().getCollection("matrix_values");
-    DBCollection nominal_value_collection = MongoDatastore.getDB().getCollection("nominal_values");
-    DBCollection text_value_collection = MongoDatastore.getDB().getCollection("text_values");
-    
-    BasicDBObject index = new BasicDBObject("onset", 1);
+    // The field holding the value of a nominal or text cell.
+    static final String VALUE_FIELD = "val";
+
+    // The field holding the ordered arguments of a matrix cell.
+    static final String ARGS_FIELD = "args";
+
+    // The field holding the content of the matrix itself.
+    static final String MATRIX_VALUE_FIELD = "matrix_value";
+
+    // The name of the collection holding cells.
+    private static final String COLLECTION = "cells";
+
+    // Orders embedded argument documents by their index.
+    private static final Comparator<Object> INDEX_ORDER = new Comparator<Object>() {
+        @Override
+        public int compare(final Object o1, final Object o2) {
+            return (Integer) ((DBObject) o1).get("index") - (Integer) ((DBObject) o2).get("index");
+        }
+    };
+
+    // The type of the variable holding this cell, null until known.
+    private transient Argument variableType;
 
     static Map<ObjectId, List<CellListener>> allListeners = new
                                         HashMap<ObjectId, List<CellListener>>();
@@ -59,58 +92,218 @@ public class MongoCell extends BasicDBObject implements Cell {
         this.put("onset", 0L);
         this.put("offset", 0L);
         this.put("type", type.type.ordinal());
-        this.put("selected", true);
-        this.put("highlighted", true);
-
 
+        // Build the embedded value from the argument given
+        if (type.type == Argument.Type.MATRIX) {
+            BasicDBList args = new BasicDBList();
+            for (int i = 0; i < type.childArguments.size(); i++) {
+                args.add(embeddedValue(Argument.Type.NOMINAL,
+                                       String.format("arg%02d", i + 1), i, null));
+            }
+            this.put(ARGS_FIELD, args);
+        } else {
+            this.put(VALUE_FIELD, embeddedValue(type.type, "val", -1, null));
+        }
 
         // Necessary to be given an _id by Mongo
         this.save();
+        MongoDatastore.getCellSelection().add(getID());
+    }
 
-        // Build argument list from the argument given
+    /**
+     * Builds a value document for embedding in a cell.
+     *
+     * @param type The type of the value.
+     * @param name The name of the value.
+     * @param index The index of the value within its matrix, -1 if the value
+     * is not within a matrix.
+     * @param content The content of the value, null if empty.
+     *
+     * @return The value document.
+     */
+    static BasicDBObject embeddedValue(final Argument.Type type,
+                                       final String name,
+                                       final int index,
+                                       final String content) {
+        BasicDBObject value = new BasicDBObject();
+        value.put("value", content);
+        value.put("name", name);
+        value.put("index", index);
+        value.put("type", type.ordinal());
 
-        if (type.type == Argument.Type.NOMINAL) {
-            nominal_value_collection.save(new MongoNominalValue((ObjectId)this.get("_id")));
-        } else if (type.type == Argument.Type.TEXT) {
-            text_value_collection.save(new MongoTextValue((ObjectId)this.get("_id")));
+        return value;
+    }
+
+    /**
+     * Wraps an embedded value document so that it can be used as a Value.
+     */
+    private MongoValue wrap(final DBObject doc) {
+        MongoValue value;
+        if ((Integer) doc.get("type") == Argument.Type.TEXT.ordinal()) {
+            value = new MongoTextValue();
         } else {
-            matrix_value_collection.save(new MongoMatrixValue((ObjectId)this.get("_id"), type));
+            value = new MongoNominalValue();
         }
+
+        value.putAll(doc);
+        value.attach(this);
+
+        return value;
     }
 
-    public void save() {
-        MongoDatastore.getCellCollection().save(this);
+    /**
+     * Sets the type of the variable that holds this cell, so that values can
+     * name their arguments without looking up the variable.
+     *
+     * @param type The type of the variable, null to look it up when needed.
+     */
+    void setVariableType(final Argument type) {
+        variableType = type;
+    }
+
+    /**
+     * @return The type of the variable that holds this cell, as given by the
+     * variable that loaded the cell, or looked up once if none was.
+     */
+    Argument getVariableType() {
+        if (variableType == null) {
+            variableType = ((Variable) MongoDatastore.getVariableCollection()
+                                                     .findOne(getVariableID())).getVariableType();
+        }
+
+        return variableType;
+    }
+
+    /**
+     * @return The list of embedded argument documents of a matrix cell,
+     * ordered so that each argument is at the position given by its index.
+     */
+    @SuppressWarnings("unchecked")
+    private List<Object> getArgumentDocs() {
+        List<Object> args = (List<Object>) this.get(ARGS_FIELD);
+        Collections.sort(args, INDEX_ORDER);
+
+        return args;
+    }
+
+    /**
+     * @return The arguments of a matrix cell, in order.
+     */
+    List<MongoValue> getEmbeddedArguments() {
+        List<MongoValue> result = new ArrayList<MongoValue>();
+        for (Object doc : getArgumentDocs()) {
+            result.add(wrap((DBObject) doc));
+        }
+
+        return result;
+    }
+
+    /**
+     * Records a change to a single field of this cell, the change is written
+     * to the datastore in the background by MongoWriteBehind.
+     */
+    private void saveLater(final String field, final Object content) {
+        this.put(field, content);
+        MongoWriteBehind.set(COLLECTION, getID(), field, content);
+        MongoVariable.changed(getVariableID());
         MongoDatastore.markDBAsChanged();
     }
-    
-    public ObjectId getVariableID() {
-        return (ObjectId) this.get("variable_id");
+
+    /**
+     * Writes a single field of the cell document to the datastore.
+     */
+    private void saveField(final String field, final Object content) {
+        MongoDatastore.getCellCollection().update(new BasicDBObject("_id", getID()),
+                new BasicDBObject("$set", new BasicDBObject(field, content)));
+        MongoVariable.changed(getVariableID());
+        MongoDatastore.markDBAsChanged();
+    }
+
+    /**
+     * Writes an embedded value back into this cell.
+     *
+     * @param value The value that has changed.
+     */
+    void saveValue(final MongoValue value) {
+        BasicDBObject doc = new BasicDBObject(value.toMap());
+        int index = value.getIndex();
+
+        if (index < 0) {
+            this.put(VALUE_FIELD, doc);
+            saveField(VALUE_FIELD, doc);
+        } else {
+            getArgumentDocs().set(index, doc);
+
+            // The stored list may be in a different order, so match the
+            // argument by its index.
+            BasicDBObject query = new BasicDBObject("_id", getID());
+            query.put(ARGS_FIELD + ".index", index);
+            MongoDatastore.getCellCollection().update(query,
+                    new BasicDBObject("$set", new BasicDBObject(ARGS_FIELD + ".$", doc)));
+            MongoVariable.changed(getVariableID());
+            MongoDatastore.markDBAsChanged();
+        }
+    }
+
+    /**
+     * Writes the content of the matrix itself back into this cell.
+     *
+     * @param matrix The matrix value that has changed.
+     */
+    void saveMatrixValue(final MongoMatrixValue matrix) {
+        this.put(MATRIX_VALUE_FIELD, matrix.get("value"));
+        saveField(MATRIX_VALUE_FIELD, matrix.get("value"));
     }
 
-    private String convertMStoTimestamp(long time) {
-        long hours = Math.round(Math.floor((time/1000.0/60.0/60.0)));
-        long minutes = Math.round(Math.floor(time/1000.0/60.0 - (hours * 60)));
-        long seconds = Math.round(Math.floor(time/1000.0 - (hours*60*60) - (minutes * 60)));
-        long mseconds = Math.round(Math.floor(time - (hours *60*60*1000) - (minutes*60*1000) - (seconds*1000)));
+    /**
+     * Appends an empty argument to the matrix held by this cell.
+     *
+     * @param type The type of the argument to append.
+     *
+     * @return The new argument.
+     */
+    MongoValue appendArgument(final Argument.Type type) {
+        List<Object> args = getArgumentDocs();
+        BasicDBObject doc = embeddedValue(type,
+                                          String.format("arg%02d", args.size() + 1),
+                                          args.size(), null);
+        args.add(doc);
+
+        MongoDatastore.getCellCollection().update(new BasicDBObject("_id", getID()),
+                new BasicDBObject("$push", new BasicDBObject(ARGS_FIELD, doc)));
+        MongoVariable.changed(getVariableID());
+        MongoDatastore.markDBAsChanged();
 
-        return String.format("%02d:%02d:%02d:%03d", hours, minutes, seconds, mseconds);
+        return wrap(doc);
     }
 
-    private long convertTimestampToMS(String timestamp) {
+    /**
+     * Writes the whole argument list back into this cell after renumbering
+     * each argument with its position.
+     */
+    private void saveArguments(final List<Object> args) {
+        for (int i = 0; i < args.size(); i++) {
+            ((DBObject) args.get(i)).put("index", i);
+        }
 
-        String[] s = timestamp.split(":");
-        long hours = Long.valueOf(s[0]) * 60 * 60 * 1000;
-        long minutes = Long.valueOf(s[1]) * 60 * 1000;
-        long seconds = Long.valueOf(s[2]) * 1000;
-        long mseconds = Long.valueOf(s[3]);
+        saveField(ARGS_FIELD, args);
+    }
 
-        return hours + minutes + seconds + mseconds;
+    public void save() {
+        MongoWriteBehind.flush();
+        MongoDatastore.getCellCollection().save(this);
+        MongoVariable.changed(getVariableID());
+        MongoDatastore.markDBAsChanged();
+    }
+    
+    public ObjectId getVariableID() {
+        return (ObjectId) this.get("variable_id");
     }
 
 
     @Override
     public String getOffsetString() {
-        return convertMStoTimestamp((Long) this.get("offset"));
+        return TimestampCodec.format((Long) this.get("offset"));
     }
 
     @Override
@@ -120,6 +313,7 @@ public class MongoCell extends BasicDBObject implements Cell {
     
     @Override 
     public Cell getFreshCell() {
+        MongoWriteBehind.flush();
         DBCollection cell_collection = MongoDatastore.getDB().getCollection("cells");
         BasicDBObject query = new BasicDBObject();
 
@@ -136,8 +330,8 @@ public class MongoCell extends BasicDBObject implements Cell {
 
     @Override
     public void setOffset(final long newOffset) {
-        this.put("offset", newOffset);
-        this.save();
+        saveLater("offset", newOffset);
+        MongoVariable.offsetChanged(getVariableID(), getID(), newOffset);
 
         for(CellListener cl : getListeners(getID())) {
             cl.offsetChanged(newOffset);
@@ -146,13 +340,7 @@ public class MongoCell extends BasicDBObject implements Cell {
 
     @Override
     public void setOffset(final String newOffset) {
-        this.put("offset", convertTimestampToMS(newOffset));
-        MongoDatastore.getCellCollection().ensureIndex(index);
-        this.save();
-
-        for(CellListener cl : getListeners(getID())) {
-            cl.offsetChanged(convertTimestampToMS(newOffset));
-        }
+        setOffset(TimestampCodec.parse(newOffset));
     }
 
     @Override
@@ -162,23 +350,18 @@ public class MongoCell extends BasicDBObject implements Cell {
 
     @Override
     public String getOnsetString() {
-        return convertMStoTimestamp((Long) this.get("onset"));
+        return TimestampCodec.format((Long) this.get("onset"));
     }
 
     @Override
     public void setOnset(final String newOnset) {
-        this.put("onset", convertTimestampToMS(newOnset));
-        this.save();
-
-        for(CellListener cl : getListeners(getID())) {
-            cl.onsetChanged(convertTimestampToMS(newOnset));
-        }
+        setOnset(TimestampCodec.parse(newOnset));
     }
 
     @Override
     public void setOnset(final long newOnset) {
-        this.put("onset", newOnset);
-        this.save();
+        saveLater("onset", newOnset);
+        MongoVariable.onsetChanged(getVariableID(), getID(), newOnset);
 
         for(CellListener cl : getListeners(getID()) ) {
             cl.onsetChanged(newOnset);
@@ -192,47 +375,34 @@ public class MongoCell extends BasicDBObject implements Cell {
 
     @Override
     public Value getValue() {
-        Value value = null;
-        BasicDBObject query = new BasicDBObject();
-        query.put("parent_id", this.get("_id"));
-
-        if((Integer)this.get("type") == Argument.Type.MATRIX.ordinal()) {
-            DBCursor cur = matrix_value_collection.find(query);
-            if(cur.hasNext()) {
-                value = (MongoMatrixValue)cur.next();
-            }
-        } else if((Integer) this.get("type") == Argument.Type.NOMINAL.ordinal()) {
-            DBCursor cur = nominal_value_collection.find(query);
-            if(cur.hasNext()) {
-                value = (MongoNominalValue)cur.next();
-            }
-        } else if((Integer) this.get("type") == Argument.Type.TEXT.ordinal()) {
-            DBCursor cur = text_value_collection.find(query);
-            if(cur.hasNext()) {
-                value = (MongoTextValue)cur.next();
-            }
+        if ((Integer) this.get("type") == Argument.Type.MATRIX.ordinal()) {
+            return new MongoMatrixValue(this);
         }
 
-        return value;
+        return wrap((DBObject) this.get(VALUE_FIELD));
     }
 
     @Override
     public boolean isSelected() {
-        MongoCell dbCell = (MongoCell) MongoDatastore.getCellCollection().findOne((ObjectId) this.get("_id"));
-        return (Boolean) dbCell.get("selected");
+        return MongoDatastore.getCellSelection().isSelected(getID());
     }
 
     @Override
     public void setSelected(final boolean selected) {
-        this.put("selected", selected);
-
-        // If a cell is deselected, it must also not be highlighted.
-        if (!selected) {
-            this.put("highlighted", false);
-        }
-        this.save();
+        // If a cell is deselected, it is also no longer highlighted.
+        MongoDatastore.getCellSelection().setSelected(getID(), selected);
+        MongoDatastore.markDBAsChanged();
+        fireSelectionChange(getID(), selected);
+    }
 
-        for(CellListener cl : getListeners(getID()) ) {
+    /**
+     * Notifies the listeners of a cell that its selection has changed.
+     *
+     * @param cellId The ID of the cell.
+     * @param selected True if the cell is now selected.
+     */
+    static void fireSelectionChange(final ObjectId cellId, final boolean selected) {
+        for(CellListener cl : getListeners(cellId) ) {
             cl.selectionChange(selected);
 	    if(!selected) {
 		cl.highlightingChange(false);
@@ -242,19 +412,14 @@ public class MongoCell extends BasicDBObject implements Cell {
 
     @Override
     public boolean isHighlighted() {
-        MongoCell dbCell = (MongoCell) MongoDatastore.getCellCollection().findOne((ObjectId) this.get("_id"));
-        return (Boolean) dbCell.get("highlighted");
+        return MongoDatastore.getCellSelection().isHighlighted(getID());
     }
 
     @Override
     public void setHighlighted(final boolean highlighted) {
-        this.put("highlighted", highlighted);
-
-        // If the cell is highlighted, it must also be selected.
-        if (highlighted) {
-            this.put("selected", highlighted);
-        }
-        this.save();
+        // If the cell is highlighted, it is also selected.
+        MongoDatastore.getCellSelection().setHighlighted(getID(), highlighted);
+        MongoDatastore.markDBAsChanged();
 
         for(CellListener cl : getListeners(getID()) ) {
             cl.highlightingChange(highlighted);
@@ -263,50 +428,46 @@ public class MongoCell extends BasicDBObject implements Cell {
     
     @Override
     public void addMatrixValue(final Argument.Type type) {
-        MongoMatrixValue val = (MongoMatrixValue)getValue();
-        val.createArgument(type);
-        val.save();
+        appendArgument(type);
     }
     
     @Override
     public void moveMatrixValue(final int old_index, int new_index){
-        MongoMatrixValue val = (MongoMatrixValue)getValue();
-        List<Value> values = val.getArguments();
-        Value v = values.get(old_index);
-        
-        values.remove(old_index);
-        values.add(new_index, v);
-        
-        for(int i = 0; i < values.size(); i++) {
-            ((MongoValue)values.get(i)).setIndex(i);
-        }
-        val.save();
+        List<Object> args = getArgumentDocs();
+        Object v = args.remove(old_index);
+        args.add(new_index, v);
+        saveArguments(args);
     }
     
     @Override
     public void removeMatrixValue(final int index) {
-        ((MongoMatrixValue)getValue()).removeArgument(index);
+        removeArgument(index);
+    }
+
+    /**
+     * Removes an argument from the matrix held by this cell.
+     *
+     * @param index The index of the argument to remove.
+     */
+    void removeArgument(final int index) {
+        List<Object> args = getArgumentDocs();
+        args.remove(index);
+        saveArguments(args);
     }
     
     @Override
     public void setMatrixValue(final int index, final String v) {
-        MongoMatrixValue val = (MongoMatrixValue)getValue();
-        List<Value> values = val.getArguments();
-        values.get(index).set(v);
-        val.save();
+        getMatrixValue(index).set(v);
     }
     
     @Override
     public Value getMatrixValue(final int index) {
-        return ((MongoMatrixValue)getValue()).getArguments().get(index);
+        return wrap((DBObject) getArgumentDocs().get(index));
     }
     
     @Override
     public void clearMatrixValue(final int index) {
-        MongoMatrixValue val = (MongoMatrixValue)getValue();
-        List<Value> values = val.getArguments();
-        values.get(index).clear();
-        val.save();
+        getMatrixValue(index).clear();
     }
 
     @Override
@@ -33,17 +33,21 @@ import java.net.ServerSocket;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.filefilter.RegexFileFilter;
 import org.apache.commons.io.filefilter.TrueFileFilter;
+import org.bson.types.ObjectId;
 import org.datavyu.Datavyu;
 import org.datavyu.util.NativeLoader;
 
 /**
  * Acts as a connector between Datavyu and a MongoDB instance.
  */
-public class MongoDatastore implements Datastore {
+public class MongoDatastore implements Datastore, OverlapQueryable, BufferedWrites, ReportsProgress {
 
     // The logger for the mongo datastore -- Can't use in startMongo because
     // UserMetrix has not been initalised yet
@@ -55,18 +59,45 @@ public class MongoDatastore implements Datastore {
     // Only a single instance of the mongo driver exists.
     private static Mongo mongoDriver = null;
 
-    // Only a single instance of the mongo DB exists.
+    // The database of the current datastore.
     private static DB mongoDB = null;
 
+    // The prefix of the name of the database of each datastore.
+    private static final String DATABASE_PREFIX = "datavyu";
+
+    // The number of databases opened since mongo was started.
+    private static int databases = 0;
+
+    // The data directory of the mongo executable.
+    private static File dataDir;
+
     // The current status of the database.
     private static boolean running = false;
 
+    // How many ports to try before giving up on starting mongo.
+    private static final int MAX_START_ATTEMPTS = 3;
+
+    // How long to wait for mongo to start or stop, in milliseconds.
+    private static final long START_TIMEOUT = 30000;
+    private static final long STOP_TIMEOUT = 10000;
+
+    // The shortest and longest waits between checks on the mongo process.
+    private static final long INITIAL_BACKOFF = 10;
+    private static final long MAX_BACKOFF = 500;
+
     // Name of the datastore - does not need to persist - is used for file names.
     private String name = "untitled";
 
     // The notifier to ping when the application's title changes.
     private static TitleNotifier titleNotifier = null;
 
+    // The selected and highlighted cells, held in memory rather than in mongo.
+    private static CellSelection<ObjectId> cellSelection = new CellSelection<ObjectId>();
+
+    // The listeners to notify of progress in long running operations.
+    private static List<ProgressListener> progressListeners =
+        new CopyOnWriteArrayList<ProgressListener>();
+
     // Has tbhe datastore changed since it has last been marked as unchanged?
     private static boolean changed;
     
@@ -84,59 +115,83 @@ public class MongoDatastore implements Datastore {
             this.startMongo();
         }
 
-        // Clear documents if any.
-        DBCollection varCollection = mongoDB.getCollection("variables");
-        DBCursor varCursor = varCollection.find();
-        while (varCursor.hasNext()) {
-            varCollection.remove(varCursor.next());
-        }
+        // Discard any changes still to be written to the previous database.
+        MongoWriteBehind.discard();
+        openDatabase();
 
+        // Clear variable listeners.
+        MongoVariable.clearListeners();
+        MongoVariable.clearTemporalIndexes();
+        MongoVariable.clearVersions();
+        cellSelection = new CellSelection<ObjectId>();
+        MongoDatastore.changed = false;
+    }
+
+    /**
+     * Switches to a new, empty database, whose collections are indexed once
+     * here. The database of the previous datastore is dropped, which takes
+     * the same time no matter how large its project was.
+     *
+     * Only the most recent datastore has a database. Its state is held
+     * statically and shared with MongoVariable and MongoCell, so datastores
+     * within one process can not be used side by side.
+     */
+    private static void openDatabase() {
+        DB previous = mongoDB;
+        mongoDB = mongoDriver.getDB(DATABASE_PREFIX + databases++);
+
+        mongoDB.getCollection("variables").setObjectClass(MongoVariable.class);
         DBCollection cellCollection = mongoDB.getCollection("cells");
-        DBCursor cellCursor = cellCollection.find();
-        while (cellCursor.hasNext()) {
-            cellCollection.remove(cellCursor.next());
-        }
+        cellCollection.setObjectClass(MongoCell.class);
 
-        // Place indexes on the cell collection for fast querying
+        // Place indexes on the cell collection for fast querying - cells are
+        // looked up by variable in temporal order and by time.
         BasicDBObject cell_index = new BasicDBObject();
         cell_index.put("variable_id", 1);
         cell_index.put("onset", 1);
-
         cellCollection.ensureIndex(cell_index);
 
-        cellCollection.ensureIndex(new BasicDBObject("variable_id", 1));
-        cellCollection.ensureIndex(new BasicDBObject("onset", 1));
-        cellCollection.ensureIndex(new BasicDBObject("offset", 1));
-
         cell_index = new BasicDBObject();
         cell_index.put("onset", 1);
         cell_index.put("offset", 1);
         cellCollection.ensureIndex(cell_index);
 
-        DBCollection matrixCollection = mongoDB.getCollection("matrix_values");
-        DBCursor matrixCursor = matrixCollection.find();
-        while (matrixCursor.hasNext()) {
-            matrixCollection.remove(matrixCursor.next());
-        }
-        matrixCollection.ensureIndex(new BasicDBObject("parent_id", 1));
+        cellCollection.ensureIndex(new BasicDBObject("offset", 1));
 
-        DBCollection nominalCollection = mongoDB.getCollection("nominal_values");
-        DBCursor nominalCursor = nominalCollection.find();
-        while (nominalCursor.hasNext()) {
-            nominalCollection.remove(nominalCursor.next());
+        if (previous != null) {
+            previous.dropDatabase();
         }
-        nominalCollection.ensureIndex(new BasicDBObject("parent_id", 1));
+    }
+
+    /**
+     * @return The selection state of the cells in the datastore.
+     */
+    static CellSelection<ObjectId> getCellSelection() {
+        return cellSelection;
+    }
 
-        DBCollection textCollection = mongoDB.getCollection("text_values");
-        DBCursor textCursor = textCollection.find();
-        while (textCursor.hasNext()) {
-            textCollection.remove(textCursor.next());
+    /**
+     * Notifies the progress listeners that a long running operation has made
+     * progress.
+     *
+     * @param task A description of the operation.
+     * @param done The number of steps of the operation that are complete.
+     * @param total The total number of steps in the operation.
+     */
+    static void reportProgress(final String task, final int done, final int total) {
+        for (ProgressListener pl : progressListeners) {
+            pl.progressChanged(task, done, total);
         }
-        textCollection.ensureIndex(new BasicDBObject("parent_id", 1));
+    }
 
-        // Clear variable listeners.
-        MongoVariable.clearListeners();
-        MongoDatastore.changed = false;
+    @Override
+    public void addProgressListener(final ProgressListener listener) {
+        progressListeners.add(listener);
+    }
+
+    @Override
+    public void removeProgressListener(final ProgressListener listener) {
+        progressListeners.remove(listener);
     }
 
     public static void markDBAsChanged() {
@@ -184,92 +239,189 @@ public class MongoDatastore implements Datastore {
 		System.out.println("ERROR: Could not find mongod");
 	    }
 	    
-//            File f = new File(mongoDir + "/mongodb-osx-x86_64-2.0.2/bin/mongod");
-//            f.setExecutable(true);
-
-            // Spin up a new mongo instance.
-            File mongoD = new File(mongoDir);
-//            int port = findFreePort(27019);
-	    int port = 27019;
-            
-            
-            // Try to shut down the server if it is already running
-            try {
-                mongoDriver = new Mongo("127.0.0.1", port);
-                DB db = mongoDriver.getDB("admin");
-                db.command(new BasicDBObject( "shutdownServer" , 1  ));
-            } catch (Exception e) {
-                e.printStackTrace();
+            // Spin up a new mongo instance on a port and data directory of
+            // its own, so that several copies of Datavyu can run side by side.
+            // If another instance grabs the port between finding it and the
+            // server binding to it, try again with a different port.
+            for (int attempt = 1; !running; attempt++) {
+                int port = findFreePort();
+                dataDir = createDataDir();
+                mongoProcess = null;
+                mongoDriver = null;
+
+                try {
+                    mongoProcess = new ProcessBuilder(f.getAbsolutePath(),
+                                                      "--dbpath", dataDir.getAbsolutePath(),
+                                                      "--logpath", new File(dataDir, "mongod.log").getAbsolutePath(),
+                                                      "--bind_ip", "127.0.0.1",
+                                                      "--port", String.valueOf(port),
+                                                      "--nohttpinterface",
+                                                      // The datastore is scratch space, cleared whenever
+                                                      // a project is opened, skip the journal and file
+                                                      // preallocation to get going quicker.
+                                                      "--nojournal",
+                                                      "--noprealloc",
+                                                      "--smallfiles").start();
+
+                    System.out.println("Starting mongo driver on port " + port + ".");
+                    mongoDriver = new Mongo("127.0.0.1", port);
+                    running = waitUntilReady();
+                } finally {
+                    if (!running) {
+                        // Whether the attempt timed out or threw, stop what
+                        // it started and remove its data directory.
+                        abandonStart();
+                    }
+                }
+
+                if (!running) {
+                    System.err.println("Mongo did not start on port " + port + ".");
+                    if (attempt == MAX_START_ATTEMPTS) {
+                        return;
+                    }
+                }
             }
 
-            mongoProcess = new ProcessBuilder(f.getAbsolutePath(),
-                                              "--dbpath", mongoD.getAbsolutePath(),
-                                              "--bind_ip", "127.0.0.1",
-                                              "--port", String.valueOf(port),
-                                              "--directoryperdb").start();
-//            InputStream in = mongoProcess.getInputStream();
-//            InputStreamReader isr = new InputStreamReader(in);
+        } catch (Exception e) {
+            System.err.println("Unable to fire up the mongo datastore.");
+            e.printStackTrace();
+        }
+    }
 
-            System.out.println("Starting mongo driver.");
-            mongoDriver = new Mongo("127.0.0.1", port);
-	   
-            System.out.println("Getting DB");
+    /**
+     * @return A port on the loopback interface that is not in use, as chosen
+     * by the operating system.
+     *
+     * @throws IOException If unable to open a socket to find a port.
+     */
+    public static int findFreePort() throws IOException {
+        ServerSocket server = new ServerSocket(0);
+        try {
+            return server.getLocalPort();
+        } finally {
+            server.close();
+        }
+    }
 
-            // Start with a clean DB
-            mongoDB = mongoDriver.getDB("datavyu");
+    /**
+     * @return A new, empty directory for the mongo server to keep its data in.
+     *
+     * @throws IOException If unable to create the directory.
+     */
+    private static File createDataDir() throws IOException {
+        File dir = File.createTempFile("datavyu-mongo", "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Unable to create " + dir.getAbsolutePath());
+        }
 
-            DBCollection varCollection = mongoDB.getCollection("variables");
-            varCollection.setObjectClass(MongoVariable.class);
+        return dir;
+    }
 
-            DBCollection cellCollection = mongoDB.getCollection("cells");
-            cellCollection.setObjectClass(MongoCell.class);
+    /**
+     * Pings the mongo server, backing off exponentially between attempts,
+     * until it answers, the process dies or START_TIMEOUT has passed.
+     *
+     * @return True if the server is ready to take queries, false otherwise.
+     */
+    private static boolean waitUntilReady() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + START_TIMEOUT;
+        long backoff = INITIAL_BACKOFF;
 
-            DBCollection matrixCollection = mongoDB.getCollection("matrix_values");
-            matrixCollection.setObjectClass(MongoMatrixValue.class);
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                if (mongoDriver.getDB("admin").command("ping").ok()) {
+                    return true;
+                }
+            } catch (MongoException e) {
+                // Not listening yet.
+            }
 
-            DBCollection nominalCollection = mongoDB.getCollection("nominal_values");
-            nominalCollection.setObjectClass(MongoNominalValue.class);
+            if (hasExited(mongoProcess)) {
+                return false;
+            }
 
-            DBCollection textCollection = mongoDB.getCollection("text_values");
-            textCollection.setObjectClass(MongoTextValue.class);
+            Thread.sleep(backoff);
+            backoff = Math.min(backoff * 2, MAX_BACKOFF);
+        }
 
+        return false;
+    }
 
+    /**
+     * @param process The process to check.
+     *
+     * @return True if the process has exited, false if it is still running.
+     */
+    private static boolean hasExited(final Process process) {
+        try {
+            process.exitValue();
+            return true;
+        } catch (IllegalThreadStateException e) {
+            return false;
+        }
+    }
 
-            System.out.println("Got DB");
-            running = true;
+    /**
+     * Cleans up after a failed attempt to start the mongo server, killing the
+     * process if it was started and removing its data directory.
+     */
+    private static void abandonStart() {
+        if (mongoProcess != null) {
+            mongoProcess.destroy();
+            try {
+                // The data directory can't be removed on Windows until the
+                // process has let go of its files.
+                mongoProcess.waitFor();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
 
-        } catch (Exception e) {
-            System.err.println("Unable to fire up the mongo datastore.");
-            e.printStackTrace();
+        if (mongoDriver != null) {
+            mongoDriver.close();
         }
+        FileUtils.deleteQuietly(dataDir);
     }
 
-    public static int findFreePort(int port) throws IOException {
-      int free_port = 0;
-      while (free_port == 0) {
-          try {
-              ServerSocket server = new ServerSocket(port);
-              server.close();
+    /**
+     * Waits for the mongo process to exit, backing off exponentially between
+     * checks, and kills it if it has not gone by STOP_TIMEOUT. The data
+     * directory of the process is then removed.
+     */
+    private static void shutdownProcess() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + STOP_TIMEOUT;
+        long backoff = INITIAL_BACKOFF;
 
-              free_port = port;
-          } catch (IOException io) {
-              port += 1;
-          }
-      }
-      return free_port;
+        while (!hasExited(mongoProcess) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(backoff);
+            backoff = Math.min(backoff * 2, MAX_BACKOFF);
+        }
+
+        mongoProcess.destroy();
+        mongoDriver.close();
+        FileUtils.deleteQuietly(dataDir);
     }
 
     public static void stopMongo() {
+        // Mongo was never started (i.e. the columnar datastore is in use), or
+        // failed to start and has already been cleaned up.
+        if (mongoProcess == null || !running) {
+            return;
+        }
+
+        running = false;
+        mongoDB = null;
         try {
-            DB db = mongoDriver.getDB("admin");
-            db.command(new BasicDBObject( "shutdownServer" , 1  ));
-            running = false;
-            mongoDriver.close();
-            
-            // Sleep for just a little bit before closing. Let everything
-            // finish.
-            Thread.sleep(2000);
-            mongoProcess.destroy();
+            // The server drops the connection as it shuts down, which the
+            // driver reports as an error.
+            try {
+                DB db = mongoDriver.getDB("admin");
+                db.command(new BasicDBObject( "shutdownServer" , 1  ));
+            } catch (MongoException e) {
+                // Expected, the process exiting is the acknowledgement.
+            }
+
+            shutdownProcess();
         } catch (Exception e) {
 //            LOGGER.error("Unable to cleanly take down mongo. Maybe it was already taken down?", e);
             e.printStackTrace();
@@ -288,19 +440,25 @@ public class MongoDatastore implements Datastore {
     public static DBCollection getVariableCollection() {
         return mongoDB.getCollection("variables");
     }
-    public static DBCollection getMatrixValuesCollection() {
-        return mongoDB.getCollection("matrix_values");
-    }
-    public static DBCollection getNominalValuesCollection() {
-        return mongoDB.getCollection("nominal_values");
+
+    @Override
+    public void flush() {
+        MongoWriteBehind.flush();
     }
-    public static DBCollection getTextValuesCollection() {
-        return mongoDB.getCollection("text_values");
+
+    @Override
+    public List<Cell> getCellsOverlapping(final long from, final long to) {
+        List<Cell> cells = new ArrayList<Cell>();
+        for (Variable v : getAllVariables()) {
+            cells.addAll(((MongoVariable) v).getCellsOverlapping(from, to));
+        }
+
+        return cells;
     }
 
     @Override
     public List<Variable> getAllVariables() {
-
+        MongoWriteBehind.flush();
         DBCollection varCollection = mongoDB.getCollection("variables");
         BasicDBObject query = new BasicDBObject();
         query.put("_id", true);
@@ -317,6 +475,7 @@ public class MongoDatastore implements Datastore {
 
     @Override
     public List<Variable> getSelectedVariables() {
+        MongoWriteBehind.flush();
         List<Variable> selectedVariables = new ArrayList<Variable>();
 
         DBCollection varCollection = mongoDB.getCollection("variables");
@@ -333,6 +492,7 @@ public class MongoDatastore implements Datastore {
 
     @Override
     public void clearVariableSelection() {
+        MongoWriteBehind.flush();
         DBCollection varCollection = mongoDB.getCollection("variables");
         BasicDBObject query = new BasicDBObject();
         query.put("selected", true);
@@ -346,15 +506,37 @@ public class MongoDatastore implements Datastore {
 
     @Override
     public List<Cell> getSelectedCells() {
-        List<Cell> selectedCells = new ArrayList<Cell>();
+        List<ObjectId> ids = cellSelection.getSelected();
+        List<Cell> selectedCells = new ArrayList<Cell>(ids.size());
+        if (ids.isEmpty()) {
+            return selectedCells;
+        }
 
+        // Fetch just the selected cells, in the order they were selected.
+        MongoWriteBehind.flush();
         DBCollection cellCollection = mongoDB.getCollection("cells");
-        BasicDBObject query = new BasicDBObject();
-        query.put("selected", true);
+        BasicDBObject query = new BasicDBObject("_id", new BasicDBObject("$in", ids));
         DBCursor cellCursor = cellCollection.find(query);
 
+        // The selection may span variables, each type is looked up once.
+        Map<ObjectId, Cell> byId = new HashMap<ObjectId, Cell>();
+        Map<ObjectId, Argument> types = new HashMap<ObjectId, Argument>();
         while (cellCursor.hasNext()) {
-            selectedCells.add((MongoCell) cellCursor.next());
+            MongoCell c = (MongoCell) cellCursor.next();
+            Argument type = types.get(c.getVariableID());
+            if (type == null) {
+                types.put(c.getVariableID(), c.getVariableType());
+            } else {
+                c.setVariableType(type);
+            }
+            byId.put(c.getID(), c);
+        }
+
+        for (ObjectId id : ids) {
+            Cell c = byId.get(id);
+            if (c != null) {
+                selectedCells.add(c);
+            }
         }
 
         return selectedCells;
@@ -362,13 +544,8 @@ public class MongoDatastore implements Datastore {
 
     @Override
     public void clearCellSelection() {
-        DBCollection cellCollection = mongoDB.getCollection("cells");
-        BasicDBObject query = new BasicDBObject();
-        query.put("selected", true);
-        DBCursor cellCursor = cellCollection.find(query);
-
-        while (cellCursor.hasNext()) {
-            ((MongoCell) cellCursor.next()).setSelected(false);
+        for (ObjectId id : cellSelection.clear()) {
+            MongoCell.fireSelectionChange(id, false);
         }
         markDBAsChanged();
     }
@@ -382,6 +559,7 @@ public class MongoDatastore implements Datastore {
 
     @Override
     public Variable getVariable(String varName) {
+        MongoWriteBehind.flush();
         DBCollection varCollection = mongoDB.getCollection("variables");
         BasicDBObject query = new BasicDBObject();
         query.put("name", varName);
@@ -397,6 +575,7 @@ public class MongoDatastore implements Datastore {
 
     @Override
     public Variable getVariable(Cell cell) {
+        MongoWriteBehind.flush();
         // We need to use a mongo-specific function to do the lookup
         MongoCell mcell = (MongoCell)cell;
 
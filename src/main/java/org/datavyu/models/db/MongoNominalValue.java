@@ -23,26 +23,23 @@
 
 package org.datavyu.models.db;
 
-import org.bson.types.ObjectId;
 import org.datavyu.models.db.NominalValue;
 
 public final class MongoNominalValue extends MongoValue implements NominalValue {
     
     public MongoNominalValue() {}
     
-    public MongoNominalValue(ObjectId parent_id) {
+    /**
+     * Constructor, builds an empty value ready to be embedded in a cell.
+     *
+     * @param name The name of the value.
+     * @param index The index of the value within its matrix, -1 if the value
+     * is not within a matrix.
+     */
+    public MongoNominalValue(String name, int index) {
         this.put("value", null);
-        this.put("parent_id", parent_id);
-        this.put("name", "val");
-        this.put("index", -1);
-        this.save();
-    }
-    
-    public MongoNominalValue(ObjectId parent_id, String name, int index) {
-        this(parent_id);
         this.put("name", name);
         this.put("index", index);
-        this.save();
     }
     
     /**
@@ -56,12 +53,4 @@ public final class MongoNominalValue extends MongoValue implements NominalValue
         this.put("value", value);
         this.save();
     }
-    
-    
-    
-    @Override
-    public void save() {
-        MongoDatastore.getDB().getCollection("nominal_values").save(this);
-        MongoDatastore.markDBAsChanged();
-    }
 }
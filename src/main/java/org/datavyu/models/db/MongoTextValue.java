@@ -23,26 +23,23 @@
 
 package org.datavyu.models.db;
 
-import org.bson.types.ObjectId;
 import org.datavyu.models.db.TextValue;
 
 public final class MongoTextValue extends MongoValue implements TextValue {
     
     public MongoTextValue() { }
     
-    public MongoTextValue(ObjectId parent_id) {
+    /**
+     * Constructor, builds an empty value ready to be embedded in a cell.
+     *
+     * @param name The name of the value.
+     * @param index The index of the value within its matrix, -1 if the value
+     * is not within a matrix.
+     */
+    public MongoTextValue(String name, int index) {
         this.put("value", null);
-        this.put("parent_id", parent_id);
-        this.put("name", "val");
-        this.put("index", -1);
-        this.save();
-    }
-    
-    public MongoTextValue(ObjectId parent_id, String name, int index) {
-        this(parent_id);
         this.put("name", name);
         this.put("index", index);
-        this.save();
     }
     
     /**
@@ -58,12 +55,4 @@ public final class MongoTextValue extends MongoValue implements TextValue {
             this.save();
         }
     }
-    
-    @Override
-    public void save() {
-        MongoDatastore.getDB().getCollection("text_values").save(this);
-        MongoDatastore.markDBAsChanged();
-    }
-    
-
-}
\ No newline at end of file
+}
@@ -24,16 +24,30 @@
 package org.datavyu.models.db;
 
 import com.mongodb.BasicDBObject;
-import com.mongodb.DBCursor;
 import java.io.Serializable;
-import org.bson.types.ObjectId;
+import java.util.List;
+import org.datavyu.models.db.Argument;
 import org.datavyu.models.db.Value;
-import org.datavyu.models.db.Variable;
 
 
+/**
+ * A value embedded within a cell document. Values are stored inside the cell
+ * that owns them (see MongoCell), so they are persisted by writing back into
+ * that cell rather than to a collection of their own.
+ */
 public abstract class MongoValue extends BasicDBObject implements Value, Serializable, Comparable<MongoValue> {
     
-    String value;
+    // The cell that this value is embedded within.
+    transient MongoCell cell;
+
+    /**
+     * Binds this value to the cell that it is embedded within.
+     *
+     * @param owner The cell that holds this value.
+     */
+    void attach(final MongoCell owner) {
+        cell = owner;
+    }
     
     @Override
     public boolean isValid(final String value) {
@@ -59,37 +73,28 @@ public abstract class MongoValue extends BasicDBObject implements Value, Seriali
         return (Integer)this.get("index");
     }
     
-    public void setIndex(int index) {
-        this.put("index", index);
-        this.save();
-    }
-    
-    public Variable getParentVariable() {
-        BasicDBObject query = new BasicDBObject();
-        query.put("_id", (ObjectId)this.get("parent_id"));
-        DBCursor cur = MongoDatastore.getVariableCollection().find(query);
-        if(cur.hasNext())
-            return (Variable)cur.next();
-        else { // We have an argument in a matrix, so fetch that.
-            cur = MongoDatastore.getMatrixValuesCollection().find(query);
-            query.put("_id", (ObjectId)cur.next().get("parent_id"));
-            cur = MongoDatastore.getCellCollection().find(query);
-            query.put("_id", (ObjectId)cur.next().get("variable_id"));
-            cur = MongoDatastore.getVariableCollection().find(query);
-            return (Variable)cur.next();
-        }
-            
-    }
-    
     public String getArgName(final int index) {
-        return getParentVariable().getVariableType().childArguments.get(index).name;
+        List<Argument> args = cell.getVariableType().childArguments;
+
+        // The variable has gained arguments since this cell was loaded.
+        if (index >= args.size()) {
+            cell.setVariableType(null);
+            args = cell.getVariableType().childArguments;
+        }
+
+        return args.get(index).name;
     }
     
     public String getName() {
         return (String)getArgName((Integer)this.get("index"));
     }
     
-    public abstract void save();
+    /**
+     * Writes this value back into the cell that holds it.
+     */
+    public void save() {
+        cell.saveValue(this);
+    }
     
     @Override
     public int compareTo(MongoValue v) {
@@ -23,13 +23,18 @@
 
 package org.datavyu.models.db;
 
+import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import org.bson.types.ObjectId;
 import org.datavyu.Datavyu;
 import org.datavyu.models.db.Argument;
@@ -41,11 +46,32 @@ import org.datavyu.models.db.VariableListener;
 /**
  * Maps a variable object to a mongo powered datastore.
  */
-public final class MongoVariable extends BasicDBObject implements Variable  {
+public final class MongoVariable extends BasicDBObject implements Variable, BulkLoadable, OverlapQueryable, StreamsCells, Versioned  {
+    // The maximum number of documents to send to mongo in a single insert.
+    private static final int INSERT_BATCH_SIZE = 1000;
+
+    // The number of cells fetched from mongo at a time when streaming cells.
+    private static final int STREAM_BATCH_SIZE = 1000;
+
     // All the listeners for variables in teh datastore.
     static Map<ObjectId, List<VariableListener>> allListeners =
                                 new HashMap<ObjectId, List<VariableListener>>();
 
+    // The onset ordered index of cells for each variable in the datastore.
+    static Map<ObjectId, TemporalIndex<ObjectId>> allTemporalIndexes =
+                                new HashMap<ObjectId, TemporalIndex<ObjectId>>();
+
+    // The number of changes made to each variable in the datastore.
+    static Map<ObjectId, Long> allVersions = new HashMap<ObjectId, Long>();
+
+    // Orders cells that share the same onset by their mongo id.
+    private static final Comparator<ObjectId> ID_ORDER = new Comparator<ObjectId>() {
+        @Override
+        public int compare(final ObjectId a, final ObjectId b) {
+            return a.compareTo(b);
+        }
+    };
+
     /**
      * @param variableId The ID of the variable we want the listeners for.
      *
@@ -68,6 +94,120 @@ public final class MongoVariable extends BasicDBObject implements Variable  {
         allListeners.clear();
     }
 
+    /**
+     * Removes the temporal indexes for all the variables, they are rebuilt
+     * from the datastore the next time they are needed.
+     */
+    public static void clearTemporalIndexes() {
+        synchronized (allTemporalIndexes) {
+            allTemporalIndexes.clear();
+        }
+    }
+
+    /**
+     * Forgets the versions of all the variables.
+     */
+    public static void clearVersions() {
+        synchronized (allVersions) {
+            allVersions.clear();
+        }
+    }
+
+    /**
+     * Counts a change to the name, type, visibility or cells of a variable.
+     *
+     * @param variableId The ID of the variable that has changed.
+     */
+    static void changed(final ObjectId variableId) {
+        synchronized (allVersions) {
+            Long version = allVersions.get(variableId);
+            allVersions.put(variableId, version == null ? 1L : version + 1);
+        }
+    }
+
+    /**
+     * Updates the temporal index of a variable after the onset of one of its
+     * cells has changed.
+     *
+     * @param variableId The ID of the variable that owns the cell.
+     * @param cellId The ID of the cell that has changed.
+     * @param onset The new onset of the cell.
+     */
+    static void onsetChanged(final ObjectId variableId,
+                             final ObjectId cellId,
+                             final long onset) {
+        TemporalIndex<ObjectId> index;
+        synchronized (allTemporalIndexes) {
+            index = allTemporalIndexes.get(variableId);
+        }
+
+        if (index != null) {
+            index.updateOnset(cellId, onset);
+        }
+    }
+
+    /**
+     * Updates the temporal index of a variable after the offset of one of its
+     * cells has changed.
+     *
+     * @param variableId The ID of the variable that owns the cell.
+     * @param cellId The ID of the cell that has changed.
+     * @param offset The new offset of the cell.
+     */
+    static void offsetChanged(final ObjectId variableId,
+                              final ObjectId cellId,
+                              final long offset) {
+        TemporalIndex<ObjectId> index;
+        synchronized (allTemporalIndexes) {
+            index = allTemporalIndexes.get(variableId);
+        }
+
+        if (index != null) {
+            index.updateOffset(cellId, offset);
+        }
+    }
+
+    /**
+     * @return The temporal index for this variable, built from the datastore
+     * with a single onset sorted query if it is not already cached.
+     */
+    private TemporalIndex<ObjectId> getTemporalIndex() {
+        synchronized (allTemporalIndexes) {
+            TemporalIndex<ObjectId> index = allTemporalIndexes.get(getID());
+            if (index == null) {
+                MongoWriteBehind.flush();
+                index = new TemporalIndex<ObjectId>(ID_ORDER);
+
+                DBCollection cell_collection = MongoDatastore.getDB().getCollection("cells");
+                BasicDBObject query = new BasicDBObject("variable_id", getID());
+                BasicDBObject fields = new BasicDBObject("onset", 1).append("offset", 1);
+                BasicDBObject sort = new BasicDBObject("onset", 1).append("_id", 1);
+
+                DBCursor cur = cell_collection.find(query, fields).sort(sort);
+                while (cur.hasNext()) {
+                    DBObject doc = cur.next();
+                    index.add((ObjectId) doc.get("_id"),
+                              ((Number) doc.get("onset")).longValue(),
+                              ((Number) doc.get("offset")).longValue());
+                }
+
+                allTemporalIndexes.put(getID(), index);
+            }
+
+            return index;
+        }
+    }
+
+    /**
+     * Drops the temporal index for this variable so that it is rebuilt the
+     * next time it is needed.
+     */
+    private void invalidateTemporalIndex() {
+        synchronized (allTemporalIndexes) {
+            allTemporalIndexes.remove(getID());
+        }
+    }
+
     /**
      * Default constructor.
      */
@@ -89,6 +229,7 @@ public final class MongoVariable extends BasicDBObject implements Variable  {
         MongoDatastore.markDBAsChanged();
 
         this.save();
+        changed(getID());
     }
 
     /**
@@ -96,10 +237,27 @@ public final class MongoVariable extends BasicDBObject implements Variable  {
      * This must be run after any changes to the variable.
      */
     public final void save() {
+        MongoWriteBehind.flush();
         MongoDatastore.markDBAsChanged();
         MongoDatastore.getVariableCollection().save(this);
     }
 
+    /**
+     * Records a change to a single field of this variable, the change is
+     * written to the datastore in the background by MongoWriteBehind.
+     */
+    private void saveLater(final String field, final Object value) {
+        this.put(field, value);
+
+        // Not yet in the datastore, the constructor saves the whole variable.
+        if (getID() == null) {
+            return;
+        }
+
+        MongoWriteBehind.set("variables", getID(), field, value);
+        MongoDatastore.markDBAsChanged();
+    }
+
     /**
      * @return The internal ID (mongo id) for this variable.
      */
@@ -164,21 +322,116 @@ public final class MongoVariable extends BasicDBObject implements Variable  {
 
     @Override
     public Cell createCell() {
-        Cell c = new MongoCell((ObjectId)this.get("_id"), deserializeArgument((BasicDBObject)this.get("type")));
+        Argument type = getVariableType();
+        MongoCell c = new MongoCell((ObjectId)this.get("_id"), type);
+        c.setVariableType(type);
         DBCollection cell_collection = MongoDatastore.getDB().getCollection("cells");
 
-        cell_collection.save((MongoCell)c);
+        cell_collection.save(c);
+
+        // An index built from here on already holds the new cell.
+        TemporalIndex<ObjectId> index;
+        synchronized (allTemporalIndexes) {
+            index = allTemporalIndexes.get(getID());
+        }
+
+        if (index != null) {
+            index.add(c.getID(), c.getOnset(), c.getOffset());
+        }
 
         for(VariableListener vl : getListeners(getID()) ) {
             vl.cellInserted(c);
         }
 
+        changed(getID());
         MongoDatastore.markDBAsChanged();
         return c;
     }
 
+    @Override
+    public void insertCells(final CellRows rows) {
+        Argument type = getVariableType();
+        List<DBObject> cellDocs = new ArrayList<DBObject>(rows.size());
+
+        String[] argNames = new String[type.childArguments.size()];
+        for (int j = 0; j < argNames.length; j++) {
+            argNames[j] = String.format("arg%02d", j + 1);
+        }
+
+        // Build all the documents up front, values are embedded within their
+        // cell so each cell is a single document.
+        for (int i = 0; i < rows.size(); i++) {
+            MongoCell c = new MongoCell();
+            c.put("_id", new ObjectId());
+            c.put("variable_id", getID());
+            c.put("onset", rows.getOnset(i));
+            c.put("offset", rows.getOffset(i));
+            c.put("type", type.type.ordinal());
+            MongoDatastore.getCellSelection().add((ObjectId) c.get("_id"));
+
+            if (type.type == Argument.Type.MATRIX) {
+                BasicDBList args = new BasicDBList();
+                for (int j = 0; j < argNames.length; j++) {
+                    args.add(MongoCell.embeddedValue(type.childArguments.get(j).type,
+                                                     argNames[j], j, rows.getValue(i, j)));
+                }
+                c.put(MongoCell.ARGS_FIELD, args);
+            } else {
+                c.put(MongoCell.VALUE_FIELD,
+                      MongoCell.embeddedValue(type.type, "val", -1, rows.getValue(i, 0)));
+            }
+
+            cellDocs.add(c);
+        }
+
+        insertAll(MongoDatastore.getCellCollection(), cellDocs);
+        invalidateTemporalIndex();
+
+        for (VariableListener vl : getListeners(getID())) {
+            for (DBObject c : cellDocs) {
+                vl.cellInserted((MongoCell) c);
+            }
+        }
+
+        changed(getID());
+        MongoDatastore.markDBAsChanged();
+    }
+
+    @Override
+    public void replaceCells(final CellRows rows) {
+        List<Cell> removed = getCells();
+        MongoDatastore.getCellCollection().remove(new BasicDBObject("variable_id", getID()));
+        invalidateTemporalIndex();
+        changed(getID());
+
+        for (Cell c : removed) {
+            MongoDatastore.getCellSelection().remove(((MongoCell) c).getID());
+        }
+        for (VariableListener vl : getListeners(getID())) {
+            for (Cell c : removed) {
+                vl.cellRemoved(c);
+            }
+        }
+
+        insertCells(rows);
+    }
+
+    /**
+     * Inserts documents in batches of at most INSERT_BATCH_SIZE.
+     *
+     * @param collection The collection to insert the documents into.
+     * @param docs The documents to insert.
+     */
+    private static void insertAll(final DBCollection collection,
+                                  final List<DBObject> docs) {
+        for (int i = 0; i < docs.size(); i += INSERT_BATCH_SIZE) {
+            collection.insert(docs.subList(i, Math.min(docs.size(), i + INSERT_BATCH_SIZE)));
+        }
+    }
+
     @Override
     public void removeCell(final Cell cell) {
+        MongoWriteBehind.flush();
         DBCollection cell_collection = MongoDatastore.getDB().getCollection("cells");
 
 	// Confirm we have the right cell
@@ -192,6 +445,9 @@ public final class MongoVariable extends BasicDBObject implements Variable  {
 	    System.err.println("ERROR: Cell not found. Nothing deleted.");
 	} else {
 	    cell_collection.remove(cur.next());
+	    getTemporalIndex().remove(((MongoCell)cell).getID());
+	    MongoDatastore.getCellSelection().remove(((MongoCell)cell).getID());
+	    changed(getID());
 	}
 	
 	MongoDatastore.markDBAsChanged();
@@ -204,6 +460,7 @@ public final class MongoVariable extends BasicDBObject implements Variable  {
 
     @Override
     public List<Cell> getCells() {
+        MongoWriteBehind.flush();
         List<Cell> cells = new ArrayList<Cell>();
 
         DBCollection cell_collection = MongoDatastore.getDB().getCollection("cells");
@@ -212,9 +469,12 @@ public final class MongoVariable extends BasicDBObject implements Variable  {
         query.put("variable_id", this.get("_id"));  // e.g. find all where i > 50
 
         DBCursor cur = cell_collection.find(query);
+        Argument type = getVariableType();
 
         while(cur.hasNext()) {
-            cells.add((MongoCell)cur.next());
+            MongoCell c = (MongoCell) cur.next();
+            c.setVariableType(type);
+            cells.add(c);
         }
 
         return cells;
@@ -222,25 +482,19 @@ public final class MongoVariable extends BasicDBObject implements Variable  {
 
     @Override
     public Cell getCellTemporally(final int index) {
-        DBCollection cell_collection = MongoDatastore.getDB().getCollection("cells");
-        BasicDBObject query = new BasicDBObject();
-        BasicDBObject sort = new BasicDBObject();
-
-        query.put("variable_id", this.get("_id"));  // e.g. find all where i > 50
-        sort.put("onset", 1);
-
-        DBCursor cur = cell_collection.find(query).sort(sort);
+        MongoWriteBehind.flush();
+        ObjectId id = getTemporalIndex().get(index);
+        if (id == null) {
+            return null;
+        }
 
-        int i = 0;
-        while(cur.hasNext()) {
-            if(i == index) {
-                return (MongoCell)cur.next();
-            }
-            cur.next();
-            i++;
+        DBCollection cell_collection = MongoDatastore.getDB().getCollection("cells");
+        MongoCell c = (MongoCell) cell_collection.findOne(new BasicDBObject("_id", id));
+        if (c != null) {
+            c.setVariableType(getVariableType());
         }
 
-        return null;
+        return c;
     }
 
     @Override
@@ -252,23 +506,123 @@ public final class MongoVariable extends BasicDBObject implements Variable  {
     public void setVariableType(final Argument newType) {
         this.put("type", serializeArgument(newType));
         this.save();
+        changed(getID());
     }
 
     @Override
     public List<Cell> getCellsTemporally() {
-        List<Cell> cells = new ArrayList<Cell>();
+        // Fetch the cells in a single unsorted query and lay them out in the
+        // order held by the temporal index.
+        Map<ObjectId, Cell> byId = new HashMap<ObjectId, Cell>();
+        for (Cell c : getCells()) {
+            byId.put(((MongoCell) c).getID(), c);
+        }
 
-        DBCollection cell_collection = MongoDatastore.getDB().getCollection("cells");
-        BasicDBObject query = new BasicDBObject();
-        BasicDBObject sort = new BasicDBObject();
+        List<Cell> cells = new ArrayList<Cell>(byId.size());
+        for (ObjectId id : getTemporalIndex().keys()) {
+            Cell c = byId.get(id);
+            if (c != null) {
+                cells.add(c);
+            }
+        }
 
-        query.put("variable_id", this.get("_id"));  // e.g. find all where i > 50
-        sort.put("onset", 1);
+        return cells;
+    }
 
-        DBCursor cur = cell_collection.find(query).sort(sort);
+    @Override
+    public List<Cell> getCellsOverlapping(final long from, final long to) {
+        MongoWriteBehind.flush();
 
-        while(cur.hasNext()) {
-            cells.add((MongoCell)cur.next());
+        // Fetch just the overlapping cells and return them in temporal order.
+        return findCells(getTemporalIndex().overlapping(from, to));
+    }
+
+    @Override
+    public Iterator<Cell> iterateTemporally() {
+        MongoWriteBehind.flush();
+        final List<ObjectId> ids = getTemporalIndex().keys();
+
+        return new Iterator<Cell>() {
+            /** The position of the next batch in ids. */
+            private int next = 0;
+
+            /** The current batch of cells. */
+            private Iterator<Cell> batch = new ArrayList<Cell>().iterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!batch.hasNext() && next < ids.size()) {
+                    int end = Math.min(next + STREAM_BATCH_SIZE, ids.size());
+                    batch = findCells(ids.subList(next, end)).iterator();
+                    next = end;
+                }
+
+                return batch.hasNext();
+            }
+
+            @Override
+            public Cell next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                return batch.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public int getCellCount() {
+        return getTemporalIndex().size();
+    }
+
+    @Override
+    public long getVersion() {
+        synchronized (allVersions) {
+            Long version = allVersions.get(getID());
+            return version == null ? 0 : version;
+        }
+    }
+
+    @Override
+    public Object getVersionKey() {
+        return getID();
+    }
+
+    /**
+     * Fetches cells, along with their values, in a single query.
+     *
+     * @param ids The ids of the cells to fetch.
+     *
+     * @return The cells that still exist, in the order of their ids.
+     */
+    private List<Cell> findCells(final List<ObjectId> ids) {
+        List<Cell> cells = new ArrayList<Cell>(ids.size());
+        if (ids.isEmpty()) {
+            return cells;
+        }
+
+        DBCollection cell_collection = MongoDatastore.getDB().getCollection("cells");
+        BasicDBObject query = new BasicDBObject("_id", new BasicDBObject("$in", ids));
+        Map<ObjectId, Cell> byId = new HashMap<ObjectId, Cell>();
+        DBCursor cur = cell_collection.find(query);
+        Argument type = getVariableType();
+        while (cur.hasNext()) {
+            MongoCell c = (MongoCell) cur.next();
+            c.setVariableType(type);
+            byId.put(c.getID(), c);
+        }
+
+        for (ObjectId id : ids) {
+            Cell c = byId.get(id);
+            if (c != null) {
+                cells.add(c);
+            }
         }
 
         return cells;
@@ -276,6 +630,7 @@ public final class MongoVariable extends BasicDBObject implements Variable  {
 
     @Override
     public boolean contains(final Cell c) {
+        MongoWriteBehind.flush();
         DBCollection cell_collection = MongoDatastore.getDB().getCollection("cells");
         DBCursor cur = cell_collection.find((MongoCell)c);
 
@@ -290,8 +645,7 @@ public final class MongoVariable extends BasicDBObject implements Variable  {
 
     @Override
     public void setSelected(final boolean selected) {
-        this.put("selected", selected);
-        this.save();
+        saveLater("selected", selected);
     }
 
     @Override
@@ -301,8 +655,8 @@ public final class MongoVariable extends BasicDBObject implements Variable  {
 
     @Override
     public void setHidden(final boolean hidden) {
-        this.put("hidden", hidden);
-        this.save();
+        saveLater("hidden", hidden);
+        changed(getID());
 
         for(VariableListener vl : getListeners(getID()) ) {
             vl.visibilityChanged(hidden);
@@ -331,8 +685,8 @@ public final class MongoVariable extends BasicDBObject implements Variable  {
             throw new UserWarningException("Unable to add variable, name must not contain any: ') ( > < , \"'");
         }
 
-        this.put("name", newName.trim());
-        this.save();
+        saveLater("name", newName.trim());
+        changed(getID());
 
         for(VariableListener vl : getListeners(getID()) ) {
             vl.nameChanged(newName);
@@ -343,10 +697,17 @@ public final class MongoVariable extends BasicDBObject implements Variable  {
     public Argument addArgument(final Argument.Type type) {
         Argument arg = getVariableType();
         arg.addChildArgument(type);
-
-        for(Cell cell : getCells()) {
-            cell.addMatrixValue(type);
-        }
+        int index = arg.childArguments.size() - 1;
+
+        // Append the new argument to every cell of the variable at once.
+        String task = "Adding argument to " + getName();
+        MongoDatastore.reportProgress(task, 0, 1);
+        MongoDatastore.getCellCollection().update(
+                new BasicDBObject("variable_id", getID()),
+                new BasicDBObject("$push", new BasicDBObject(MongoCell.ARGS_FIELD,
+                        MongoCell.embeddedValue(type, String.format("arg%02d", index + 1), index, null))),
+                false, true);
+        MongoDatastore.reportProgress(task, 1, 1);
 
         this.setVariableType(arg);
         this.save();
@@ -354,8 +715,25 @@ public final class MongoVariable extends BasicDBObject implements Variable  {
         return arg.childArguments.get(arg.childArguments.size()-1);
     }
 
+    /**
+     * Changes the index of an argument within every cell of this variable,
+     * as a single update of all the cells.
+     *
+     * @param from The current index of the argument.
+     * @param to The new index for the argument.
+     */
+    private void setArgumentIndex(final int from, final int to) {
+        BasicDBObject query = new BasicDBObject("variable_id", getID());
+        query.put(MongoCell.ARGS_FIELD + ".index", from);
+
+        MongoDatastore.getCellCollection().update(query,
+                new BasicDBObject("$set", new BasicDBObject(MongoCell.ARGS_FIELD + ".$.index", to)),
+                false, true);
+    }
+
     @Override
     public void moveArgument(final int old_index, final int new_index) {
+        MongoWriteBehind.flush();
         Argument arg = getVariableType();
 
         // Test to see if this is out of bounds
@@ -367,10 +745,33 @@ public final class MongoVariable extends BasicDBObject implements Variable  {
         arg.childArguments.remove(moved_arg);
         arg.childArguments.add(new_index, moved_arg);
 
-        // Move in all cells
-        for(Cell cell : getCells()) {
-            cell.moveMatrixValue(old_index, new_index);
+        // Move in all cells, one update per shifted argument: park the moved
+        // argument at an unused index, shift the arguments in between towards
+        // its old slot and then drop it into its new slot.
+        String task = "Moving argument in " + getName();
+        int parked = arg.childArguments.size();
+        int steps = Math.abs(new_index - old_index) + 2;
+        int done = 0;
+
+        MongoDatastore.reportProgress(task, done, steps);
+        setArgumentIndex(old_index, parked);
+        MongoDatastore.reportProgress(task, ++done, steps);
+
+        if (old_index < new_index) {
+            for (int i = old_index + 1; i <= new_index; i++) {
+                setArgumentIndex(i, i - 1);
+                MongoDatastore.reportProgress(task, ++done, steps);
+            }
+        } else {
+            for (int i = old_index - 1; i >= new_index; i--) {
+                setArgumentIndex(i, i + 1);
+                MongoDatastore.reportProgress(task, ++done, steps);
+            }
         }
+
+        setArgumentIndex(parked, new_index);
+        MongoDatastore.reportProgress(task, ++done, steps);
+
         this.setVariableType(arg);
         this.save();
 
@@ -385,13 +786,28 @@ public final class MongoVariable extends BasicDBObject implements Variable  {
 
     @Override
     public void removeArgument(final String name) {
+        MongoWriteBehind.flush();
         Argument arg = getVariableType();
         int arg_index = getArgumentIndex(name);
         arg.childArguments.remove(arg_index);
 
-        // Now send this change to the cells
-        for(Cell cell : getCells()) {
-            cell.removeMatrixValue(arg_index);
+        // Now send this change to the cells, pull the argument out of every
+        // cell and then shift the following arguments down one at a time.
+        String task = "Removing argument from " + getName();
+        int steps = arg.childArguments.size() - arg_index + 1;
+        int done = 0;
+
+        MongoDatastore.reportProgress(task, done, steps);
+        MongoDatastore.getCellCollection().update(
+                new BasicDBObject("variable_id", getID()),
+                new BasicDBObject("$pull", new BasicDBObject(MongoCell.ARGS_FIELD,
+                        new BasicDBObject("index", arg_index))),
+                false, true);
+        MongoDatastore.reportProgress(task, ++done, steps);
+
+        for (int i = arg_index + 1; i <= arg.childArguments.size(); i++) {
+            setArgumentIndex(i, i - 1);
+            MongoDatastore.reportProgress(task, ++done, steps);
         }
 
         this.setVariableType(arg);
@@ -0,0 +1,143 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.models.db;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.usermetrix.jclient.Logger;
+import com.usermetrix.jclient.UserMetrix;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.bson.types.ObjectId;
+
+/**
+ * Write-behind buffer for field updates to mongo documents. Setters that are
+ * hit repeatedly from the UI (onsets, offsets, variable selection,
+ * visibility and names) record the changed fields here and return straight
+ * away. Updates to the same document are coalesced into a single $set, and
+ * are written by a background thread at most FLUSH_INTERVAL_MS after they
+ * were made.
+ *
+ * Anything that reads documents back from mongo must call flush() first so
+ * that it sees the buffered changes.
+ */
+final class MongoWriteBehind {
+
+    /** The logger for the write-behind buffer. */
+    private static final Logger LOGGER = UserMetrix.getLogger(MongoWriteBehind.class);
+
+    /** The longest time, in milliseconds, that an update is buffered for. */
+    static final long FLUSH_INTERVAL_MS = 100;
+
+    /** The pending field updates for each collection, keyed by document id. */
+    private static Map<String, Map<ObjectId, BasicDBObject>> pending =
+        new LinkedHashMap<String, Map<ObjectId, BasicDBObject>>();
+
+    /** Held while a batch is being written, so that flush() is a barrier. */
+    private static final Object FLUSH_LOCK = new Object();
+
+    /** The background thread writing buffered updates, null until needed. */
+    private static ScheduledExecutorService flusher = null;
+
+    private MongoWriteBehind() {
+    }
+
+    /**
+     * Records a change to a single field of a document.
+     *
+     * @param collection The name of the collection holding the document.
+     * @param id The id of the document that has changed.
+     * @param field The name of the field that has changed.
+     * @param value The new content of the field.
+     */
+    static synchronized void set(final String collection,
+                                 final ObjectId id,
+                                 final String field,
+                                 final Object value) {
+        Map<ObjectId, BasicDBObject> docs = pending.get(collection);
+        if (docs == null) {
+            docs = new LinkedHashMap<ObjectId, BasicDBObject>();
+            pending.put(collection, docs);
+        }
+
+        BasicDBObject fields = docs.get(id);
+        if (fields == null) {
+            fields = new BasicDBObject();
+            docs.put(id, fields);
+        }
+        fields.put(field, value);
+
+        if (flusher == null) {
+            flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    Thread t = new Thread(r, "mongo-write-behind");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            flusher.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        flush();
+                    } catch (Exception e) {
+                        LOGGER.error("Unable to write buffered changes to mongo", e);
+                    }
+                }
+            }, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes every buffered change to mongo, returning once they have all
+     * been written (including any batch that the background thread was
+     * part way through writing).
+     */
+    static void flush() {
+        synchronized (FLUSH_LOCK) {
+            Map<String, Map<ObjectId, BasicDBObject>> batch;
+            synchronized (MongoWriteBehind.class) {
+                if (pending.isEmpty()) {
+                    return;
+                }
+
+                batch = pending;
+                pending = new LinkedHashMap<String, Map<ObjectId, BasicDBObject>>();
+            }
+
+            for (Map.Entry<String, Map<ObjectId, BasicDBObject>> c : batch.entrySet()) {
+                DBCollection collection = MongoDatastore.getDB().getCollection(c.getKey());
+
+                for (Map.Entry<ObjectId, BasicDBObject> doc : c.getValue().entrySet()) {
+                    collection.update(new BasicDBObject("_id", doc.getKey()),
+                                      new BasicDBObject("$set", doc.getValue()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops all buffered changes without writing them, used when the
+     * datastore is cleared.
+     */
+    static synchronized void discard() {
+        pending.clear();
+    }
+}
@@ -0,0 +1,41 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.models.db;
+
+import java.util.List;
+
+/**
+ * A variable or datastore that is able to find the cells active within a
+ * window of time without scanning whole columns. This is an optional
+ * capability alongside Variable and Datastore, callers should check for it
+ * with instanceof.
+ *
+ * A cell is active from its onset until its offset, or only at its onset if
+ * the offset is earlier than the onset.
+ */
+public interface OverlapQueryable {
+
+    /**
+     * Finds the cells that overlap a window of time. Passing the same value
+     * for from and to finds the cells active at a single point in time.
+     *
+     * @param from The start of the window in milliseconds (inclusive).
+     * @param to The end of the window in milliseconds (inclusive).
+     *
+     * @return The overlapping cells. The cells of each variable are in
+     * temporal order, variables are in the order of getAllVariables.
+     */
+    List<Cell> getCellsOverlapping(final long from, final long to);
+}
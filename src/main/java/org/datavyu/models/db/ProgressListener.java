@@ -0,0 +1,31 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.models.db;
+
+/**
+ * Listener for the progress of long running datastore operations, such as
+ * adding, removing or moving an argument across every cell of a variable.
+ */
+public interface ProgressListener {
+
+    /**
+     * Called as an operation makes progress.
+     *
+     * @param task A description of the operation.
+     * @param done The number of steps of the operation that are complete.
+     * @param total The total number of steps in the operation.
+     */
+    void progressChanged(final String task, final int done, final int total);
+}
@@ -0,0 +1,33 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.models.db;
+
+/**
+ * A datastore that reports the progress of long running operations. This is
+ * an optional capability alongside Datastore, callers should check for it
+ * with instanceof.
+ */
+public interface ReportsProgress {
+
+    /**
+     * @param listener The listener to notify of progress.
+     */
+    void addProgressListener(final ProgressListener listener);
+
+    /**
+     * @param listener The listener to no longer notify of progress.
+     */
+    void removeProgressListener(final ProgressListener listener);
+}
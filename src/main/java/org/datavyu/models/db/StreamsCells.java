@@ -0,0 +1,41 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.models.db;
+
+import java.util.Iterator;
+
+/**
+ * A variable that is able to read its cells in temporal order a batch at a
+ * time, fetching each batch along with the values of its cells, rather than
+ * building the whole column in memory. This is an optional capability
+ * alongside Variable, callers should check for it with instanceof and fall
+ * back to getCellsTemporally otherwise.
+ */
+public interface StreamsCells {
+
+    /**
+     * @return An iterator over the cells of this variable, in temporal order.
+     * The cells are those of the variable when the iterator was created.
+     * The iterator may be advanced from threads other than the one that
+     * created it, one at a time.
+     */
+    Iterator<Cell> iterateTemporally();
+
+    /**
+     * @return The number of cells in this variable, counted without reading
+     * them.
+     */
+    int getCellCount();
+}
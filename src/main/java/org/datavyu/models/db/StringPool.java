@@ -0,0 +1,78 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.models.db;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Interned pool of strings used by the columnar datastore. Each distinct
+ * string is stored exactly once and referenced from value columns by its
+ * integer id.
+ */
+final class StringPool {
+
+    /** The id used to represent a null (empty) value. */
+    static final int NULL = -1;
+
+    /** Lookup from string to id. */
+    private final Map<String, Integer> ids = new HashMap<String, Integer>();
+
+    /** Lookup from id to string. */
+    private final List<String> strings = new ArrayList<String>();
+
+    /**
+     * @param value The string to intern.
+     *
+     * @return The id of the supplied string within the pool, NULL if the
+     * value is null.
+     */
+    int intern(final String value) {
+        if (value == null) {
+            return NULL;
+        }
+
+        Integer id = ids.get(value);
+        if (id == null) {
+            id = strings.size();
+            strings.add(value);
+            ids.put(value, id);
+        }
+
+        return id;
+    }
+
+    /**
+     * @param id The id of the string to fetch.
+     *
+     * @return The string with the supplied id, null if the id is NULL.
+     */
+    String get(final int id) {
+        if (id == NULL) {
+            return null;
+        }
+
+        return strings.get(id);
+    }
+
+    /**
+     * @return The number of distinct strings held in the pool.
+     */
+    int size() {
+        return strings.size();
+    }
+}
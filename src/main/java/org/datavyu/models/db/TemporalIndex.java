@@ -0,0 +1,328 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.models.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An onset ordered index over the cells of a single variable. Cells are
+ * identified by a key (e.g. their mongo id) and ordered by onset, cells with
+ * the same onset are ordered by key. The index is updated incrementally as
+ * cells are added, removed and have their onsets changed, so looking up the
+ * cell at a temporal position is O(1) and listing the cells in temporal order
+ * needs no sort.
+ *
+ * The index also answers overlap queries. The entries are treated as an
+ * implicit balanced tree (the middle of each range is its root) augmented
+ * with the latest end time of each subtree, so finding the k cells that
+ * overlap a time window takes O(log n + k) visits for typical data. The
+ * augmentation is rebuilt in O(n) on the first query after a change.
+ *
+ * @param <K> The type of key used to identify cells.
+ */
+final class TemporalIndex<K> {
+
+    /** The number of cells to allocate room for when first constructed. */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /** Orders keys that share the same onset. */
+    private final Comparator<K> keyOrder;
+
+    /** The onset of each entry, in temporal order. */
+    private long[] onsets = new long[INITIAL_CAPACITY];
+
+    /** The offset of each entry, in temporal order. */
+    private long[] offsets = new long[INITIAL_CAPACITY];
+
+    /** The latest end within the subtree rooted at each entry. */
+    private long[] maxEnds = null;
+
+    /** The key of each entry, in temporal order. */
+    private Object[] keys = new Object[INITIAL_CAPACITY];
+
+    /** The number of entries in the index. */
+    private int size = 0;
+
+    /** The onset currently recorded for each key. */
+    private final Map<K, Long> onsetOf = new HashMap<K, Long>();
+
+    /**
+     * Constructor.
+     *
+     * @param keyOrder The order to use for keys that share the same onset.
+     */
+    TemporalIndex(final Comparator<K> keyOrder) {
+        this.keyOrder = keyOrder;
+    }
+
+    /**
+     * Adds a cell to the index, does nothing if the cell is already indexed.
+     * Adding cells in temporal order is O(1).
+     *
+     * @param key The key of the cell.
+     * @param onset The onset of the cell.
+     * @param offset The offset of the cell.
+     */
+    synchronized void add(final K key, final long onset, final long offset) {
+        if (onsetOf.containsKey(key)) {
+            return;
+        }
+
+        if (size == keys.length) {
+            onsets = Arrays.copyOf(onsets, size * 2);
+            offsets = Arrays.copyOf(offsets, size * 2);
+            keys = Arrays.copyOf(keys, size * 2);
+        }
+
+        int pos = size;
+        if (size > 0 && compare(size - 1, onset, key) > 0) {
+            pos = search(onset, key);
+        }
+
+        System.arraycopy(onsets, pos, onsets, pos + 1, size - pos);
+        System.arraycopy(offsets, pos, offsets, pos + 1, size - pos);
+        System.arraycopy(keys, pos, keys, pos + 1, size - pos);
+        onsets[pos] = onset;
+        offsets[pos] = offset;
+        keys[pos] = key;
+        size++;
+        onsetOf.put(key, onset);
+        maxEnds = null;
+    }
+
+    /**
+     * Removes a cell from the index, does nothing if the cell is not indexed.
+     *
+     * @param key The key of the cell to remove.
+     */
+    synchronized void remove(final K key) {
+        Long onset = onsetOf.remove(key);
+        if (onset == null) {
+            return;
+        }
+
+        removeAt(search(onset, key));
+    }
+
+    /**
+     * Moves a cell to the position for its new onset, does nothing if the
+     * cell is not indexed.
+     *
+     * @param key The key of the cell that has changed.
+     * @param onset The new onset of the cell.
+     */
+    synchronized void updateOnset(final K key, final long onset) {
+        Long current = onsetOf.get(key);
+        if (current == null || current == onset) {
+            return;
+        }
+
+        int pos = search(current, key);
+        long offset = offsets[pos];
+        removeAt(pos);
+        onsetOf.remove(key);
+        add(key, onset, offset);
+    }
+
+    /**
+     * Records a new offset for a cell, does nothing if the cell is not
+     * indexed.
+     *
+     * @param key The key of the cell that has changed.
+     * @param offset The new offset of the cell.
+     */
+    synchronized void updateOffset(final K key, final long offset) {
+        Long current = onsetOf.get(key);
+        if (current == null) {
+            return;
+        }
+
+        offsets[search(current, key)] = offset;
+        maxEnds = null;
+    }
+
+    /**
+     * @param index The temporal position of the cell.
+     *
+     * @return The key of the cell at the supplied temporal position, null if
+     * the position is out of bounds.
+     */
+    @SuppressWarnings("unchecked")
+    synchronized K get(final int index) {
+        if (index < 0 || index >= size) {
+            return null;
+        }
+
+        return (K) keys[index];
+    }
+
+    /**
+     * @return The keys of all the cells in temporal order.
+     */
+    @SuppressWarnings("unchecked")
+    synchronized List<K> keys() {
+        List<K> result = new ArrayList<K>(size);
+        for (int i = 0; i < size; i++) {
+            result.add((K) keys[i]);
+        }
+
+        return result;
+    }
+
+    /**
+     * Finds all the cells that overlap a window of time. A cell overlaps the
+     * window if it starts at or before the end of the window and ends at or
+     * after the start of the window. A window where from == to finds the
+     * cells active at a single point in time.
+     *
+     * @param from The start of the window in milliseconds.
+     * @param to The end of the window in milliseconds.
+     *
+     * @return The keys of the overlapping cells in temporal order.
+     */
+    @SuppressWarnings("unchecked")
+    synchronized List<K> overlapping(final long from, final long to) {
+        List<K> result = new ArrayList<K>();
+        if (size == 0 || from > to) {
+            return result;
+        }
+
+        if (maxEnds == null) {
+            maxEnds = new long[size];
+            buildMaxEnds(0, size);
+        }
+
+        // Walk the implicit tree without recursion, nodes are pushed as
+        // [lo, hi) ranges and visited in temporal order.
+        int[] stack = new int[128];
+        int top = 0;
+        int lo = 0;
+        int hi = size;
+
+        while (true) {
+            // Descend left, stopping at subtrees that end before the window.
+            while (lo < hi && maxEnds[(lo + hi) >>> 1] >= from) {
+                stack[top++] = lo;
+                stack[top++] = hi;
+                hi = (lo + hi) >>> 1;
+            }
+
+            if (top == 0) {
+                break;
+            }
+
+            hi = stack[--top];
+            lo = stack[--top];
+            int mid = (lo + hi) >>> 1;
+
+            // Everything from here on starts after the window.
+            if (onsets[mid] > to) {
+                break;
+            }
+
+            if (end(mid) >= from) {
+                result.add((K) keys[mid]);
+            }
+
+            lo = mid + 1;
+        }
+
+        return result;
+    }
+
+    /**
+     * @return The number of cells in the index.
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Removes the entry at the supplied position.
+     */
+    private void removeAt(final int pos) {
+        System.arraycopy(onsets, pos + 1, onsets, pos, size - pos - 1);
+        System.arraycopy(offsets, pos + 1, offsets, pos, size - pos - 1);
+        System.arraycopy(keys, pos + 1, keys, pos, size - pos - 1);
+        size--;
+        keys[size] = null;
+        maxEnds = null;
+    }
+
+    /**
+     * Fills in maxEnds for the subtree spanning [lo, hi).
+     *
+     * @return The latest end within the subtree.
+     */
+    private long buildMaxEnds(final int lo, final int hi) {
+        if (lo >= hi) {
+            return Long.MIN_VALUE;
+        }
+
+        int mid = (lo + hi) >>> 1;
+        long max = Math.max(end(mid), Math.max(buildMaxEnds(lo, mid), buildMaxEnds(mid + 1, hi)));
+        maxEnds[mid] = max;
+
+        return max;
+    }
+
+    /**
+     * @return The end of the entry at the supplied position, cells with an
+     * offset before their onset end at their onset.
+     */
+    private long end(final int pos) {
+        return Math.max(onsets[pos], offsets[pos]);
+    }
+
+    /**
+     * Compares the entry at the supplied position with an onset and key.
+     */
+    @SuppressWarnings("unchecked")
+    private int compare(final int pos, final long onset, final K key) {
+        if (onsets[pos] < onset) {
+            return -1;
+        } else if (onsets[pos] > onset) {
+            return 1;
+        }
+
+        return keyOrder.compare((K) keys[pos], key);
+    }
+
+    /**
+     * @return The first position whose entry is not less than the supplied
+     * onset and key.
+     */
+    private int search(final long onset, final K key) {
+        int low = 0;
+        int high = size;
+
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+
+            if (compare(mid, onset, key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.models.db;
+
+/**
+ * A variable that counts the changes made to it, so that savers can tell
+ * which variables have changed since they were last written. This is an
+ * optional capability alongside Variable, callers should check for it with
+ * instanceof and treat variables without it as always changed.
+ */
+public interface Versioned {
+
+    /**
+     * @return A number that increases each time the name, type, visibility
+     * or cells of the variable change. Selection does not count as a change.
+     */
+    long getVersion();
+
+    /**
+     * @return An object that identifies this variable when tracking its
+     * version. It is equal for every instance that represents the same
+     * variable, as datastores may hand out a new instance on each lookup.
+     */
+    Object getVersionKey();
+}
@@ -22,6 +22,7 @@ import javax.swing.undo.CannotRedoException;
 import javax.swing.undo.CannotUndoException;
 import org.datavyu.Datavyu;
 import org.datavyu.controllers.project.ProjectController;
+import org.datavyu.models.db.BufferedWrites;
 import org.datavyu.models.db.Datastore;
 import org.datavyu.models.db.Cell;
 import org.datavyu.views.DatavyuView;
@@ -55,11 +56,23 @@ public abstract class SpreadsheetEdit extends AbstractUndoableEdit {
     @Override
     public void redo() throws CannotRedoException {
         super.redo();
+        flushModel();
     }
 
     @Override
     public void undo() throws CannotUndoException {
         super.undo();
+        flushModel();
+    }
+
+    /**
+     * Makes sure that all buffered changes have reached the datastore, so
+     * that the state read back by the edit is current.
+     */
+    protected void flushModel() {
+        if (model instanceof BufferedWrites) {
+            ((BufferedWrites) model).flush();
+        }
     }
 
     protected SpreadsheetCell getSpreadsheetCell(Cell cell) {
@@ -0,0 +1,185 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Reads and writes the variable length integers and strings that make up the
+ * binary database format. Integers are written seven bits to a byte, least
+ * significant first, with the top bit set on every byte but the last. Signed
+ * integers are zigzag encoded first so that small negative numbers stay small.
+ */
+public final class BinaryCodec {
+
+    /** The character set strings are encoded in. */
+    private static final String CHARSET = "UTF-8";
+
+    /**
+     * Constructor.
+     */
+    private BinaryCodec() {
+    }
+
+    /**
+     * Writes a non-negative integer.
+     *
+     * @param out The output to write to.
+     * @param value The value to write, treated as unsigned.
+     *
+     * @throws IOException If unable to write to out.
+     */
+    public static void writeVarLong(final DataOutput out, final long value)
+    throws IOException {
+        long rest = value;
+
+        while ((rest & ~0x7FL) != 0) {
+            out.writeByte((int) ((rest & 0x7F) | 0x80));
+            rest >>>= 7;
+        }
+        out.writeByte((int) rest);
+    }
+
+    /**
+     * Reads a non-negative integer written by writeVarLong.
+     *
+     * @param in The input to read from.
+     *
+     * @return The value read.
+     *
+     * @throws IOException If unable to read from in, or the value is
+     * malformed.
+     */
+    public static long readVarLong(final DataInput in) throws IOException {
+        long value = 0;
+
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+
+        throw new IOException("Malformed variable length integer.");
+    }
+
+    /**
+     * Writes a non-negative int.
+     *
+     * @param out The output to write to.
+     * @param value The value to write.
+     *
+     * @throws IOException If unable to write to out.
+     */
+    public static void writeVarInt(final DataOutput out, final int value)
+    throws IOException {
+        writeVarLong(out, value & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Reads a non-negative int written by writeVarInt.
+     *
+     * @param in The input to read from.
+     *
+     * @return The value read.
+     *
+     * @throws IOException If unable to read from in, or the value does not
+     * fit in an int.
+     */
+    public static int readVarInt(final DataInput in) throws IOException {
+        long value = readVarLong(in);
+
+        if (value < 0 || value > Integer.MAX_VALUE) {
+            throw new IOException("Malformed variable length integer.");
+        }
+
+        return (int) value;
+    }
+
+    /**
+     * Writes a signed integer.
+     *
+     * @param out The output to write to.
+     * @param value The value to write.
+     *
+     * @throws IOException If unable to write to out.
+     */
+    public static void writeSignedVarLong(final DataOutput out, final long value)
+    throws IOException {
+        writeVarLong(out, (value << 1) ^ (value >> 63));
+    }
+
+    /**
+     * Reads a signed integer written by writeSignedVarLong.
+     *
+     * @param in The input to read from.
+     *
+     * @return The value read.
+     *
+     * @throws IOException If unable to read from in.
+     */
+    public static long readSignedVarLong(final DataInput in) throws IOException {
+        long value = readVarLong(in);
+
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Writes a string, which may be null, as its length followed by its UTF-8
+     * bytes. Unlike DataOutput.writeUTF there is no limit on the length.
+     *
+     * @param out The output to write to.
+     * @param value The string to write.
+     *
+     * @throws IOException If unable to write to out.
+     */
+    public static void writeString(final DataOutput out, final String value)
+    throws IOException {
+        if (value == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+
+        byte[] bytes = value.getBytes(CHARSET);
+        writeVarInt(out, bytes.length + 1);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a string written by writeString.
+     *
+     * @param in The input to read from.
+     *
+     * @return The string read, null if a null string was written.
+     *
+     * @throws IOException If unable to read from in.
+     */
+    public static String readString(final DataInput in) throws IOException {
+        int length = readVarInt(in);
+
+        if (length == 0) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length - 1];
+        in.readFully(bytes);
+
+        return new String(bytes, CHARSET);
+    }
+}
@@ -0,0 +1,441 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.util;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Reads the lines and cell rows of a Datavyu CSV file in a single pass over a
+ * character buffer.
+ *
+ * A cell row is an onset, an offset and the value of the cell, separated by
+ * commas. Within a row '\' escapes the character that follows it, so '\,',
+ * '\\' and '\-' stand for ',', '\' and '-', and a '\' at the end of a line
+ * continues the row on the next line with a newline in the value. Lines that
+ * are not cell rows (version identifiers, definitions and variable headers)
+ * are read as they are.
+ */
+public final class CSVTokenizer {
+
+    /** The number of characters to read from the source at a time. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** The source of the characters. */
+    private final Reader in;
+
+    /** The characters read from the source but not yet tokenized. */
+    private char[] buf = new char[BUFFER_SIZE];
+
+    /** The position of the next character to tokenize in buf. */
+    private int pos = 0;
+
+    /** The position just after the last character read into buf. */
+    private int limit = 0;
+
+    /** Has the end of the source been reached? */
+    private boolean eof = false;
+
+    /**
+     * Constructor.
+     *
+     * @param in The source of the CSV file, the caller is responsible for
+     * closing it. It does not need to be buffered.
+     */
+    public CSVTokenizer(final Reader in) {
+        this.in = in;
+    }
+
+    /**
+     * @return True if all the characters have been read, false otherwise.
+     *
+     * @throws IOException If unable to read from the source.
+     */
+    public boolean atEnd() throws IOException {
+        return !fill(1);
+    }
+
+    /**
+     * @return True if the next line is a cell row (it starts with a digit),
+     * false otherwise.
+     *
+     * @throws IOException If unable to read from the source.
+     */
+    public boolean atRow() throws IOException {
+        return fill(1) && Character.isDigit(buf[pos]);
+    }
+
+    /**
+     * @return The next line without consuming it, null at the end of the
+     * source.
+     *
+     * @throws IOException If unable to read from the source.
+     */
+    public String peekLine() throws IOException {
+        int len = lineLength();
+
+        return (len < 0) ? null : new String(buf, pos, len);
+    }
+
+    /**
+     * Reads the next line as it is, without interpreting escapes.
+     *
+     * @return The next line, or null at the end of the source.
+     *
+     * @throws IOException If unable to read from the source.
+     */
+    public String readLine() throws IOException {
+        int len = lineLength();
+        if (len < 0) {
+            return null;
+        }
+
+        String line = new String(buf, pos, len);
+        pos += len;
+        skipLineEnd();
+
+        return line;
+    }
+
+    /**
+     * Reads the next cell row. The whole row is consumed even if its onset
+     * or offset can not be parsed.
+     *
+     * @param row The row to hold the onset, offset and value.
+     *
+     * @throws IOException If unable to read from the source.
+     * @throws NumberFormatException If the onset or offset is not a valid
+     * timestamp.
+     */
+    public void readRow(final Row row) throws IOException {
+        readFields(row);
+
+        if (row.fields < 2) {
+            row.first = row.fields;
+            throw new NumberFormatException("Missing onset or offset: \""
+                                            + new String(row.chars, 0, row.length) + "\"");
+        }
+
+        row.first = 2;
+        row.onset = TimestampCodec.parse(row.chars, 0, row.ends[0]);
+        row.offset = TimestampCodec.parse(row.chars, row.ends[0] + 1,
+                                          row.ends[1] - row.ends[0] - 1);
+    }
+
+    /**
+     * Reads the next line as the value of a cell row that has no onset and
+     * offset of its own.
+     *
+     * @param row The row to hold the value.
+     * @param onset The onset to give the row.
+     * @param offset The offset to give the row.
+     *
+     * @throws IOException If unable to read from the source.
+     */
+    public void readValue(final Row row, final long onset, final long offset)
+    throws IOException {
+        readFields(row);
+        row.first = 0;
+        row.onset = onset;
+        row.offset = offset;
+    }
+
+    /**
+     * Copies the next row as it is, without interpreting escapes other than
+     * to find where the row ends.
+     *
+     * @param raw The builder to append the characters of the row, including
+     * its line terminator, to.
+     *
+     * @throws IOException If unable to read from the source.
+     */
+    public void copyRow(final StringBuilder raw) throws IOException {
+        while (fill(1)) {
+            int start = pos;
+            char c = 0;
+            while (pos < limit) {
+                c = buf[pos];
+                if (c == '\\' || c == '\n' || c == '\r') {
+                    break;
+                }
+                pos++;
+            }
+            raw.append(buf, start, pos - start);
+            if (pos == limit) {
+                continue;
+            }
+            pos++;
+            raw.append(c);
+
+            if (c == '\\') {
+                if (fill(1)) {
+                    char escaped = buf[pos++];
+                    raw.append(escaped);
+                    if (escaped == '\r' && fill(1) && buf[pos] == '\n') {
+                        raw.append(buf[pos++]);
+                    }
+                }
+            } else {
+                if (c == '\r' && fill(1) && buf[pos] == '\n') {
+                    raw.append(buf[pos++]);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reads a row into its comma separated fields, resolving escapes.
+     */
+    private void readFields(final Row row) throws IOException {
+        row.length = 0;
+        row.fields = 0;
+
+        while (fill(1)) {
+            // Copy the run of characters up to the next one that needs
+            // handling in one go.
+            int start = pos;
+            char c = 0;
+            while (pos < limit) {
+                c = buf[pos];
+                if (c == '\\' || c == ',' || c == '\n' || c == '\r') {
+                    break;
+                }
+                pos++;
+            }
+            row.append(buf, start, pos - start);
+            if (pos == limit) {
+                continue;
+            }
+            pos++;
+
+            if (c == '\\') {
+                if (!fill(1)) {
+                    break;
+                }
+
+                char escaped = buf[pos++];
+                if (escaped == '\r' || escaped == '\n') {
+                    if (escaped == '\r' && fill(1) && buf[pos] == '\n') {
+                        pos++;
+                    }
+                    escaped = '\n';
+                }
+                row.append(escaped);
+
+            } else if (c == ',') {
+                row.endField();
+                row.append(c);
+
+            } else {
+                if (c == '\r' && fill(1) && buf[pos] == '\n') {
+                    pos++;
+                }
+                break;
+            }
+        }
+
+        row.endField();
+    }
+
+    /**
+     * @return The number of characters in the next line, excluding the line
+     * terminator, or -1 at the end of the source. The whole line will be in
+     * the buffer, starting at pos.
+     */
+    private int lineLength() throws IOException {
+        if (!fill(1)) {
+            return -1;
+        }
+
+        int i = pos;
+        while (true) {
+            if (i == limit) {
+                int scanned = i - pos;
+                if (!fill(scanned + 1)) {
+                    return limit - pos;
+                }
+                i = pos + scanned;
+            }
+
+            char c = buf[i];
+            if (c == '\n' || c == '\r') {
+                return i - pos;
+            }
+            i++;
+        }
+    }
+
+    /**
+     * Moves past the line terminator at pos, if there is one.
+     */
+    private void skipLineEnd() throws IOException {
+        if (fill(1)) {
+            char c = buf[pos];
+            if (c == '\r' || c == '\n') {
+                pos++;
+                if (c == '\r' && fill(1) && buf[pos] == '\n') {
+                    pos++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Makes sure that at least n characters are available in the buffer from
+     * pos, reading more from the source if needed.
+     *
+     * @return True if the n characters are available, false if the end of
+     * the source was reached first.
+     */
+    private boolean fill(final int n) throws IOException {
+        if (limit - pos >= n) {
+            return true;
+        }
+        if (eof) {
+            return false;
+        }
+
+        // Move the unread characters to the front, growing the buffer if
+        // they will not fit.
+        int unread = limit - pos;
+        if (n > buf.length) {
+            char[] grown = new char[Math.max(n, buf.length * 2)];
+            System.arraycopy(buf, pos, grown, 0, unread);
+            buf = grown;
+        } else {
+            System.arraycopy(buf, pos, buf, 0, unread);
+        }
+        pos = 0;
+        limit = unread;
+
+        while (limit < n) {
+            int read = in.read(buf, limit, buf.length - limit);
+            if (read < 0) {
+                eof = true;
+                return false;
+            }
+            limit += read;
+        }
+
+        return true;
+    }
+
+    /**
+     * A cell row read from a CSV file. The row is reused from one read to the
+     * next, so its values should be copied out before reading another row.
+     */
+    public static final class Row {
+
+        /** The characters of the row with escapes resolved. */
+        private char[] chars = new char[256];
+
+        /** The number of characters in the row. */
+        private int length;
+
+        /** The position just after the last character of each field. */
+        private int[] ends = new int[16];
+
+        /** The number of fields in the row. */
+        private int fields;
+
+        /** The field holding the start of the value. */
+        private int first;
+
+        /** The onset of the row in milliseconds. */
+        private long onset;
+
+        /** The offset of the row in milliseconds. */
+        private long offset;
+
+        /**
+         * @return The onset of the row in milliseconds.
+         */
+        public long getOnset() {
+            return onset;
+        }
+
+        /**
+         * @return The offset of the row in milliseconds.
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * @return True if the row has a value after its onset and offset,
+         * false otherwise.
+         */
+        public boolean hasValue() {
+            return valueStart() < length;
+        }
+
+        /**
+         * @return The whole value of the row, everything after the onset and
+         * offset including any commas.
+         */
+        public String getValue() {
+            int start = valueStart();
+
+            return new String(chars, start, length - start);
+        }
+
+        /**
+         * @return The number of comma separated arguments in the value.
+         */
+        public int getArgumentCount() {
+            return fields - first;
+        }
+
+        /**
+         * @param index The index of the argument within the value.
+         *
+         * @return The argument of the value.
+         */
+        public String getArgument(final int index) {
+            int field = first + index;
+            int start = (field == 0) ? 0 : ends[field - 1] + 1;
+
+            return new String(chars, start, ends[field] - start);
+        }
+
+        private int valueStart() {
+            return (first == 0) ? 0 : Math.min(ends[first - 1] + 1, length);
+        }
+
+        private void append(final char[] src, final int off, final int len) {
+            if (length + len > chars.length) {
+                chars = Arrays.copyOf(chars, Math.max(length + len, length * 2));
+            }
+            System.arraycopy(src, off, chars, length, len);
+            length += len;
+        }
+
+        private void append(final char c) {
+            if (length == chars.length) {
+                chars = Arrays.copyOf(chars, length * 2);
+            }
+            chars[length++] = c;
+        }
+
+        private void endField() {
+            if (fields == ends.length) {
+                ends = Arrays.copyOf(ends, fields * 2);
+            }
+            ends[fields++] = length;
+        }
+    }
+}
@@ -76,6 +76,12 @@ public final class ConfigProperties implements Serializable {
     /** true if prereleases are preferred */
     private boolean prereleasePreference;
 
+    /** The compression level of saved projects, null for the default. */
+    private Integer compressionLevel;
+
+    /** The frame rate of frame by frame exports, null for the default. */
+    private Float exportFrameRate;
+
     /**
      * Default constructor.
      */
@@ -341,4 +347,34 @@ public final class ConfigProperties implements Serializable {
     public void setPrereleasePreference(boolean preference) {
         prereleasePreference = preference;
     }
+
+    /**
+     * @return the compression level of saved projects, null for the default
+     */
+    public Integer getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * @param level
+     *            the compression level of saved projects, from 0 to 9
+     */
+    public void setCompressionLevel(final Integer level) {
+        compressionLevel = level;
+    }
+
+    /**
+     * @return the frame rate of frame by frame exports, null for the default
+     */
+    public Float getExportFrameRate() {
+        return exportFrameRate;
+    }
+
+    /**
+     * @param rate
+     *            the frame rate of frame by frame exports
+     */
+    public void setExportFrameRate(final Float rate) {
+        exportFrameRate = rate;
+    }
 }
@@ -0,0 +1,333 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes zip archives whose entries are deflated concurrently, one entry to a
+ * thread. The deflated entries are then written in order, in the same layout
+ * as ZipOutputStream: the sizes and checksum of each entry follow its data in
+ * a data descriptor, and are repeated in the central directory.
+ *
+ * Entries are not split, so an archive is deflated on no more threads than it
+ * has entries.
+ */
+public final class ParallelZipWriter {
+
+    /** The signature of a local file header. */
+    private static final int LOCAL_HEADER = 0x04034b50;
+
+    /** The signature of a data descriptor. */
+    private static final int DATA_DESCRIPTOR = 0x08074b50;
+
+    /** The signature of a central directory file header. */
+    private static final int CENTRAL_HEADER = 0x02014b50;
+
+    /** The signature of the end of central directory record. */
+    private static final int END_HEADER = 0x06054b50;
+
+    /** The size of a local file header, without the name of the entry. */
+    private static final int LOCAL_HEADER_SIZE = 30;
+
+    /** The size of a data descriptor. */
+    private static final int DATA_DESCRIPTOR_SIZE = 16;
+
+    /** The zip version needed to extract deflated entries. */
+    private static final int VERSION = 20;
+
+    /** The flags of an entry: sizes in a data descriptor, UTF-8 names. */
+    private static final int FLAGS = 0x0808;
+
+    /** The compression method of deflated entries. */
+    private static final int DEFLATED = 8;
+
+    /** The largest size and offset that fit in a zip without zip64. */
+    private static final long MAX_SIZE = 0xFFFFFFFFL;
+
+    /** The most entries that fit in a zip without zip64. */
+    private static final int MAX_ENTRIES = 0xFFFF;
+
+    /** The size of the buffer used when deflating. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Constructor.
+     */
+    private ParallelZipWriter() {
+    }
+
+    /**
+     * Writes a zip archive.
+     *
+     * @param outStream The stream to write the archive to, left open.
+     * @param entries The contents of each entry of the archive, in order, by
+     * name.
+     * @param level The compression level, from 0 to 9 or
+     * Deflater.DEFAULT_COMPRESSION.
+     *
+     * @throws IOException If unable to write the archive.
+     */
+    public static void write(final OutputStream outStream,
+                             final Map<String, byte[]> entries,
+                             final int level) throws IOException {
+        if (entries.size() > MAX_ENTRIES) {
+            throw new IOException("Too many entries for a zip archive: " + entries.size());
+        }
+
+        int threads = Math.max(1, Math.min(entries.size(),
+                                           Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<String> names = new ArrayList<String>();
+        List<Future<Entry>> deflated = new ArrayList<Future<Entry>>();
+
+        try {
+            for (final Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                names.add(entry.getKey());
+                deflated.add(executor.submit(new Callable<Entry>() {
+                    @Override
+                    public Entry call() {
+                        return deflate(entry.getValue(), level);
+                    }
+                }));
+            }
+
+            DataOutputStream out = new DataOutputStream(outStream);
+            int time = dosTime(Calendar.getInstance());
+            ByteArrayOutputStream central = new ByteArrayOutputStream();
+            DataOutputStream centralOut = new DataOutputStream(central);
+            long offset = 0;
+
+            // Write each entry as soon as it has been deflated, the later
+            // entries keep deflating in the meantime.
+            for (int i = 0; i < names.size(); i++) {
+                byte[] name = names.get(i).getBytes("UTF-8");
+                Entry entry = get(deflated.get(i));
+                long size = LOCAL_HEADER_SIZE + name.length + entry.data.length
+                            + DATA_DESCRIPTOR_SIZE;
+                if (offset + size > MAX_SIZE) {
+                    throw new IOException("Archive too large for a zip without zip64.");
+                }
+
+                // The checksum and sizes of the local header are left zero,
+                // they are written in the data descriptor.
+                writeInt(out, LOCAL_HEADER);
+                writeShort(out, VERSION);
+                writeEntryHeader(out, time, null, name);
+                out.write(name);
+                out.write(entry.data);
+                writeInt(out, DATA_DESCRIPTOR);
+                writeInt(out, (int) entry.crc);
+                writeInt(out, entry.data.length);
+                writeInt(out, entry.size);
+
+                writeInt(centralOut, CENTRAL_HEADER);
+                writeShort(centralOut, VERSION);
+                writeShort(centralOut, VERSION);
+                writeEntryHeader(centralOut, time, entry, name);
+                writeShort(centralOut, 0);  // Comment length.
+                writeShort(centralOut, 0);  // Disk number.
+                writeShort(centralOut, 0);  // Internal attributes.
+                writeInt(centralOut, 0);    // External attributes.
+                writeInt(centralOut, (int) offset);
+                centralOut.write(name);
+                offset += size;
+            }
+
+            centralOut.flush();
+            central.writeTo(out);
+
+            writeInt(out, END_HEADER);
+            writeShort(out, 0);  // This disk.
+            writeShort(out, 0);  // Disk with the central directory.
+            writeShort(out, names.size());
+            writeShort(out, names.size());
+            writeInt(out, central.size());
+            writeInt(out, (int) offset);
+            writeShort(out, 0);  // Comment length.
+            out.flush();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Deflates the contents of an entry.
+     *
+     * @param contents The contents of the entry.
+     * @param level The compression level.
+     *
+     * @return The deflated entry.
+     */
+    private static Entry deflate(final byte[] contents, final int level) {
+        Deflater deflater = new Deflater(level, true);
+        ByteArrayOutputStream data = new ByteArrayOutputStream(contents.length / 2 + 16);
+        byte[] buffer = new byte[BUFFER_SIZE];
+
+        try {
+            deflater.setInput(contents);
+            deflater.finish();
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                data.write(buffer, 0, count);
+            }
+        } finally {
+            deflater.end();
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(contents, 0, contents.length);
+
+        return new Entry(data.toByteArray(), contents.length, crc.getValue());
+    }
+
+    /**
+     * Waits for an entry to be deflated.
+     *
+     * @param future The entry being deflated.
+     *
+     * @return The deflated entry.
+     *
+     * @throws IOException If the entry could not be deflated.
+     */
+    private static Entry get(final Future<Entry> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while deflating entries.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            } else if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IOException("Unable to deflate entry: " + e.getCause());
+        }
+    }
+
+    /**
+     * Writes the part of a header that is the same in the local and central
+     * headers of an entry, from the flags to the extra field length.
+     *
+     * @param out The output to write to.
+     * @param time The modification time of the entry, in DOS format.
+     * @param entry The deflated entry, or null to leave the checksum and
+     * sizes zero.
+     * @param name The name of the entry.
+     *
+     * @throws IOException If unable to write to out.
+     */
+    private static void writeEntryHeader(final DataOutputStream out,
+                                         final int time,
+                                         final Entry entry,
+                                         final byte[] name) throws IOException {
+        writeShort(out, FLAGS);
+        writeShort(out, DEFLATED);
+        writeInt(out, time);
+        writeInt(out, entry == null ? 0 : (int) entry.crc);
+        writeInt(out, entry == null ? 0 : entry.data.length);
+        writeInt(out, entry == null ? 0 : entry.size);
+        writeShort(out, name.length);
+        writeShort(out, 0);  // Extra field length.
+    }
+
+    /**
+     * @param calendar A time.
+     *
+     * @return The time in DOS format, the date in the high 16 bits and the
+     * time of day, to two seconds, in the low 16 bits.
+     */
+    private static int dosTime(final Calendar calendar) {
+        int year = Math.max(calendar.get(Calendar.YEAR) - 1980, 0);
+
+        return (year << 25)
+            | ((calendar.get(Calendar.MONTH) + 1) << 21)
+            | (calendar.get(Calendar.DAY_OF_MONTH) << 16)
+            | (calendar.get(Calendar.HOUR_OF_DAY) << 11)
+            | (calendar.get(Calendar.MINUTE) << 5)
+            | (calendar.get(Calendar.SECOND) >> 1);
+    }
+
+    /**
+     * Writes a little endian 16 bit integer.
+     *
+     * @param out The output to write to.
+     * @param value The integer to write.
+     *
+     * @throws IOException If unable to write to out.
+     */
+    private static void writeShort(final DataOutputStream out, final int value)
+    throws IOException {
+        out.write(value & 0xFF);
+        out.write((value >>> 8) & 0xFF);
+    }
+
+    /**
+     * Writes a little endian 32 bit integer.
+     *
+     * @param out The output to write to.
+     * @param value The integer to write.
+     *
+     * @throws IOException If unable to write to out.
+     */
+    private static void writeInt(final DataOutputStream out, final int value)
+    throws IOException {
+        writeShort(out, value & 0xFFFF);
+        writeShort(out, value >>> 16);
+    }
+
+    /**
+     * An entry that has been deflated.
+     */
+    private static final class Entry {
+
+        /** The deflated contents of the entry. */
+        private final byte[] data;
+
+        /** The size of the entry before it was deflated. */
+        private final int size;
+
+        /** The CRC-32 of the entry before it was deflated. */
+        private final long crc;
+
+        /**
+         * Constructor.
+         *
+         * @param data The deflated contents of the entry.
+         * @param size The size of the entry before it was deflated.
+         * @param crc The CRC-32 of the entry before it was deflated.
+         */
+        Entry(final byte[] data, final int size, final long crc) {
+            this.data = data;
+            this.size = size;
+            this.crc = crc;
+        }
+    }
+}
@@ -23,55 +23,65 @@ public final class StringUtils {
      * characters escaped with a leading '\'.
      */
     public static String escapeCSV(final String input) {
-        String result = "";
-
-        for (int n = 0; n < input.length(); n++) {
-            if (input.charAt(n) == '\\') {
-                char[] buff = {'\\', '\\'};
-                result = result.concat(new String(buff));
-            } else if (input.charAt(n) == ',') {
-                char[] buff = {'\\', ','};
-                result = result.concat(new String(buff));
-            } else if (input.charAt(n) == '\n') {
-                char[] buff = {'\\', '\n'};
-                result = result.concat(new String(buff));
-            } else if (input.charAt(n) == '\r') {
-                char[] buff = {'\\', '\n'};
-                result = result.concat(new String(buff));
-            } else if (input.charAt(n) == '-') {
-                char[] buff = {'\\', '-'};
-                result = result.concat(new String(buff));
-            } else {
-                result += input.charAt(n);
-            }
-        }
+        return escapeCSV(input, new StringBuilder(input.length() + 16)).toString();
+    }
 
-        // Remove all control characters
-        return result.replaceAll("[\u0000-\u0001]", "");
+    /**
+     * Appends a copy of the input string to a builder, with ',', '-' and '\'
+     * characters escaped with a leading '\', new lines escaped and control
+     * characters removed.
+     *
+     * @param input The string to escape.
+     * @param result The builder to append the escaped string to.
+     *
+     * @return The supplied builder.
+     */
+    public static StringBuilder escapeCSV(final CharSequence input,
+                                          final StringBuilder result) {
+        return escape(input, result, true);
     }
-    
+
+    /**
+     * @param input The string to escape '-' and '\' characters.
+     *
+     * @return A copy of the input string - but with '-' and '\' characters
+     * escaped with a leading '\'.
+     */
     public static String escapeCSVArgument(final String input) {
-        String result = "";
+        return escapeCSVArgument(input, new StringBuilder(input.length() + 16)).toString();
+    }
+
+    /**
+     * Appends a copy of the input string to a builder, with '-' and '\'
+     * characters escaped with a leading '\', new lines escaped and control
+     * characters removed.
+     *
+     * @param input The string to escape.
+     * @param result The builder to append the escaped string to.
+     *
+     * @return The supplied builder.
+     */
+    public static StringBuilder escapeCSVArgument(final CharSequence input,
+                                                  final StringBuilder result) {
+        return escape(input, result, false);
+    }
 
+    private static StringBuilder escape(final CharSequence input,
+                                        final StringBuilder result,
+                                        final boolean escapeCommas) {
         for (int n = 0; n < input.length(); n++) {
-            if (input.charAt(n) == '\\') {
-                char[] buff = {'\\', '\\'};
-                result = result.concat(new String(buff));
-            } else if (input.charAt(n) == '\n') {
-                char[] buff = {'\\', '\n'};
-                result = result.concat(new String(buff));
-            } else if (input.charAt(n) == '\r') {
-                char[] buff = {'\\', '\n'};
-                result = result.concat(new String(buff));
-            } else if (input.charAt(n) == '-') {
-                char[] buff = {'\\', '-'};
-                result = result.concat(new String(buff));
-            } else {
-                result += input.charAt(n);
+            char c = input.charAt(n);
+
+            if (c == '\\' || c == '-' || (c == ',' && escapeCommas)) {
+                result.append('\\').append(c);
+            } else if (c == '\n' || c == '\r') {
+                result.append('\\').append('\n');
+            } else if (c > '\u0001') {
+                // Remove all control characters
+                result.append(c);
             }
         }
 
-        // Remove all control characters
-        return result.replaceAll("[\u0000-\u0001]", "");
+        return result;
     }
 }
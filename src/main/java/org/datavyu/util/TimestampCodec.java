@@ -0,0 +1,258 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.util;
+
+/**
+ * Converts between times in milliseconds and HH:MM:SS:mmm timestamps,
+ * reading and writing the characters directly rather than going through
+ * String.format or String.split. Parsing, and formatting into a supplied
+ * StringBuilder or char[], allocate nothing.
+ */
+public final class TimestampCodec {
+
+    /** The number of characters in a timestamp with a two digit hour. */
+    public static final int LENGTH = 12;
+
+    /** Milliseconds in an hour, a minute and a second. */
+    private static final long HOUR = 60 * 60 * 1000;
+    private static final long MINUTE = 60 * 1000;
+    private static final long SECOND = 1000;
+
+    /**
+     * Constructor.
+     */
+    private TimestampCodec() {
+    }
+
+    /**
+     * Formats a time as a new string, which allocates a buffer and the
+     * string on every call. Use {@link #format(long, StringBuilder)} or
+     * {@link #format(long, char[], int)} to format without allocating.
+     *
+     * @param time The time in milliseconds.
+     *
+     * @return The time as a HH:MM:SS:mmm timestamp.
+     */
+    public static String format(final long time) {
+        char[] buf = new char[LENGTH + 20];
+        int end = format(time, buf, 0);
+
+        return new String(buf, 0, end);
+    }
+
+    /**
+     * Appends a time as a HH:MM:SS:mmm timestamp.
+     *
+     * @param time The time in milliseconds.
+     * @param sb The builder to append the timestamp to.
+     *
+     * @return The supplied builder.
+     */
+    public static StringBuilder format(final long time, final StringBuilder sb) {
+        long hours = floorDiv(time, HOUR);
+        long rem = time - hours * HOUR;
+
+        appendHours(hours, sb);
+        sb.append(':');
+        append2(rem / MINUTE, sb);
+        sb.append(':');
+        append2(rem % MINUTE / SECOND, sb);
+        sb.append(':');
+        long ms = rem % SECOND;
+        sb.append((char) ('0' + ms / 100));
+        append2(ms % 100, sb);
+
+        return sb;
+    }
+
+    /**
+     * Writes a time as a HH:MM:SS:mmm timestamp into a character buffer.
+     *
+     * @param time The time in milliseconds.
+     * @param buf The buffer to write to, it needs room for LENGTH characters
+     * plus any extra hour digits.
+     * @param off The position in the buffer to start writing at.
+     *
+     * @return The position in the buffer just after the timestamp.
+     */
+    public static int format(final long time, final char[] buf, final int off) {
+        long hours = floorDiv(time, HOUR);
+        long rem = time - hours * HOUR;
+
+        int pos = off;
+        if (hours < 0) {
+            buf[pos++] = '-';
+            pos = writeDigits(-hours, 1, buf, pos);
+        } else {
+            pos = writeDigits(hours, 2, buf, pos);
+        }
+        buf[pos++] = ':';
+        pos = writeDigits(rem / MINUTE, 2, buf, pos);
+        buf[pos++] = ':';
+        pos = writeDigits(rem % MINUTE / SECOND, 2, buf, pos);
+        buf[pos++] = ':';
+        pos = writeDigits(rem % SECOND, 3, buf, pos);
+
+        return pos;
+    }
+
+    /**
+     * @param timestamp A HH:MM:SS:mmm timestamp.
+     *
+     * @return The time of the timestamp in milliseconds.
+     *
+     * @throws NumberFormatException If the timestamp is not made up of four
+     * colon separated integers.
+     */
+    public static long parse(final CharSequence timestamp) {
+        return parse(timestamp, 0, timestamp.length());
+    }
+
+    /**
+     * @param timestamp The characters holding a HH:MM:SS:mmm timestamp.
+     * @param off The position of the first character of the timestamp.
+     * @param len The number of characters in the timestamp.
+     *
+     * @return The time of the timestamp in milliseconds.
+     *
+     * @throws NumberFormatException If the timestamp is not made up of four
+     * colon separated integers.
+     */
+    public static long parse(final CharSequence timestamp, final int off, final int len) {
+        return parse(timestamp, null, off, len);
+    }
+
+    /**
+     * @param timestamp The characters holding a HH:MM:SS:mmm timestamp.
+     * @param off The position of the first character of the timestamp.
+     * @param len The number of characters in the timestamp.
+     *
+     * @return The time of the timestamp in milliseconds.
+     *
+     * @throws NumberFormatException If the timestamp is not made up of four
+     * colon separated integers.
+     */
+    public static long parse(final char[] timestamp, final int off, final int len) {
+        return parse(null, timestamp, off, len);
+    }
+
+    /**
+     * Parses a timestamp held in either a character sequence or an array.
+     */
+    private static long parse(final CharSequence seq, final char[] arr,
+                              final int off, final int len) {
+        long time = 0;
+        long field = 0;
+        boolean signed = false;
+        boolean negative = false;
+        int digits = 0;
+        int fields = 0;
+        int end = off + len;
+
+        for (int i = off; i <= end; i++) {
+            char c = ':';
+            if (i < end) {
+                c = (arr != null) ? arr[i] : seq.charAt(i);
+            }
+
+            if (c >= '0' && c <= '9') {
+                field = field * 10 + (c - '0');
+                digits++;
+            } else if ((c == '-' || c == '+') && digits == 0 && !signed) {
+                signed = true;
+                negative = (c == '-');
+            } else if (c == ':' && digits > 0 && fields < 4) {
+                time += scale(fields) * (negative ? -field : field);
+                fields++;
+                field = 0;
+                digits = 0;
+                signed = false;
+                negative = false;
+            } else {
+                throw invalid(seq, arr, off, len);
+            }
+        }
+
+        if (fields != 4) {
+            throw invalid(seq, arr, off, len);
+        }
+
+        return time;
+    }
+
+    private static long scale(final int field) {
+        switch (field) {
+            case 0:
+                return HOUR;
+            case 1:
+                return MINUTE;
+            case 2:
+                return SECOND;
+            default:
+                return 1;
+        }
+    }
+
+    private static NumberFormatException invalid(final CharSequence seq, final char[] arr,
+                                                 final int off, final int len) {
+        String timestamp = (arr != null) ? new String(arr, off, len)
+                                         : seq.subSequence(off, off + len).toString();
+
+        return new NumberFormatException("Invalid timestamp: \"" + timestamp + "\"");
+    }
+
+    private static long floorDiv(final long x, final long y) {
+        long q = x / y;
+        if (x % y != 0 && (x < 0) != (y < 0)) {
+            q--;
+        }
+
+        return q;
+    }
+
+    private static void appendHours(final long hours, final StringBuilder sb) {
+        if (hours >= 0 && hours < 10) {
+            sb.append('0');
+        }
+        sb.append(hours);
+    }
+
+    private static void append2(final long value, final StringBuilder sb) {
+        sb.append((char) ('0' + value / 10));
+        sb.append((char) ('0' + value % 10));
+    }
+
+    /**
+     * Writes a non-negative number, padded with zeros to a minimum width.
+     *
+     * @return The position in the buffer just after the number.
+     */
+    private static int writeDigits(final long value, final int width,
+                                   final char[] buf, final int off) {
+        int digits = 1;
+        for (long v = value / 10; v > 0; v /= 10) {
+            digits++;
+        }
+        int n = Math.max(digits, width);
+
+        long v = value;
+        for (int i = off + n - 1; i >= off; i--) {
+            buf[i] = (char) ('0' + v % 10);
+            v /= 10;
+        }
+
+        return off + n;
+    }
+}
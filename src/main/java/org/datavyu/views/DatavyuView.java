@@ -62,6 +62,8 @@ import org.datavyu.controllers.project.ProjectController;
 import org.datavyu.event.component.FileDropEvent;
 import org.datavyu.event.component.FileDropEventListener;
 
+import org.datavyu.plugins.DataViewer;
+
 import org.datavyu.util.ArrayDirection;
 import org.datavyu.util.FileFilters.CSVFilter;
 import org.datavyu.util.FileFilters.MODBFilter;
@@ -75,13 +77,17 @@ import org.datavyu.views.discrete.layouts.SheetLayoutFactory.SheetLayoutType;
 import com.usermetrix.jclient.Logger;
 import com.usermetrix.jclient.UserMetrix;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import javax.swing.event.UndoableEditEvent;
 import javax.swing.event.UndoableEditListener;
 import javax.swing.undo.UndoableEdit;
 import javax.swing.undo.UndoableEditSupport;
 import org.datavyu.controllers.AutosaveC;
+import org.datavyu.controllers.ChangeJournal;
 import org.datavyu.models.db.Cell;
 import org.datavyu.models.db.Datastore;
+import org.datavyu.models.db.ProgressListener;
 import org.datavyu.models.db.UserWarningException;
 import org.datavyu.models.db.Variable;
 import org.datavyu.undoableedits.RemoveCellEdit;
@@ -89,9 +95,11 @@ import org.datavyu.undoableedits.RemoveVariableEdit;
 import org.datavyu.undoableedits.RunScriptEdit;
 import org.datavyu.undoableedits.SpreadsheetUndoManager;
 import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
 import javax.swing.SwingWorker;
 import org.datavyu.controllers.ExportDatabaseFileC;
 import org.datavyu.util.FileFilters.CellCSVFilter;
+import org.datavyu.util.FileFilters.ColumnarFilter;
 import org.datavyu.util.FileFilters.FrameCSVFilter;
 
 
@@ -333,6 +341,14 @@ public final class DatavyuView extends FrameView
             String path = FilenameUtils.getFullPath(tempfile.getPath());
             tempfile.delete();
             File folder = new File(path);
+
+            // Autosaves that were moved aside while being replaced.
+            for (File f : folder.listFiles()) {
+                if (f.isFile() && FilenameUtils.wildcardMatchOnSystem(f.getName(), "~*.bak")) {
+                    SaveC.recoverBackup(f);
+                }
+            }
+
             File[] listOfFiles = folder.listFiles();
             for (File f : listOfFiles) {
                 if ((f.isFile()) &&
@@ -352,6 +368,11 @@ public final class DatavyuView extends FrameView
                    }
                    // delete the recovered file
                    f.delete();
+                   ChangeJournal.getJournalFile(f).delete();
+                } else if ((f.isFile())
+                        && (FilenameUtils.wildcardMatchOnSystem(f.getName(), "~*.part"))) {
+                    // An autosave that was being written when datavyu crashed.
+                    f.delete();
                 }
             }
         } catch (IOException ex) {
@@ -360,9 +381,35 @@ public final class DatavyuView extends FrameView
 
 
         // initialize autosave feature
+        AutosaveC.setProgressListener(new ProgressListener() {
+            @Override
+            public void progressChanged(final String task, final int done, final int total) {
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        showAutosaveProgress(done, total);
+                    }
+                });
+            }
+        });
         AutosaveC.setInterval(1); // five minutes
     }
 
+    /**
+     * Shows the progress of an autosave in the title of the application.
+     *
+     * @param done The number of steps of the autosave that are complete.
+     * @param total The total number of steps in the autosave.
+     */
+    private void showAutosaveProgress(final int done, final int total) {
+        updateTitle();
+        if (done < total) {
+            String title = getFrame().getTitle() + " - Autosaving (" + done + "/" + total + ")";
+            Datavyu.getApplication().getMainFrame().setTitle(title);
+            getFrame().setTitle(title);
+        }
+    }
+
 
 
     /**
@@ -503,10 +550,9 @@ public final class DatavyuView extends FrameView
     @Action public void exportFile() {
         DatavyuFileChooser jd = new DatavyuFileChooser();
 	
-	// Not fully implemented
-//	jd.addChoosableFileFilter(FrameCSVFilter.INSTANCE);
-	
+	jd.addChoosableFileFilter(FrameCSVFilter.INSTANCE);
 	jd.addChoosableFileFilter(CellCSVFilter.INSTANCE);
+	jd.addChoosableFileFilter(ColumnarFilter.INSTANCE);
 
         int result = jd.showSaveDialog(getComponent());
 
@@ -519,31 +565,132 @@ public final class DatavyuView extends FrameView
 	ProjectController projController = Datavyu.getProjectController();
         projController.updateProject();
 	
-	try {
-		ExportDatabaseFileC exportC = new ExportDatabaseFileC();
-		
-		FileFilter filter = fc.getFileFilter();
-		String dbFileName = fc.getSelectedFile().getPath();
-		if (!dbFileName.endsWith(".csv")) {
-			dbFileName = dbFileName.concat(".csv");
-		}
-
-		// Only save if the project file does not exists or if the user
-		// confirms a file overwrite in the case that the file exists.
-		if (!canSave(fc.getSelectedFile().getParent(), dbFileName)) {
-			return;
-		}
-		File f = new File(fc.getSelectedFile().getParent(), dbFileName);
-		
-		if(filter instanceof FrameCSVFilter) {
-			exportC.exportByFrame(dbFileName, projController.getDB());
-		}
-		else if (filter instanceof CellCSVFilter) {
-			exportC.exportAsCells(dbFileName, projController.getDB());
-		}
-	} catch (Exception e) {
-		e.printStackTrace();
+	FileFilter filter = fc.getFileFilter();
+	String dbFileName = fc.getSelectedFile().getPath();
+	String extension = ".csv";
+	if (filter instanceof ColumnarFilter) {
+		extension = ExportDatabaseFileC.COLUMNAR_EXTENSION;
+	}
+	if (!dbFileName.endsWith(extension)) {
+		dbFileName = dbFileName.concat(extension);
 	}
+
+	// Only save if the project file does not exists or if the user
+	// confirms a file overwrite in the case that the file exists.
+	if (!canSave(fc.getSelectedFile().getParent(), dbFileName)) {
+		return;
+	}
+
+	// The progress bar is modal, so the spreadsheet can't be changed while
+	// it is being exported in the background.
+	JFrame mainFrame = Datavyu.getApplication().getMainFrame();
+	DVProgressBar exportProgress = new DVProgressBar(mainFrame, true);
+	new ExportTask(exportProgress, filter, dbFileName, projController.getDB(), getExportFrameRate()).execute();
+	Datavyu.getApplication().show(exportProgress);
+    }
+
+    /**
+     * Exports the spreadsheet in the background, showing how far the export
+     * has got in a progress bar. Cancelling the progress bar stops the export
+     * and deletes the partly written file.
+     */
+    class ExportTask extends SwingWorker<Void, Void> implements ProgressListener {
+        private final DVProgressBar progressBar;
+        private final FileFilter filter;
+        private final String fileName;
+        private final Datastore db;
+        private final double framerate;
+
+        /** The last percentage shown, each one shown adds a line to the progress bar. */
+        private int shown = -1;
+
+        public ExportTask(final DVProgressBar progressBar,
+                          final FileFilter filter,
+                          final String fileName,
+                          final Datastore db,
+                          final double framerate) {
+            this.progressBar = progressBar;
+            this.filter = filter;
+            this.fileName = fileName;
+            this.db = db;
+            this.framerate = framerate;
+        }
+
+        @Override
+        public Void doInBackground() throws UserWarningException {
+            ExportDatabaseFileC exportC = new ExportDatabaseFileC();
+
+            try {
+                if (filter instanceof FrameCSVFilter) {
+                    exportC.exportByFrame(fileName, db, framerate, this);
+                } else if (filter instanceof CellCSVFilter) {
+                    exportC.exportAsCells(fileName, db, this);
+                } else if (filter instanceof ColumnarFilter) {
+                    exportC.exportAsColumns(fileName, db);
+                }
+            } catch (UserWarningException e) {
+                // The export has closed the file by the time it gives up.
+                if (isCancelled()) {
+                    new File(fileName).delete();
+                    return null;
+                }
+                throw e;
+            }
+
+            return null;
+        }
+
+        @Override
+        public void progressChanged(final String task, final int done, final int total) {
+            int percent = (int) (100L * done / Math.max(1, total));
+            if (percent != shown) {
+                shown = percent;
+                if (progressBar.setProgress(percent, task)) {
+                    cancel(true);
+                }
+            }
+        }
+
+        @Override
+        protected void done() {
+            progressBar.close();
+
+            try {
+                get();
+            } catch (CancellationException e) {
+                LOGGER.event("export cancelled");
+            } catch (InterruptedException e) {
+                LOGGER.error("Interrupted while exporting", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof UserWarningException) {
+                    Datavyu.getApplication().showWarningDialog((UserWarningException) e.getCause());
+                } else {
+                    e.getCause().printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The frame rate to export frame by frame at: the highest frame
+     * rate of the open videos, otherwise the one set in the configuration.
+     */
+    private double getExportFrameRate() {
+        float rate = 0;
+        for (DataViewer viewer : Datavyu.getDataController().getDataViewers()) {
+            rate = Math.max(rate, viewer.getFrameRate());
+        }
+
+        if (rate > 0) {
+            return rate;
+        }
+
+        Float configured = Configuration.getInstance().getExportFrameRate();
+        if (configured != null) {
+            return configured;
+        }
+
+        return ExportDatabaseFileC.DEFAULT_FRAME_RATE;
     }
 
     private boolean canSave(final String directory, final String file) {
@@ -951,6 +1098,15 @@ public final class DatavyuView extends FrameView
             // Reset the undo manager
             resetUndoManager();
 
+            if (openC.getUnmatchedJournal() != null) {
+                ResourceMap rMap = Datavyu.getApplication().getContext()
+                                            .getResourceMap(Datavyu.class);
+                Datavyu.getApplication().showWarningDialog(
+                        rMap.getString("UnmatchedJournal.message",
+                                       projectFile.getName(),
+                                       openC.getUnmatchedJournal().getName()));
+            }
+
             return true;
         }
         return false;
@@ -32,6 +32,8 @@ import org.datavyu.Datavyu;
 import org.datavyu.controllers.DeleteColumnC;
 import org.datavyu.models.db.Argument;
 import org.datavyu.models.db.Datastore;
+import org.datavyu.models.db.ProgressListener;
+import org.datavyu.models.db.ReportsProgress;
 import org.datavyu.models.db.UserWarningException;
 import org.datavyu.models.db.Variable;
 import org.datavyu.undoableedits.AddVariableEdit;
@@ -274,6 +276,44 @@ public final class VocabEditorV extends DatavyuDialog {
 
     }
 
+    /**
+     * Shows the progress of a change to every cell of a variable in the
+     * status bar, for datastores that report it.
+     *
+     * @return The listener that was registered, or null if the datastore
+     * does not report progress.
+     */
+    private ProgressListener startProgress() {
+        setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+        if (!(ds instanceof ReportsProgress)) {
+            return null;
+        }
+
+        ProgressListener listener = new ProgressListener() {
+            @Override
+            public void progressChanged(final String task, final int done, final int total) {
+                statusBar.setText(task + " (" + done + "/" + total + ")");
+                statusBar.paintImmediately(statusBar.getVisibleRect());
+            }
+        };
+        ((ReportsProgress) ds).addProgressListener(listener);
+
+        return listener;
+    }
+
+    /**
+     * Stops showing progress in the status bar.
+     *
+     * @param listener The listener returned by {@link #startProgress()}.
+     */
+    private void stopProgress(final ProgressListener listener) {
+        if (listener != null) {
+            ((ReportsProgress) ds).removeProgressListener(listener);
+            statusBar.setText(" ");
+        }
+        setCursor(Cursor.getDefaultCursor());
+    }
+
     /**
      * The action to invoke when the user clicks on the move arg left button.
      */
@@ -282,7 +322,12 @@ public final class VocabEditorV extends DatavyuDialog {
         LOGGER.error("vocEd - move argument left");
         Argument va = selectedVocabElement.getModel().childArguments.get(selectedArgumentI);
         Variable var = selectedVocabElement.getVariable();
-        var.moveArgument(va.name, var.getArgumentIndex(va.name) - 1);
+        ProgressListener progress = startProgress();
+        try {
+            var.moveArgument(va.name, var.getArgumentIndex(va.name) - 1);
+        } finally {
+            stopProgress(progress);
+        }
         
         selectedVocabElement.rebuildContents();
 
@@ -302,7 +347,12 @@ public final class VocabEditorV extends DatavyuDialog {
         LOGGER.error("vocEd - move argument right");
         Argument va = selectedVocabElement.getModel().childArguments.get(selectedArgumentI);
         Variable var = selectedVocabElement.getVariable();
-        var.moveArgument(va.name, var.getArgumentIndex(va.name) + 1);
+        ProgressListener progress = startProgress();
+        try {
+            var.moveArgument(va.name, var.getArgumentIndex(va.name) + 1);
+        } finally {
+            stopProgress(progress);
+        }
         
         selectedVocabElement.rebuildContents();
 
@@ -320,7 +370,13 @@ public final class VocabEditorV extends DatavyuDialog {
     @Action
     public void addArgument() {
         Variable var = selectedVocabElement.getVariable();
-        Argument fa = var.addArgument(Argument.Type.NOMINAL);
+        Argument fa;
+        ProgressListener progress = startProgress();
+        try {
+            fa = var.addArgument(Argument.Type.NOMINAL);
+        } finally {
+            stopProgress(progress);
+        }
         selectedVocabElement.setModel(var.getVariableType());
 
         String type = (String) argTypeComboBox.getSelectedItem();
@@ -358,7 +414,12 @@ public final class VocabEditorV extends DatavyuDialog {
         // User has argument selected - delete it from the vocab element.
         } else if (selectedArgument != null) {
             LOGGER.event("vocEd - delete argument");
-            selectedVocabElement.getVariable().removeArgument(selectedArgument.getModel().name);
+            ProgressListener progress = startProgress();
+            try {
+                selectedVocabElement.getVariable().removeArgument(selectedArgument.getModel().name);
+            } finally {
+                stopProgress(progress);
+            }
             selectedVocabElement.setHasChanged(true);
             selectedVocabElement.rebuildContents();
             applyChanges();
@@ -25,11 +25,13 @@ import java.awt.event.KeyEvent;
 
 import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Iterator;
 
 import javax.swing.BorderFactory;
 import javax.swing.JButton;
 import javax.swing.JPanel;
 import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
 import javax.swing.text.BadLocationException;
 
 import com.usermetrix.jclient.UserMetrix;
@@ -45,6 +47,9 @@ import org.datavyu.util.Constants;
  * ColumnDataPanel panel that contains the SpreadsheetCell panels.
  */
 public final class ColumnDataPanel extends JPanel implements KeyEventDispatcher {
+    /** The number of SpreadsheetCells built at a time when populating. */
+    private static final int BUILD_BATCH_SIZE = 500;
+
     /** Width of the column. */
     private int columnWidth;
 
@@ -54,6 +59,15 @@ public final class ColumnDataPanel extends JPanel implements KeyEventDispatcher
     /** The model that this variable represents. */
     private Variable model;
 
+    /** The datastore holding the model. */
+    private Datastore datastore;
+
+    /** Have the SpreadsheetCells been built for this data panel yet? */
+    private boolean built = false;
+
+    /** The cells still to be built in temporal order, null if none are. */
+    private Iterator<Cell> pending = null;
+
     /** The cell selection listener used for cells in this column. */
     private CellSelectionListener cellSelectionL;
 
@@ -93,6 +107,7 @@ public final class ColumnDataPanel extends JPanel implements KeyEventDispatcher
         viewMap = new HashMap<Cell, SpreadsheetCell>();
         cellSelectionL = cellSelL;
         model = variable;
+        datastore = db;
 
         setLayout(null);
         //setLayout(new BoxLayout(this, BoxLayout.Y_AXIS));
@@ -106,8 +121,25 @@ public final class ColumnDataPanel extends JPanel implements KeyEventDispatcher
         padding.setBorder(BorderFactory.createMatteBorder(0, 0, 0, Constants.BORDER_SIZE, new Color(175, 175, 175)));
         this.add(padding);
 
-        // Populate the data column with spreadsheet cells.
-        buildDataPanelCells(db, variable, cellSelL);
+        // Populate the data column with spreadsheet cells. Hidden columns
+        // are populated when they are first shown, so that their cells don't
+        // need to be loaded when the spreadsheet is opened.
+        if (!variable.isHidden()) {
+            buildDataPanelCells();
+        } else {
+            this.add(newCellButton);
+        }
+    }
+
+    /**
+     * Builds the SpreadsheetCells of a column that was hidden when this data
+     * panel was created. Does nothing if they have already been built.
+     */
+    public void showCells() {
+        if (!built) {
+            this.remove(newCellButton);
+            buildDataPanelCells();
+        }
     }
 
     /**
@@ -129,41 +161,92 @@ public final class ColumnDataPanel extends JPanel implements KeyEventDispatcher
     }
 
     /**
-     * Build the SpreadsheetCells and add to the DataPanel.
-     *
-     * @param db The datastore holding cells that this column will represent.
-     * @param variable The variable to display.
-     * @param cellSelL Spreadsheet listener to notify about cell selection
-     * changes.
+     * Build the SpreadsheetCells and add to the DataPanel. The first
+     * BUILD_BATCH_SIZE cells are built straight away and the rest a batch at
+     * a time from the event queue, so that the spreadsheet can be painted
+     * before every cell of a long column has been built.
      */
-    private void buildDataPanelCells(final Datastore db,
-                                     final Variable variable,
-                                     final CellSelectionListener cellSelL) {
+    private void buildDataPanelCells() {
+        built = true;
+        pending = model.getCellsTemporally().iterator();
+        buildBatch();
+    }
 
-        // traverse and build the cells
-        for (Cell cell : variable.getCellsTemporally()) {
-            SpreadsheetCell sc = new SpreadsheetCell(db, cell, cellSelL);
-            cell.addListener(sc);
+    /**
+     * Builds the next batch of pending cells, and queues the batch after it.
+     */
+    private void buildBatch() {
+        if (pending == null) {
+            return;
+        }
 
-            // add cell to the JPanel
-            this.add(sc);
+        for (int i = 0; i < BUILD_BATCH_SIZE && pending.hasNext(); i++) {
+            buildCell(pending.next());
+        }
+
+        this.add(newCellButton);
+        this.setSize(columnWidth, columnHeight);
+        revalidate();
+
+        if (pending.hasNext()) {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    buildBatch();
+                }
+            });
+        } else {
+            pending = null;
+        }
+    }
 
-            // and add it to our reference list
-            cells.add(sc);
+    /**
+     * Builds the cells still pending all at once, from the current cells of
+     * the variable. Used when the variable changes part way through, as the
+     * pending cells may no longer match it.
+     */
+    private void finishBuilding() {
+        if (pending == null) {
+            return;
+        }
 
-            // Add the ID's to the mapping.
-            viewMap.put(cell, sc);
-            columnHeight += sc.getHeight();
+        clear();
+        columnHeight = 0;
+        for (Cell cell : model.getCellsTemporally()) {
+            buildCell(cell);
         }
 
         this.add(newCellButton);
         this.setSize(columnWidth, columnHeight);
+        revalidate();
+    }
+
+    /**
+     * Builds the SpreadsheetCell for a cell and adds it to the end of this
+     * data panel.
+     *
+     * @param cell The cell to build the SpreadsheetCell of.
+     */
+    private void buildCell(final Cell cell) {
+        SpreadsheetCell sc = new SpreadsheetCell(datastore, cell, cellSelectionL);
+        cell.addListener(sc);
+
+        // add cell to the JPanel
+        this.add(sc);
+
+        // and add it to our reference list
+        cells.add(sc);
+
+        // Add the ID's to the mapping.
+        viewMap.put(cell, sc);
+        columnHeight += sc.getHeight();
     }
 
     /**
      * Clears the cells stored in the column data panel.
      */
     public void clear() {
+        pending = null;
         for (SpreadsheetCell cell : cells) {
             cell.getCell().removeListener(cell);
             this.remove(cell);
@@ -179,6 +262,16 @@ public final class ColumnDataPanel extends JPanel implements KeyEventDispatcher
      * @param cell The cell to find and delete from the column data panel.
      */
     public void deleteCell(final Cell cell) {
+        if (!built) {
+            return;
+        }
+
+        // The cell has already left the variable, so it is not rebuilt.
+        if (pending != null) {
+            finishBuilding();
+            return;
+        }
+
         SpreadsheetCell sCell = viewMap.get(cell);
         cell.removeListener(sCell);
         this.remove(sCell);
@@ -199,6 +292,22 @@ public final class ColumnDataPanel extends JPanel implements KeyEventDispatcher
                            final Cell cell,
                            final CellSelectionListener cellSelL) {
 
+        // The cell is picked up when the column is first shown.
+        if (!built) {
+            return;
+        }
+
+        // The cell is already part of the variable, so it is built with the
+        // rest.
+        if (pending != null) {
+            finishBuilding();
+            SpreadsheetCell nCell = viewMap.get(cell);
+            if (nCell != null) {
+                nCell.requestFocus();
+            }
+            return;
+        }
+
         SpreadsheetCell nCell = new SpreadsheetCell(ds, cell, cellSelL);
         nCell.setWidth(this.getWidth());
         cell.addListener(nCell);
@@ -249,6 +358,12 @@ public final class ColumnDataPanel extends JPanel implements KeyEventDispatcher
      * @return The SpreadsheetCells in this column temporally.
      */
     public List<SpreadsheetCell> getCellsTemporally() {
+        // Cells are built in temporal order, only those built so far are laid
+        // out.
+        if (pending != null) {
+            return new ArrayList<SpreadsheetCell>(cells);
+        }
+
         ArrayList<SpreadsheetCell> result = new ArrayList<SpreadsheetCell>();
 
         for (Cell c : model.getCellsTemporally()) {
@@ -455,6 +455,10 @@ implements VariableListener,
 
     @Override
     public void visibilityChanged(final boolean isHidden) {
+        if (!isHidden) {
+            datapanel.showCells();
+        }
+
         setVisible(!isHidden);
         this.datapanel.setVisible(!isHidden);
     }
@@ -78,6 +78,7 @@ import 'org.datavyu.models.db.Value'
 import 'org.datavyu.models.db.Variable'
 import 'org.datavyu.models.db.Cell'
 import 'org.datavyu.models.db.Argument'
+import 'org.datavyu.models.db.CellColumns'
 import 'org.datavyu.models.project.Project'
 import 'org.datavyu.controllers.SaveC'
 import 'com.mongodb.BasicDBObject'
@@ -689,6 +690,51 @@ def setVariable(*args)
    #end
 end
 
+#-------------------------------------------------------------------
+# Method name: getColumns
+# Function: getColumns reads a whole variable from the database as columns,
+#           which is much quicker than getVariable for variables with many
+#           cells. The onsets and offsets are Java arrays of longs, and the
+#           value of each argument an array of codes into a dictionary of
+#           the distinct values (-1 for an empty value).
+# Arguments:
+# => name (required): The Datavyu name of the variable being retrieved
+# Returns:
+# => The columns of the variable, in temporal order.
+# Usage:
+#       trial = getColumns("trial")
+#       onsets = trial.getOnsets()
+#       codes = trial.getCodes(trial.getArgumentIndex("condition"))
+#       puts trial.decode(codes[0])
+#-------------------------------------------------------------------
+
+def getColumns(name)
+   return CellColumns.of($db.getVariable(name))
+end
+
+#-------------------------------------------------------------------
+# Method name: setColumns
+# Function: setColumns replaces the cells of a variable with the contents of
+#           columns, in a single batch. The variable must have the same
+#           arguments as the columns.
+# Arguments:
+# => name (required): The name of the variable being written
+# => columns (required): The columns to write, usually from getColumns.
+# Usage:
+#       trial = getColumns("trial")
+#       # Recode every "L" to "left", and onsets to tenths of a second.
+#       trial.setDictionaryValue(trial.encode("L"), "left")
+#       onsets = trial.getOnsets()
+#       for i in 0...onsets.length
+#           onsets[i] = onsets[i] / 100 * 100
+#       end
+#       setColumns("trial", trial)
+#-------------------------------------------------------------------
+
+def setColumns(name, columns)
+   columns.writeTo($db.getVariable(name))
+end
+
 #-------------------------------------------------------------------
 # Method name: make_rel
 # Function: This function will create a reliability column that is a copy
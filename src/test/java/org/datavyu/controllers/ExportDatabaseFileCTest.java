@@ -0,0 +1,361 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.controllers;
+
+import com.usermetrix.jclient.UserMetrix;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import org.datavyu.models.db.Argument;
+import org.datavyu.models.db.Cell;
+import org.datavyu.models.db.Datastore;
+import org.datavyu.models.db.DatastoreFactory;
+import org.datavyu.models.db.UserWarningException;
+import org.datavyu.models.db.Variable;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * Tests for exporting the database.
+ */
+public class ExportDatabaseFileCTest {
+
+    @BeforeClass
+    public void spinUp() {
+        com.usermetrix.jclient.Configuration config = new com.usermetrix.jclient.Configuration(2);
+        UserMetrix.initalise(config);
+        UserMetrix.setCanSendLogs(false);
+    }
+
+    @AfterClass
+    public void spinDown() {
+        UserMetrix.shutdown();
+    }
+
+    @Test
+    public void testExportByFrameOverlapping() throws UserWarningException, IOException {
+        Datastore ds = DatastoreFactory.newDatastore();
+        Variable var = ds.createVariable("test", Argument.Type.TEXT);
+        createCell(var, 0, 300, "a");
+        createCell(var, 100, 150, "b");
+
+        File outFile = new File("target/frames1.csv");
+        new ExportDatabaseFileC().exportByFrame(outFile.getPath(), ds, 10.0);
+        List<String> lines = readLines(outFile);
+
+        // The cell that started most recently wins, until it ends and the
+        // earlier cell that is still active takes over.
+        assertEquals(5, lines.size());
+        assertEquals("framenum,time,test.ordinal,test.onset,test.offset,test.value", lines.get(0));
+        assertEquals("1,0,1,0,300,a", lines.get(1));
+        assertEquals("2,100,2,100,150,b", lines.get(2));
+        assertEquals("3,200,1,0,300,a", lines.get(3));
+        assertEquals("4,300,1,0,300,a", lines.get(4));
+    }
+
+    @Test
+    public void testExportByFrameOffsetBeforeOnset() throws UserWarningException, IOException {
+        Datastore ds = DatastoreFactory.newDatastore();
+        Variable var = ds.createVariable("test", Argument.Type.TEXT);
+        createCell(var, 0, 100, "a");
+        createCell(var, 300, 200, "b");
+
+        File outFile = new File("target/frames2.csv");
+        new ExportDatabaseFileC().exportByFrame(outFile.getPath(), ds, 10.0);
+        List<String> lines = readLines(outFile);
+
+        // A cell whose offset is before its onset is only active at its
+        // onset.
+        assertEquals(5, lines.size());
+        assertEquals("1,0,1,0,100,a", lines.get(1));
+        assertEquals("2,100,1,0,100,a", lines.get(2));
+        assertEquals("3,200,,,,", lines.get(3));
+        assertEquals("4,300,2,300,200,b", lines.get(4));
+    }
+
+    @Test
+    public void testExportByFrameFractionalRate() throws UserWarningException, IOException {
+        Datastore ds = DatastoreFactory.newDatastore();
+        Variable var = ds.createVariable("test", Argument.Type.TEXT);
+        createCell(var, 0, 66, "a");
+        createCell(var, 67, 1000, "b");
+
+        File outFile = new File("target/frames3.csv");
+        new ExportDatabaseFileC().exportByFrame(outFile.getPath(), ds, 29.97);
+        List<String> lines = readLines(outFile);
+
+        // Frame times are rounded down from the frame number, so they don't
+        // drift over the length of the session.
+        assertEquals(31, lines.size());
+        assertEquals("1,0,1,0,66,a", lines.get(1));
+        assertEquals("2,33,1,0,66,a", lines.get(2));
+        assertEquals("3,66,1,0,66,a", lines.get(3));
+        assertEquals("4,100,2,67,1000,b", lines.get(4));
+        assertEquals("30,967,2,67,1000,b", lines.get(30));
+    }
+
+    @Test
+    public void testExportAsCellsSingleThread() throws UserWarningException, IOException {
+        checkExportAsCells("1");
+    }
+
+    @Test
+    public void testExportAsCellsMultipleThreads() throws UserWarningException, IOException {
+        checkExportAsCells("4");
+    }
+
+    /**
+     * Exports a variable with more cells than fit in one chunk of rows next
+     * to a variable with only two, and checks that the shorter one is padded
+     * with blanks once it runs out.
+     *
+     * @param threads The number of threads to export on.
+     */
+    private void checkExportAsCells(final String threads) throws UserWarningException, IOException {
+        Datastore ds = DatastoreFactory.newDatastore();
+        Variable text = ds.createVariable("a", Argument.Type.TEXT);
+        for (int i = 0; i < 5000; i++) {
+            createCell(text, i * 10, i * 10 + 10, "v" + i);
+        }
+
+        Variable matrix = ds.createVariable("b", Argument.Type.MATRIX);
+        matrix.addArgument(Argument.Type.TEXT);
+        Cell cell = createCell(matrix, 0, 5, null);
+        cell.setMatrixValue(0, "x");
+        cell.setMatrixValue(1, "y, z");
+        createCell(matrix, 5, 6, null);
+
+        File outFile = new File("target/cells" + threads + ".csv");
+        String previous = System.getProperty(ExportDatabaseFileC.THREADS_PROPERTY);
+        System.setProperty(ExportDatabaseFileC.THREADS_PROPERTY, threads);
+        try {
+            new ExportDatabaseFileC().exportAsCells(outFile.getPath(), ds);
+        } finally {
+            if (previous == null) {
+                System.clearProperty(ExportDatabaseFileC.THREADS_PROPERTY);
+            } else {
+                System.setProperty(ExportDatabaseFileC.THREADS_PROPERTY, previous);
+            }
+        }
+        List<String> lines = readLines(outFile);
+
+        assertEquals(5001, lines.size());
+        assertEquals("a.ordinal,a.onset,a.offset,a.value,b.ordinal,b.onset,b.offset,b.arg01,b.arg02,",
+                     lines.get(0));
+        assertEquals("1,0,10,v0,1,0,5,x,\"y, z\",", lines.get(1));
+        assertEquals("2,10,20,v1,2,5,6,,,", lines.get(2));
+        assertEquals("3,20,30,v2,,,,,,", lines.get(3));
+        assertEquals("4097,40960,40970,v4096,,,,,,", lines.get(4097));
+        assertEquals("5000,49990,50000,v4999,,,,,,", lines.get(5000));
+    }
+
+    @Test
+    public void testExportAsCSV() throws UserWarningException {
+        Datastore ds = DatastoreFactory.newDatastore();
+        Variable var = ds.createVariable("test", Argument.Type.TEXT);
+        createCell(var, 0, 10, "a, b");
+        createCell(var, 10, 20, null);
+
+        ByteArrayOutputStream exported = new ByteArrayOutputStream();
+        new ExportDatabaseFileC().exportAsCSV(exported, ds);
+        ByteArrayOutputStream saved = new ByteArrayOutputStream();
+        new SaveDatabaseFileC().saveAsCSV(saved, ds);
+
+        assertEquals(new String(saved.toByteArray()), new String(exported.toByteArray()));
+    }
+
+    @Test
+    public void testExportAsColumns() throws UserWarningException, IOException {
+        Datastore ds = DatastoreFactory.newDatastore();
+        Variable text = ds.createVariable("text", Argument.Type.TEXT);
+        createCell(text, 0, 10, "hello");
+        createCell(text, 10, 20, null);
+
+        Variable nominal = ds.createVariable("nominal", Argument.Type.NOMINAL);
+        createCell(nominal, 0, 1, "x");
+        createCell(nominal, 1, 2, null);
+        createCell(nominal, 2, 3, "y");
+        createCell(nominal, 3, 4, "x");
+
+        Variable matrix = ds.createVariable("matrix", Argument.Type.MATRIX);
+        matrix.addArgument(Argument.Type.TEXT);
+        Cell cell = createCell(matrix, 5, 6, null);
+        cell.setMatrixValue(0, "p");
+        cell.setMatrixValue(1, "q");
+        cell = createCell(matrix, 7, 8, null);
+        cell.setMatrixValue(1, "r");
+
+        new ExportDatabaseFileC().exportAsColumns("target/columns.dvc", ds);
+
+        ByteBuffer in = readColumns(new File("target/columns.text.dvc"), 2, 3);
+        assertEquals("onset", readString(in));
+        assertEquals(0, in.getInt());
+        assertEquals("offset", readString(in));
+        assertEquals(0, in.getInt());
+        assertEquals("value", readString(in));
+        assertEquals(2, in.getInt());
+        assertEquals(0L, in.getLong());
+        assertEquals(10L, in.getLong());
+        assertEquals(10L, in.getLong());
+        assertEquals(20L, in.getLong());
+        assertEquals(0, in.getInt());
+        assertEquals(5, in.getInt());
+        assertEquals(5, in.getInt());
+        assertEquals("hello", readBytes(in, 5));
+        assertEquals(0, in.remaining());
+
+        in = readColumns(new File("target/columns.nominal.dvc"), 4, 3);
+        readString(in);
+        in.getInt();
+        readString(in);
+        in.getInt();
+        assertEquals("value", readString(in));
+        assertEquals(1, in.getInt());
+        // Skips the onsets and offsets of the four cells.
+        in.position(in.position() + 4 * 8 * 2);
+        assertEquals(2, in.getInt());
+        assertEquals("x", readString(in));
+        assertEquals("y", readString(in));
+        assertEquals(0, in.getInt());
+        assertEquals(-1, in.getInt());
+        assertEquals(1, in.getInt());
+        assertEquals(0, in.getInt());
+        assertEquals(0, in.remaining());
+
+        in = readColumns(new File("target/columns.matrix.dvc"), 2, 4);
+        readString(in);
+        in.getInt();
+        readString(in);
+        in.getInt();
+        assertEquals("arg01", readString(in));
+        assertEquals(1, in.getInt());
+        assertEquals("arg02", readString(in));
+        assertEquals(2, in.getInt());
+        assertEquals(5L, in.getLong());
+        assertEquals(7L, in.getLong());
+        assertEquals(6L, in.getLong());
+        assertEquals(8L, in.getLong());
+        assertEquals(1, in.getInt());
+        assertEquals("p", readString(in));
+        assertEquals(0, in.getInt());
+        assertEquals(-1, in.getInt());
+        assertEquals(0, in.getInt());
+        assertEquals(1, in.getInt());
+        assertEquals(2, in.getInt());
+        assertEquals("qr", readBytes(in, 2));
+        assertEquals(0, in.remaining());
+    }
+
+    /**
+     * Reads a columnar file and checks its header.
+     *
+     * @param file The file to read.
+     * @param rows The number of rows the file should hold.
+     * @param columns The number of columns the file should hold.
+     *
+     * @return The rest of the file, from the first column name.
+     */
+    private ByteBuffer readColumns(final File file, final int rows, final int columns) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(bytes);
+        } finally {
+            in.close();
+        }
+
+        ByteBuffer result = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals("DVCF", readBytes(result, 4));
+        assertEquals(1, result.getInt());
+        assertEquals(rows, result.getInt());
+        assertEquals(columns, result.getInt());
+
+        return result;
+    }
+
+    /**
+     * @param in A columnar file.
+     *
+     * @return The string at the position of the file, after its length.
+     */
+    private String readString(final ByteBuffer in) throws IOException {
+        return readBytes(in, in.getInt());
+    }
+
+    /**
+     * @param in A columnar file.
+     * @param length The number of bytes to read.
+     *
+     * @return The UTF-8 bytes at the position of the file.
+     */
+    private String readBytes(final ByteBuffer in, final int length) throws IOException {
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Creates a cell, setting its value if the variable holds text.
+     *
+     * @param var The variable to create the cell in.
+     * @param onset The onset of the cell in milliseconds.
+     * @param offset The offset of the cell in milliseconds.
+     * @param value The value of the cell, null to leave it empty.
+     *
+     * @return The new cell.
+     */
+    private Cell createCell(final Variable var, final long onset, final long offset, final String value) {
+        Cell cell = var.createCell();
+        cell.setOnset(onset);
+        cell.setOffset(offset);
+        if (value != null) {
+            cell.getValue().set(value);
+        }
+
+        return cell;
+    }
+
+    /**
+     * @param file An exported CSV file.
+     *
+     * @return The lines of the file.
+     */
+    private List<String> readLines(final File file) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        List<String> lines = new ArrayList<String>();
+
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            in.close();
+        }
+
+        return lines;
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.controllers;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.datavyu.models.db.Argument;
+import org.datavyu.models.db.Cell;
+import org.datavyu.models.db.Datastore;
+import org.datavyu.models.db.DatastoreFactory;
+import org.datavyu.models.db.UserWarningException;
+import org.datavyu.models.db.Variable;
+import org.testng.annotations.Test;
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * Tests for the CSV files that variables are handed to R in.
+ */
+public class RunScriptCTest {
+
+    @Test
+    public void testWriteMatrixVariableForR() throws UserWarningException, IOException {
+        Datastore ds = DatastoreFactory.newDatastore();
+        Variable var = ds.createVariable("test", Argument.Type.MATRIX);
+        var.addArgument(Argument.Type.TEXT);
+
+        // Created out of order, ordinals follow the onsets.
+        Cell cell = createCell(var, 20, 30);
+        cell.setMatrixValue(0, "y");
+        cell.setMatrixValue(1, "line");
+        cell = createCell(var, 0, 10);
+        cell.setMatrixValue(0, "x");
+        cell.setMatrixValue(1, "say \"hi\", then go");
+        createCell(var, 10, 20);
+
+        File file = new File("target/r1.csv");
+        RunScriptC.writeVariableForR(var.getCellsTemporally().iterator(),
+                                     Arrays.asList("arg01", "arg02"),
+                                     file);
+        List<String> lines = readLines(file);
+
+        assertEquals(4, lines.size());
+        assertEquals("ordinal,onset,offset,arg01,arg02", lines.get(0));
+        assertEquals("1,0,10,x,\"say \"\"hi\"\", then go\"", lines.get(1));
+        assertEquals("2,10,20,,", lines.get(2));
+        assertEquals("3,20,30,y,line", lines.get(3));
+    }
+
+    @Test
+    public void testWriteTextVariableForR() throws UserWarningException, IOException {
+        Datastore ds = DatastoreFactory.newDatastore();
+        Variable var = ds.createVariable("test", Argument.Type.TEXT);
+        createCell(var, 0, 10).getValue().set("a,b");
+        createCell(var, 10, 20);
+
+        File file = new File("target/r2.csv");
+        RunScriptC.writeVariableForR(var.getCellsTemporally().iterator(),
+                                     Collections.singletonList("arg"),
+                                     file);
+        List<String> lines = readLines(file);
+
+        assertEquals(3, lines.size());
+        assertEquals("ordinal,onset,offset,arg", lines.get(0));
+        assertEquals("1,0,10,\"a,b\"", lines.get(1));
+        assertEquals("2,10,20,", lines.get(2));
+    }
+
+    /**
+     * Creates an empty cell.
+     *
+     * @param var The variable to create the cell in.
+     * @param onset The onset of the cell in milliseconds.
+     * @param offset The offset of the cell in milliseconds.
+     *
+     * @return The new cell.
+     */
+    private Cell createCell(final Variable var, final long onset, final long offset) {
+        Cell cell = var.createCell();
+        cell.setOnset(onset);
+        cell.setOffset(offset);
+
+        return cell;
+    }
+
+    /**
+     * @param file A CSV file written for R.
+     *
+     * @return The lines of the file.
+     */
+    private List<String> readLines(final File file) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        List<String> lines = new ArrayList<String>();
+
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            in.close();
+        }
+
+        return lines;
+    }
+}
@@ -16,19 +16,29 @@ package org.datavyu.controllers;
 
 import org.datavyu.models.db.DatastoreFactory;
 import com.usermetrix.jclient.UserMetrix;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
 import org.datavyu.util.UIUtils;
 import org.testng.annotations.AfterClass;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
 import static junit.framework.Assert.assertTrue;
 import org.datavyu.models.db.Argument;
 import org.datavyu.models.db.Cell;
 import org.datavyu.models.db.Datastore;
+import org.datavyu.models.db.MatrixValue;
 import org.datavyu.models.db.UserWarningException;
 import org.datavyu.models.db.Variable;
+import org.datavyu.models.db.Versioned;
 import org.datavyu.models.project.Project;
+import org.datavyu.util.StringUtils;
 
 /**
  * Tests for saving Datavyu project and CSV files.
@@ -90,8 +100,14 @@ public class SaveCTest {
         c.setOffset("00:02:00:000");
         c.getValue().set("This is a test cell.");
 
-        SaveC savec = new SaveC();
-        savec.saveProject(outFile, p, ds);
+        // The demo file holds its database as CSV.
+        System.setProperty(SaveDatabaseFileC.FORMAT_PROPERTY, "csv");
+        try {
+            SaveC savec = new SaveC();
+            savec.saveProject(outFile, p, ds);
+        } finally {
+            System.clearProperty(SaveDatabaseFileC.FORMAT_PROPERTY);
+        }
         assertTrue(UIUtils.areFilesSameByteComp(outFile, demoFile));
     }
 
@@ -123,8 +139,251 @@ public class SaveCTest {
         var = ds.createVariable("hiddenColumn", Argument.Type.TEXT);
         var.setHidden(true);
 
-        SaveC savec = new SaveC();
-        savec.saveProject(outFile, p, ds);
+        // The demo file holds its database as CSV.
+        System.setProperty(SaveDatabaseFileC.FORMAT_PROPERTY, "csv");
+        try {
+            SaveC savec = new SaveC();
+            savec.saveProject(outFile, p, ds);
+        } finally {
+            System.clearProperty(SaveDatabaseFileC.FORMAT_PROPERTY);
+        }
         assertTrue(UIUtils.areFilesSameByteComp(outFile, demoFile));
     }
+
+    @Test
+    public void testCSVRoundTrip() throws UserWarningException, IOException {
+        Datastore ds = createRoundTripDatastore();
+
+        // The buffered writer must produce exactly what printing each line
+        // did, and reading that back must give the same file again.
+        byte[] saved = saveCSV(ds);
+        assertEquals(new String(printCSV(ds)), new String(saved));
+
+        Datastore loaded = new OpenDatabaseFileC().openAsCSV(new ByteArrayInputStream(saved));
+        assertEquals(new String(saved), new String(saveCSV(loaded)));
+    }
+
+    @Test
+    public void testBinaryRoundTrip() throws UserWarningException, IOException {
+        Datastore ds = createRoundTripDatastore();
+        assertTrue(new SaveDatabaseFileC().canSaveAsBinary(ds));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SaveDatabaseFileC().save(out, ds);
+        byte[] saved = out.toByteArray();
+        assertEquals('D', saved[0]);
+
+        // Opening detects the format, and holds the same as the original.
+        Datastore loaded = new OpenDatabaseFileC().open(new ByteArrayInputStream(saved));
+        assertEquals(new String(saveCSV(ds)), new String(saveCSV(loaded)));
+
+        // CSV is still detected when opening.
+        loaded = new OpenDatabaseFileC().open(new ByteArrayInputStream(saveCSV(ds)));
+        assertEquals(new String(saveCSV(ds)), new String(saveCSV(loaded)));
+    }
+
+    @Test
+    public void testSaveChanges() throws UserWarningException, IOException {
+        File outFile = new File("target/test4.opf");
+        File journal = ChangeJournal.getJournalFile(outFile);
+        outFile.delete();
+        journal.delete();
+
+        Project p = new Project();
+        p.setProjectName("test4");
+        Datastore ds = createRoundTripDatastore();
+        SaveC savec = new SaveC();
+        savec.snapshotChanges(outFile, p, ds).write(null);
+        assertFalse(journal.exists());
+
+        // Change a cell, rename a variable, then add and remove variables.
+        Variable text = ds.getVariable("text-column");
+        text.getCells().get(0).setOnset(500);
+        ds.getVariable("nominal").setName("renamed");
+        savec.snapshotChanges(outFile, p, ds).write(null);
+
+        ds.removeVariable(ds.getVariable("matrix"));
+        ds.createVariable("added", Argument.Type.TEXT).createCell().getValue().set("new");
+        savec.snapshotChanges(outFile, p, ds).write(null);
+        assertEquals(text instanceof Versioned, journal.exists());
+
+        // A record left incomplete by a failed save is ignored.
+        if (journal.exists()) {
+            FileOutputStream fos = new FileOutputStream(journal, true);
+            fos.write(new byte[] {'D', 'V', 'J'});
+            fos.close();
+        }
+
+        OpenC openc = new OpenC();
+        openc.openProject(outFile);
+        assertEquals(new String(saveCSV(ds)), new String(saveCSV(openc.getDatastore())));
+
+        // Saving the whole project compacts the journal away. A copy is kept
+        // of the journal it replaces.
+        ds.getVariable("added").createCell();
+        savec.snapshotChanges(outFile, p, ds).write(null);
+        File copy = new File("target/test4.opf.journal.copy");
+        copy.delete();
+        boolean journaled = journal.renameTo(copy);
+        ds.getVariable("added").createCell();
+        savec.saveProject(outFile, p, ds, false);
+        assertFalse(journal.exists());
+
+        // A journal written for another copy of the archive is kept aside
+        // rather than replayed.
+        File unmatched = ChangeJournal.getUnmatchedFile(outFile);
+        unmatched.delete();
+        if (journaled) {
+            assertTrue(copy.renameTo(journal));
+        }
+        openc = new OpenC();
+        openc.openProject(outFile);
+        assertEquals(new String(saveCSV(ds)), new String(saveCSV(openc.getDatastore())));
+        assertEquals(journaled, unmatched.exists());
+        assertEquals(journaled ? unmatched : null, openc.getUnmatchedJournal());
+        assertFalse(journal.exists());
+    }
+
+    @Test
+    public void testSnapshot() throws UserWarningException, IOException {
+        File outFile = new File("target/test5.opf");
+        outFile.delete();
+        ChangeJournal.getJournalFile(outFile).delete();
+
+        Project p = new Project();
+        p.setProjectName("test5");
+        Datastore ds = createRoundTripDatastore();
+        SaveC savec = new SaveC();
+
+        // Changes made after a snapshot is taken are not written with it.
+        byte[] expected = saveCSV(ds);
+        SaveC.Snapshot snapshot = savec.snapshotChanges(outFile, p, ds);
+        ds.getVariable("text-column").createCell();
+        snapshot.write(null);
+        assertFalse(SaveC.getPartFile(outFile).exists());
+
+        OpenC openc = new OpenC();
+        openc.openProject(outFile);
+        assertEquals(new String(expected), new String(saveCSV(openc.getDatastore())));
+
+        expected = saveCSV(ds);
+        snapshot = savec.snapshotChanges(outFile, p, ds);
+        ds.getVariable("nominal").createCell();
+        snapshot.write(null);
+
+        openc = new OpenC();
+        openc.openProject(outFile);
+        assertEquals(new String(expected), new String(saveCSV(openc.getDatastore())));
+    }
+
+    @Test
+    public void testRecoverBackup() throws IOException {
+        File outFile = new File("target/test6.opf");
+        File backupFile = SaveC.getBackupFile(outFile);
+        outFile.delete();
+
+        // A file moved aside is put back if its replacement never arrived.
+        FileOutputStream fos = new FileOutputStream(backupFile);
+        fos.write(new byte[] {1, 2, 3});
+        fos.close();
+        assertEquals(outFile, SaveC.recoverBackup(backupFile));
+        assertEquals(3, outFile.length());
+        assertFalse(backupFile.exists());
+
+        // Otherwise it is no longer needed.
+        fos = new FileOutputStream(backupFile);
+        fos.write(new byte[] {1});
+        fos.close();
+        assertNull(SaveC.recoverBackup(backupFile));
+        assertEquals(3, outFile.length());
+        assertFalse(backupFile.exists());
+    }
+
+    /**
+     * @return A datastore with values that need escaping, a hidden variable,
+     * a matrix variable and empty cells.
+     */
+    private Datastore createRoundTripDatastore() throws UserWarningException {
+        Datastore ds = DatastoreFactory.newDatastore();
+        Variable var = ds.createVariable("text-column", Argument.Type.TEXT);
+        Cell c = var.createCell();
+        c.setOnset(1000);
+        c.setOffset(2000);
+        c.getValue().set("Commas, dashes - and \\ backslashes.");
+        c = var.createCell();
+        c.setOnset(3723004);
+        c.setOffset(3000);
+        c.getValue().set("Two\nlines\r\n3 with a leading digit.");
+        var.createCell();
+
+        var = ds.createVariable("nominal", Argument.Type.NOMINAL);
+        var.setHidden(true);
+        c = var.createCell();
+        c.getValue().set("a-b");
+
+        var = ds.createVariable("matrix", Argument.Type.MATRIX);
+        var.addArgument(Argument.Type.NOMINAL);
+        c = var.createCell();
+        c.setOffset(500);
+        MatrixValue mv = (MatrixValue) c.getValue();
+        mv.getArguments().get(0).set("x-1");
+        mv.getArguments().get(1).set("y");
+        var.createCell();
+
+        return ds;
+    }
+
+    private byte[] saveCSV(final Datastore ds) throws UserWarningException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SaveDatabaseFileC().saveAsCSV(out, ds);
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes a datastore as #4 CSV the way that it was written with a
+     * PrintStream before the save was buffered.
+     */
+    private byte[] printCSV(final Datastore ds) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PrintStream ps = new PrintStream(out);
+        ps.println("#4");
+
+        for (Variable variable : ds.getAllVariables()) {
+            ps.printf("%s (%s,%s,%s)",
+                        StringUtils.escapeCSV(variable.getName()),
+                        variable.getVariableType().type,
+                        !variable.isHidden(),
+                        "");
+
+            if (variable.getVariableType().type == Argument.Type.MATRIX) {
+                ps.print('-');
+
+                int numArgs = 0;
+                for (Argument arg : variable.getVariableType().childArguments) {
+                    ps.printf("%s|%s",
+                              StringUtils.escapeCSV(arg.name),
+                              arg.type);
+
+                    if (numArgs < (variable.getVariableType().childArguments.size() - 1)) {
+                        ps.print(',');
+                    }
+                    numArgs++;
+                }
+            }
+
+            ps.println();
+
+            for (Cell cell : variable.getCells()) {
+                ps.printf("%s,%s,%s",
+                          cell.getOnsetString(),
+                          cell.getOffsetString(),
+                          StringUtils.escapeCSVArgument(cell.getValueAsString()));
+                ps.println();
+            }
+        }
+        ps.flush();
+
+        return out.toByteArray();
+    }
 }
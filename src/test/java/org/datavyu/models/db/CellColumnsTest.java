@@ -0,0 +1,114 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.models.db;
+
+import java.util.List;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+
+/**
+ * Tests for reading and writing variables as columns.
+ */
+public class CellColumnsTest {
+
+    /** The parent datastore for the variable. */
+    private Datastore ds;
+
+    /** The variable to read and write. */
+    private Variable var;
+
+    @BeforeMethod
+    public void setUp() throws UserWarningException {
+        ds = DatastoreFactory.newDatastore();
+        var = ds.createVariable("test", Argument.Type.MATRIX);
+        var.addArgument(Argument.Type.NOMINAL);
+
+        CellRows rows = new CellRows();
+        rows.add(2000, 2500, new String[] {"b", "x"});
+        rows.add(1000, 1500, new String[] {"a", null});
+        rows.add(3000, 3500, new String[] {"a", "x"});
+        ((BulkLoadable) var).insertCells(rows);
+        ds.markAsUnchanged();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        var = null;
+        ds = null;
+    }
+
+    @Test
+    public void testRead() {
+        CellColumns columns = CellColumns.of(var);
+
+        assertEquals(columns.size(), 3);
+        assertEquals(columns.getArgumentNames().length, 2);
+        assertEquals(columns.getArgumentIndex("arg02"), 1);
+        assertEquals(columns.getOnsets()[0], 1000);
+        assertEquals(columns.getOffsets()[2], 3500);
+
+        // Each distinct value is coded once.
+        assertEquals(columns.getDictionary().length, 3);
+        int[] codes = columns.getCodes(0);
+        assertEquals(codes[0], codes[2]);
+        assertEquals(columns.decode(codes[1]), "b");
+        assertEquals(columns.getCodes(1)[0], CellColumns.EMPTY);
+        assertEquals(columns.getValue(2, 1), "x");
+        assertFalse(ds.isChanged());
+    }
+
+    @Test
+    public void testWrite() {
+        VariableListener listener = mock(VariableListener.class);
+        var.addListener(listener);
+        CellColumns columns = CellColumns.of(var);
+
+        // Recode every "a", move a cell and fill in an empty value.
+        columns.setDictionaryValue(columns.getCodes(0)[0], "c");
+        columns.getOnsets()[1] = 500;
+        columns.getCodes(1)[0] = columns.encode("y");
+        columns.writeTo(var);
+
+        assertTrue(ds.isChanged());
+        List<Cell> cells = var.getCellsTemporally();
+        assertEquals(cells.size(), 3);
+        assertEquals(cells.get(0).getOnset(), 500);
+        assertEquals(cells.get(0).getValueAsString(), "(b,x)");
+        assertEquals(cells.get(1).getValueAsString(), "(c,y)");
+        assertEquals(cells.get(2).getValueAsString(), "(c,x)");
+        verify(listener, times(3)).cellRemoved(any(Cell.class));
+        verify(listener, times(3)).cellInserted(any(Cell.class));
+
+        assertEquals(CellColumns.of(var).getOnsets()[0], 500);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testWriteMismatchedArguments() {
+        new CellColumns(new String[] {"value"}, new long[] {0}, new long[] {0},
+                        new int[][] {{0}}, new String[] {"a"}).writeTo(var);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testCodeNotInDictionary() {
+        new CellColumns(new String[] {"value"}, new long[] {0}, new long[] {0},
+                        new int[][] {{1}}, new String[] {"a"});
+    }
+}
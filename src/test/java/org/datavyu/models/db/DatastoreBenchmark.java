@@ -0,0 +1,87 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.models.db;
+
+import java.util.List;
+
+/**
+ * Compares the latency of the mongo and columnar datastores for the cell
+ * operations that dominate opening, scrolling and saving a coding session.
+ * This is not part of the test suite, run it by hand with:
+ *
+ * java org.datavyu.models.db.DatastoreBenchmark [numberOfCells]
+ */
+public final class DatastoreBenchmark {
+
+    /** The default number of cells to create in each datastore. */
+    private static final int DEFAULT_CELLS = 10000;
+
+    public static void main(final String[] args) throws UserWarningException {
+        int numCells = DEFAULT_CELLS;
+        if (args.length > 0) {
+            numCells = Integer.parseInt(args[0]);
+        }
+
+        System.setProperty(DatastoreFactory.ENGINE_PROPERTY, DatastoreFactory.COLUMNAR_ENGINE);
+        run("columnar", DatastoreFactory.newDatastore(), numCells);
+
+        System.setProperty(DatastoreFactory.ENGINE_PROPERTY, "mongo");
+        MongoDatastore.startMongo();
+        try {
+            run("mongo", DatastoreFactory.newDatastore(), numCells);
+        } finally {
+            MongoDatastore.stopMongo();
+        }
+    }
+
+    /**
+     * Times the create, temporal scan and value read of a nominal variable.
+     *
+     * @param engine The name of the engine being timed.
+     * @param ds The datastore to populate.
+     * @param numCells The number of cells to create.
+     */
+    private static void run(final String engine, final Datastore ds, final int numCells)
+    throws UserWarningException {
+        Variable var = ds.createVariable("bench", Argument.Type.NOMINAL);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < numCells; i++) {
+            Cell c = var.createCell();
+            c.setOnset((long) (numCells - i) * 100);
+            c.setOffset((long) (numCells - i) * 100 + 50);
+            c.getValue().set("code" + (i % 10));
+        }
+        report(engine, "create", start, numCells);
+
+        start = System.nanoTime();
+        List<Cell> cells = var.getCellsTemporally();
+        report(engine, "temporal scan", start, numCells);
+
+        start = System.nanoTime();
+        long chars = 0;
+        for (Cell c : cells) {
+            chars += c.getOnsetString().length() + c.getValueAsString().length();
+        }
+        report(engine, "read (" + chars + " chars)", start, numCells);
+    }
+
+    private static void report(final String engine, final String op,
+                               final long start, final int numCells) {
+        double ms = (System.nanoTime() - start) / 1000000.0;
+        System.out.printf("%-10s %-28s %10.1f ms %10.3f us/cell%n",
+                          engine, op, ms, ms * 1000.0 / numCells);
+    }
+}
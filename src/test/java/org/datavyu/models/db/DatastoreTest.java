@@ -104,6 +104,42 @@ public class DatastoreTest {
         verify(titleListener).updateTitle();
     }
 
+    @Test
+    public void cellSelection() throws UserWarningException {
+        Variable var = model.createVariable("foo", Argument.Type.TEXT);
+        Cell c1 = var.createCell();
+        Cell c2 = var.createCell();
+        Cell c3 = var.createCell();
+
+        // New cells start selected.
+        assertEquals(model.getSelectedCells().size(), 3);
+
+        model.clearCellSelection();
+        assertEquals(model.getSelectedCells().size(), 0);
+        assertFalse(c1.isSelected());
+        assertFalse(c1.isHighlighted());
+
+        CellListener cellListener = mock(CellListener.class);
+        c2.addListener(cellListener);
+        c3.setHighlighted(true);
+        c2.setSelected(true);
+
+        List<Cell> selected = new ArrayList<Cell>();
+        selected.add(c3);
+        selected.add(c2);
+        assertEquals(model.getSelectedCells(), selected);
+        assertTrue(c3.isSelected());
+        assertFalse(c2.isHighlighted());
+
+        var.removeCell(c3);
+        model.clearCellSelection();
+        assertEquals(model.getSelectedCells().size(), 0);
+        verify(cellListener).selectionChange(true);
+        verify(cellListener).selectionChange(false);
+        verify(cellListener).highlightingChange(false);
+        c2.removeListener(cellListener);
+    }
+
     @Test (expectedExceptions = UserWarningException.class)
     public void unableToCreateVariable() throws UserWarningException {
         model.createVariable("foo", Argument.Type.TEXT);
@@ -134,6 +170,24 @@ public class DatastoreTest {
         verify(modelListener, times(0)).variableOrderChanged();
     }
 
+    @Test
+    public void removeVariableWithCells() throws UserWarningException {
+        Variable var = model.createVariable("foo", Argument.Type.TEXT);
+        Cell c1 = var.createCell();
+        Cell c2 = var.createCell();
+        Cell c3 = var.createCell();
+        VariableListener varListener = mock(VariableListener.class);
+        var.addListener(varListener);
+
+        model.removeVariable(var);
+
+        assertEquals(model.getAllVariables().size(), 0);
+        verify(varListener).cellRemoved(c1);
+        verify(varListener).cellRemoved(c2);
+        verify(varListener).cellRemoved(c3);
+        verify(modelListener).variableRemoved(var);
+    }
+
     @Test
     public void unchangedByDefault() throws UserWarningException {
         assertFalse(model.isChanged());
@@ -125,6 +125,20 @@ public class VariableTest {
         verify(modelListener, times(0)).cellRemoved(null);
     }
 
+    @Test
+    public void testCreateCellTemporally() {
+        // The cell is indexed once, whether or not the variable has been
+        // queried temporally before.
+        model.createCell();
+        assertEquals(1, model.getCellsTemporally().size());
+        if (model instanceof StreamsCells) {
+            assertEquals(1, ((StreamsCells) model).getCellCount());
+        }
+
+        model.createCell();
+        assertEquals(2, model.getCellsTemporally().size());
+    }
+
     @Test
     public void testRemoveCell() {
         Cell c = model.createCell();
@@ -180,6 +194,107 @@ public class VariableTest {
         assertEquals(model.getCellTemporally(0), c2);
     }
 
+    @Test
+    public void testTemporalOrderUpdates() {
+        Cell c1 = model.createCell();
+        Cell c2 = model.createCell();
+        Cell c3 = model.createCell();
+
+        // Fill the temporal index before changing onsets.
+        assertEquals(model.getCellTemporally(0), c1);
+
+        c1.setOnset(300);
+        c2.setOnset(200);
+        c3.setOnset(100);
+        assertEquals(model.getCellTemporally(0), c3);
+        assertEquals(model.getCellTemporally(1), c2);
+        assertEquals(model.getCellTemporally(2), c1);
+        assertEquals(model.getCellTemporally(3), null);
+
+        c1.setOnset(0);
+        model.removeCell(c2);
+
+        List<Cell> orderedCells = new ArrayList<Cell>();
+        orderedCells.add(c1);
+        orderedCells.add(c3);
+        assertEquals(model.getCellsTemporally(), orderedCells);
+
+        // Cells with the same onset stay in the order they were created.
+        Cell c4 = model.createCell();
+        orderedCells.add(1, c4);
+        assertEquals(model.getCellsTemporally(), orderedCells);
+    }
+
+    @Test
+    public void testCellsOverlapping() {
+        OverlapQueryable query = (OverlapQueryable) model;
+        Cell c1 = model.createCell();
+        Cell c2 = model.createCell();
+        Cell c3 = model.createCell();
+
+        c1.setOnset(0);
+        c1.setOffset(1000);
+        c2.setOnset(500);
+        c2.setOffset(600);
+        c3.setOnset(2000);
+        c3.setOffset(0);
+
+        List<Cell> expected = new ArrayList<Cell>();
+        expected.add(c1);
+        expected.add(c2);
+        assertEquals(query.getCellsOverlapping(550, 550), expected);
+        assertEquals(query.getCellsOverlapping(600, 2000).size(), 3);
+        assertEquals(query.getCellsOverlapping(1001, 1999).size(), 0);
+
+        // A cell whose offset is before its onset is active at its onset.
+        assertEquals(query.getCellsOverlapping(2000, 2000).get(0), c3);
+
+        c2.setOffset(1500);
+        c1.setOnset(1800);
+        expected.clear();
+        expected.add(c2);
+        expected.add(c1);
+        assertEquals(query.getCellsOverlapping(1200, 1900), expected);
+
+        model.removeCell(c2);
+        assertEquals(query.getCellsOverlapping(1200, 1500).size(), 0);
+    }
+
+    @Test
+    public void testLazyCells() throws UserWarningException {
+        Datastore columnar = new ColumnarDatastore();
+        Variable var = columnar.createVariable("lazy", Argument.Type.MATRIX);
+        var.addArgument(Argument.Type.NOMINAL);
+        columnar.markAsUnchanged();
+
+        final CellRows rows = new CellRows();
+        rows.add(2000, 3000, new String[] {"b", null});
+        rows.add(1000, 1500, new String[] {"a", "c"});
+        final int[] reads = {0};
+        ((LazyLoadable) var).setCellSource(new CellSource() {
+            @Override
+            public CellRows read() {
+                reads[0]++;
+                return rows;
+            }
+        });
+        assertEquals(reads[0], 0);
+
+        // The cells are read when first queried, and only once.
+        Cell first = var.getCellTemporally(0);
+        assertEquals(reads[0], 1);
+        assertEquals(first.getOnset(), 1000);
+        assertEquals(first.getValueAsString(), "(a,c)");
+        assertEquals(var.getCells().size(), 2);
+        assertEquals(var.getCells().get(0).getValueAsString(), "(b,<arg02>)");
+        assertEquals(reads[0], 1);
+        assertFalse(columnar.isChanged());
+
+        var.createCell();
+        assertEquals(var.getCells().size(), 3);
+        assertTrue(columnar.isChanged());
+    }
+
      @Test(expectedExceptions = UserWarningException.class)
      public void uniqueVariableNames() throws UserWarningException {
          ds.createVariable("test", Argument.Type.TEXT);
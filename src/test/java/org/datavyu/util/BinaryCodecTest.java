@@ -0,0 +1,83 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+
+import org.testng.annotations.Test;
+
+/**
+ * Tests for the binary codec.
+ */
+public class BinaryCodecTest {
+
+    private static final long[] NUMBERS = {
+        0, 1, -1, 63, -64, 64, 127, 128, 300, -300, 3723004,
+        Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE
+    };
+
+    @Test public void roundTrip() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        for (long n : NUMBERS) {
+            BinaryCodec.writeSignedVarLong(out, n);
+            BinaryCodec.writeVarLong(out, n);
+        }
+        BinaryCodec.writeVarInt(out, Integer.MAX_VALUE);
+        BinaryCodec.writeString(out, null);
+        BinaryCodec.writeString(out, "");
+        BinaryCodec.writeString(out, "caf\u00e9 \u4e2d");
+
+        DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray()));
+        for (long n : NUMBERS) {
+            assertEquals(n, BinaryCodec.readSignedVarLong(in));
+            assertEquals(n, BinaryCodec.readVarLong(in));
+        }
+        assertEquals(Integer.MAX_VALUE, BinaryCodec.readVarInt(in));
+        assertNull(BinaryCodec.readString(in));
+        assertEquals("", BinaryCodec.readString(in));
+        assertEquals("caf\u00e9 \u4e2d", BinaryCodec.readString(in));
+        assertEquals(-1, in.read());
+    }
+
+    @Test public void smallNumbersAreShort() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        BinaryCodec.writeSignedVarLong(out, -64);
+        BinaryCodec.writeSignedVarLong(out, 63);
+        assertEquals(2, bytes.size());
+
+        BinaryCodec.writeVarLong(out, 128);
+        assertEquals(4, bytes.size());
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void intOverflow() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryCodec.writeVarLong(new DataOutputStream(bytes), 1L << 40);
+
+        BinaryCodec.readVarInt(new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())));
+    }
+}
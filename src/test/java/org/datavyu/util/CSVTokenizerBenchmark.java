@@ -0,0 +1,153 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+
+/**
+ * Measures the throughput of reading a large CSV file with the CSVTokenizer,
+ * against reading it with readLine and String.split as the CSV loader used
+ * to. This is not part of the test suite, run it by hand with:
+ *
+ * java org.datavyu.util.CSVTokenizerBenchmark [sizeInMB]
+ */
+public final class CSVTokenizerBenchmark {
+
+    /** The default size of the generated file in megabytes. */
+    private static final int DEFAULT_SIZE_MB = 300;
+
+    /** The number of rounds to run, the first ones warm up the JIT. */
+    private static final int ROUNDS = 3;
+
+    public static void main(final String[] args) throws IOException {
+        int sizeMB = DEFAULT_SIZE_MB;
+        if (args.length > 0) {
+            sizeMB = Integer.parseInt(args[0]);
+        }
+
+        File file = File.createTempFile("datavyu-bench", ".csv");
+        file.deleteOnExit();
+        generate(file, sizeMB * 1024L * 1024L);
+        System.out.printf("Generated %.1f MB%n", file.length() / 1048576.0);
+
+        for (int round = 1; round <= ROUNDS; round++) {
+            System.out.println("Round " + round);
+
+            long start = System.nanoTime();
+            long sum = readLines(file);
+            report("readLine + split", start, file, sum);
+
+            start = System.nanoTime();
+            sum = tokenize(file);
+            report("CSVTokenizer", start, file, sum);
+        }
+    }
+
+    /**
+     * Writes a #4 file of text, nominal and matrix variables.
+     */
+    private static void generate(final File file, final long size) throws IOException {
+        BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file)));
+        try {
+            out.write("#4\n");
+            long written = 0;
+            for (int v = 0; written < size; v++) {
+                out.write("text" + v + " (TEXT,true,)\n");
+                out.write("nominal" + v + " (NOMINAL,true,)\n");
+                for (int i = 0; i < 100000; i++) {
+                    String row = TimestampCodec.format(i * 1000L) + ","
+                            + TimestampCodec.format(i * 1000L + 500) + ",code" + (i % 7) + "\n";
+                    out.write(row);
+                    written += row.length();
+                }
+                out.write("matrix" + v + " (MATRIX,true,)-a|NOMINAL,b|NOMINAL,c|NOMINAL\n");
+                for (int i = 0; i < 100000; i++) {
+                    String row = TimestampCodec.format(i * 1000L) + ","
+                            + TimestampCodec.format(i * 1000L + 500)
+                            + ",(first\\-" + i + ",second,a longer third argument)\n";
+                    out.write(row);
+                    written += row.length();
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads the rows the way the CSV loader used to.
+     */
+    private static long readLines(final File file) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file)));
+        long sum = 0;
+        try {
+            String line = in.readLine();
+            while (line != null) {
+                if (line.length() > 0 && Character.isDigit(line.charAt(0))) {
+                    if (line.contains("\\")) {
+                        line = line.replace("\\", "");
+                    }
+                    String[] tokens = line.split(",");
+                    String[] s = tokens[0].split(":");
+                    sum += Long.valueOf(s[0]) + Long.valueOf(s[1]) + Long.valueOf(s[2]) + Long.valueOf(s[3]);
+                    sum += tokens[tokens.length - 1].length();
+                }
+                line = in.readLine();
+            }
+        } finally {
+            in.close();
+        }
+
+        return sum;
+    }
+
+    /**
+     * Reads the rows with the tokenizer.
+     */
+    private static long tokenize(final File file) throws IOException {
+        Reader in = new InputStreamReader(new FileInputStream(file));
+        CSVTokenizer csv = new CSVTokenizer(in);
+        CSVTokenizer.Row row = new CSVTokenizer.Row();
+        long sum = 0;
+        try {
+            while (!csv.atEnd()) {
+                if (csv.atRow()) {
+                    csv.readRow(row);
+                    sum += row.getOnset() + row.getArgument(row.getArgumentCount() - 1).length();
+                } else {
+                    csv.readLine();
+                }
+            }
+        } finally {
+            in.close();
+        }
+
+        return sum;
+    }
+
+    private static void report(final String op, final long start, final File file, final long sum) {
+        double secs = (System.nanoTime() - start) / 1000000000.0;
+        System.out.printf("  %-20s %8.2f s %8.1f MB/s (%d)%n",
+                          op, secs, file.length() / 1048576.0 / secs, sum);
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.util;
+
+import java.io.IOException;
+import java.io.StringReader;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+/**
+ * Tests for the CSV tokenizer.
+ */
+public class CSVTokenizerTest {
+
+    @Test public void linesAndRows() throws IOException {
+        CSVTokenizer csv = new CSVTokenizer(new StringReader(
+                "#4\nvar (TEXT,true,)\r\n00:00:01:000,00:00:02:500,text\n"));
+        CSVTokenizer.Row row = new CSVTokenizer.Row();
+
+        assertFalse(csv.atRow());
+        assertEquals("#4", csv.readLine());
+        assertEquals("var (TEXT,true,)", csv.peekLine());
+        assertEquals("var (TEXT,true,)", csv.readLine());
+
+        assertTrue(csv.atRow());
+        csv.readRow(row);
+        assertEquals(1000, row.getOnset());
+        assertEquals(2500, row.getOffset());
+        assertTrue(row.hasValue());
+        assertEquals("text", row.getValue());
+
+        assertTrue(csv.atEnd());
+        assertNull(csv.readLine());
+    }
+
+    @Test public void escapes() throws IOException {
+        CSVTokenizer csv = new CSVTokenizer(new StringReader(
+                "00:00:00:000,00:00:00:000,a\\,b\\\\c\\-d, e\\\nf\\\r\ng\nnext"));
+        CSVTokenizer.Row row = new CSVTokenizer.Row();
+
+        csv.readRow(row);
+        assertEquals("a,b\\c-d, e\nf\ng", row.getValue());
+        assertEquals(2, row.getArgumentCount());
+        assertEquals("a,b\\c-d", row.getArgument(0));
+        assertEquals(" e\nf\ng", row.getArgument(1));
+        assertEquals("next", csv.readLine());
+    }
+
+    @Test public void emptyValue() throws IOException {
+        CSVTokenizer csv = new CSVTokenizer(new StringReader(
+                "00:00:00:000,00:00:00:000\n00:00:00:000,00:00:00:000,\n"));
+        CSVTokenizer.Row row = new CSVTokenizer.Row();
+
+        csv.readRow(row);
+        assertFalse(row.hasValue());
+        assertEquals(0, row.getArgumentCount());
+        assertEquals("", row.getValue());
+
+        csv.readRow(row);
+        assertFalse(row.hasValue());
+        assertEquals(1, row.getArgumentCount());
+        assertTrue(csv.atEnd());
+    }
+
+    @Test public void readValue() throws IOException {
+        CSVTokenizer csv = new CSVTokenizer(new StringReader("(a,b)"));
+        CSVTokenizer.Row row = new CSVTokenizer.Row();
+
+        csv.readValue(row, 5, 6);
+        assertEquals(5, row.getOnset());
+        assertEquals(6, row.getOffset());
+        assertEquals("(a,b)", row.getValue());
+        assertEquals(2, row.getArgumentCount());
+        assertEquals("(a", row.getArgument(0));
+    }
+
+    @Test public void longLines() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 200000; i++) {
+            text.append((char) ('a' + i % 26));
+        }
+        CSVTokenizer csv = new CSVTokenizer(new StringReader(
+                "header " + text + "\n00:00:00:000,00:00:00:001," + text + "\n"));
+        CSVTokenizer.Row row = new CSVTokenizer.Row();
+
+        assertEquals("header " + text, csv.peekLine());
+        assertEquals("header " + text, csv.readLine());
+        csv.readRow(row);
+        assertEquals(text.toString(), row.getValue());
+        assertTrue(csv.atEnd());
+    }
+
+    @Test public void badTimestampConsumesRow() throws IOException {
+        CSVTokenizer csv = new CSVTokenizer(new StringReader(
+                "00:00,00:00:00:000,a\\\nb\n00:00:00:000,00:00:00:000,c"));
+        CSVTokenizer.Row row = new CSVTokenizer.Row();
+
+        try {
+            csv.readRow(row);
+            assertTrue(false);
+        } catch (NumberFormatException e) {
+            // Expected.
+        }
+
+        csv.readRow(row);
+        assertEquals("c", row.getValue());
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+/**
+ * Tests for writing zip archives in parallel.
+ */
+public class ParallelZipWriterTest {
+
+    @Test public void readableByZipInputStream() throws IOException {
+        Map<String, byte[]> entries = createEntries();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ParallelZipWriter.write(out, entries, Deflater.DEFAULT_COMPRESSION);
+
+        ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()));
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            ZipEntry ze = in.getNextEntry();
+            assertEquals(entry.getKey(), ze.getName());
+            assertEquals(new String(entry.getValue(), "UTF-8"),
+                         new String(readAll(in), "UTF-8"));
+        }
+        assertNull(in.getNextEntry());
+        in.close();
+    }
+
+    @Test public void readableByZipFile() throws IOException {
+        Map<String, byte[]> entries = createEntries();
+        File file = File.createTempFile("parallel", ".zip");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        ParallelZipWriter.write(out, entries, Deflater.BEST_SPEED);
+        out.close();
+
+        ZipFile zf = new ZipFile(file);
+        assertEquals(entries.size(), zf.size());
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            ZipEntry ze = zf.getEntry(entry.getKey());
+            assertEquals(entry.getValue().length, ze.getSize());
+
+            InputStream in = zf.getInputStream(ze);
+            assertEquals(new String(entry.getValue(), "UTF-8"),
+                         new String(readAll(in), "UTF-8"));
+            in.close();
+        }
+        zf.close();
+    }
+
+    @Test public void compressionLevel() throws IOException {
+        Map<String, byte[]> entries = createEntries();
+        ByteArrayOutputStream stored = new ByteArrayOutputStream();
+        ParallelZipWriter.write(stored, entries, Deflater.NO_COMPRESSION);
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+        ParallelZipWriter.write(deflated, entries, Deflater.BEST_COMPRESSION);
+
+        assertTrue(deflated.size() < stored.size());
+    }
+
+    /**
+     * @return Entries that are empty, have a name that isn't ASCII and are
+     * large enough to take a while to deflate.
+     */
+    private Map<String, byte[]> createEntries() throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        entries.put("project", "name: test\n".getBytes("UTF-8"));
+        entries.put("empty", new byte[0]);
+        entries.put("caf\u00e9", "\u4e2d".getBytes("UTF-8"));
+
+        StringBuilder db = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            db.append(i).append(",00:00:01:000,(").append(i % 7).append(")\n");
+        }
+        entries.put("db", db.toString().getBytes("UTF-8"));
+
+        return entries;
+    }
+
+    private byte[] readAll(final InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = in.read(buffer)) > 0) {
+            out.write(buffer, 0, count);
+        }
+
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.util;
+
+/**
+ * Compares the timestamp codec with the String.format and String.split
+ * conversions it replaced. This is not part of the test suite, run it by
+ * hand with:
+ *
+ * java org.datavyu.util.TimestampCodecBenchmark [numberOfTimestamps]
+ */
+public final class TimestampCodecBenchmark {
+
+    /** The default number of timestamps to convert in each round. */
+    private static final int DEFAULT_TIMESTAMPS = 1000000;
+
+    /** The number of rounds to run, the first ones warm up the JIT. */
+    private static final int ROUNDS = 5;
+
+    public static void main(final String[] args) {
+        int n = DEFAULT_TIMESTAMPS;
+        if (args.length > 0) {
+            n = Integer.parseInt(args[0]);
+        }
+
+        long[] times = new long[n];
+        String[] stamps = new String[n];
+        for (int i = 0; i < n; i++) {
+            times[i] = i * 7919L;
+            stamps[i] = TimestampCodec.format(times[i]);
+        }
+
+        for (int round = 1; round <= ROUNDS; round++) {
+            System.out.println("Round " + round);
+
+            // Sum the results so the JIT can not discard the work.
+            long start = System.nanoTime();
+            long sum = 0;
+            for (int i = 0; i < n; i++) {
+                sum += TimestampCodecTest.legacyFormat(times[i]).length();
+            }
+            report("String.format", start, n, sum);
+
+            start = System.nanoTime();
+            sum = 0;
+            for (int i = 0; i < n; i++) {
+                sum += TimestampCodec.format(times[i]).length();
+            }
+            report("codec format (String)", start, n, sum);
+
+            start = System.nanoTime();
+            sum = 0;
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < n; i++) {
+                sb.setLength(0);
+                sum += TimestampCodec.format(times[i], sb).length();
+            }
+            report("codec format (builder)", start, n, sum);
+
+            start = System.nanoTime();
+            sum = 0;
+            for (int i = 0; i < n; i++) {
+                sum += TimestampCodecTest.legacyParse(stamps[i]);
+            }
+            report("String.split", start, n, sum);
+
+            start = System.nanoTime();
+            sum = 0;
+            for (int i = 0; i < n; i++) {
+                sum += TimestampCodec.parse(stamps[i]);
+            }
+            report("codec parse", start, n, sum);
+        }
+    }
+
+    private static void report(final String op, final long start, final int n, final long sum) {
+        double ms = (System.nanoTime() - start) / 1000000.0;
+        System.out.printf("  %-24s %10.1f ms %10.1f ns/timestamp (%d)%n",
+                          op, ms, ms * 1000000.0 / n, sum);
+    }
+}
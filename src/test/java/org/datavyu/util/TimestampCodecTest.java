@@ -0,0 +1,113 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.datavyu.util;
+
+import java.util.Random;
+import static junit.framework.Assert.assertEquals;
+
+import org.testng.annotations.Test;
+
+/**
+ * Tests for the timestamp codec.
+ */
+public class TimestampCodecTest {
+
+    @Test public void format() {
+        assertEquals("00:00:00:000", TimestampCodec.format(0));
+        assertEquals("00:01:00:000", TimestampCodec.format(60000));
+        assertEquals("01:02:03:004", TimestampCodec.format(3723004));
+        assertEquals("123:00:00:001", TimestampCodec.format(123 * 3600000L + 1));
+        assertEquals("-1:59:59:999", TimestampCodec.format(-1));
+    }
+
+    @Test public void formatIntoBuffers() {
+        StringBuilder sb = new StringBuilder("x");
+        TimestampCodec.format(3723004, sb);
+        assertEquals("x01:02:03:004", sb.toString());
+
+        char[] buf = new char[TimestampCodec.LENGTH + 2];
+        int end = TimestampCodec.format(3723004, buf, 2);
+        assertEquals(TimestampCodec.LENGTH + 2, end);
+        assertEquals("01:02:03:004", new String(buf, 2, TimestampCodec.LENGTH));
+    }
+
+    @Test public void parse() {
+        assertEquals(0, TimestampCodec.parse("00:00:00:000"));
+        assertEquals(3723004, TimestampCodec.parse("01:02:03:004"));
+        assertEquals(3723004, TimestampCodec.parse("1:2:3:4"));
+        assertEquals(123 * 3600000L + 1, TimestampCodec.parse("123:00:00:001"));
+        assertEquals(-1, TimestampCodec.parse("-1:59:59:999"));
+
+        char[] buf = "a,01:02:03:004,b".toCharArray();
+        assertEquals(3723004, TimestampCodec.parse(buf, 2, TimestampCodec.LENGTH));
+        assertEquals(3723004, TimestampCodec.parse("a,01:02:03:004,b", 2, TimestampCodec.LENGTH));
+    }
+
+    @Test public void matchesStringFormat() {
+        Random r = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            long time = (r.nextLong() % (200 * 3600000L));
+            String expected = legacyFormat(time);
+            assertEquals(expected, TimestampCodec.format(time));
+            assertEquals(expected, TimestampCodec.format(time, new StringBuilder()).toString());
+            assertEquals(legacyParse(expected), TimestampCodec.parse(expected));
+        }
+    }
+
+    @Test(expectedExceptions = NumberFormatException.class)
+    public void parseTooFewFields() {
+        TimestampCodec.parse("00:00:000");
+    }
+
+    @Test(expectedExceptions = NumberFormatException.class)
+    public void parseTooManyFields() {
+        TimestampCodec.parse("00:00:00:000:0");
+    }
+
+    @Test(expectedExceptions = NumberFormatException.class)
+    public void parseEmptyField() {
+        TimestampCodec.parse("00::00:000");
+    }
+
+    @Test(expectedExceptions = NumberFormatException.class)
+    public void parseBadCharacter() {
+        TimestampCodec.parse("00:0a:00:000");
+    }
+
+    /**
+     * The conversion the cells used before the codec.
+     */
+    static String legacyFormat(final long time) {
+        long hours = Math.round(Math.floor((time/1000.0/60.0/60.0)));
+        long minutes = Math.round(Math.floor(time/1000.0/60.0 - (hours * 60)));
+        long seconds = Math.round(Math.floor(time/1000.0 - (hours*60*60) - (minutes * 60)));
+        long mseconds = Math.round(Math.floor(time - (hours *60*60*1000) - (minutes*60*1000) - (seconds*1000)));
+
+        return String.format("%02d:%02d:%02d:%03d", hours, minutes, seconds, mseconds);
+    }
+
+    /**
+     * The conversion the cells used before the codec.
+     */
+    static long legacyParse(final String timestamp) {
+        String[] s = timestamp.split(":");
+        long hours = Long.valueOf(s[0]) * 60 * 60 * 1000;
+        long minutes = Long.valueOf(s[1]) * 60 * 1000;
+        long seconds = Long.valueOf(s[2]) * 1000;
+        long mseconds = Long.valueOf(s[3]);
+
+        return hours + minutes + seconds + mseconds;
+    }
+}